@@ -0,0 +1,107 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.FiltroDni;
+import gestpacientes.PoolConexiones;
+import gestpacientes.ValidadorDni;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Random;
+
+/**
+ * Clase con métodos para preparar una base de datos H2 en memoria con pacientes
+ * de prueba para las pruebas de rendimiento.
+ * @author Adrián Romero Ramírez
+ */
+public class BaseDatosPrueba {
+
+    // Fecha de nacimiento más antigua de los pacientes generados
+    private static final LocalDate FECHA_BASE=LocalDate.of(1920, 1, 1);
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private BaseDatosPrueba() {
+    }
+
+    /**
+     * Método que crea una base de datos en memoria, la usa como base de datos de
+     * la aplicación y la llena con el número de pacientes indicado
+     * @param nombre nombre de la base de datos en memoria
+     * @param filas número de pacientes
+     * @param conexiones número máximo de conexiones del pool
+     * @throws SQLException Si hay problemas creando o llenando la base de datos
+     */
+    public static void preparar(String nombre, int filas, int conexiones) throws SQLException {
+        Aplicacion.setPool(new PoolConexiones("jdbc:h2:mem:"+nombre+";MODE=MySQL;DB_CLOSE_DELAY=-1;COLLATION=SPANISH_SPAIN",
+                "", "", 1, conexiones, 30000, 60000, 2));
+        try (Connection con=Aplicacion.getPool().obtener()) {
+            if (!Aplicacion.createTables(con)) {
+                throw new SQLException("No se pudieron crear las tablas.");
+            }
+            llenar(con, 0, filas);
+        }
+        FiltroDni.construir();
+    }
+
+    /**
+     * Método que inserta pacientes generados con dni(i) para i entre desde y hasta-1
+     * @param con conexión con la base de datos
+     * @param desde primer índice
+     * @param hasta índice siguiente al último
+     * @throws SQLException Si falla la inserción
+     */
+    public static void llenar(Connection con, int desde, int hasta) throws SQLException {
+        long t0=System.nanoTime();
+        Random rnd=new Random(desde);
+        con.setAutoCommit(false);
+        try (PreparedStatement ps=con.prepareStatement(
+                "INSERT INTO PACIENTES (dni, nombre, apellidos, fecha_nacimiento, nhosp) VALUES (?, ?, ?, ?, ?)")) {
+            for (int i=desde; i<hasta; i++) {
+                ps.setString(1, dni(i));
+                ps.setString(2, "Nombre"+(i%5000));
+                ps.setString(3, "Apellido"+(i%20000)+" Apellido"+(i%7919));
+                ps.setString(4, fechaNacimiento(rnd).toString());
+                ps.setInt(5, rnd.nextInt(10));
+                ps.addBatch();
+                if ((i-desde+1)%10000==0) {
+                    ps.executeBatch();
+                    con.commit();
+                }
+            }
+            ps.executeBatch();
+            con.commit();
+        } finally {
+            con.setAutoCommit(true);
+        }
+        System.out.printf("Insertados %d pacientes de prueba en %.1f s\n", hasta-desde, (System.nanoTime()-t0)/1e9);
+    }
+
+    /**
+     * Método que genera el DNI válido número i
+     * @param i índice del paciente, entre 0 y 99999999
+     * @return DNI con su letra de control
+     */
+    public static String dni(int i) {
+        char[] c=new char[9];
+        int n=i;
+        for (int k=7; k>=0; k--) {
+            c[k]=(char) ('0'+n%10);
+            n/=10;
+        }
+        c[8]=ValidadorDni.letraControl(i);
+        return new String(c);
+    }
+
+    /**
+     * Método que genera una fecha de nacimiento entre 1920 y hoy
+     * @param rnd generador aleatorio
+     * @return la fecha
+     */
+    public static LocalDate fechaNacimiento(Random rnd) {
+        long dias=LocalDate.now().toEpochDay()-FECHA_BASE.toEpochDay();
+        return FECHA_BASE.plusDays((long) (rnd.nextDouble()*dias));
+    }
+}
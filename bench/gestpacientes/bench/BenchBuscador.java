@@ -0,0 +1,71 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.BuscadorPacientes;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Pruebas de rendimiento de la búsqueda por nombre y apellidos: consulta con
+ * LIKE '%texto%' sobre la tabla comparada con el índice en memoria de
+ * BuscadorPacientes, para una palabra entera, un prefijo, un texto en medio de
+ * la palabra y dos palabras.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchBuscador
+ *          -Dbench.args="1000000" -Dbench.jvmargs="-Xmx2g"
+ *
+ * El argumento es el número de pacientes de la tabla.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchBuscador {
+
+    // Textos buscados, con el nombre de cada prueba
+    private static final String[][] BUSQUEDAS={
+        {"palabra", "apellido1234"},
+        {"prefijo", "apellido123"},
+        {"contiene", "llido1234"},
+        {"dos palabras", "nombre12 apellido7"},
+    };
+    private static final String SQL_LIKE="SELECT dni, nombre, apellidos FROM PACIENTES "
+            + "WHERE LOWER(nombre) LIKE ? OR LOWER(apellidos) LIKE ? LIMIT 20";
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("buscador"+filas, filas, 2);
+
+        long t0=System.nanoTime();
+        BuscadorPacientes b=BuscadorPacientes.construir();
+        System.out.printf("Índice: %s en %.1f s\n", b, (System.nanoTime()-t0)/1e9);
+
+        for (String[] busqueda : BUSQUEDAS) {
+            String texto=busqueda[1];
+            // LIKE solo admite un texto seguido, así que se busca la primera palabra
+            String patron="%"+texto.split(" ")[0]+"%";
+            Medidor.medir("LIKE ("+busqueda[0]+")", 1, (h, i) -> {
+                int n=0;
+                try (Connection con=Aplicacion.getPool().obtener();
+                     PreparedStatement ps=con.prepareStatement(SQL_LIKE)) {
+                    ps.setString(1, patron);
+                    ps.setString(2, patron);
+                    try (ResultSet rs=ps.executeQuery()) {
+                        while (rs.next()) {
+                            n++;
+                        }
+                    }
+                }
+                return n;
+            });
+            Medidor.medir("índice ("+busqueda[0]+")", 1, (h, i) ->
+                    BuscadorPacientes.buscar(texto, 0, 20).getTotal());
+        }
+
+        Aplicacion.cerrarPool();
+    }
+}
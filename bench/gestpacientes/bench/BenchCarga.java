@@ -0,0 +1,344 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.FiltroDni;
+import gestpacientes.HistogramaLatencias;
+import gestpacientes.Paciente;
+import gestpacientes.PacientesDAO;
+import gestpacientes.PoolConexiones;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Prueba de carga de larga duración con una mezcla de operaciones sobre
+ * PacientesDAO. Usa una base de datos H2 en archivo, sin servidor ni red, que
+ * la primera vez se llena con pacientes de GeneradorPacientes. Varios hilos
+ * eligen cada operación al azar según su peso:
+ *
+ * - insert: inserta un paciente nuevo del generador
+ * - lookup: consulta los detalles de un paciente que ya existe (o que se ha borrado)
+ * - increment: suma una hospitalización a un paciente
+ * - delete: borra un paciente
+ * - list: lee una página del listado desde un DNI cualquiera
+ *
+ * Cada intervalo se muestra el número de operaciones por segundo y la latencia
+ * de cada tipo de operación (percentiles 50, 99 y 99,9 y máximo), además de la
+ * memoria usada, para ver si el rendimiento se degrada con el tiempo. Al
+ * terminar se muestran los totales de toda la prueba. Si se indica la propiedad
+ * bench.salida, cada intervalo se añade como líneas CSV a ese archivo.
+ *
+ * El siguiente índice del generador se guarda en el archivo ruta.carga, para
+ * que al repetir la prueba sobre la misma base de datos no se inserten DNI que
+ * ya existen.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchCarga
+ *          -Dbench.args="/tmp/carga/pacientes 1000000 8 3600 insert=5,lookup=70,increment=15,delete=2,list=8 10"
+ *
+ * Los argumentos son la ruta de la base de datos sin extensión, el número de
+ * pacientes iniciales, el número de hilos, los segundos que dura la prueba, la
+ * mezcla de operaciones y los segundos de cada intervalo del informe.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchCarga {
+
+    private static final String[] OPERACIONES={"insert", "lookup", "increment", "delete", "list"};
+    private static final int INSERT=0;
+    private static final int LOOKUP=1;
+    private static final int INCREMENT=2;
+    private static final int DELETE=3;
+    private static final int LIST=4;
+    private static final int TAMAÑO_PAGINA=50;
+    private static final String SALIDA=System.getProperty("bench.salida");
+
+    // Siguiente índice del generador, los anteriores ya se han insertado
+    private static final AtomicLong siguiente=new AtomicLong();
+    // Latencias del intervalo actual, el informe las cambia por otras nuevas
+    private static final AtomicReferenceArray<HistogramaLatencias> intervalo=new AtomicReferenceArray<>(OPERACIONES.length);
+    private static final HistogramaLatencias[] totales=new HistogramaLatencias[OPERACIONES.length];
+    private static final AtomicLong fallos=new AtomicLong();
+
+    /**
+     * Método principal que prepara la base de datos y lanza la prueba
+     * @param args ruta, pacientes, hilos, segundos, mezcla e intervalo
+     * @throws Exception Si falla la preparación
+     */
+    public static void main(String[] args) throws Exception {
+        String ruta=args.length>0 ? args[0] : Paths.get(System.getProperty("java.io.tmpdir"), "gestpacientes-carga", "pacientes").toString();
+        long pacientes=args.length>1 ? Long.parseLong(args[1]) : 1_000_000;
+        int hilos=args.length>2 ? Integer.parseInt(args[2]) : 8;
+        long segundos=args.length>3 ? Long.parseLong(args[3]) : 600;
+        int[] pesos=mezcla(args.length>4 ? args[4] : "insert=5,lookup=70,increment=15,delete=2,list=8");
+        long intervaloSeg=args.length>5 ? Long.parseLong(args[5]) : 10;
+
+        Class.forName("org.h2.Driver");
+        Path estado=Paths.get(ruta+".carga");
+        Aplicacion.setPool(new PoolConexiones("jdbc:h2:"+Paths.get(ruta).toAbsolutePath()+";MODE=MySQL;COLLATION=SPANISH_SPAIN",
+                "", "", 1, hilos+2, 30000, 60000, 2));
+        GeneradorPacientes generador=new GeneradorPacientes(1, LocalDate.now());
+        try (Connection con=Aplicacion.getPool().obtener()) {
+            if (!Aplicacion.createTables(con)) {
+                throw new SQLException("No se pudieron crear las tablas.");
+            }
+            long existentes=contar(con);
+            if (Files.exists(estado)) {
+                siguiente.set(leerEstado(estado));
+                System.out.printf("Se reutiliza la base de datos %s con %d pacientes\n", ruta, existentes);
+            } else if (existentes==0) {
+                generador.llenar(con, 0, pacientes);
+                siguiente.set(pacientes);
+                guardarEstado(estado);
+            } else {
+                System.out.println("ERROR: La base de datos "+ruta+" tiene pacientes que no ha creado la prueba de carga.");
+                return;
+            }
+        }
+        FiltroDni.construir();
+
+        for (int op=0; op<OPERACIONES.length; op++) {
+            intervalo.set(op, new HistogramaLatencias());
+            totales[op]=new HistogramaLatencias();
+        }
+        System.out.printf("Prueba de carga: %d hilos durante %d s, mezcla %s\n", hilos, segundos, texto(pesos));
+
+        AtomicBoolean parar=new AtomicBoolean();
+        List<Thread> trabajadores=new ArrayList<>();
+        for (int h=0; h<hilos; h++) {
+            Thread t=new Thread(() -> trabajar(generador, pesos, parar), "carga-"+h);
+            t.setDaemon(true);
+            t.start();
+            trabajadores.add(t);
+        }
+
+        long t0=System.nanoTime();
+        long fin=t0+TimeUnit.SECONDS.toNanos(segundos);
+        long anterior=t0;
+        while (System.nanoTime()<fin) {
+            long espera=Math.min(TimeUnit.SECONDS.toNanos(intervaloSeg), fin-System.nanoTime());
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, espera));
+            long ahora=System.nanoTime();
+            HistogramaLatencias[] h=new HistogramaLatencias[OPERACIONES.length];
+            for (int op=0; op<OPERACIONES.length; op++) {
+                h[op]=intervalo.getAndSet(op, new HistogramaLatencias());
+            }
+            informe(String.format("t=%ds", TimeUnit.NANOSECONDS.toSeconds(ahora-t0)), h, (ahora-anterior)/1e9);
+            anterior=ahora;
+            guardarEstado(estado);
+        }
+        parar.set(true);
+        for (Thread t : trabajadores) {
+            t.join();
+        }
+        informe("total", totales, (System.nanoTime()-t0)/1e9);
+        guardarEstado(estado);
+        Aplicacion.cerrarPool();
+    }
+
+    /**
+     * Método que ejecuta operaciones al azar hasta que se pide parar
+     * @param generador generador de los pacientes
+     * @param pesos peso de cada operación
+     * @param parar indica cuándo hay que parar
+     */
+    private static void trabajar(GeneradorPacientes generador, int[] pesos, AtomicBoolean parar) {
+        ThreadLocalRandom rnd=ThreadLocalRandom.current();
+        int total=0;
+        for (int p : pesos) {
+            total+=p;
+        }
+        while (!parar.get()) {
+            int r=rnd.nextInt(total);
+            int op=0;
+            while (r>=pesos[op]) {
+                r-=pesos[op];
+                op++;
+            }
+            long t0=System.nanoTime();
+            try {
+                ejecutar(op, generador, rnd);
+            } catch (RuntimeException ex) {
+                fallos.incrementAndGet();
+            }
+            long nanos=System.nanoTime()-t0;
+            intervalo.get(op).registrar(nanos);
+            totales[op].registrar(nanos);
+        }
+    }
+
+    /**
+     * Método que ejecuta una operación
+     * @param op operación
+     * @param generador generador de los pacientes
+     * @param rnd generador aleatorio del hilo
+     */
+    private static void ejecutar(int op, GeneradorPacientes generador, ThreadLocalRandom rnd) {
+        switch (op) {
+            case INSERT:
+                Paciente nuevo=generador.paciente(siguiente.getAndIncrement());
+                if (!PacientesDAO.insert(nuevo)) {
+                    fallos.incrementAndGet();
+                }
+                break;
+            case LOOKUP:
+                PacientesDAO.detallesPaciente(GeneradorPacientes.dni(rnd.nextLong(siguiente.get())));
+                break;
+            case INCREMENT:
+                PacientesDAO.incrementarNhosp(GeneradorPacientes.dni(rnd.nextLong(siguiente.get())));
+                break;
+            case DELETE:
+                PacientesDAO.deleteById(GeneradorPacientes.dni(rnd.nextLong(siguiente.get())));
+                break;
+            case LIST:
+                PacientesDAO.paginaDesde(GeneradorPacientes.dni(rnd.nextLong(siguiente.get())), TAMAÑO_PAGINA);
+                break;
+        }
+    }
+
+    /**
+     * Método que muestra las operaciones por segundo y las latencias de un
+     * intervalo y las añade al archivo CSV, si se ha indicado
+     * @param nombre nombre del intervalo
+     * @param h latencias de cada operación
+     * @param segundos duración del intervalo
+     */
+    private static void informe(String nombre, HistogramaLatencias[] h, double segundos) {
+        long operaciones=0;
+        for (HistogramaLatencias l : h) {
+            operaciones+=l.getCuenta();
+        }
+        Runtime rt=Runtime.getRuntime();
+        long memoria=(rt.totalMemory()-rt.freeMemory())>>20;
+        System.out.printf(Locale.ROOT, "%s: %.0f ops/s, %d pacientes generados, %d fallos, %d MB usados\n",
+                nombre, operaciones/segundos, siguiente.get(), fallos.get(), memoria);
+        StringBuilder csv=new StringBuilder();
+        for (int op=0; op<h.length; op++) {
+            HistogramaLatencias l=h[op];
+            if (l.getCuenta()==0) {
+                continue;
+            }
+            System.out.printf(Locale.ROOT, "    %-9s %9.0f ops/s  p50=%8.1f us  p99=%8.1f us  p99.9=%9.1f us  max=%9.1f us\n",
+                    OPERACIONES[op], l.getCuenta()/segundos, l.percentil(50)/1e3, l.percentil(99)/1e3,
+                    l.percentil(99.9)/1e3, l.getMaximo()/1e3);
+            csv.append(String.format(Locale.ROOT, "%s;%s;%s;%.1f;%.2f;%.2f;%.2f;%.2f;%d;%d\n",
+                    LocalDateTime.now(), nombre, OPERACIONES[op], l.getCuenta()/segundos, l.percentil(50)/1e3,
+                    l.percentil(99)/1e3, l.percentil(99.9)/1e3, l.getMaximo()/1e3, fallos.get(), memoria));
+        }
+        if (SALIDA==null) {
+            return;
+        }
+        Path p=Paths.get(SALIDA);
+        try {
+            if (!Files.exists(p)) {
+                Files.write(p, "fecha;intervalo;operacion;ops_s;p50_us;p99_us;p999_us;max_us;fallos;memoria_mb\n"
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            Files.write(p, csv.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            System.err.println("No se pudo guardar el resultado en "+SALIDA);
+        }
+    }
+
+    /**
+     * Método que lee los pesos de las operaciones
+     * @param texto pesos con el formato operacion=peso separados por comas
+     * @return peso de cada operación, en el orden de OPERACIONES
+     */
+    private static int[] mezcla(String texto) {
+        int[] pesos=new int[OPERACIONES.length];
+        int total=0;
+        for (String parte : texto.split(",")) {
+            String[] par=parte.trim().split("=");
+            int op=-1;
+            for (int i=0; i<OPERACIONES.length; i++) {
+                if (OPERACIONES[i].equalsIgnoreCase(par[0].trim())) {
+                    op=i;
+                }
+            }
+            if (op<0 || par.length!=2 || Integer.parseInt(par[1].trim())<0) {
+                throw new IllegalArgumentException("Mezcla de operaciones no válida: "+parte);
+            }
+            pesos[op]=Integer.parseInt(par[1].trim());
+            total+=pesos[op];
+        }
+        if (total==0) {
+            throw new IllegalArgumentException("La mezcla de operaciones no tiene ninguna operación.");
+        }
+        return pesos;
+    }
+
+    /**
+     * Método que escribe la mezcla de operaciones
+     * @param pesos peso de cada operación
+     * @return la mezcla con el formato operacion=peso
+     */
+    private static String texto(int[] pesos) {
+        StringBuilder sb=new StringBuilder();
+        for (int op=0; op<pesos.length; op++) {
+            if (pesos[op]>0) {
+                sb.append(sb.length()>0 ? "," : "").append(OPERACIONES[op]).append('=').append(pesos[op]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Método que cuenta los pacientes de la base de datos
+     * @param con conexión con la base de datos
+     * @return número de pacientes
+     * @throws SQLException Si falla la consulta
+     */
+    private static long contar(Connection con) throws SQLException {
+        try (Statement st=con.createStatement();
+             ResultSet rs=st.executeQuery("SELECT COUNT(*) FROM PACIENTES")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Método que lee el siguiente índice del generador de una prueba anterior
+     * @param estado archivo del estado
+     * @return el siguiente índice
+     * @throws IOException Si no se puede leer el archivo
+     */
+    private static long leerEstado(Path estado) throws IOException {
+        Properties p=new Properties();
+        try (InputStream in=Files.newInputStream(estado)) {
+            p.load(in);
+        }
+        return Long.parseLong(p.getProperty("siguiente", "0"));
+    }
+
+    /**
+     * Método que guarda el siguiente índice del generador
+     * @param estado archivo del estado
+     */
+    private static void guardarEstado(Path estado) {
+        Properties p=new Properties();
+        p.setProperty("siguiente", Long.toString(siguiente.get()));
+        try (OutputStream out=Files.newOutputStream(estado)) {
+            p.store(out, "Estado de la prueba de carga");
+        } catch (IOException ex) {
+            System.err.println("No se pudo guardar el estado en "+estado);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.Paciente;
+import gestpacientes.PacientesDAO;
+import gestpacientes.SalidaConsola;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import util.ES;
+
+/**
+ * Pruebas de rendimiento de la salida por consola. La salida va a /dev/null (o
+ * NUL en Windows) con un PrintStream como el de System.out, con autoflush, así
+ * que se mide el coste de formatear y de las escrituras al sistema pero no el
+ * del terminal, que con println por fila es todavía mayor. Se comparan:
+ *
+ * - escribir pacientes en memoria con un println por fila y con SalidaConsola
+ * - listar todos los pacientes de la base de datos por páginas de las dos formas
+ * - mostrar el menú partiéndolo en líneas con ES.msgln y ya preparado
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchConsola
+ *          -Dbench.args="200000"
+ *
+ * El argumento es el número de pacientes.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchConsola {
+
+    private static final int TAMAÑO_PAGINA=1000;
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 200_000;
+        PrintStream consola=System.out;
+        File nulo=new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+        PrintStream destino=new PrintStream(new BufferedOutputStream(new FileOutputStream(nulo), 8192), true);
+        SalidaConsola salida=new SalidaConsola(destino, Charset.defaultCharset());
+
+        List<Paciente> pacientes=new ArrayList<>(filas);
+        for (int i=0; i<filas; i++) {
+            pacientes.add(new Paciente(BaseDatosPrueba.dni(i), "Nombre"+(i%500), "Apellido"+(i%900)+" Apellido"+(i%700),
+                    LocalDate.of(1950, 1, 1).plusDays(i%20000)));
+        }
+        porFila(filas, Medidor.medir("en memoria, println por fila", 1, (h, i) -> {
+            for (Paciente p : pacientes) {
+                destino.println("["+p.getDni()+"] "+p.getNombre()+" "+p.getApellidos());
+            }
+            return pacientes.size();
+        }));
+        porFila(filas, Medidor.medir("en memoria, SalidaConsola", 1, (h, i) -> {
+            pacientes.forEach(salida::paciente);
+            salida.volcar();
+            return pacientes.size();
+        }));
+        salida.reiniciar();
+        pacientes.forEach(salida::paciente);
+        salida.volcar();
+        System.out.printf("    SalidaConsola: %.0f filas/s sin contar la lectura\n", salida.getFilasPorSegundo());
+
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("consola"+filas, filas, 2);
+        porFila(filas, Medidor.medir("listado completo, println por fila", 1, (h, i) -> listar(p -> destino.println(
+                "["+p.getDni()+"] "+p.getNombre()+" "+p.getApellidos()))));
+        porFila(filas, Medidor.medir("listado completo, SalidaConsola", 1, (h, i) -> {
+            long n=listar(salida::paciente);
+            salida.volcar();
+            return n;
+        }));
+
+        String menu=Aplicacion.recurso(Aplicacion.APP_MENU);
+        byte[] preparado=salida.prerenderizar(menu);
+        // ES escribe en System.out
+        System.setOut(destino);
+        Medidor.Resultado partido=Medidor.medir("menú con ES.msgln", 1, (h, i) -> {
+            Arrays.asList(menu.split("(\n|\r\n)")).forEach(ES::msgln);
+            return 1;
+        });
+        Medidor.Resultado cacheado=Medidor.medir("menú preparado", 1, (h, i) -> {
+            salida.escribir(preparado);
+            return 1;
+        });
+        System.setOut(consola);
+        System.out.println(partido);
+        System.out.println(cacheado);
+        Aplicacion.cerrarPool();
+    }
+
+    /**
+     * Interfaz de lo que se hace con cada paciente del listado
+     */
+    private interface Fila {
+        void escribir(Paciente p);
+    }
+
+    /**
+     * Método que recorre todos los pacientes por páginas, como el listado de
+     * GestionPacientes
+     * @param fila lo que se hace con cada paciente
+     * @return número de pacientes
+     */
+    private static long listar(Fila fila) {
+        long n=0;
+        List<Paciente> lista=PacientesDAO.pagina(null, TAMAÑO_PAGINA);
+        while (!lista.isEmpty()) {
+            for (Paciente p : lista) {
+                fila.escribir(p);
+            }
+            n+=lista.size();
+            lista=PacientesDAO.pagina(lista.get(lista.size()-1).getDni(), TAMAÑO_PAGINA);
+        }
+        return n;
+    }
+
+    /**
+     * Método que muestra las filas por segundo de un listado
+     * @param filas pacientes de cada listado
+     * @param r resultado de la medición
+     */
+    private static void porFila(int filas, Medidor.Resultado r) {
+        System.out.printf("    %.0f filas/s\n", r.getOpsPorSegundo()*filas);
+    }
+}
@@ -0,0 +1,172 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.DiarioCambios;
+import gestpacientes.Paciente;
+import gestpacientes.PacientesDAO;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Pruebas de rendimiento del diario de cambios. La durabilidad se lee al cargar
+ * DiarioCambios, así que cada una se mide en un proceso aparte: sin diario y
+ * con durabilidad ninguna, diferida y sincrona se mide incrementarNhosp con 1 y
+ * 4 hilos y apuntar un alta directamente en el diario, y se muestran cuántos
+ * registros ha escrito cada fsync. Después, en este proceso, se compara leer
+ * todos los pacientes reproduciendo el diario con leer la tabla.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchDiario
+ *          -Dbench.args="200000"
+ *
+ * El argumento es el número de pacientes. Los diarios se escriben en
+ * directorios temporales que se borran al terminar.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchDiario {
+
+    private static final String[] DURABILIDADES={"desactivado", "ninguna", "diferida", "sincrona"};
+
+    /**
+     * Método principal que lanza las mediciones, o las de una durabilidad si
+     * el primer argumento es "durabilidad"
+     * @param args número de pacientes
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length>0 && "durabilidad".equals(args[0])) {
+            durabilidad(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 200_000;
+        for (String d : DURABILIDADES) {
+            Path dir=Files.createTempDirectory("bench-diario");
+            try {
+                lanzar(d, filas, dir);
+            } finally {
+                borrar(dir);
+            }
+        }
+
+        Path dir=Files.createTempDirectory("bench-diario");
+        // La configuración del diario se lee al cargar la clase
+        System.setProperty("gestpacientes.diario.activo", "true");
+        System.setProperty("gestpacientes.diario.dir", dir.toString());
+        System.setProperty("gestpacientes.diario.durabilidad", "ninguna");
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("diario"+filas, filas, 2);
+        // El diario se llena con las mismas altas que la tabla, en lotes de mil
+        try (Stream<Paciente> s=PacientesDAO.stream(1000)) {
+            Iterator<Paciente> it=s.iterator();
+            while (it.hasNext()) {
+                DiarioCambios.Lote lote=new DiarioCambios.Lote();
+                for (int i=0; i<1000 && it.hasNext(); i++) {
+                    lote.alta(it.next());
+                }
+                DiarioCambios.anotar(lote);
+            }
+        }
+        DiarioCambios.cerrar();
+        long bytes;
+        try (Stream<Path> archivos=Files.list(dir)) {
+            bytes=archivos.mapToLong(p -> p.toFile().length()).sum();
+        }
+        System.out.printf("Diario: %d registros, %.1f MB\n", DiarioCambios.getUltimaSecuencia(), bytes/1048576.0);
+        Medidor.medir("leer todos (tabla)", 1, (h, i) -> PacientesDAO.findAll().size());
+        Medidor.medir("leer todos (reproducir diario)", 1, (h, i) -> {
+            List<Paciente> pacientes=new ArrayList<>(filas);
+            DiarioCambios.reproducir(1, r -> pacientes.add(r.getPaciente()));
+            return pacientes.size();
+        });
+        Medidor.medir("reproducir diario sin guardar", 1, (h, i) -> DiarioCambios.reproducir(1, r -> {
+        }));
+        Aplicacion.cerrarPool();
+        borrar(dir);
+    }
+
+    /**
+     * Método que lanza el proceso que mide una durabilidad y muestra su salida
+     * @param durabilidad durabilidad, o "desactivado" para medir sin diario
+     * @param filas número de pacientes
+     * @param dir directorio del diario
+     * @throws IOException Si no se puede lanzar el proceso
+     * @throws InterruptedException Si se interrumpe la espera
+     */
+    private static void lanzar(String durabilidad, int filas, Path dir) throws IOException, InterruptedException {
+        List<String> orden=new ArrayList<>();
+        orden.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+        orden.add("-Xmx512m");
+        orden.add("-Dgestpacientes.diario.activo="+!"desactivado".equals(durabilidad));
+        if (!"desactivado".equals(durabilidad)) {
+            orden.add("-Dgestpacientes.diario.durabilidad="+durabilidad);
+        }
+        orden.add("-Dgestpacientes.diario.dir="+dir);
+        // Los tiempos de Medidor se pasan al proceso
+        for (String p : new String[]{"bench.calentamientoMs", "bench.medicionMs", "bench.salida"}) {
+            if (System.getProperty(p)!=null) {
+                orden.add("-D"+p+"="+System.getProperty(p));
+            }
+        }
+        orden.add("-cp");
+        orden.add(System.getProperty("java.class.path"));
+        orden.add(BenchDiario.class.getName());
+        orden.add("durabilidad");
+        orden.add(durabilidad);
+        orden.add(String.valueOf(filas));
+        Process proceso=new ProcessBuilder(orden).redirectErrorStream(true).start();
+        try (BufferedReader br=new BufferedReader(new InputStreamReader(proceso.getInputStream(), StandardCharsets.UTF_8))) {
+            String linea;
+            while ((linea=br.readLine())!=null) {
+                System.out.println(linea);
+            }
+        }
+        proceso.waitFor();
+    }
+
+    /**
+     * Método que hace las mediciones de una durabilidad en este proceso
+     * @param durabilidad durabilidad configurada, solo para los nombres
+     * @param filas número de pacientes
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    private static void durabilidad(String durabilidad, int filas) throws Exception {
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("diario"+filas, filas, 4);
+        for (int hilos : new int[]{1, 4}) {
+            Medidor.medir("incrementarNhosp ("+durabilidad+")", hilos,
+                    (h, i) -> PacientesDAO.incrementarNhosp(BaseDatosPrueba.dni((int) ((i*4+h)%filas))) ? 1 : 0);
+        }
+        if (DiarioCambios.isActivo()) {
+            Paciente p=new Paciente(BaseDatosPrueba.dni(0), "Nombre", "Apellido Apellido", LocalDate.of(1980, 1, 1));
+            for (int hilos : new int[]{1, 4}) {
+                Medidor.medir("apuntar alta en el diario ("+durabilidad+")", hilos, (h, i) -> {
+                    DiarioCambios.alta(p);
+                    return i;
+                });
+            }
+            System.out.println(DiarioCambios.estadisticas());
+        }
+        Aplicacion.cerrarPool();
+    }
+
+    /**
+     * Método que borra un directorio temporal con todo su contenido
+     * @param dir directorio
+     * @throws IOException Si no se puede recorrer
+     */
+    private static void borrar(Path dir) throws IOException {
+        try (Stream<Path> archivos=Files.walk(dir)) {
+            archivos.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
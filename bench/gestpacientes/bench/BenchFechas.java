@@ -0,0 +1,73 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.Paciente;
+import gestpacientes.PacientesDAO;
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Pruebas de rendimiento de las consultas por edad: filtrar en Java la lista de
+ * findAll comparado con las consultas de PacientesDAO que usan el índice por
+ * fecha de nacimiento, para los pacientes entre 65 y 80 años, y con la
+ * distribución por décadas de edad, que lee solo las fechas de la tabla.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchFechas
+ *          -Dbench.args="1000000" -Dbench.jvmargs="-Xmx2g"
+ *
+ * El argumento es el número de pacientes de la tabla.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchFechas {
+
+    private static final int EDAD_MINIMA=65;
+    private static final int EDAD_MAXIMA=80;
+    private static final int TAMAÑO_PAGINA=1000;
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("fechas"+filas, filas, 2);
+        LocalDate hoy=LocalDate.now();
+
+        Medidor.medir("65-80 años (findAll y filtro)", 1, (h, i) ->
+                PacientesDAO.findAll().stream().filter(p -> {
+                    int edad=Period.between(p.getFechaNacimiento(), hoy).getYears();
+                    return edad>=EDAD_MINIMA && edad<=EDAD_MAXIMA;
+                }).count());
+        Medidor.medir("65-80 años, recuento (índice)", 1, (h, i) ->
+                PacientesDAO.contarPorEdad(EDAD_MINIMA, EDAD_MAXIMA));
+        Medidor.medir("65-80 años (stream por índice)", 1, (h, i) -> {
+            try (Stream<Paciente> s=PacientesDAO.streamPorEdad(EDAD_MINIMA, EDAD_MAXIMA, TAMAÑO_PAGINA)) {
+                return s.count();
+            }
+        });
+        Medidor.medir("65-80 años (páginas por índice)", 1, (h, i) -> {
+            long n=0;
+            List<Paciente> pagina=PacientesDAO.porEdad(EDAD_MINIMA, EDAD_MAXIMA, null, TAMAÑO_PAGINA);
+            while (!pagina.isEmpty()) {
+                n+=pagina.size();
+                pagina=PacientesDAO.porEdad(EDAD_MINIMA, EDAD_MAXIMA, pagina.get(pagina.size()-1), TAMAÑO_PAGINA);
+            }
+            return n;
+        });
+        Medidor.medir("65-80 años, primera página (índice)", 1, (h, i) ->
+                PacientesDAO.porEdad(EDAD_MINIMA, EDAD_MAXIMA, null, 50).size());
+
+        Medidor.medir("décadas de edad (findAll y agrupar)", 1, (h, i) ->
+                PacientesDAO.findAll().stream().collect(Collectors.groupingBy(
+                        p -> Period.between(p.getFechaNacimiento(), hoy).getYears()/10, Collectors.counting())).size());
+        Medidor.medir("décadas de edad (distribucionEdades)", 1, (h, i) ->
+                PacientesDAO.distribucionEdades(10).length);
+
+        Aplicacion.cerrarPool();
+    }
+}
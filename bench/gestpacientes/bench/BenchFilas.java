@@ -0,0 +1,88 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.CachePacientes;
+import gestpacientes.Paciente;
+import gestpacientes.PacientesDAO;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.LocalDate;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Pruebas de memoria de la lectura de pacientes. Se miden los listados
+ * completos de PacientesDAO y la consulta de detalles sin caché, y se muestran
+ * los bytes reservados por paciente leído. Para separar el coste de convertir
+ * las filas del de H2, se recorre también la tabla con JDBC leyendo la fecha de
+ * nacimiento como texto y analizándola, como se hacía antes, y leyéndola ya
+ * como LocalDate.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchFilas
+ *          -Dbench.args="200000"
+ *
+ * El argumento es el número de pacientes.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchFilas {
+
+    private static final String SQL_TODOS="SELECT dni, nombre, apellidos, fecha_nacimiento FROM PACIENTES";
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 200_000;
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("filas"+filas, filas, 2);
+        CachePacientes.setActiva(false);
+
+        porFila(filas, Medidor.medir("findAll", 1, (h, i) -> PacientesDAO.findAll().size()));
+        porFila(filas, Medidor.medir("stream", 1, (h, i) -> {
+            try (Stream<Paciente> s=PacientesDAO.stream(1000)) {
+                return s.count();
+            }
+        }));
+        Medidor.medir("detallesPaciente sin caché", 1, (h, i) -> {
+            Paciente p=PacientesDAO.detallesPaciente(BaseDatosPrueba.dni(ThreadLocalRandom.current().nextInt(filas)));
+            return p==null ? 0 : p.getNhosp();
+        });
+
+        porFila(filas, Medidor.medir("JDBC, fecha como texto", 1, (h, i) -> recorrer(false)));
+        porFila(filas, Medidor.medir("JDBC, fecha como LocalDate", 1, (h, i) -> recorrer(true)));
+        Aplicacion.cerrarPool();
+    }
+
+    /**
+     * Método que recorre la tabla con JDBC y crea un paciente por fila
+     * @param tipada true para leer la fecha como LocalDate y false para leerla
+     * como texto y analizarla
+     * @return suma de los días de las fechas, para que no se elimine la lectura
+     * @throws Exception Si falla la consulta
+     */
+    private static long recorrer(boolean tipada) throws Exception {
+        long suma=0;
+        try (Connection con=Aplicacion.getPool().obtener();
+             PreparedStatement ps=con.prepareStatement(SQL_TODOS);
+             ResultSet rs=ps.executeQuery()) {
+            while (rs.next()) {
+                LocalDate fecha=tipada ? rs.getObject(4, LocalDate.class) : Aplicacion.stringToLocalDate(rs.getString(4));
+                Paciente p=new Paciente(rs.getString(1), rs.getString(2), rs.getString(3), fecha);
+                suma+=p.getFechaNacimiento().toEpochDay();
+            }
+        }
+        return suma;
+    }
+
+    /**
+     * Método que muestra los bytes reservados por paciente de un listado
+     * @param filas pacientes de cada listado
+     * @param r resultado de la medición
+     */
+    private static void porFila(int filas, Medidor.Resultado r) {
+        System.out.printf("    %.1f bytes por paciente\n", r.getBytesPorOperacion()/filas);
+    }
+}
@@ -0,0 +1,143 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.Hospitalizaciones;
+import gestpacientes.Hospitalizaciones.Periodo;
+import gestpacientes.PacientesDAO;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pruebas de rendimiento del historial de hospitalizaciones. Se llena el
+ * historial con millones de ingresos repartidos en los últimos años, por lotes
+ * y con la misma sentencia que usa la aplicación, y se resumen. Después se
+ * mide incrementarNhosp, que ahora también apunta el ingreso, y se comparan las
+ * consultas de ingresos por día y por mes leyendo los totales (con los ingresos
+ * sin resumir que ha dejado la medición anterior) con las mismas consultas
+ * recorriendo todos los ingresos.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchHospitalizaciones
+ *          -Dbench.args="100000 500000 730" -Dbench.jvmargs="-Xmx2g"
+ *
+ * Los argumentos son el número de pacientes, el de ingresos y los días que
+ * abarcan los ingresos, hasta hoy.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchHospitalizaciones {
+
+    // Misma sentencia que Hospitalizaciones.SQL_REGISTRAR
+    private static final String SQL_REGISTRAR="INSERT INTO HOSPITALIZACIONES (clave, dni, instante, reingreso) VALUES (?, ?, ?, "
+            + "EXISTS(SELECT 1 FROM HOSPITALIZACIONES WHERE clave = ? AND dni = ? AND instante BETWEEN ? AND ?))";
+    private static final String SQL_SUMAR="UPDATE PACIENTES SET nhosp = nhosp + 1 WHERE dni = ?";
+    private static final int LOTE=10_000;
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes, de ingresos y de días
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 100_000;
+        int ingresos=args.length>1 ? Integer.parseInt(args[1]) : 500_000;
+        int dias=args.length>2 ? Integer.parseInt(args[2]) : 730;
+        // El resumen se lanza a mano para medir los totales con los ingresos pendientes
+        System.setProperty("gestpacientes.hospitalizaciones.resumenSeg", "0");
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("hospitalizaciones"+filas, filas, 4);
+
+        LocalDate hoy=LocalDate.now();
+        LocalDate primero=hoy.minusDays(dias);
+        llenar(filas, ingresos, primero, hoy);
+        long t0=System.nanoTime();
+        long resumidas=Hospitalizaciones.resumir();
+        System.out.printf("Resumidos %d ingresos en %.1f s\n", resumidas, (System.nanoTime()-t0)/1e9);
+
+        for (int hilos : new int[]{1, 4}) {
+            Medidor.medir("incrementarNhosp con historial", hilos,
+                    (h, i) -> PacientesDAO.incrementarNhosp(BaseDatosPrueba.dni((int) ((i*4+h)*7919%filas))) ? 1 : 0);
+        }
+
+        // H2 guarda el resultado de una consulta repetida mientras no cambie la
+        // tabla, así que cada vuelta termina en un día distinto después de hoy
+        LocalDate mes=hoy.minusDays(30);
+        Medidor.medir("ingresos por día, último mes (totales)", 1,
+                (h, i) -> Hospitalizaciones.resumen(Periodo.DIA, mes, hoy.plusDays(i%10_000)).size());
+        Medidor.medir("ingresos por día, último mes (recuento)", 1,
+                (h, i) -> Hospitalizaciones.recontar(Periodo.DIA, mes, hoy.plusDays(i%10_000)).size());
+        Medidor.medir("ingresos por día, todo (totales)", 1,
+                (h, i) -> Hospitalizaciones.resumen(Periodo.DIA, primero, hoy.plusDays(i%10_000)).size());
+        Medidor.medir("ingresos por día, todo (recuento)", 1,
+                (h, i) -> Hospitalizaciones.recontar(Periodo.DIA, primero, hoy.plusDays(i%10_000)).size());
+        Medidor.medir("ingresos por mes, todo (totales)", 1,
+                (h, i) -> Hospitalizaciones.resumen(Periodo.MES, primero, hoy.plusDays(i%10_000)).size());
+        Medidor.medir("ingresos por mes, todo (recuento)", 1,
+                (h, i) -> Hospitalizaciones.recontar(Periodo.MES, primero, hoy.plusDays(i%10_000)).size());
+
+        for (Periodo p : Periodo.values()) {
+            System.out.printf("Totales por %s iguales al recuento: %b\n", p,
+                    Hospitalizaciones.resumen(p, primero, hoy).equals(Hospitalizaciones.recontar(p, primero, hoy)));
+        }
+        t0=System.nanoTime();
+        resumidas=Hospitalizaciones.resumir();
+        System.out.printf("Resumidos %d ingresos pendientes en %.1f ms\n", resumidas, (System.nanoTime()-t0)/1e6);
+        Aplicacion.cerrarPool();
+    }
+
+    /**
+     * Método que apunta ingresos de pacientes al azar, en orden de fecha, y
+     * suma cada uno a su nhosp
+     * @param filas número de pacientes
+     * @param ingresos número de ingresos
+     * @param desde primer día de los ingresos
+     * @param hasta día siguiente al último
+     * @throws Exception Si falla la inserción
+     */
+    private static void llenar(int filas, int ingresos, LocalDate desde, LocalDate hasta) throws Exception {
+        long t0=System.nanoTime();
+        Random rnd=new Random(1);
+        ZoneId zona=ZoneId.systemDefault();
+        long inicio=desde.atStartOfDay(zona).toInstant().toEpochMilli();
+        long ancho=hasta.atStartOfDay(zona).toInstant().toEpochMilli()-inicio;
+        long ventana=TimeUnit.DAYS.toMillis(30);
+        try (Connection con=Aplicacion.getPool().obtener();
+             PreparedStatement ps=con.prepareStatement(SQL_REGISTRAR);
+             PreparedStatement sumar=con.prepareStatement(SQL_SUMAR)) {
+            con.setAutoCommit(false);
+            for (int desdeLote=0; desdeLote<ingresos; desdeLote+=LOTE) {
+                // Cada lote abarca su parte del periodo, así los ingresos van en orden
+                int n=Math.min(LOTE, ingresos-desdeLote);
+                long[] instantes=new long[n];
+                for (int k=0; k<n; k++) {
+                    instantes[k]=inicio+(long) ((desdeLote+rnd.nextDouble()*n)*ancho/ingresos);
+                }
+                Arrays.sort(instantes);
+                for (long t : instantes) {
+                    // Unos pocos pacientes ingresan mucho más, para que haya reingresos
+                    String dni=BaseDatosPrueba.dni(rnd.nextInt(4)==0 ? rnd.nextInt(Math.max(1, filas/100)) : rnd.nextInt(filas));
+                    ps.setInt(1, dni.hashCode());
+                    ps.setString(2, dni);
+                    ps.setTimestamp(3, new Timestamp(t));
+                    ps.setInt(4, dni.hashCode());
+                    ps.setString(5, dni);
+                    ps.setTimestamp(6, new Timestamp(t-ventana));
+                    ps.setTimestamp(7, new Timestamp(t));
+                    ps.addBatch();
+                    sumar.setString(1, dni);
+                    sumar.addBatch();
+                }
+                ps.executeBatch();
+                sumar.executeBatch();
+                con.commit();
+            }
+            con.setAutoCommit(true);
+        }
+        double s=(System.nanoTime()-t0)/1e9;
+        System.out.printf("Apuntados %d ingresos en %.1f s (%.0f ingresos/s)\n", ingresos, s, ingresos/s);
+    }
+}
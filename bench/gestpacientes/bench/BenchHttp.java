@@ -0,0 +1,95 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.ServicioHttp;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * Prueba de carga del servicio HTTP en la misma máquina: con 1, 2, 4... hilos
+ * cliente a la vez, cada uno con su conexión mantenida entre peticiones, se
+ * piden detalles de pacientes al azar y se suman hospitalizaciones (una de cada
+ * cinco peticiones), y se muestran las peticiones por segundo. Después se mide
+ * el listado completo, que se envía por partes, y al final se muestran las
+ * métricas del servicio.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchHttp
+ *          -Dbench.args="100000 32"
+ *
+ * Los argumentos son el número de pacientes y el máximo de hilos cliente. Los
+ * clientes y el servicio comparten los núcleos, así que con pocos núcleos las
+ * peticiones por segundo no pueden crecer mucho con los clientes.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchHttp {
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes y máximo de hilos cliente
+     * @throws Exception Si falla la preparación o alguna petición
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 100_000;
+        int maxClientes=args.length>1 ? Integer.parseInt(args[1]) : 32;
+        // La configuración del servicio se lee al cargar la clase; el puerto es uno libre
+        System.setProperty("gestpacientes.http.puerto", "0");
+        // El cliente del JDK guarda por defecto solo 5 conexiones abiertas por servidor
+        System.setProperty("http.maxConnections", String.valueOf(maxClientes));
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("http"+filas, filas, 10);
+        if (!ServicioHttp.iniciar()) {
+            throw new IllegalStateException("No se pudo iniciar el servicio HTTP.");
+        }
+        String base="http://localhost:"+ServicioHttp.getPuerto();
+
+        for (int clientes=1; clientes<=maxClientes; clientes*=2) {
+            Random[] rnd=new Random[clientes];
+            for (int h=0; h<clientes; h++) {
+                rnd[h]=new Random(h);
+            }
+            Medidor.medir("detalles 80% / hospitalización 20%", clientes, (h, i) -> {
+                String dni=BaseDatosPrueba.dni(rnd[h].nextInt(filas));
+                return rnd[h].nextInt(5)==0
+                        ? peticion("POST", base+"/pacientes/"+dni+"/hospitalizaciones")
+                        : peticion("GET", base+"/pacientes/"+dni);
+            });
+        }
+        Medidor.medir("listado completo", 1, (h, i) -> peticion("GET", base+"/pacientes"));
+        System.out.printf("Listado: %.1f MB\n", peticion("GET", base+"/pacientes")/1048576.0);
+        System.out.println(ServicioHttp.metricas());
+
+        ServicioHttp.detener();
+        Aplicacion.cerrarPool();
+    }
+
+    /**
+     * Método que hace una petición sin cuerpo y lee toda la respuesta, para que
+     * la conexión se pueda volver a usar
+     * @param metodo método HTTP
+     * @param url dirección
+     * @return bytes de la respuesta
+     * @throws IOException Si falla la petición o la respuesta no es correcta
+     */
+    private static long peticion(String metodo, String url) throws IOException {
+        HttpURLConnection c=(HttpURLConnection) new URL(url).openConnection();
+        c.setRequestMethod(metodo);
+        int estado=c.getResponseCode();
+        if (estado>=300) {
+            throw new IOException("Respuesta "+estado+" a "+metodo+" "+url);
+        }
+        long bytes=0;
+        if (estado!=204) {
+            byte[] b=new byte[8192];
+            try (InputStream is=c.getInputStream()) {
+                int n;
+                while ((n=is.read(b))>0) {
+                    bytes+=n;
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,99 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.InstantaneaPacientes;
+import gestpacientes.Paciente;
+import gestpacientes.PacientesDAO;
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Pruebas de rendimiento de la instantánea por columnas comparada con el modelo
+ * de objetos (una lista de Paciente leída con findAll): memoria retenida y
+ * tiempo de la distribución de edades, el histograma de hospitalizaciones y
+ * los 10 pacientes con más hospitalizaciones.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchInstantanea
+ *          -Dbench.args="1000000" -Dbench.jvmargs="-Xmx2g"
+ *
+ * El argumento es el número de pacientes de la tabla.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchInstantanea {
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("instantanea"+filas, filas, 2);
+        // Se reparten algunas hospitalizaciones para que el histograma tenga datos
+        for (int i=0; i<Math.min(filas, 1000); i++) {
+            for (int k=0; k<i%7; k++) {
+                PacientesDAO.incrementarNhosp(BaseDatosPrueba.dni(i));
+            }
+        }
+
+        // Memoria que retiene cada modelo: la ocupada con él menos la ocupada al
+        // soltarlo, así no cuenta lo que crece la caché de H2 al leer la tabla
+        Object[] modelo=new Object[1];
+        modelo[0]=PacientesDAO.findAll();
+        long con=memoriaUsada();
+        modelo[0]=null;
+        long retenidaObjetos=con-memoriaUsada();
+        modelo[0]=InstantaneaPacientes.construir();
+        con=memoriaUsada();
+        modelo[0]=null;
+        InstantaneaPacientes.descartar();
+        long retenidaInstantanea=con-memoriaUsada();
+
+        long t0=System.nanoTime();
+        List<Paciente> objetos=PacientesDAO.findAll();
+        System.out.printf("findAll: %d pacientes en %.1f s, %.1f MB retenidos\n",
+                objetos.size(), (System.nanoTime()-t0)/1e9, retenidaObjetos/1048576.0);
+
+        t0=System.nanoTime();
+        InstantaneaPacientes inst=InstantaneaPacientes.construir();
+        System.out.printf("Instantánea: %d pacientes en %.1f s, %.1f MB retenidos (estimada %.1f MB)\n",
+                inst.getFilas(), (System.nanoTime()-t0)/1e9, retenidaInstantanea/1048576.0,
+                inst.memoriaBytes()/1048576.0);
+
+        LocalDate hoy=LocalDate.now();
+        Medidor.medir("edades (objetos, stream)", 1, (h, i) ->
+                objetos.stream().collect(Collectors.groupingBy(p -> Period.between(p.getFechaNacimiento(), hoy).getYears()/10,
+                        Collectors.counting())).size());
+        Medidor.medir("edades (objetos, parallelStream)", 1, (h, i) ->
+                objetos.parallelStream().collect(Collectors.groupingByConcurrent(p -> Period.between(p.getFechaNacimiento(), hoy).getYears()/10,
+                        Collectors.counting())).size());
+        Medidor.medir("edades (instantánea)", 1, (h, i) -> inst.distribucionEdades(10).length);
+
+        Medidor.medir("hospitalizaciones (objetos, stream)", 1, (h, i) ->
+                objetos.stream().collect(Collectors.groupingBy(p -> Math.min(p.getNhosp(), 10), Collectors.counting())).size());
+        Medidor.medir("hospitalizaciones (instantánea)", 1, (h, i) -> inst.histogramaHospitalizaciones(10).length);
+
+        Medidor.medir("top 10 (objetos, stream)", 1, (h, i) ->
+                objetos.stream().sorted(Comparator.comparingInt(Paciente::getNhosp).reversed()).limit(10).collect(Collectors.toList()).size());
+        Medidor.medir("top 10 (instantánea)", 1, (h, i) -> inst.topHospitalizaciones(10).size());
+
+        Aplicacion.cerrarPool();
+    }
+
+    /**
+     * Método que calcula la memoria ocupada después de liberar la que no se usa
+     * @return bytes ocupados en el heap
+     */
+    private static long memoriaUsada() {
+        Runtime rt=Runtime.getRuntime();
+        for (int i=0; i<3; i++) {
+            System.gc();
+            Medidor.pausa(100);
+        }
+        return rt.totalMemory()-rt.freeMemory();
+    }
+}
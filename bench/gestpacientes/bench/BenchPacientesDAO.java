@@ -0,0 +1,130 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.CachePacientes;
+import gestpacientes.Paciente;
+import gestpacientes.PacientesDAO;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Pruebas de rendimiento de las operaciones de PacientesDAO contra una base de
+ * datos H2 en memoria con distintos números de pacientes. Cada operación se mide
+ * con un hilo y con varios a la vez, salvo los listados completos, que solo se
+ * miden con un hilo para no llenar la memoria.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchPacientesDAO
+ *          -Dbench.args="1000,100000,1000000 4"
+ *
+ * El primer argumento son los tamaños de la tabla separados por comas y el
+ * segundo el número de hilos de la variante concurrente.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchPacientesDAO {
+
+    // Los pacientes que se insertan durante la prueba empiezan en este índice
+    private static final int INICIO_NUEVOS=90_000_000;
+    // Índices que nunca se insertan, para buscar DNI que no existen
+    private static final int INICIO_AUSENTES=50_000_000;
+    // Pacientes consultados con más frecuencia en la prueba con caché
+    private static final int PACIENTES_FRECUENTES=2000;
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args tamaños de la tabla y número de hilos
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        String[] tamaños=(args.length>0 ? args[0] : "1000,100000,1000000").split(",");
+        int hilos=args.length>1 ? Integer.parseInt(args[1]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+        Class.forName("org.h2.Driver");
+
+        for (String t : tamaños) {
+            int filas=Integer.parseInt(t.trim());
+            System.out.println();
+            System.out.println("=== "+filas+" pacientes ===");
+            BaseDatosPrueba.preparar("bench"+filas, filas, hilos+1);
+            medirTamaño(filas, 1);
+            medirTamaño(filas, hilos);
+            medirListados(filas);
+            Aplicacion.cerrarPool();
+        }
+    }
+
+    /**
+     * Método que mide las operaciones sobre un paciente con el número de hilos indicado
+     * @param filas número de pacientes de la tabla
+     * @param hilos número de hilos
+     * @throws InterruptedException Si se interrumpe la medición
+     */
+    private static void medirTamaño(int filas, int hilos) throws InterruptedException {
+        String sufijo=" ["+filas+"]";
+        CachePacientes.setActiva(false);
+
+        Medidor.medir("detallesPaciente sin caché"+sufijo, hilos, (h, i) -> {
+            Paciente p=PacientesDAO.detallesPaciente(BaseDatosPrueba.dni(aleatorio(filas)));
+            return p==null ? 0 : p.getNhosp();
+        });
+
+        CachePacientes.setActiva(true);
+        int frecuentes=Math.min(filas, PACIENTES_FRECUENTES);
+        Medidor.medir("detallesPaciente con caché (frecuentes)"+sufijo, hilos, (h, i) -> {
+            // Nueve de cada diez consultas son de los pacientes frecuentes
+            int idx=ThreadLocalRandom.current().nextInt(10)==0 ? aleatorio(filas) : aleatorio(frecuentes);
+            Paciente p=PacientesDAO.detallesPaciente(BaseDatosPrueba.dni(idx));
+            return p==null ? 0 : p.getNhosp();
+        });
+        CachePacientes.setActiva(false);
+
+        Medidor.medir("comprobarDni (50% existen)"+sufijo, hilos, (h, i) -> {
+            int idx=(i&1)==0 ? aleatorio(filas) : INICIO_AUSENTES+aleatorio(filas);
+            return PacientesDAO.comprobarDni(BaseDatosPrueba.dni(idx)) ? 1 : 0;
+        });
+
+        Medidor.medir("incrementarNhosp"+sufijo, hilos, (h, i) ->
+                PacientesDAO.incrementarNhosp(BaseDatosPrueba.dni(aleatorio(filas))) ? 1 : 0);
+
+        // Los DNI insertados se numeran con un contador común para que no se repitan
+        AtomicInteger insertados=new AtomicInteger(INICIO_NUEVOS);
+        Medidor.medir("insert"+sufijo, hilos, (h, i) -> {
+            String dni=BaseDatosPrueba.dni(insertados.getAndIncrement());
+            return PacientesDAO.insert(new Paciente(dni, "Nuevo", "Paciente Prueba", "1980-06-15")) ? 1 : 0;
+        });
+
+        // Se borran los insertados en la prueba anterior; si se acaban, los borrados no encuentran fila
+        AtomicInteger borrados=new AtomicInteger(INICIO_NUEVOS);
+        Medidor.medir("deleteById"+sufijo, hilos, (h, i) ->
+                PacientesDAO.deleteById(BaseDatosPrueba.dni(borrados.getAndIncrement())));
+        CachePacientes.setActiva(true);
+    }
+
+    /**
+     * Método que mide los listados completos y por páginas con un hilo
+     * @param filas número de pacientes de la tabla
+     * @throws InterruptedException Si se interrumpe la medición
+     */
+    private static void medirListados(int filas) throws InterruptedException {
+        String sufijo=" ["+filas+"]";
+        Medidor.medir("findAll (tabla completa)"+sufijo, 1, (h, i) -> PacientesDAO.findAll().size());
+        Medidor.medir("stream (tabla completa)"+sufijo, 1, (h, i) -> {
+            try (Stream<Paciente> s=PacientesDAO.stream(1000)) {
+                return s.count();
+            }
+        });
+        Medidor.medir("pagina de 1000"+sufijo, 1, (h, i) -> {
+            List<Paciente> p=PacientesDAO.pagina(BaseDatosPrueba.dni(aleatorio(filas)), 1000);
+            return p.size();
+        });
+    }
+
+    /**
+     * Método que devuelve un índice aleatorio menor que el indicado
+     * @param limite límite superior, excluido
+     * @return índice aleatorio
+     */
+    private static int aleatorio(int limite) {
+        return ThreadLocalRandom.current().nextInt(limite);
+    }
+}
@@ -0,0 +1,75 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.Paciente;
+import gestpacientes.PacientesDAO;
+import gestpacientes.Particiones;
+import gestpacientes.PoolConexiones;
+import java.util.stream.Stream;
+
+/**
+ * Pruebas de rendimiento de las particiones: las mismas consultas con todos los
+ * pacientes en una base de datos y repartidos en varias, las que recorren
+ * todos los pacientes (que se lanzan a la vez en todas las particiones) y las
+ * de un paciente desde varios hilos. También mide lo que tarda el reparto.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchParticiones
+ *          -Dbench.args="1000000 4" -Dbench.jvmargs="-Xmx2g"
+ *
+ * Los argumentos son el número de pacientes y el número de particiones.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchParticiones {
+
+    private static final int HILOS=8;
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes y de particiones
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int particiones=args.length>1 ? Integer.parseInt(args[1]) : 4;
+        Class.forName("org.h2.Driver");
+        String nombre="particiones"+filas;
+        BaseDatosPrueba.preparar(nombre, filas, HILOS);
+        PoolConexiones[] pools=new PoolConexiones[particiones];
+        pools[0]=Aplicacion.getPool();
+        for (int i=1; i<particiones; i++) {
+            pools[i]=new PoolConexiones("jdbc:h2:mem:"+nombre+".p"+i+";MODE=MySQL;DB_CLOSE_DELAY=-1;COLLATION=SPANISH_SPAIN",
+                    "", "", 1, HILOS, 30000, 60000, 2);
+        }
+        Particiones.setPools(pools);
+
+        medir("1 partición", filas);
+        long t0=System.nanoTime();
+        long movidos=Particiones.reparticionar(particiones, 10000);
+        System.out.printf("Repartidos %d pacientes en %d particiones en %.1f s\n",
+                movidos, particiones, (System.nanoTime()-t0)/1e9);
+        medir(particiones+" particiones", filas);
+
+        Aplicacion.cerrarPool();
+    }
+
+    /**
+     * Método que mide las consultas con el reparto actual
+     * @param reparto descripción del reparto para el informe
+     * @param filas número de pacientes
+     * @throws Exception Si falla alguna operación
+     */
+    private static void medir(String reparto, int filas) throws Exception {
+        Medidor.medir("findAll, "+reparto, 1, (h, i) -> PacientesDAO.findAll().size());
+        Medidor.medir("stream, "+reparto, 1, (h, i) -> {
+            try (Stream<Paciente> s=PacientesDAO.stream(1000)) {
+                return s.count();
+            }
+        });
+        Medidor.medir("contarPorEdad, "+reparto, 1, (h, i) -> PacientesDAO.contarPorEdad(65, 80));
+        Medidor.medir("distribucionEdades, "+reparto, 1, (h, i) -> PacientesDAO.distribucionEdades(10).length);
+        Medidor.medir("primera página por edad, "+reparto, 1, (h, i) ->
+                PacientesDAO.porEdad(65, 80, null, 50).size());
+        Medidor.medir("detallesPaciente, "+reparto, HILOS, (h, i) ->
+                PacientesDAO.detallesPaciente(BaseDatosPrueba.dni((int) ((i*HILOS+h)*7919%filas))).getNhosp());
+    }
+}
@@ -0,0 +1,185 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.PacientesDAO;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.h2.tools.Server;
+
+/**
+ * Prueba de carga con varios procesos cliente contra un servidor TCP de H2 en
+ * la misma máquina (ver ServidorBD). Este proceso inicia el servidor sobre un
+ * directorio temporal y lo llena de pacientes; después lanza 1, 2, 4... procesos
+ * cliente a la vez, cada uno con la aplicación en modo tcp, que durante un
+ * tiempo fijo consultan detalles de pacientes al azar y suman hospitalizaciones
+ * (una de cada cinco operaciones). Se muestra el total de operaciones por
+ * segundo de todos los clientes para cada número de clientes, y una vuelta más
+ * validando la conexión en cada préstamo del pool para comparar.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchServidor
+ *          -Dbench.args="100000 8 5"
+ *
+ * Los argumentos son el número de pacientes, el número máximo de clientes y
+ * los segundos que mide cada vuelta. Con un solo núcleo el total no puede
+ * crecer con los clientes; lo que se ve es que se mantiene.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchServidor {
+
+    // Milisegundos que trabaja cada cliente antes de empezar a contar; es más que en
+    // Medidor porque todos los procesos compilan a la vez en los mismos núcleos
+    private static final long CALENTAMIENTO_MS=Long.getLong("bench.calentamientoMs", 8000);
+
+    /**
+     * Método principal que lanza las vueltas, o un cliente si el primer argumento es "cliente"
+     * @param args número de pacientes, máximo de clientes y segundos por vuelta
+     * @throws Exception Si falla la preparación o algún cliente
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length>0 && "cliente".equals(args[0])) {
+            cliente(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Long.parseLong(args[3]),
+                    Long.parseLong(args[4]));
+            return;
+        }
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 100_000;
+        int maxClientes=args.length>1 ? Integer.parseInt(args[1]) : 8;
+        int segundos=args.length>2 ? Integer.parseInt(args[2]) : 5;
+
+        Path dir=Files.createTempDirectory("bench-servidor");
+        int puerto;
+        try (ServerSocket s=new ServerSocket(0)) {
+            puerto=s.getLocalPort();
+        }
+        Server servidor=Server.createTcpServer("-tcpPort", String.valueOf(puerto), "-baseDir", dir.toString()).start();
+        // Este proceso también es un cliente más para llenar la base de datos
+        System.setProperty("gestpacientes.bd.modo", "tcp");
+        System.setProperty("gestpacientes.bd.puerto", String.valueOf(puerto));
+        Class.forName("org.h2.Driver");
+        try (Connection con=Aplicacion.getPool().obtener()) {
+            if (!Aplicacion.createTables(con)) {
+                throw new IllegalStateException("No se pudieron crear las tablas.");
+            }
+            BaseDatosPrueba.llenar(con, 0, filas);
+        }
+        Aplicacion.cerrarPool();
+
+        try {
+            for (int clientes=1; clientes<=maxClientes; clientes*=2) {
+                vuelta(dir, puerto, clientes, filas, segundos, "");
+            }
+            vuelta(dir, puerto, Math.min(4, maxClientes), filas, segundos, "-Dgestpacientes.pool.validarTrasMs=0");
+        } finally {
+            servidor.stop();
+            try (Stream<Path> archivos=Files.walk(dir)) {
+                archivos.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Método que lanza a la vez los procesos cliente y suma sus operaciones
+     * @param dir directorio base del servidor, donde se lanzan los clientes
+     * @param puerto puerto del servidor
+     * @param clientes número de procesos cliente
+     * @param filas número de pacientes
+     * @param segundos segundos que mide cada cliente
+     * @param opcion propiedad del sistema extra para los clientes, o cadena vacía
+     * @throws IOException Si no se puede lanzar algún cliente
+     * @throws InterruptedException Si se interrumpe la espera
+     */
+    private static void vuelta(Path dir, int puerto, int clientes, int filas, int segundos, String opcion)
+            throws IOException, InterruptedException {
+        String java=System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+        List<Process> procesos=new ArrayList<>();
+        for (int c=0; c<clientes; c++) {
+            List<String> orden=new ArrayList<>();
+            orden.add(java);
+            orden.add("-Xmx256m");
+            orden.add("-Dgestpacientes.bd.modo=tcp");
+            orden.add("-Dgestpacientes.bd.puerto="+puerto);
+            // Sin caché cada consulta llega al servidor
+            orden.add("-Dgestpacientes.cache.activa=false");
+            if (!opcion.isEmpty()) {
+                orden.add(opcion);
+            }
+            orden.add("-cp");
+            orden.add(System.getProperty("java.class.path"));
+            orden.add(BenchServidor.class.getName());
+            orden.add("cliente");
+            orden.add(String.valueOf(filas));
+            orden.add(String.valueOf(segundos));
+            orden.add(String.valueOf(c));
+            orden.add(String.valueOf(CALENTAMIENTO_MS));
+            procesos.add(new ProcessBuilder(orden).directory(dir.toFile()).redirectErrorStream(true).start());
+        }
+        long operaciones=0;
+        long lecturasNs=0;
+        long lecturas=0;
+        for (Process p : procesos) {
+            try (BufferedReader br=new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+                String linea;
+                while ((linea=br.readLine())!=null) {
+                    if (linea.startsWith("resultado ")) {
+                        String[] campos=linea.split(" ");
+                        operaciones+=Long.parseLong(campos[1]);
+                        lecturas+=Long.parseLong(campos[2]);
+                        lecturasNs+=Long.parseLong(campos[3]);
+                    } else {
+                        System.out.println("  cliente: "+linea);
+                    }
+                }
+            }
+            p.waitFor();
+        }
+        System.out.printf("clientes=%d%s ops/s=%.0f (por cliente %.0f) lectura media=%.0fus\n",
+                clientes, opcion.isEmpty() ? "" : " "+opcion, operaciones/(double) segundos,
+                operaciones/(double) segundos/clientes, lecturas==0 ? 0.0 : lecturasNs/1000.0/lecturas);
+    }
+
+    /**
+     * Método que ejecuta un proceso cliente: calienta y después cuenta las
+     * operaciones hechas durante el tiempo indicado
+     * @param filas número de pacientes
+     * @param segundos segundos de medición
+     * @param semilla semilla de los pacientes elegidos
+     * @param calentamientoMs milisegundos antes de empezar a contar
+     */
+    private static void cliente(int filas, int segundos, long semilla, long calentamientoMs) {
+        Random rnd=new Random(semilla);
+        long inicioMedida=System.nanoTime()+calentamientoMs*1_000_000L;
+        long fin=inicioMedida+segundos*1_000_000_000L;
+        long operaciones=0;
+        long lecturas=0;
+        long lecturasNs=0;
+        long ahora;
+        while ((ahora=System.nanoTime())<fin) {
+            String dni=BaseDatosPrueba.dni(rnd.nextInt(filas));
+            if (rnd.nextInt(5)==0) {
+                PacientesDAO.incrementarNhosp(dni);
+            } else {
+                PacientesDAO.detallesPaciente(dni);
+                if (ahora>=inicioMedida) {
+                    lecturas++;
+                    lecturasNs+=System.nanoTime()-ahora;
+                }
+            }
+            if (ahora>=inicioMedida) {
+                operaciones++;
+            }
+        }
+        Aplicacion.cerrarPool();
+        System.out.println("resultado "+operaciones+" "+lecturas+" "+lecturasNs);
+    }
+}
@@ -0,0 +1,129 @@
+package gestpacientes.bench;
+
+import gestpacientes.ValidadorDni;
+import java.util.Random;
+
+/**
+ * Prueba de rendimiento que compara la validación de DNI anterior, con
+ * expresiones regulares, con ValidadorDni. Cada operación valida un bloque de
+ * 1024 DNI, la mitad válidos y un cuarto NIE.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchValidadorDni
+ * @author Adrián Romero Ramírez
+ */
+public class BenchValidadorDni {
+
+    private static final int BLOQUE=1024;
+    private static final String LETRAS="TRWAGMYFPDXBNJZSQVHLCKE";
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args no se usan
+     * @throws InterruptedException Si se interrumpe la medición
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String[] dnis=generar(BLOQUE*1024, 42);
+        int hilos=Runtime.getRuntime().availableProcessors();
+        System.out.println("Cada operación valida "+BLOQUE+" DNI.");
+
+        Medidor.medir("regex (código anterior)", 1, (h, i) -> {
+            int desde=(int) (i%1024)*BLOQUE;
+            long validos=0;
+            for (int k=desde; k<desde+BLOQUE; k++) {
+                if (validarComoAntes(dnis[k])) validos++;
+            }
+            return validos;
+        });
+        Medidor.medir("ValidadorDni.esValido", 1, (h, i) -> {
+            int desde=(int) (i%1024)*BLOQUE;
+            long validos=0;
+            for (int k=desde; k<desde+BLOQUE; k++) {
+                if (ValidadorDni.esValido(dnis[k])) validos++;
+            }
+            return validos;
+        });
+        char[][] arrays=new char[BLOQUE][];
+        for (int k=0; k<BLOQUE; k++) {
+            arrays[k]=dnis[k].toCharArray();
+        }
+        Medidor.medir("ValidadorDni.esValido(char[])", 1, (h, i) -> {
+            long validos=0;
+            for (char[] c : arrays) {
+                if (ValidadorDni.esValido(c, 0, c.length)) validos++;
+            }
+            return validos;
+        });
+        Medidor.medir("regex (código anterior)", hilos, (h, i) -> {
+            int desde=(int) ((i*hilos+h)%1024)*BLOQUE;
+            long validos=0;
+            for (int k=desde; k<desde+BLOQUE; k++) {
+                if (validarComoAntes(dnis[k])) validos++;
+            }
+            return validos;
+        });
+        Medidor.medir("ValidadorDni.esValido", hilos, (h, i) -> {
+            int desde=(int) ((i*hilos+h)%1024)*BLOQUE;
+            long validos=0;
+            for (int k=desde; k<desde+BLOQUE; k++) {
+                if (ValidadorDni.esValido(dnis[k])) validos++;
+            }
+            return validos;
+        });
+
+        // Validación masiva de todo el array de golpe
+        Medidor.medir("ValidadorDni.validar (1M DNI)", 1, (h, i) -> {
+            boolean[] r=ValidadorDni.validar(dnis);
+            return r[(int) (i%r.length)] ? 1 : 0;
+        });
+    }
+
+    /**
+     * Método que genera DNI de prueba, la mitad válidos
+     * @param n número de DNI
+     * @param semilla semilla del generador aleatorio
+     * @return array con los DNI
+     */
+    static String[] generar(int n, long semilla) {
+        Random rnd=new Random(semilla);
+        String[] dnis=new String[n];
+        for (int k=0; k<n; k++) {
+            int numero=rnd.nextInt(100_000_000);
+            boolean nie=rnd.nextInt(4)==0;
+            if (nie) {
+                numero%=30_000_000;
+            }
+            char letra=LETRAS.charAt(numero%23);
+            if (rnd.nextBoolean()) {
+                // DNI con la letra equivocada
+                letra=LETRAS.charAt((numero+1)%23);
+            }
+            String cifras=String.format("%08d", numero);
+            dnis[k]=nie ? "XYZ".charAt(cifras.charAt(0)-'0')+cifras.substring(1)+letra : cifras+letra;
+        }
+        return dnis;
+    }
+
+    /**
+     * Método con la validación tal y como estaba en GestionPacientes.añadirPacientes()
+     * @param dni DNI a validar
+     * @return true o false dependiendo si es válido
+     */
+    static boolean validarComoAntes(String dni) {
+        boolean dniOk=false;
+        String letrasValidas="TRWAGMYFPDXBNJZSQVHLCKET";
+        String patternNif="^[0-9]{8}[TRWAGMYFPDXBNJZSQVHLCKE]$";
+        String patternNie="^[XYZ][0-9]{7}[TRWAGMYFPDXBNJZSQVHLCKET]$";
+        if (dni.matches(patternNif) || dni.matches(patternNie)) {
+            if (dni.matches(patternNie)) {
+                dni=dni.replaceFirst("X", "0");
+                dni=dni.replaceFirst("Y", "1");
+                dni=dni.replaceFirst("Z", "2");
+            }
+            int numero=Integer.parseInt(dni.substring(0, 8));
+            char letra=dni.charAt(8);
+            int resto=numero%23;
+            dniOk=letra==letrasValidas.charAt(resto);
+        }
+        return dniOk;
+    }
+}
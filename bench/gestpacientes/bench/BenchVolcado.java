@@ -0,0 +1,74 @@
+package gestpacientes.bench;
+
+import gestpacientes.Aplicacion;
+import gestpacientes.BuscadorPacientes;
+import gestpacientes.FiltroDni;
+import gestpacientes.InstantaneaPacientes;
+import gestpacientes.PacientesDAO;
+import gestpacientes.VolcadoPacientes;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Pruebas de rendimiento del volcado de pacientes: construir el filtro de DNI,
+ * la instantánea y el índice de búsqueda leyendo la tabla por JDBC comparado con
+ * leerlos del volcado, y el coste de escribir el volcado completo y a partir del
+ * anterior con algunos cambios.
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.BenchVolcado
+ *          -Dbench.args="1000000" -Dbench.jvmargs="-Xmx2g"
+ *
+ * El argumento es el número de pacientes de la tabla. El volcado se escribe en
+ * un archivo temporal que se borra al terminar.
+ * @author Adrián Romero Ramírez
+ */
+public class BenchVolcado {
+
+    // Pacientes que cambian entre un volcado y el siguiente
+    private static final int CAMBIOS=1000;
+
+    /**
+     * Método principal que lanza las mediciones
+     * @param args número de pacientes
+     * @throws Exception Si falla la preparación o alguna operación
+     */
+    public static void main(String[] args) throws Exception {
+        int filas=args.length>0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path archivo=Files.createTempFile("bench", ".volcado");
+        Files.delete(archivo);
+        // La configuración del volcado se lee al cargar la clase
+        System.setProperty("gestpacientes.volcado.archivo", archivo.toString());
+        Class.forName("org.h2.Driver");
+        BaseDatosPrueba.preparar("volcado"+filas, filas, 2);
+
+        // Sin archivo de volcado los constructores leen la tabla
+        Medidor.medir("filtro de DNI (JDBC)", 1, (h, i) -> FiltroDni.construir() ? 1 : 0);
+        Medidor.medir("instantánea (JDBC)", 1, (h, i) -> InstantaneaPacientes.construir().getFilas());
+        Medidor.medir("índice de búsqueda (JDBC)", 1, (h, i) -> BuscadorPacientes.construir() != null ? 1 : 0);
+        Medidor.medir("escribir volcado completo", 1, (h, i) -> {
+            Files.deleteIfExists(archivo);
+            return VolcadoPacientes.escribir() ? 1 : 0;
+        });
+        System.out.printf("Volcado: %.1f MB\n", Files.size(archivo)/1048576.0);
+
+        Medidor.medir("cargar volcado", 1, (h, i) -> {
+            long[] n=new long[1];
+            VolcadoPacientes.cargar((dni, nombre, apellidos, fecha, nhosp) -> n[0]++);
+            return n[0];
+        });
+        Medidor.medir("filtro de DNI (volcado)", 1, (h, i) -> FiltroDni.construir() ? 1 : 0);
+        Medidor.medir("instantánea (volcado)", 1, (h, i) -> InstantaneaPacientes.construir().getFilas());
+        Medidor.medir("índice de búsqueda (volcado)", 1, (h, i) -> BuscadorPacientes.construir() != null ? 1 : 0);
+
+        Medidor.medir("escribir volcado sin cambios", 1, (h, i) -> VolcadoPacientes.escribir() ? 1 : 0);
+        Medidor.medir("escribir volcado con "+CAMBIOS+" cambios", 1, (h, i) -> {
+            for (int k=0; k<CAMBIOS; k++) {
+                PacientesDAO.incrementarNhosp(BaseDatosPrueba.dni((int) ((i*CAMBIOS+k)%filas)));
+            }
+            return VolcadoPacientes.escribir() ? 1 : 0;
+        });
+
+        Aplicacion.cerrarPool();
+        Files.deleteIfExists(archivo);
+    }
+}
@@ -0,0 +1,232 @@
+package gestpacientes.bench;
+
+import gestpacientes.Paciente;
+import gestpacientes.ValidadorDni;
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.SplittableRandom;
+
+/**
+ * Clase que genera pacientes sintéticos válidos. Cada paciente depende solo de
+ * su índice y de la semilla, así que se puede volver a generar el paciente i,
+ * o solo su DNI, sin guardar los anteriores; las pruebas de carga lo usan para
+ * consultar pacientes que ya existen.
+ *
+ * - DNI y NIE: uno de cada diez índices es un NIE (X, Y o Z y 7 cifras) y el
+ *   resto DNI de 8 cifras. Los números se reparten por todo el rango con una
+ *   permutación, así que no hay dos índices con el mismo DNI, y la letra de
+ *   control se calcula con la tabla TRWAGMYFPDXBNJZSQVHLCKE de ValidadorDni,
+ *   la misma que la alta de pacientes. Caben 100 millones de índices.
+ * - Nombre y apellidos: de listas de nombres y apellidos frecuentes, con más
+ *   probabilidad los primeros, como en la población real.
+ * - Fecha de nacimiento: la edad sigue la pirámide de población española por
+ *   grupos de cinco años, y dentro del grupo cualquier día.
+ * - nhosp: la mayoría de pacientes tienen pocas hospitalizaciones y unos pocos
+ *   muchas.
+ *
+ * Se puede usar como programa para escribir los pacientes en un CSV que lee
+ * ImportadorPacientes:
+ *
+ * Uso: ant -f nbbuild.xml bench -Dbench.clase=gestpacientes.bench.GeneradorPacientes
+ *          -Dbench.args="pacientes.csv 1000000"
+ * @author Adrián Romero Ramírez
+ */
+public class GeneradorPacientes {
+
+    private static final String[] NOMBRES={
+        "Antonio", "María", "Manuel", "Carmen", "José", "Ana", "Francisco", "Laura", "David", "Isabel",
+        "Juan", "Lucía", "Javier", "Cristina", "Daniel", "Marta", "José Luis", "Dolores", "Carlos", "Pilar",
+        "Jesús", "Paula", "Alejandro", "Elena", "Miguel", "Sara", "Rafael", "Raquel", "Pedro", "Rosa",
+        "Pablo", "Concepción", "Ángel", "Manuela", "Sergio", "Mercedes", "Fernando", "Julia", "Jorge", "Beatriz",
+        "Luis", "Nuria", "Alberto", "Silvia", "Álvaro", "Irene", "Adrián", "Patricia", "Diego", "Andrea"
+    };
+    private static final String[] APELLIDOS={
+        "García", "Rodríguez", "González", "Fernández", "López", "Martínez", "Sánchez", "Pérez", "Gómez", "Martín",
+        "Jiménez", "Hernández", "Ruiz", "Díaz", "Moreno", "Muñoz", "Álvarez", "Romero", "Gutiérrez", "Alonso",
+        "Navarro", "Torres", "Domínguez", "Ramos", "Vázquez", "Ramírez", "Gil", "Serrano", "Morales", "Molina",
+        "Blanco", "Suárez", "Castro", "Ortega", "Delgado", "Ortiz", "Marín", "Rubio", "Núñez", "Medina",
+        "Sanz", "Castillo", "Iglesias", "Cortés", "Garrido", "Santos", "Guerrero", "Lozano", "Cano", "Cruz",
+        "Méndez", "Flores", "Prieto", "Herrera", "Peña", "León", "Márquez", "Cabrera", "Gallego", "Calvo"
+    };
+    // Porcentaje de población de cada grupo de cinco años de edad, desde 0-4 hasta 95-99
+    private static final double[] PIRAMIDE={
+        3.8, 4.6, 5.2, 5.1, 5.0, 5.2, 5.6, 6.6, 8.0, 8.4,
+        7.9, 7.3, 6.4, 5.3, 4.5, 3.8, 2.6, 1.6, 0.7, 0.2
+    };
+    private static final double[] ACUMULADA=new double[PIRAMIDE.length];
+    private static final String LETRAS_NIE="XYZ";
+    // Multiplicador de la permutación, primo y sin factores comunes con los rangos
+    private static final long MULTIPLICADOR=48271;
+    private static final long DNIS=100_000_000L;
+    private static final long NIES=30_000_000L;
+    private static final String SQL_INSERT="INSERT INTO PACIENTES (dni, nombre, apellidos, fecha_nacimiento, nhosp) "
+            + "VALUES (?, ?, ?, ?, ?)";
+
+    static {
+        double total=0;
+        for (double p : PIRAMIDE) {
+            total+=p;
+        }
+        double acumulado=0;
+        for (int i=0; i<PIRAMIDE.length; i++) {
+            acumulado+=PIRAMIDE[i]/total;
+            ACUMULADA[i]=acumulado;
+        }
+    }
+
+    private final long semilla;
+    // Día respecto al que se calculan las edades
+    private final LocalDate hoy;
+
+    /**
+     * Constructor con parametros de la clase
+     * @param semilla semilla de los datos generados
+     * @param hoy día respecto al que se calculan las edades
+     */
+    public GeneradorPacientes(long semilla, LocalDate hoy) {
+        this.semilla=semilla;
+        this.hoy=hoy;
+    }
+
+    /**
+     * Método que genera el DNI o NIE del paciente i
+     * @param i índice del paciente, entre 0 y 99999999
+     * @return DNI o NIE con su letra de control
+     */
+    public static String dni(long i) {
+        char[] c=new char[9];
+        long numero;
+        if (i%10==9) {
+            // NIE: la letra vale 0, 1 o 2 en el cálculo de la letra de control
+            numero=(i/10*MULTIPLICADOR+777)%NIES;
+            c[0]=LETRAS_NIE.charAt((int) (numero/10_000_000));
+            cifras(c, 1, numero%10_000_000, 7);
+        } else {
+            numero=((i/10*9+i%10)*MULTIPLICADOR+12345)%DNIS;
+            cifras(c, 0, numero, 8);
+        }
+        c[8]=ValidadorDni.letraControl((int) numero);
+        return new String(c);
+    }
+
+    /**
+     * Método que genera el paciente i
+     * @param i índice del paciente, entre 0 y 99999999
+     * @return el paciente, con su nhosp
+     */
+    public Paciente paciente(long i) {
+        SplittableRandom rnd=new SplittableRandom(semilla+i*0x9E3779B97F4A7C15L);
+        String nombre=frecuente(NOMBRES, rnd);
+        String apellidos=frecuente(APELLIDOS, rnd)+" "+frecuente(APELLIDOS, rnd);
+        Paciente p=new Paciente(dni(i), nombre, apellidos, fechaNacimiento(rnd));
+        // Nueve de cada diez pacientes tienen pocas hospitalizaciones
+        p.setNhosp(rnd.nextInt(10)==0 ? rnd.nextInt(40) : rnd.nextInt(3));
+        return p;
+    }
+
+    /**
+     * Método que inserta los pacientes entre dos índices por lotes
+     * @param con conexión con la base de datos
+     * @param desde primer índice
+     * @param hasta índice siguiente al último
+     * @throws SQLException Si falla la inserción
+     */
+    public void llenar(Connection con, long desde, long hasta) throws SQLException {
+        long t0=System.nanoTime();
+        con.setAutoCommit(false);
+        try (PreparedStatement ps=con.prepareStatement(SQL_INSERT)) {
+            for (long i=desde; i<hasta; i++) {
+                Paciente p=paciente(i);
+                ps.setString(1, p.getDni());
+                ps.setString(2, p.getNombre());
+                ps.setString(3, p.getApellidos());
+                ps.setObject(4, p.getFechaNacimiento());
+                ps.setInt(5, p.getNhosp());
+                ps.addBatch();
+                if ((i-desde+1)%10_000==0) {
+                    ps.executeBatch();
+                    con.commit();
+                    if ((i-desde+1)%100_000==0) {
+                        System.out.printf("  %d pacientes generados\n", i-desde+1);
+                    }
+                }
+            }
+            ps.executeBatch();
+            con.commit();
+        } finally {
+            con.setAutoCommit(true);
+        }
+        System.out.printf("Generados %d pacientes en %.1f s\n", hasta-desde, (System.nanoTime()-t0)/1e9);
+    }
+
+    /**
+     * Método que genera una fecha de nacimiento con la distribución de edades de
+     * la pirámide de población
+     * @param rnd generador aleatorio
+     * @return la fecha
+     */
+    private LocalDate fechaNacimiento(SplittableRandom rnd) {
+        double r=rnd.nextDouble();
+        int grupo=0;
+        while (grupo<ACUMULADA.length-1 && r>ACUMULADA[grupo]) {
+            grupo++;
+        }
+        // Cualquier día entre el que cumple 5*grupo años y el anterior al que cumple 5 más
+        LocalDate mayor=hoy.minusYears(5L*grupo+5).plusDays(1);
+        LocalDate menor=hoy.minusYears(5L*grupo);
+        return mayor.plusDays(rnd.nextLong(menor.toEpochDay()-mayor.toEpochDay()+1));
+    }
+
+    /**
+     * Método que elige un elemento de una lista, con más probabilidad los primeros
+     * @param lista lista ordenada de más a menos frecuente
+     * @param rnd generador aleatorio
+     * @return el elemento
+     */
+    private static String frecuente(String[] lista, SplittableRandom rnd) {
+        double r=rnd.nextDouble();
+        return lista[(int) (r*r*lista.length)];
+    }
+
+    /**
+     * Método que escribe las cifras de un número con ceros a la izquierda
+     * @param c array donde se escriben
+     * @param desde posición de la primera cifra
+     * @param numero número
+     * @param cifras número de cifras
+     */
+    private static void cifras(char[] c, int desde, long numero, int cifras) {
+        for (int k=desde+cifras-1; k>=desde; k--) {
+            c[k]=(char) ('0'+numero%10);
+            numero/=10;
+        }
+    }
+
+    /**
+     * Método principal que escribe pacientes generados en un CSV
+     * @param args archivo, número de pacientes y semilla (por defecto 1)
+     * @throws Exception Si no se puede escribir el archivo
+     */
+    public static void main(String[] args) throws Exception {
+        String archivo=args.length>0 ? args[0] : "pacientes.csv";
+        long n=args.length>1 ? Long.parseLong(args[1]) : 1_000_000;
+        GeneradorPacientes g=new GeneradorPacientes(args.length>2 ? Long.parseLong(args[2]) : 1, LocalDate.now());
+        long t0=System.nanoTime();
+        try (BufferedWriter bw=Files.newBufferedWriter(Paths.get(archivo), StandardCharsets.UTF_8)) {
+            bw.write("dni,nombre,apellidos,fecha_nacimiento");
+            bw.newLine();
+            for (long i=0; i<n; i++) {
+                Paciente p=g.paciente(i);
+                bw.write(p.getDni()+","+p.getNombre()+","+p.getApellidos()+","+p.getFechaNacimiento());
+                bw.newLine();
+            }
+        }
+        System.out.printf("Escritos %d pacientes en %s en %.1f s\n", n, archivo, (System.nanoTime()-t0)/1e9);
+    }
+}
@@ -0,0 +1,235 @@
+package gestpacientes.bench;
+
+import gestpacientes.HistogramaLatencias;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Clase con métodos para medir el rendimiento de una operación. Ejecuta la
+ * operación durante un tiempo de calentamiento, para que el compilador JIT la
+ * optimice, y después durante el tiempo de medición, registrando la latencia
+ * de cada llamada, las operaciones por segundo y los bytes reservados por operación.
+ *
+ * Los tiempos se pueden cambiar con las propiedades del sistema
+ * bench.calentamientoMs y bench.medicionMs. Si se indica la propiedad
+ * bench.salida, cada resultado se añade como una línea CSV a ese archivo para
+ * poder comparar ejecuciones a lo largo del tiempo.
+ * @author Adrián Romero Ramírez
+ */
+public class Medidor {
+
+    private static final long CALENTAMIENTO_MS=Long.getLong("bench.calentamientoMs", 2000);
+    private static final long MEDICION_MS=Long.getLong("bench.medicionMs", 5000);
+    private static final String SALIDA=System.getProperty("bench.salida");
+
+    // Resultado acumulado de las operaciones para que el JIT no las elimine
+    private static volatile long sumidero;
+
+    /**
+     * Interfaz de una operación que se quiere medir
+     */
+    public interface Operacion {
+        /**
+         * Método que ejecuta una vez la operación
+         * @param hilo número del hilo que la ejecuta, desde 0
+         * @param iteracion número de la llamada dentro del hilo
+         * @return un valor cualquiera que depende del resultado, para que no se elimine la llamada
+         * @throws Exception Si la operación falla
+         */
+        long ejecutar(int hilo, long iteracion) throws Exception;
+    }
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private Medidor() {
+    }
+
+    /**
+     * Método que mide una operación con el número de hilos indicado y muestra el resultado
+     * @param nombre nombre de la operación para el informe
+     * @param hilos número de hilos que la ejecutan a la vez
+     * @param op operación a medir
+     * @return el resultado de la medición
+     * @throws InterruptedException Si se interrumpe la espera por los hilos
+     */
+    public static Resultado medir(String nombre, int hilos, Operacion op) throws InterruptedException {
+        ejecutar(hilos, CALENTAMIENTO_MS, op);
+        Resultado r=ejecutar(hilos, MEDICION_MS, op);
+        r.nombre=nombre;
+        System.out.println(r);
+        guardar(r);
+        return r;
+    }
+
+    /**
+     * Método que ejecuta la operación durante el tiempo indicado en varios hilos
+     * @param hilos número de hilos
+     * @param duracionMs milisegundos que dura la ejecución
+     * @param op operación a ejecutar
+     * @return el resultado de la ejecución
+     * @throws InterruptedException Si se interrumpe la espera por los hilos
+     */
+    private static Resultado ejecutar(int hilos, long duracionMs, Operacion op) throws InterruptedException {
+        ThreadMXBean mx=ManagementFactory.getThreadMXBean();
+        boolean medirMemoria=mx instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) mx).isThreadAllocatedMemorySupported();
+
+        Resultado r=new Resultado(hilos);
+        AtomicBoolean parar=new AtomicBoolean();
+        CountDownLatch inicio=new CountDownLatch(1);
+        CountDownLatch fin=new CountDownLatch(hilos);
+        long[] operaciones=new long[hilos];
+        long[] bytes=new long[hilos];
+        List<Throwable> errores=new ArrayList<>();
+
+        for (int h=0; h<hilos; h++) {
+            final int hilo=h;
+            Thread t=new Thread(() -> {
+                HistogramaLatencias local=new HistogramaLatencias();
+                long acumulado=0;
+                long i=0;
+                try {
+                    inicio.await();
+                    long bytesInicio=medirMemoria ? ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+                    while (!parar.get()) {
+                        long t0=System.nanoTime();
+                        acumulado+=op.ejecutar(hilo, i);
+                        local.registrar(System.nanoTime()-t0);
+                        i++;
+                    }
+                    bytes[hilo]=medirMemoria ? ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId())-bytesInicio : -1;
+                } catch (Exception ex) {
+                    synchronized (errores) {
+                        errores.add(ex);
+                    }
+                } finally {
+                    operaciones[hilo]=i;
+                    sumidero+=acumulado;
+                    r.latencias.añadir(local);
+                    fin.countDown();
+                }
+            }, "medidor-"+h);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        long t0=System.nanoTime();
+        inicio.countDown();
+        Thread.sleep(duracionMs);
+        parar.set(true);
+        fin.await();
+        r.segundos=(System.nanoTime()-t0)/1e9;
+
+        if (!errores.isEmpty()) {
+            throw new IllegalStateException("La operación ha fallado durante la medición.", errores.get(0));
+        }
+        long bytesTotales=0;
+        for (int h=0; h<hilos; h++) {
+            r.operaciones+=operaciones[h];
+            bytesTotales+=bytes[h];
+        }
+        r.bytesPorOperacion=medirMemoria && r.operaciones>0 ? (double) bytesTotales/r.operaciones : -1;
+        return r;
+    }
+
+    /**
+     * Método que añade el resultado al archivo CSV de resultados, si se ha indicado
+     * @param r resultado a guardar
+     */
+    private static void guardar(Resultado r) {
+        if (SALIDA==null) {
+            return;
+        }
+        Path p=Paths.get(SALIDA);
+        try {
+            if (!Files.exists(p)) {
+                Files.write(p, "fecha;prueba;hilos;ops_s;bytes_op;p50_us;p99_us;p999_us;max_us\n".getBytes(StandardCharsets.UTF_8));
+            }
+            String linea=String.format(Locale.ROOT, "%s;%s;%d;%.1f;%.1f;%.2f;%.2f;%.2f;%.2f\n",
+                    LocalDateTime.now(), r.nombre, r.hilos, r.getOpsPorSegundo(), r.bytesPorOperacion,
+                    r.latencias.percentil(50)/1e3, r.latencias.percentil(99)/1e3,
+                    r.latencias.percentil(99.9)/1e3, r.latencias.getMaximo()/1e3);
+            Files.write(p, linea.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            System.err.println("No se pudo guardar el resultado en "+SALIDA);
+        }
+    }
+
+    /**
+     * Método que espera sin ocupar el procesador, para las pausas entre pruebas
+     * @param ms milisegundos de espera
+     */
+    public static void pausa(long ms) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(ms);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Clase que representa el resultado de una medición
+     */
+    public static class Resultado {
+        private String nombre;
+        private final int hilos;
+        private long operaciones;
+        private double segundos;
+        private double bytesPorOperacion;
+        private final HistogramaLatencias latencias=new HistogramaLatencias();
+
+        Resultado(int hilos) {
+            this.hilos=hilos;
+        }
+
+        /**
+         * Método para obtener las operaciones por segundo
+         * @return operaciones por segundo de todos los hilos
+         */
+        public double getOpsPorSegundo() {
+            return operaciones/segundos;
+        }
+
+        /**
+         * Método para obtener los bytes reservados por operación
+         * @return bytes por operación, -1 si la JVM no permite medirlos
+         */
+        public double getBytesPorOperacion() {
+            return bytesPorOperacion;
+        }
+
+        /**
+         * Método para obtener el histograma de latencias
+         * @return latencias de todas las operaciones medidas
+         */
+        public HistogramaLatencias getLatencias() {
+            return latencias;
+        }
+
+        /**
+         * Metodo que crea una línea con el resultado, en un formato fácil de procesar
+         * @return String con el resultado
+         */
+        @Override
+        public String toString() {
+            return String.format("%-40s hilos=%-3d ops/s=%-14.0f bytes/op=%-10.1f p50=%.2fus p99=%.2fus p99.9=%.2fus max=%.2fus",
+                    nombre, hilos, getOpsPorSegundo(), bytesPorOperacion,
+                    latencias.percentil(50)/1e3, latencias.percentil(99)/1e3,
+                    latencias.percentil(99.9)/1e3, latencias.getMaximo()/1e3);
+        }
+    }
+}
@@ -5,15 +5,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
-import org.h2.tools.Server;
 import util.ES;
 
 /**
@@ -23,10 +25,9 @@ import util.ES;
  */
 public class Aplicacion {
 
-    private static final String dbname="pacientes.h2db";
-    private static final String connectionURL="jdbc:h2:./"+dbname;
-    private static final String driver="org.h2.Driver";
-    private static final String cuParams=";MODE=MySQL;AUTO_RECONNECT=TRUE;COLLATION=SPANISH_SPAIN";
+    static final String dbname="pacientes.h2db";
+    static final String driver="org.h2.Driver";
+    static final String cuParams=";MODE=MySQL;AUTO_RECONNECT=TRUE;COLLATION=SPANISH_SPAIN";
     
     
     // Dirección del archivo con la estructura para crear la tabla pacientes
@@ -36,11 +37,21 @@ public class Aplicacion {
     // Dirección del archivo donde está el diseño del menú
     public final static String APP_MENU="/resources/menu.txt";
     
+    // Pool de conexiones compartido por toda la aplicación, se crea al usarlo por primera vez
+    private static PoolConexiones pool;
+    // Recursos de texto ya leídos, para no leerlos de nuevo
+    private static final Map<String, String> recursos=new ConcurrentHashMap<>();
+    
     /**
-     * 
-     * @param args 
+     * Método principal. Sin argumentos abre el menú interactivo; con
+     * "--lotes [archivo|-] [órdenesPorTransacción]" ejecuta sin preguntas las
+     * órdenes del archivo o de la entrada estándar (ver ModoLotes), y con
+     * "--http" atiende peticiones HTTP hasta que se pulsa Intro (ver ServicioHttp).
+     * @param args argumentos de la línea de comandos
      */
     public static void main(String[] args) {
+        // Se mide el tiempo desde aquí hasta que se muestra el menú
+        Arranque arranque=new Arranque();
         // Comprobamos que se puede cargar correctamente el driver para poder conectarse
         // a la base de datos
         boolean driverCargado=false;
@@ -56,61 +67,107 @@ public class Aplicacion {
         
         // Si se ha cargado correctamente, continua la ejecución
         if (driverCargado) {            
-            String[] wsArgs={"-baseDir",System.getProperty("user.dir"),"-browser"};
+            // En el modo por lotes no se abre la consola web ni se pregunta nada
+            if (args.length>0 && "--lotes".equals(args[0])) {
+                Metricas.publicar();
+                boolean ok=ModoLotes.ejecutar(Arrays.copyOfRange(args, 1, args.length));
+                Metricas.detener();
+                System.exit(ok ? 0 : 1);
+            }
+            
+            // El servicio HTTP tampoco usa el menú; atiende peticiones hasta que se pulsa Intro
+            if (args.length>0 && "--http".equals(args[0])) {
+                Metricas.publicar();
+                boolean ok=ServicioHttp.ejecutar();
+                Metricas.detener();
+                System.exit(ok ? 0 : 1);
+            }
+            
+            // Las fases del arranque que no dependen unas de otras se lanzan a la vez:
+            // la publicación de las métricas, la lectura de los recursos y, una tras
+            // otra, la creación del pool y la estructura de la base de datos
+            CompletableFuture<Void> metricas=arranque.enParalelo("metricas", () -> {
+                Metricas.publicar();
+                return null;
+            });
+            CompletableFuture<String> logo=arranque.enParalelo("recursos", () -> {
+                recurso(APP_MENU);
+                return recurso(APP_LOGO);
+            });
+            CompletableFuture<PoolConexiones> poolListo=arranque.enParalelo("pool", Aplicacion::getPool);
+            CompletableFuture<Boolean> tablas=arranque.despues(poolListo, "estructura", p -> {
+                try (Connection c=p.obtener()) {
+                    if (!createTables(c)) {
+                        return false;
+                    }
+                } catch (SQLException ex) {
+                    return false;
+                }
+                // Si los pacientes están repartidos se crea también la estructura de las demás particiones.
+                // Con la base de datos compartida se siguen los cambios de los demás procesos desde
+                // antes de construir las cachés
+                return Particiones.comprobar() && ServidorBD.seguirCambios();
+            });
+            // El filtro de DNI se construye sin esperarlo; hasta que esté listo las
+            // comprobaciones de DNI van directamente a la base de datos
+            CompletableFuture<Boolean> filtro=arranque.despues(tablas, "filtroDni", ok -> ok && FiltroDni.construir());
+            // Con el filtro ya construido se pone al día el volcado de pacientes para
+            // el próximo arranque; si no ha cambiado nada no se escribe
+            arranque.despues(filtro, "volcado", ok -> {
+                VolcadoPacientes.iniciar();
+                return ok && VolcadoPacientes.escribir();
+            });
+            
+            // En el perfil rápido la consola web no se inicia hasta que se pide desde el menú
+            if (!Arranque.isRapido()) {
+                arranque.medir("consolaWeb", () -> ConsolaWeb.iniciar(true));
+            }
+            
             // Obtenemos la conexión
-            try (Connection con = DriverManager.getConnection(connectionURL+cuParams,"","")) {
-                // Se crea una conexión a un servidor web
-                Server sr=Server.createWebServer(wsArgs);
-                
-                // Se inicia la conexión        
-                sr.start();
-                
-                // Se muestra un mensaje por pantalla
-                ES.msgln("¡¡Atención!!");                
-                ES.msgln();
-                ES.msgln("Mientras tu aplicación se esté ejecutando \n"
-                        + "puedes acceder a la consola de la base de datos \n"
-                        + "a través del navegador web.");    
-                ES.msgln();
-                ES.msgln("Página local: " + sr.getURL());     
-                ES.msgln();
-                ES.msgln("Datos de acceso");                
-                ES.msgln("---------------");
-                ES.msgln("Controlador: "+driver);
-                ES.msgln("URL JDBC: "+connectionURL);
-                ES.msgln("Usuario: (no indicar nada)");                
-                ES.msgln("Password: (no indicar nada)");                
+            try (Connection con = getPool().obtener()) {
+                // Se espera a que terminen todas las fases del arranque
+                boolean ok=tablas.join();
+                metricas.join();
+                String textoLogo=logo.join();
+                arranque.terminar();
                 
                 // Se evalua si la creación de la tabla a sido correcta, y si es así
                 // se continua dentro del if
-                if (createTables(con)) {
+                if (ok) {
                     // Se muestra por pantalla el logo
-                    System.out.println(loadResourceAsString(APP_LOGO));
+                    System.out.println(textoLogo);
                     // Se crea un objeto de la clase gestionPacientes pasando por parametro
                     // la conexión a la base de datos
                     GestionPacientes gp=new GestionPacientes(con);
-                    // Se mete dentro del metodo loop() de su clase hasta que se pulsa 4
+                    // Se mete dentro del metodo loop() de su clase hasta que se pulsa 6
                     gp.loop();                    
                 } else {
                     // Si no se puede crear la tabla, da error
                     ES.msgln("Problema creando las tablas.");
                 }
                 
-                /*
-                * Se establece que no se muestre  el prefijo de obligatoriedad u
-                * opcionalidad de una entrada de datos usando un metodo de la libreria "utilidades"
-                */
-                ES.setShowPromptPrefix(false);
-                ES.leeCadena("Pulsa cualquier tecla para terminar (servidor web de la base de datos se cerrará)", true);
-                // Se para la conexión con la base de datos
-                sr.stop();
-                sr.shutdown();
+                // Si se ha abierto la consola web se espera antes de cerrarla
+                if (ConsolaWeb.isIniciada()) {
+                    /*
+                    * Se establece que no se muestre  el prefijo de obligatoriedad u
+                    * opcionalidad de una entrada de datos usando un metodo de la libreria "utilidades"
+                    */
+                    ES.setShowPromptPrefix(false);
+                    ES.leeCadena("Pulsa cualquier tecla para terminar (servidor web de la base de datos se cerrará)", true);
+                    // Se para la consola web de la base de datos
+                    ConsolaWeb.detener();
+                }
                 
             } catch (SQLException ex) {
                 // Si sucede algún error a la hora de conectar con la base de datos,
                 // se muestra un mensaje
                 System.err.printf("No se pudo conectar a la base de datos (%s)\n", dbname);
                 ex.printStackTrace();
+            } finally {
+                // Se escriben los últimos volcados de métricas y de pacientes y se cierran las conexiones del pool
+                Metricas.detener();
+                VolcadoPacientes.detener();
+                cerrarPool();
             }
         }
 
@@ -135,6 +192,17 @@ public class Aplicacion {
         return resource;
     }
     
+    /**
+     * Método que devuelve el contenido de un recurso de texto. Cada recurso se
+     * lee una sola vez y después se devuelve el texto guardado.
+     * @param resourceName Dirección del archivo
+     * @return String del archivo, o null si no se ha podido leer
+     */
+    public static String recurso(String resourceName)
+    {
+        return recursos.computeIfAbsent(resourceName, Aplicacion::loadResourceAsString);
+    }
+    
     /**
      * Método para crear la tabla pacientes en la base de datos
      * @param con Base de datos donde se debe crear la tabla
@@ -147,9 +215,13 @@ public class Aplicacion {
         try (Statement st=con.createStatement()) // Se prepara la consulta
         {                   
             // Se mete en un String la estructura de la tabla en sql
-            String code=loadResourceAsString(ESTRUCTURA_DB);
+            String code=recurso(ESTRUCTURA_DB);
             st.execute(code); // Se ejecuta la sentencia anterior           
             st.close(); // Se cierra la conexión
+            // Las hospitalizaciones contadas antes de existir su historial se apuntan en él
+            Hospitalizaciones.iniciarHistorial(con);
+            // El disparador de los cambios solo se deja si alguien los lee
+            RegistroCambios.configurar(con);
             ok=true; // ok pasa a true
         }
         catch (SQLException ex) {
@@ -202,16 +274,77 @@ public class Aplicacion {
     
     /**
      * He creado un método para conectarse con la base de datos sin tener que
-     * escribir de nuevo el código con la dirección url y demás
+     * escribir de nuevo el código con la dirección url y demás. La conexión se
+     * toma del pool, así que hay que cerrarla para devolverla.
      * @param con conexión que se quiere realizar
      * @return la conexión ya realizada
      */
     public static Connection conectar(Connection con){
+        // Las métricas de la conexión las registra el pool
         try {
-            con = DriverManager.getConnection(connectionURL+cuParams,"","");
+            con = getPool().obtener();
         } catch (SQLException ex) {
             System.out.println("No se ha podido realizar la conexión.");
         }
         return con;
     }
+    
+    /**
+     * Método que devuelve el pool de conexiones de la aplicación, creándolo si
+     * todavía no existe con los límites de las propiedades del sistema. La URL
+     * depende del modo de ServidorBD, que en modo tcp inicia antes el servidor
+     * si no hay ninguno.
+     * @return el pool de conexiones
+     */
+    public static synchronized PoolConexiones getPool(){
+        if (pool==null) {
+            ServidorBD.iniciar();
+            pool = PoolConexiones.desdePropiedades(ServidorBD.url(dbname)+cuParams);
+        }
+        return pool;
+    }
+    
+    /**
+     * Método que devuelve el pool de conexiones sin crearlo, para consultar sus
+     * estadísticas
+     * @return el pool de conexiones, o null si todavía no se ha creado
+     */
+    static synchronized PoolConexiones poolCreado(){
+        return pool;
+    }
+    
+    /**
+     * Método que cambia el pool de conexiones de la aplicación, por ejemplo para
+     * trabajar con otra base de datos. Cierra el pool anterior si lo había.
+     * @param nuevo Pool que se quiere usar
+     */
+    public static synchronized void setPool(PoolConexiones nuevo){
+        if (pool!=null && pool!=nuevo) {
+            pool.cerrar();
+        }
+        // Las demás particiones eran de la base de datos anterior
+        Particiones.cerrar();
+        pool = nuevo;
+    }
+    
+    /**
+     * Método que cierra el pool de conexiones de la aplicación si se había
+     * creado, y los de las demás particiones. Si este proceso había iniciado
+     * el servidor de la base de datos también se para.
+     */
+    public static synchronized void cerrarPool(){
+        if (pool!=null) {
+            // Antes de cerrar se guardan los incrementos de hospitalizaciones pendientes
+            HospitalizacionesDiferidas.cerrar();
+            // Con los incrementos ya guardados se suman a los totales por día y por mes
+            Hospitalizaciones.cerrar();
+            // Después de los incrementos, que también se apuntan en el diario
+            DiarioCambios.cerrar();
+            ServidorBD.dejarDeSeguirCambios();
+            Particiones.cerrar();
+            pool.cerrar();
+            pool = null;
+        }
+        ServidorBD.detener();
+    }
 }
@@ -0,0 +1,140 @@
+package gestpacientes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Clase que ejecuta las fases del arranque de la aplicación y mide cuánto tarda
+ * cada una. Las fases que no dependen unas de otras se lanzan en paralelo en
+ * hilos propios; las que no hacen falta para mostrar el menú pueden seguir en
+ * segundo plano después de terminar().
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.arranque.rapido: perfil de arranque rápido, sin consola web
+ *   al arrancar; se puede abrir después desde el menú (por defecto false)
+ * - gestpacientes.arranque.tiempos: si se muestran los tiempos de cada fase
+ *   (por defecto true en el perfil rápido y false en el normal)
+ * @author Adrián Romero Ramírez
+ */
+public class Arranque {
+
+    private static final boolean RAPIDO=Boolean.getBoolean("gestpacientes.arranque.rapido");
+    private static final boolean TIEMPOS=Boolean.parseBoolean(
+            System.getProperty("gestpacientes.arranque.tiempos", String.valueOf(RAPIDO)));
+
+    // Momento en que empieza el arranque
+    private final long inicio=System.nanoTime();
+    // Hilos para las fases en paralelo
+    private final ExecutorService hilos;
+    // Fases terminadas con su duración, en orden de finalización
+    private final List<String> fases=new ArrayList<>();
+    private final List<Long> duraciones=new ArrayList<>();
+
+    /**
+     * Constructor de la clase
+     */
+    public Arranque() {
+        AtomicInteger contador=new AtomicInteger();
+        ThreadPoolExecutor ejecutor=new ThreadPoolExecutor(3, 3, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t=new Thread(r, "arranque-"+contador.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        // Los hilos terminan solos al quedarse sin trabajo, así las fases que
+        // siguen en segundo plano después del arranque pueden acabar
+        ejecutor.allowCoreThreadTimeOut(true);
+        hilos=ejecutor;
+    }
+
+    /**
+     * Método para saber si se usa el perfil de arranque rápido
+     * @return true o false dependiendo si es el perfil rápido
+     */
+    public static boolean isRapido() {
+        return RAPIDO;
+    }
+
+    /**
+     * Método que ejecuta una fase en el hilo actual y guarda su duración
+     * @param <T> tipo del resultado de la fase
+     * @param fase nombre de la fase
+     * @param tarea trabajo de la fase
+     * @return el resultado de la fase
+     */
+    public <T> T medir(String fase, Supplier<T> tarea) {
+        long t0=System.nanoTime();
+        try {
+            return tarea.get();
+        } finally {
+            registrar(fase, System.nanoTime()-t0);
+        }
+    }
+
+    /**
+     * Método que ejecuta una fase en otro hilo y guarda su duración
+     * @param <T> tipo del resultado de la fase
+     * @param fase nombre de la fase
+     * @param tarea trabajo de la fase
+     * @return futuro con el resultado de la fase
+     */
+    public <T> CompletableFuture<T> enParalelo(String fase, Supplier<T> tarea) {
+        return CompletableFuture.supplyAsync(() -> medir(fase, tarea), hilos);
+    }
+
+    /**
+     * Método que ejecuta una fase en otro hilo cuando termina la anterior
+     * @param <T> tipo del resultado de la fase anterior
+     * @param <R> tipo del resultado de la fase
+     * @param anterior futuro de la fase de la que depende
+     * @param fase nombre de la fase
+     * @param tarea trabajo de la fase, recibe el resultado de la anterior
+     * @return futuro con el resultado de la fase
+     */
+    public <T, R> CompletableFuture<R> despues(CompletableFuture<T> anterior, String fase, Function<T, R> tarea) {
+        return anterior.thenApplyAsync(v -> medir(fase, () -> tarea.apply(v)), hilos);
+    }
+
+    /**
+     * Método que termina el arranque y, si está configurado, muestra el tiempo
+     * de cada fase terminada y el total hasta poder recibir órdenes
+     */
+    public void terminar() {
+        long total=System.nanoTime()-inicio;
+        if (TIEMPOS) {
+            System.out.println(informe(total));
+        }
+    }
+
+    /**
+     * Método que crea un String con el tiempo de cada fase
+     * @param total nanosegundos totales del arranque
+     * @return String con los tiempos en milisegundos
+     */
+    private synchronized String informe(long total) {
+        StringBuilder sb=new StringBuilder("Arranque"+(RAPIDO ? " rápido" : "")+":");
+        for (int i=0; i<fases.size(); i++) {
+            sb.append(String.format(" %s=%.1f ms,", fases.get(i), duraciones.get(i)/1e6));
+        }
+        sb.append(String.format(" hasta el menú=%.1f ms", total/1e6));
+        return sb.toString();
+    }
+
+    /**
+     * Método que guarda la duración de una fase
+     * @param fase nombre de la fase
+     * @param nanos duración en nanosegundos
+     */
+    private synchronized void registrar(String fase, long nanos) {
+        fases.add(fase);
+        duraciones.add(nanos);
+    }
+}
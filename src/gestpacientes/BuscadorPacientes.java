@@ -0,0 +1,724 @@
+package gestpacientes;
+
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Clase que permite buscar pacientes por parte del nombre o de los apellidos
+ * sin recorrer la tabla. Guarda en memoria un índice con las palabras del
+ * nombre y los apellidos de cada paciente:
+ *
+ * - terminos: palabras ordenadas, para buscar las que empiezan por un texto, y
+ *   los pacientes que tienen cada una
+ * - ngramas: grupos de 3 letras de cada palabra, para buscar las palabras que
+ *   contienen un texto en cualquier posición
+ *
+ * Los textos se comparan plegados igual que con COLLATION=SPANISH_SPAIN: sin
+ * distinguir mayúsculas ni tildes, pero la ñ sigue siendo distinta de la n.
+ * Un paciente aparece en los resultados si cada palabra buscada coincide con
+ * alguna de las suyas; se ordenan primero los que coinciden con la palabra
+ * entera, después los que la tienen al principio y por último los que la
+ * contienen, y a igualdad por apellidos y nombre.
+ *
+ * El índice se construye la primera vez que se busca y las inserciones y
+ * borrados de PacientesDAO se aplican también a él; los hechos mientras se
+ * construye se guardan y se aplican al terminar.
+ * @author Adrián Romero Ramírez
+ */
+public class BuscadorPacientes {
+
+    // Puntos de cada tipo de coincidencia de una palabra
+    private static final int PUNTOS_EXACTA=3;
+    private static final int PUNTOS_PREFIJO=2;
+    private static final int PUNTOS_CONTIENE=1;
+    // Letras de cada n-grama
+    private static final int N=3;
+    // Separador entre los apellidos y el nombre en la clave de ordenación
+    private static final char SEPARADOR='\u0001';
+    private static final String SQL_TODOS="SELECT dni, nombre, apellidos FROM PACIENTES";
+
+    // Índice en uso, null mientras no se haya construido
+    private static volatile BuscadorPacientes actual;
+    // Cambios hechos mientras se construye el índice, null si no se está construyendo
+    private static List<Object> pendientes;
+    // Cerrojo para los cambios pendientes
+    private static final Object CAMBIOS=new Object();
+
+    // DNI y clave de ordenación de cada paciente, null en los borrados
+    private String[] dnis=new String[1024];
+    private String[] claves=new String[1024];
+    private int pacientes;
+    private int borrados;
+    // Posición de cada DNI
+    private final Map<String, Integer> porDni=new HashMap<>();
+    // Palabras ordenadas con los pacientes que las tienen
+    private final TreeMap<String, Termino> terminos=new TreeMap<>();
+    // Texto de cada palabra por su número
+    private final List<String> textos=new ArrayList<>();
+    // Números de las palabras que contienen cada n-grama
+    private final Map<String, ListaEnteros> ngramas=new HashMap<>();
+    // Las búsquedas toman el cerrojo de lectura y las modificaciones el de escritura
+    private final ReentrantReadWriteLock cerrojo=new ReentrantReadWriteLock();
+
+    /**
+     * Clase que representa una palabra del índice
+     */
+    private static class Termino {
+        final int id;
+        final ListaEnteros pacientes=new ListaEnteros();
+
+        Termino(int id) {
+            this.id=id;
+        }
+    }
+
+    /**
+     * Clase que representa una palabra del índice que coincide con una palabra buscada
+     */
+    private static class Coincidencia {
+        final Termino termino;
+        final int puntos;
+
+        Coincidencia(Termino termino, int puntos) {
+            this.termino=termino;
+            this.puntos=puntos;
+        }
+    }
+
+    /**
+     * Clase que representa una página de resultados de una búsqueda
+     */
+    public static class Resultado {
+        private final int total;
+        private final List<Paciente> pacientes;
+
+        Resultado(int total, List<Paciente> pacientes) {
+            this.total=total;
+            this.pacientes=pacientes;
+        }
+
+        /**
+         * Método para obtener el número total de pacientes encontrados
+         * @return número de pacientes de todas las páginas
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Método para obtener los pacientes de la página
+         * @return pacientes de la página, ordenados
+         */
+        public List<Paciente> getPacientes() {
+            return pacientes;
+        }
+    }
+
+    /**
+     * Método que construye el índice con todos los pacientes de la base de datos
+     * y lo deja como índice en uso
+     * @return el índice, o null si no se ha podido construir
+     */
+    public static synchronized BuscadorPacientes construir() {
+        synchronized (CAMBIOS) {
+            pendientes=new ArrayList<>();
+        }
+        BuscadorPacientes nuevo=new BuscadorPacientes();
+        try {
+            BuscadorPacientes b=nuevo;
+            // Si hay un volcado válido los pacientes se leen de él en vez de la tabla
+            if (!VolcadoPacientes.cargar((dni, nombre, apellidos, fecha, nhosp) -> b.añadir(dni, nombre, apellidos))) {
+                Particiones.recorrer(SQL_TODOS, 1000, rs -> b.añadir(rs.getString(1), rs.getString(2), rs.getString(3)));
+            }
+        } catch (SQLException ex) {
+            System.out.println("No se ha podido construir el índice de búsqueda de pacientes.");
+            nuevo=null;
+        }
+        synchronized (CAMBIOS) {
+            // Se aplican en orden los cambios que la lectura puede no haber visto;
+            // añadir un paciente que ya está o quitar uno que no está no cambia nada
+            if (nuevo!=null) {
+                for (Object cambio : pendientes) {
+                    if (cambio instanceof Paciente) {
+                        Paciente p=(Paciente) cambio;
+                        nuevo.añadir(p.getDni(), p.getNombre(), p.getApellidos());
+                    } else {
+                        nuevo.quitar((String) cambio);
+                    }
+                }
+                actual=nuevo;
+            }
+            pendientes=null;
+        }
+        return nuevo;
+    }
+
+    /**
+     * Método que devuelve el índice en uso
+     * @return el índice, o null si no se ha construido
+     */
+    public static BuscadorPacientes actual() {
+        return actual;
+    }
+
+    /**
+     * Método para saber si hay que avisar al índice de los cambios
+     * @return true o false dependiendo si el índice está construido o construyéndose
+     */
+    public static boolean isActivo() {
+        synchronized (CAMBIOS) {
+            return actual!=null || pendientes!=null;
+        }
+    }
+
+    /**
+     * Método que deja de usar el índice para liberar su memoria
+     */
+    public static void descartar() {
+        actual=null;
+    }
+
+    /**
+     * Método que añade al índice un paciente recién insertado
+     * @param p paciente insertado
+     */
+    public static void insertado(Paciente p) {
+        synchronized (CAMBIOS) {
+            if (pendientes!=null) {
+                pendientes.add(p);
+                return;
+            }
+        }
+        BuscadorPacientes b=actual;
+        if (b!=null) {
+            b.cerrojo.writeLock().lock();
+            try {
+                b.añadir(p.getDni(), p.getNombre(), p.getApellidos());
+            } finally {
+                b.cerrojo.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Método que quita del índice un paciente borrado
+     * @param dni DNI del paciente borrado
+     */
+    public static void borrado(String dni) {
+        synchronized (CAMBIOS) {
+            if (pendientes!=null) {
+                pendientes.add(dni);
+                return;
+            }
+        }
+        BuscadorPacientes b=actual;
+        if (b!=null) {
+            b.cerrojo.writeLock().lock();
+            try {
+                b.quitar(dni);
+            } finally {
+                b.cerrojo.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Método que busca pacientes por parte de su nombre o apellidos. Si el
+     * índice no está construido se construye antes.
+     * @param texto una o varias palabras, o partes de palabras, que se buscan
+     * @param desde número de resultados que se saltan, para las páginas siguientes
+     * @param tamaño número máximo de resultados que se devuelven
+     * @return la página de resultados con el número total de pacientes encontrados
+     */
+    public static Resultado buscar(String texto, int desde, int tamaño) {
+        long inicio=Metricas.inicio();
+        BuscadorPacientes b=actual;
+        if (b==null) {
+            synchronized (BuscadorPacientes.class) {
+                // Otra búsqueda puede haberlo construido mientras se esperaba
+                b=actual!=null ? actual : construir();
+            }
+            if (b==null) {
+                Metricas.error(Metricas.Operacion.BUSCAR);
+                Metricas.fin(Metricas.Operacion.BUSCAR, inicio);
+                return new Resultado(0, Collections.emptyList());
+            }
+        }
+        List<String> dniPagina=new ArrayList<>();
+        int total=b.buscarDni(texto, desde, tamaño, dniPagina);
+        // Los datos completos se leen por la clave primaria fuera del cerrojo
+        List<Paciente> lista=new ArrayList<>(dniPagina.size());
+        for (String dni : dniPagina) {
+            Paciente p=PacientesDAO.detallesPaciente(dni);
+            if (p!=null) {
+                lista.add(p);
+            }
+        }
+        Metricas.fin(Metricas.Operacion.BUSCAR, inicio);
+        return new Resultado(total, lista);
+    }
+
+    /**
+     * Método que busca en el índice los DNI de los pacientes que coinciden
+     * @param texto palabras buscadas
+     * @param desde número de resultados que se saltan
+     * @param tamaño número máximo de resultados
+     * @param pagina lista donde se dejan los DNI de la página pedida
+     * @return número total de pacientes encontrados
+     */
+    int buscarDni(String texto, int desde, int tamaño, List<String> pagina) {
+        List<String> palabras=new ArrayList<>(palabras(plegar(texto)));
+        if (palabras.isEmpty()) {
+            return 0;
+        }
+        cerrojo.readLock().lock();
+        try {
+            // Se empieza por la palabra con menos pacientes para tener menos candidatos
+            List<List<Coincidencia>> coincidencias=new ArrayList<>();
+            long[] coste=new long[palabras.size()];
+            for (int i=0; i<palabras.size(); i++) {
+                List<Coincidencia> c=coincidencias(palabras.get(i));
+                for (Coincidencia x : c) {
+                    coste[i]+=x.termino.pacientes.size();
+                }
+                coincidencias.add(c);
+            }
+            Integer[] orden=new Integer[palabras.size()];
+            for (int i=0; i<orden.length; i++) {
+                orden[i]=i;
+            }
+            Arrays.sort(orden, Comparator.comparingLong(i -> coste[i]));
+
+            MapaEnteros candidatos=null;
+            for (int i : orden) {
+                MapaEnteros siguientes=new MapaEnteros(candidatos==null ? (int) Math.min(coste[i], pacientes) : candidatos.size());
+                for (Coincidencia c : coincidencias.get(i)) {
+                    ListaEnteros l=c.termino.pacientes;
+                    for (int k=0; k<l.size(); k++) {
+                        int p=l.get(k);
+                        if (claves[p]!=null && (candidatos==null || candidatos.get(p)>0)) {
+                            siguientes.maximo(p, c.puntos);
+                        }
+                    }
+                }
+                if (candidatos!=null) {
+                    siguientes.sumar(candidatos);
+                }
+                candidatos=siguientes;
+                if (candidatos.size()==0) {
+                    return 0;
+                }
+            }
+            elegir(candidatos, desde, tamaño, pagina);
+            return candidatos.size();
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Método que elige los mejores resultados de la página pedida sin ordenar
+     * todos los candidatos
+     * @param candidatos pacientes encontrados con sus puntos
+     * @param desde número de resultados que se saltan
+     * @param tamaño número máximo de resultados
+     * @param pagina lista donde se dejan los DNI
+     */
+    private void elegir(MapaEnteros candidatos, int desde, int tamaño, List<String> pagina) {
+        int k=desde+tamaño;
+        if (k<=0 || desde>=candidatos.size()) {
+            return;
+        }
+        Comparator<Integer> mejor=(a, b) -> {
+            int c=Integer.compare(candidatos.get(b), candidatos.get(a));
+            if (c==0) {
+                c=compararClaves(claves[a], claves[b]);
+            }
+            return c!=0 ? c : dnis[a].compareTo(dnis[b]);
+        };
+        // El peor de los k mejores queda en la cabeza del montículo
+        PriorityQueue<Integer> mejores=new PriorityQueue<>(Math.min(k, candidatos.size()), mejor.reversed());
+        for (int s=0; s<candidatos.capacidad(); s++) {
+            int p=candidatos.clave(s);
+            if (p<0) {
+                continue;
+            }
+            if (mejores.size()<k) {
+                mejores.add(p);
+            } else if (mejor.compare(p, mejores.peek())<0) {
+                mejores.poll();
+                mejores.add(p);
+            }
+        }
+        List<Integer> ordenados=new ArrayList<>(mejores);
+        ordenados.sort(mejor);
+        for (int i=desde; i<ordenados.size(); i++) {
+            pagina.add(dnis[ordenados.get(i)]);
+        }
+    }
+
+    /**
+     * Método que busca las palabras del índice que coinciden con una palabra buscada
+     * @param palabra palabra buscada, ya plegada
+     * @return palabras del índice con los puntos de la coincidencia
+     */
+    private List<Coincidencia> coincidencias(String palabra) {
+        List<Coincidencia> lista=new ArrayList<>();
+        // La propia palabra y las que empiezan por ella están seguidas en el árbol
+        for (Termino t : terminos.subMap(palabra, true, palabra+Character.MAX_VALUE, false).values()) {
+            lista.add(new Coincidencia(t, textos.get(t.id).length()==palabra.length() ? PUNTOS_EXACTA : PUNTOS_PREFIJO));
+        }
+        if (palabra.length()>=N) {
+            // Se recorren las palabras del n-grama menos frecuente y se comprueba si la contienen
+            ListaEnteros menor=null;
+            for (int i=0; i+N<=palabra.length(); i++) {
+                ListaEnteros l=ngramas.get(palabra.substring(i, i+N));
+                if (l==null) {
+                    return lista;
+                }
+                if (menor==null || l.size()<menor.size()) {
+                    menor=l;
+                }
+            }
+            for (int k=0; k<menor.size(); k++) {
+                String t=textos.get(menor.get(k));
+                if (t.indexOf(palabra, 1)>0) {
+                    lista.add(new Coincidencia(terminos.get(t), PUNTOS_CONTIENE));
+                }
+            }
+        }
+        return lista;
+    }
+
+    /**
+     * Método que añade un paciente al índice. Si ya estaba se sustituye.
+     * @param dni DNI del paciente
+     * @param nombre nombre del paciente
+     * @param apellidos apellidos del paciente
+     */
+    private void añadir(String dni, String nombre, String apellidos) {
+        quitar(dni);
+        String n=plegar(nombre==null ? "" : nombre);
+        String a=plegar(apellidos==null ? "" : apellidos);
+        poner(dni, a+SEPARADOR+n);
+    }
+
+    /**
+     * Método que pone un paciente en la siguiente posición con sus palabras
+     * @param dni DNI del paciente
+     * @param clave apellidos y nombre plegados
+     */
+    private void poner(String dni, String clave) {
+        if (pacientes==dnis.length) {
+            int capacidad=dnis.length+(dnis.length>>1);
+            dnis=Arrays.copyOf(dnis, capacidad);
+            claves=Arrays.copyOf(claves, capacidad);
+        }
+        int p=pacientes++;
+        dnis[p]=dni;
+        claves[p]=clave;
+        porDni.put(dni, p);
+        for (String palabra : palabras(clave)) {
+            Termino t=terminos.get(palabra);
+            if (t==null) {
+                t=new Termino(textos.size());
+                textos.add(palabra);
+                terminos.put(palabra, t);
+                // Los n-gramas repetidos en la palabra solo se apuntan una vez
+                for (String g : ngramas(palabra)) {
+                    ngramas.computeIfAbsent(g, x -> new ListaEnteros()).add(t.id);
+                }
+            }
+            t.pacientes.add(p);
+        }
+    }
+
+    /**
+     * Método que quita un paciente del índice. Su posición se marca como borrada
+     * y cuando los borrados son la mitad de los pacientes se compacta el índice.
+     * @param dni DNI del paciente
+     */
+    private void quitar(String dni) {
+        Integer p=porDni.remove(dni);
+        if (p!=null) {
+            dnis[p]=null;
+            claves[p]=null;
+            borrados++;
+            if (borrados>Math.max(1000, pacientes/2)) {
+                compactar();
+            }
+        }
+    }
+
+    /**
+     * Método que vuelve a crear el índice solo con los pacientes no borrados
+     */
+    private void compactar() {
+        String[] d=dnis;
+        String[] c=claves;
+        int n=pacientes;
+        int vivos=n-borrados;
+        dnis=new String[Math.max(1024, vivos+(vivos>>1))];
+        claves=new String[dnis.length];
+        pacientes=0;
+        borrados=0;
+        porDni.clear();
+        terminos.clear();
+        textos.clear();
+        ngramas.clear();
+        for (int i=0; i<n; i++) {
+            if (c[i]!=null) {
+                poner(d[i], c[i]);
+            }
+        }
+    }
+
+    /**
+     * Método que pliega un texto para compararlo: pasa las letras a minúsculas
+     * y quita las tildes y diéresis, pero deja la ñ como letra distinta
+     * @param texto texto que se quiere plegar
+     * @return el texto plegado
+     */
+    static String plegar(String texto) {
+        // Los textos con las tildes como caracteres separados se juntan primero
+        if (!Normalizer.isNormalized(texto, Normalizer.Form.NFC)) {
+            texto=Normalizer.normalize(texto, Normalizer.Form.NFC);
+        }
+        StringBuilder sb=new StringBuilder(texto.length());
+        for (int i=0; i<texto.length(); i++) {
+            char c=texto.charAt(i);
+            if (c<128) {
+                sb.append(c>='A' && c<='Z' ? (char) (c+32) : c);
+            } else if (c=='ñ' || c=='Ñ') {
+                sb.append('ñ');
+            } else if (Character.getType(c)!=Character.NON_SPACING_MARK) {
+                sb.append(Character.toLowerCase(Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD).charAt(0)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Método que separa en palabras un texto plegado
+     * @param texto texto plegado
+     * @return las palabras distintas, en orden de aparición
+     */
+    static Set<String> palabras(String texto) {
+        Set<String> palabras=new LinkedHashSet<>();
+        int inicio=-1;
+        for (int i=0; i<=texto.length(); i++) {
+            boolean letra=i<texto.length() && Character.isLetterOrDigit(texto.charAt(i));
+            if (letra && inicio<0) {
+                inicio=i;
+            } else if (!letra && inicio>=0) {
+                palabras.add(texto.substring(inicio, i));
+                inicio=-1;
+            }
+        }
+        return palabras;
+    }
+
+    /**
+     * Método que obtiene los n-gramas distintos de una palabra
+     * @param palabra palabra plegada
+     * @return los n-gramas de la palabra
+     */
+    private static Set<String> ngramas(String palabra) {
+        Set<String> lista=new LinkedHashSet<>();
+        for (int i=0; i+N<=palabra.length(); i++) {
+            lista.add(palabra.substring(i, i+N));
+        }
+        return lista;
+    }
+
+    /**
+     * Método que compara dos claves plegadas en el orden del alfabeto español,
+     * con la ñ entre la n y la o
+     * @param a primera clave
+     * @param b segunda clave
+     * @return negativo, cero o positivo según a vaya antes, igual o después que b
+     */
+    static int compararClaves(String a, String b) {
+        int n=Math.min(a.length(), b.length());
+        for (int i=0; i<n; i++) {
+            int x=peso(a.charAt(i));
+            int y=peso(b.charAt(i));
+            if (x!=y) {
+                return x-y;
+            }
+        }
+        return a.length()-b.length();
+    }
+
+    /**
+     * Método que devuelve el peso de una letra para ordenar
+     * @param c letra
+     * @return peso de la letra
+     */
+    private static int peso(char c) {
+        return c=='ñ' ? 'n'*2+1 : c*2;
+    }
+
+    /**
+     * Método para obtener el número de pacientes del índice
+     * @return número de pacientes
+     */
+    public int getPacientes() {
+        cerrojo.readLock().lock();
+        try {
+            return pacientes-borrados;
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Método que crea un String con el tamaño del índice
+     * @return String con el número de pacientes, palabras y n-gramas
+     */
+    @Override
+    public String toString() {
+        cerrojo.readLock().lock();
+        try {
+            return String.format("BuscadorPacientes[pacientes=%d, borrados=%d, palabras=%d, ngramas=%d]",
+                    pacientes-borrados, borrados, terminos.size(), ngramas.size());
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Clase que representa una lista de enteros que crece según se añaden
+     */
+    private static class ListaEnteros {
+        private int[] datos=new int[4];
+        private int tamaño;
+
+        void add(int v) {
+            if (tamaño==datos.length) {
+                datos=Arrays.copyOf(datos, tamaño*2);
+            }
+            datos[tamaño++]=v;
+        }
+
+        int get(int i) {
+            return datos[i];
+        }
+
+        int size() {
+            return tamaño;
+        }
+    }
+
+    /**
+     * Clase que representa un mapa de enteros positivos a puntos, con
+     * direccionamiento abierto para no crear un objeto por entrada
+     */
+    private static class MapaEnteros {
+        private int[] claves;
+        private int[] valores;
+        private int tamaño;
+
+        MapaEnteros(int previstos) {
+            int c=16;
+            while (c<previstos*4/3+1) {
+                c<<=1;
+            }
+            claves=new int[c];
+            valores=new int[c];
+            Arrays.fill(claves, -1);
+        }
+
+        /**
+         * Método que devuelve los puntos de una clave
+         * @param k clave
+         * @return los puntos, o 0 si no está
+         */
+        int get(int k) {
+            int m=claves.length-1;
+            for (int s=mezclar(k)&m; claves[s]>=0; s=(s+1)&m) {
+                if (claves[s]==k) {
+                    return valores[s];
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Método que guarda los puntos de una clave si son más que los que tenía
+         * @param k clave
+         * @param v puntos
+         */
+        void maximo(int k, int v) {
+            int m=claves.length-1;
+            int s=mezclar(k)&m;
+            while (claves[s]>=0) {
+                if (claves[s]==k) {
+                    valores[s]=Math.max(valores[s], v);
+                    return;
+                }
+                s=(s+1)&m;
+            }
+            claves[s]=k;
+            valores[s]=v;
+            if (++tamaño*4>claves.length*3) {
+                crecer();
+            }
+        }
+
+        /**
+         * Método que suma a cada clave los puntos que tiene en otro mapa
+         * @param otro mapa con los puntos que se suman
+         */
+        void sumar(MapaEnteros otro) {
+            for (int s=0; s<claves.length; s++) {
+                if (claves[s]>=0) {
+                    valores[s]+=otro.get(claves[s]);
+                }
+            }
+        }
+
+        private void crecer() {
+            int[] k=claves;
+            int[] v=valores;
+            claves=new int[k.length*2];
+            valores=new int[k.length*2];
+            Arrays.fill(claves, -1);
+            tamaño=0;
+            for (int s=0; s<k.length; s++) {
+                if (k[s]>=0) {
+                    maximo(k[s], v[s]);
+                }
+            }
+        }
+
+        private static int mezclar(int k) {
+            int h=k*0x9E3779B9;
+            return h^(h>>>16);
+        }
+
+        int size() {
+            return tamaño;
+        }
+
+        int capacidad() {
+            return claves.length;
+        }
+
+        int clave(int s) {
+            return claves[s];
+        }
+    }
+}
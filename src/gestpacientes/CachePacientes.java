@@ -0,0 +1,212 @@
+package gestpacientes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Clase con una caché de lectura de los detalles de pacientes por su DNI. Si el
+ * paciente no está en la caché se lee de la base de datos y se guarda. Se
+ * descartan los menos usados al llegar al tamaño máximo y los que llevan en la
+ * caché más tiempo del configurado.
+ *
+ * Para que varios hilos vean siempre datos actuales, cada modificación
+ * incrementa una versión; una lectura que ha empezado antes de una modificación
+ * no guarda su resultado.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.cache.activa: si se usa la caché (por defecto true)
+ * - gestpacientes.cache.tamaño: número máximo de pacientes guardados (por defecto 10000)
+ * - gestpacientes.cache.ttlSeg: segundos que se guarda cada paciente (por defecto 300)
+ * @author Adrián Romero Ramírez
+ */
+public class CachePacientes {
+
+    private static volatile boolean activa=Boolean.parseBoolean(System.getProperty("gestpacientes.cache.activa", "true"));
+    private static final int TAMAÑO=Integer.getInteger("gestpacientes.cache.tamaño", 10000);
+    private static final long TTL=TimeUnit.SECONDS.toNanos(Long.getLong("gestpacientes.cache.ttlSeg", 300));
+
+    // Pacientes guardados, ordenados de menos a más recientemente usados
+    private static final Map<String, Entrada> entradas=new LinkedHashMap<String, Entrada>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entrada> eldest) {
+            if (size()>TAMAÑO) {
+                desalojos.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+    // Versión de los datos, cambia con cada modificación
+    private static final AtomicLong version=new AtomicLong();
+
+    // Estadísticas de uso
+    private static final AtomicLong aciertos=new AtomicLong();
+    private static final AtomicLong fallos=new AtomicLong();
+    private static final AtomicLong desalojos=new AtomicLong();
+    private static final AtomicLong expirados=new AtomicLong();
+    private static final AtomicLong invalidaciones=new AtomicLong();
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private CachePacientes() {
+    }
+
+    /**
+     * Método que devuelve un paciente de la caché o, si no está, lo lee con el
+     * método indicado y lo guarda
+     * @param dni DNI del paciente
+     * @param cargador método que lee el paciente de la base de datos
+     * @return una copia del paciente, o null si no existe
+     */
+    public static Paciente obtener(String dni, Function<String, Paciente> cargador) {
+        if (!activa || dni==null) {
+            return cargador.apply(dni);
+        }
+
+        long ahora=System.nanoTime();
+        synchronized (entradas) {
+            Entrada e=entradas.get(dni);
+            if (e!=null) {
+                if (ahora-e.guardado<TTL) {
+                    aciertos.incrementAndGet();
+                    return copiar(e.paciente);
+                }
+                // Ha caducado, se quita y se vuelve a leer
+                entradas.remove(dni);
+                expirados.incrementAndGet();
+            }
+        }
+
+        fallos.incrementAndGet();
+        long versionLectura=version.get();
+        Paciente p=cargador.apply(dni);
+        if (p!=null) {
+            synchronized (entradas) {
+                // Solo se guarda si nadie ha modificado datos mientras se leía
+                if (version.get()==versionLectura) {
+                    entradas.put(dni, new Entrada(copiar(p), ahora));
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Método que quita de la caché un paciente que se ha modificado o borrado.
+     * Hay que llamarlo después de que la modificación esté confirmada en la base de datos.
+     * @param dni DNI del paciente modificado
+     */
+    public static void invalidar(String dni) {
+        version.incrementAndGet();
+        synchronized (entradas) {
+            if (entradas.remove(dni)!=null) {
+                invalidaciones.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Método que vacía la caché
+     */
+    public static void vaciar() {
+        version.incrementAndGet();
+        synchronized (entradas) {
+            entradas.clear();
+        }
+    }
+
+    /**
+     * Método para activar o desactivar la caché. Al desactivarla se vacía.
+     * @param valor true para activarla y false para desactivarla
+     */
+    public static void setActiva(boolean valor) {
+        activa=valor;
+        if (!valor) {
+            vaciar();
+        }
+    }
+
+    /**
+     * Método para saber si la caché está activa
+     * @return true o false dependiendo si está activa
+     */
+    public static boolean isActiva() {
+        return activa;
+    }
+
+    /**
+     * Método para obtener el número de pacientes guardados
+     * @return pacientes en la caché
+     */
+    public static int getTamaño() {
+        synchronized (entradas) {
+            return entradas.size();
+        }
+    }
+
+    /**
+     * Método para obtener las lecturas servidas desde la caché
+     * @return aciertos
+     */
+    public static long getAciertos() {
+        return aciertos.get();
+    }
+
+    /**
+     * Método para obtener las lecturas que han ido a la base de datos
+     * @return fallos
+     */
+    public static long getFallos() {
+        return fallos.get();
+    }
+
+    /**
+     * Método para obtener los pacientes descartados por superar el tamaño máximo
+     * @return desalojos
+     */
+    public static long getDesalojos() {
+        return desalojos.get();
+    }
+
+    /**
+     * Método que crea un String con las estadísticas de la caché
+     * @return String con las estadísticas
+     */
+    public static String estadisticas() {
+        long a=aciertos.get();
+        long f=fallos.get();
+        return String.format("CachePacientes[activa=%b, tamaño=%d/%d, aciertos=%d, fallos=%d, tasaAcierto=%.1f%%, "
+                + "desalojos=%d, expirados=%d, invalidaciones=%d]",
+                activa, getTamaño(), TAMAÑO, a, f, a+f==0 ? 0.0 : 100.0*a/(a+f),
+                desalojos.get(), expirados.get(), invalidaciones.get());
+    }
+
+    /**
+     * Método que copia un paciente para que quien lo recibe no pueda cambiar el guardado
+     * @param p paciente a copiar
+     * @return la copia
+     */
+    private static Paciente copiar(Paciente p) {
+        Paciente c=new Paciente(p.getDni(), p.getNombre(), p.getApellidos(), p.getFechaNacimiento());
+        c.setNhosp(p.getNhosp());
+        return c;
+    }
+
+    /**
+     * Clase que representa un paciente guardado y el momento en que se guardó
+     */
+    private static class Entrada {
+        private final Paciente paciente;
+        private final long guardado;
+
+        Entrada(Paciente paciente, long guardado) {
+            this.paciente=paciente;
+            this.guardado=guardado;
+        }
+    }
+}
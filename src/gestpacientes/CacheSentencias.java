@@ -0,0 +1,213 @@
+package gestpacientes;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clase que guarda las sentencias preparadas de una conexión física para que
+ * cada consulta se analice una sola vez y se reutilice en las siguientes llamadas.
+ * Las sentencias que entrega no se cierran al llamar a close(), solo se limpian
+ * sus parámetros para el siguiente uso.
+ *
+ * Contiene los siguientes atributos:
+ *
+ * - con: conexión física a la que pertenecen las sentencias
+ * - maximo: número máximo de sentencias guardadas, se descartan las menos usadas
+ * - sentencias: sentencias guardadas por su código SQL
+ * @author Adrián Romero Ramírez
+ */
+public class CacheSentencias {
+
+    // Contadores comunes a todas las conexiones
+    private static final AtomicLong aciertos=new AtomicLong();
+    private static final AtomicLong fallos=new AtomicLong();
+    private static final AtomicLong descartadas=new AtomicLong();
+
+    // Conexión física a la que pertenecen las sentencias
+    private final Connection con;
+    // Número máximo de sentencias guardadas
+    private final int maximo;
+    // Sentencias guardadas, ordenadas de menos a más recientemente usadas
+    private final Map<String, SentenciaGuardada> sentencias;
+
+    /**
+     * Constructor con parametros de la clase
+     * @param con Conexión física a la que pertenecen las sentencias
+     * @param maximo Número máximo de sentencias que se guardan
+     */
+    public CacheSentencias(Connection con, int maximo) {
+        this.con=con;
+        this.maximo=maximo;
+        this.sentencias=new LinkedHashMap<String, SentenciaGuardada>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SentenciaGuardada> eldest) {
+                // Se cierra la sentencia menos usada al superar el máximo si no está en uso
+                if (size()>CacheSentencias.this.maximo && !eldest.getValue().enUso) {
+                    descartadas.incrementAndGet();
+                    cerrarSilencioso(eldest.getValue().ps);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Método que devuelve una sentencia preparada para el SQL indicado,
+     * reutilizando la guardada si existe y está libre
+     * @param sql Código SQL de la sentencia
+     * @return la sentencia preparada, hay que cerrarla al terminar de usarla
+     * @throws SQLException Si no se puede preparar la sentencia
+     */
+    public synchronized PreparedStatement preparar(String sql) throws SQLException {
+        SentenciaGuardada guardada=sentencias.get(sql);
+        if (guardada!=null && !guardada.enUso && !guardada.ps.isClosed()) {
+            aciertos.incrementAndGet();
+        } else {
+            fallos.incrementAndGet();
+            if (guardada!=null && guardada.enUso) {
+                // Si la misma consulta ya se está usando se da una sentencia normal sin guardar
+                return con.prepareStatement(sql);
+            }
+            guardada=new SentenciaGuardada(con.prepareStatement(sql));
+            sentencias.put(sql, guardada);
+        }
+        guardada.enUso=true;
+        return (PreparedStatement) Proxy.newProxyInstance(CacheSentencias.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new SentenciaPrestada(guardada));
+    }
+
+    /**
+     * Método que cierra todas las sentencias guardadas
+     */
+    public synchronized void cerrar() {
+        sentencias.values().forEach(g -> cerrarSilencioso(g.ps));
+        sentencias.clear();
+    }
+
+    /**
+     * Método para obtener el número de sentencias guardadas
+     * @return sentencias guardadas
+     */
+    public synchronized int getTamaño() {
+        return sentencias.size();
+    }
+
+    /**
+     * Método para obtener las veces que se ha reutilizado una sentencia guardada
+     * @return aciertos de todas las conexiones
+     */
+    public static long getAciertos() {
+        return aciertos.get();
+    }
+
+    /**
+     * Método para obtener las veces que se ha tenido que preparar una sentencia
+     * @return fallos de todas las conexiones
+     */
+    public static long getFallos() {
+        return fallos.get();
+    }
+
+    /**
+     * Método para obtener las sentencias cerradas por superar el máximo
+     * @return sentencias descartadas de todas las conexiones
+     */
+    public static long getDescartadas() {
+        return descartadas.get();
+    }
+
+    /**
+     * Método que crea un String con los contadores de todas las conexiones
+     * @return String con los aciertos, fallos y descartes
+     */
+    public static String estadisticas() {
+        long a=aciertos.get();
+        long f=fallos.get();
+        return String.format("Sentencias[aciertos=%d, fallos=%d, descartadas=%d, tasaAcierto=%.1f%%]",
+                a, f, descartadas.get(), a+f==0 ? 0.0 : 100.0*a/(a+f));
+    }
+
+    /**
+     * Método que cierra una sentencia sin propagar errores
+     * @param ps sentencia a cerrar
+     */
+    private static void cerrarSilencioso(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException ex) {
+            // La sentencia ya no se va a usar, así que el error no importa
+        }
+    }
+
+    /**
+     * Clase que representa una sentencia guardada y si está prestada en este momento
+     */
+    private static class SentenciaGuardada {
+        private final PreparedStatement ps;
+        private boolean enUso;
+
+        SentenciaGuardada(PreparedStatement ps) {
+            this.ps=ps;
+        }
+    }
+
+    /**
+     * Clase que atiende las llamadas a una sentencia prestada. Reenvía todo a la
+     * sentencia guardada salvo close(), que la deja limpia para el siguiente uso.
+     */
+    private class SentenciaPrestada implements InvocationHandler {
+        private SentenciaGuardada guardada;
+
+        SentenciaPrestada(SentenciaGuardada guardada) {
+            this.guardada=guardada;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (guardada!=null) {
+                        SentenciaGuardada g=guardada;
+                        guardada=null;
+                        try {
+                            g.ps.clearParameters();
+                            g.ps.clearBatch();
+                        } catch (SQLException ex) {
+                            // Si no se puede limpiar se cierra y se prepara de nuevo la próxima vez
+                            cerrarSilencioso(g.ps);
+                        }
+                        synchronized (CacheSentencias.this) {
+                            g.enUso=false;
+                        }
+                    }
+                    return null;
+                case "isClosed":
+                    return guardada==null;
+                case "equals":
+                    return proxy==args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "SentenciaPrestada["+(guardada==null ? "cerrada" : guardada.ps)+"]";
+                default:
+                    if (guardada==null) {
+                        throw new SQLException("La sentencia ya se ha cerrado.");
+                    }
+                    try {
+                        return method.invoke(guardada.ps, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+            }
+        }
+    }
+}
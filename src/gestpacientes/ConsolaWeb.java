@@ -0,0 +1,84 @@
+package gestpacientes;
+
+import java.sql.SQLException;
+import org.h2.tools.Server;
+import util.ES;
+
+/**
+ * Clase que gestiona la consola web de H2 para consultar la base de datos desde
+ * el navegador. Se puede iniciar al arrancar la aplicación o más tarde desde el
+ * menú, y solo se inicia una vez.
+ * @author Adrián Romero Ramírez
+ */
+public class ConsolaWeb {
+
+    // Servidor web de la consola, null mientras no se haya iniciado
+    private static Server servidor;
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private ConsolaWeb() {
+    }
+
+    /**
+     * Método que inicia la consola web si todavía no está iniciada y muestra
+     * los datos de acceso
+     * @param navegador true para abrir también el navegador
+     * @return true o false dependiendo si la consola está iniciada
+     */
+    public static synchronized boolean iniciar(boolean navegador) {
+        if (servidor!=null) {
+            ES.msgln("La consola web ya está iniciada: "+servidor.getURL());
+            return true;
+        }
+        String[] wsArgs=navegador
+                ? new String[]{"-baseDir", System.getProperty("user.dir"), "-browser"}
+                : new String[]{"-baseDir", System.getProperty("user.dir")};
+        try {
+            // Se crea un servidor web y se inicia
+            Server sr=Server.createWebServer(wsArgs);
+            sr.start();
+            servidor=sr;
+        } catch (SQLException ex) {
+            System.err.printf("No se pudo iniciar la consola web de la base de datos (%s)\n", ex.getMessage());
+            return false;
+        }
+
+        // Se muestra un mensaje por pantalla
+        ES.msgln("¡¡Atención!!");
+        ES.msgln();
+        ES.msgln("Mientras tu aplicación se esté ejecutando \n"
+                + "puedes acceder a la consola de la base de datos \n"
+                + "a través del navegador web.");
+        ES.msgln();
+        ES.msgln("Página local: " + servidor.getURL());
+        ES.msgln();
+        ES.msgln("Datos de acceso");
+        ES.msgln("---------------");
+        ES.msgln("Controlador: "+Aplicacion.driver);
+        ES.msgln("URL JDBC: "+ServidorBD.url(Aplicacion.dbname));
+        ES.msgln("Usuario: (no indicar nada)");
+        ES.msgln("Password: (no indicar nada)");
+        return true;
+    }
+
+    /**
+     * Método para saber si la consola web está iniciada
+     * @return true o false dependiendo si está iniciada
+     */
+    public static synchronized boolean isIniciada() {
+        return servidor!=null;
+    }
+
+    /**
+     * Método que para la consola web si estaba iniciada
+     */
+    public static synchronized void detener() {
+        if (servidor!=null) {
+            servidor.stop();
+            servidor.shutdown();
+            servidor=null;
+        }
+    }
+}
@@ -0,0 +1,1301 @@
+package gestpacientes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Clase con el diario de cambios de los pacientes: un registro en disco, al que
+ * solo se añade, con cada alta, baja e incremento de hospitalizaciones ya
+ * confirmados, en el orden en que se han confirmado. A diferencia de
+ * RegistroCambios, que solo guarda el último cambio de cada DNI, el diario
+ * guarda la historia completa, y con él se pueden reconstruir o seguir los
+ * cambios desde cualquier punto (la instantánea, el índice de búsqueda, un
+ * volcado o un proceso aparte) sin volver a leer la tabla.
+ *
+ * Los cambios se apuntan después del commit. Para que dos hilos que cambian el
+ * mismo DNI no los apunten en otro orden (por ejemplo la baja antes que el
+ * alta), quien cambia pacientes ejecuta sus sentencias, toma el orden de sus
+ * DNI con ordenar(), confirma, apunta los cambios y lo suelta: el commit y la
+ * entrada en la cola van juntos. Dos cambios del mismo DNI chocan en la misma
+ * fila, así que el segundo no puede confirmar hasta que el primero lo ha hecho,
+ * y como el orden se toma con las sentencias ya ejecutadas, quien lo tiene
+ * nunca espera a un bloqueo de fila. Los DNI se reparten en FRANJAS cerrojos,
+ * así que los cambios de pacientes distintos casi nunca se esperan.
+ *
+ * Un hilo escritor recoge todos los que hay en cola, los escribe de una vez con una escritura por lotes del
+ * FileChannel y fuerza el disco según la durabilidad:
+ *
+ * - sincrona: se fuerza en cada grupo y quien apunta espera a que esté en disco.
+ *   Los hilos que llegan mientras se fuerza el disco van juntos en el grupo
+ *   siguiente, así que un solo fsync sirve para muchos cambios.
+ * - diferida: se fuerza como mucho cada intervaloMs y quien apunta no espera;
+ *   si se cae la máquina se pueden perder los cambios de ese intervalo.
+ * - ninguna: solo se fuerza al cambiar de segmento y al cerrar.
+ *
+ * El diario se divide en segmentos "diario-[primera secuencia].seg" de unos
+ * segmentoMB; se cambia de segmento entre grupos, nunca en medio de uno. Cada
+ * registro lleva su longitud, un CRC32, su número de secuencia, el instante,
+ * el tipo y los datos. Al abrir, el final del último segmento que no pasa el
+ * CRC (una escritura a medias) se recorta. Solo un proceso escribe el diario:
+ * se bloquea el archivo "diario.lock" y si otro proceso ya lo tiene este no
+ * apunta nada, aunque sí puede leerlo y seguirlo.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.diario.activo: si se apuntan los cambios (por defecto false)
+ * - gestpacientes.diario.dir: directorio de los segmentos (por defecto "diario")
+ * - gestpacientes.diario.durabilidad: sincrona, diferida o ninguna (por defecto diferida)
+ * - gestpacientes.diario.intervaloMs: milisegundos máximos sin forzar el disco en modo diferido (por defecto 100)
+ * - gestpacientes.diario.segmentoMB: tamaño de cada segmento (por defecto 64)
+ * @author Adrián Romero Ramírez
+ */
+public class DiarioCambios {
+
+    /**
+     * Cuándo se fuerza el disco después de escribir los cambios
+     */
+    public enum Durabilidad {
+        SINCRONA, DIFERIDA, NINGUNA
+    }
+
+    /**
+     * Tipos de cambio que se apuntan
+     */
+    public enum Tipo {
+        ALTA, BAJA, HOSPITALIZACIONES
+    }
+
+    /**
+     * Interfaz que recibe los registros al reproducir o seguir el diario
+     */
+    public interface Oyente {
+        /**
+         * Método que recibe un registro del diario
+         * @param r registro leído
+         */
+        void cambio(Registro r);
+    }
+
+    private static final boolean ACTIVO=Boolean.parseBoolean(System.getProperty("gestpacientes.diario.activo", "false"));
+    private static final Path DIR=Paths.get(System.getProperty("gestpacientes.diario.dir", "diario"));
+    private static final Durabilidad DURABILIDAD=Durabilidad.valueOf(
+            System.getProperty("gestpacientes.diario.durabilidad", "diferida").trim().toUpperCase(Locale.ROOT));
+    private static final long INTERVALO_NS=TimeUnit.MILLISECONDS.toNanos(Long.getLong("gestpacientes.diario.intervaloMs", 100));
+    private static final long TAMAÑO_SEGMENTO=Long.getLong("gestpacientes.diario.segmentoMB", 64)<<20;
+    // Bytes en cola a partir de los que quien apunta espera al escritor
+    private static final long MAX_PENDIENTE=16<<20;
+    // Milisegundos entre lecturas cuando se sigue el diario de otro proceso
+    private static final long SONDEO_MS=100;
+
+    // Cabecera de cada segmento: "DIAR", versión y primera secuencia
+    private static final int MAGICO=0x44494152;
+    private static final int VERSION=1;
+    private static final int CABECERA=16;
+    // Cada registro empieza por longitud, CRC, secuencia, instante y tipo
+    private static final int CABECERA_REGISTRO=4+4+8+8+1;
+    private static final int MAX_REGISTRO=1<<20;
+    private static final Tipo[] TIPOS=Tipo.values();
+
+    // Cerrojos por DNI que mantienen juntos el commit de un cambio y su entrada en la cola
+    private static final int FRANJAS=64;
+    private static final ReentrantLock[] franjas=new ReentrantLock[FRANJAS];
+    private static final Orden SIN_ORDEN=new Orden(0);
+
+    static {
+        for (int i=0; i<FRANJAS; i++) {
+            franjas[i]=new ReentrantLock();
+        }
+    }
+
+    // La cola, los contadores de lotes y el estado se protegen con este cerrojo
+    private static final Object cerrojo=new Object();
+    private static final ArrayDeque<Lote> cola=new ArrayDeque<>();
+    private static long encolados=0;
+    private static long escritos=0;
+    private static long durables=0;
+    private static long bytesPendientes=0;
+    private static boolean abierto=false;
+    private static boolean cerrando=false;
+    private static boolean fallido=false;
+    private static Thread escritor;
+    private static FileChannel canalBloqueo;
+    private static FileLock bloqueo;
+
+    // Estado del hilo escritor
+    private static FileChannel canal;
+    private static long tamañoActual;
+    private static volatile long ultimaSecuencia=0;
+
+    // Estadísticas
+    private static long registros=0;
+    private static long grupos=0;
+    private static long forzados=0;
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private DiarioCambios() {
+    }
+
+    /**
+     * Método para saber si se apuntan los cambios
+     * @return true o false dependiendo si está activo
+     */
+    public static boolean isActivo() {
+        return ACTIVO;
+    }
+
+    /**
+     * Método que apunta el alta de un paciente
+     * @param p paciente insertado
+     */
+    public static void alta(Paciente p) {
+        if (ACTIVO) {
+            anotar(new Lote().alta(p));
+        }
+    }
+
+    /**
+     * Método que apunta la baja de un paciente
+     * @param dni DNI del paciente borrado
+     */
+    public static void baja(String dni) {
+        if (ACTIVO) {
+            anotar(new Lote().baja(dni));
+        }
+    }
+
+    /**
+     * Método que apunta un incremento de hospitalizaciones
+     * @param dni DNI del paciente
+     * @param incremento hospitalizaciones sumadas
+     */
+    public static void hospitalizaciones(String dni, long incremento) {
+        if (ACTIVO) {
+            anotar(new Lote().hospitalizaciones(dni, incremento));
+        }
+    }
+
+    /**
+     * Método que apunta todos los cambios de un lote seguidos, sin otros en
+     * medio. El lote no se debe volver a usar después. En modo síncrono espera
+     * a que estén en disco.
+     * @param lote cambios confirmados
+     */
+    public static void anotar(Lote lote) {
+        esperarDisco(encolar(lote));
+    }
+
+    /**
+     * Método que bloquea el orden del diario para un DNI: hasta cerrar el objeto
+     * devuelto, ningún otro hilo puede confirmar y apuntar un cambio del mismo
+     * DNI. Se toma después de ejecutar las sentencias y antes del commit, y los
+     * cambios se apuntan con el objeto devuelto antes de cerrarlo, así que el
+     * diario los tiene en el mismo orden en que se han confirmado. Si el diario
+     * no está activo no bloquea nada.
+     * @param dni DNI del paciente que se va a cambiar
+     * @return el orden bloqueado, que hay que cerrar con try-with-resources
+     */
+    public static Orden ordenar(String dni) {
+        if (!ACTIVO) {
+            return SIN_ORDEN;
+        }
+        return new Orden(1L<<franja(dni)).bloquear();
+    }
+
+    /**
+     * Método que bloquea el orden del diario para varios DNI, por ejemplo los de
+     * una transacción por lotes. Las franjas se bloquean siempre en el mismo
+     * orden, así que no se bloquean entre sí dos transacciones.
+     * @param dnis DNI de los pacientes que se van a cambiar
+     * @return el orden bloqueado, que hay que cerrar con try-with-resources
+     */
+    public static Orden ordenar(Collection<String> dnis) {
+        if (!ACTIVO) {
+            return SIN_ORDEN;
+        }
+        long franjas=0;
+        for (String dni : dnis) {
+            franjas|=1L<<franja(dni);
+        }
+        return new Orden(franjas).bloquear();
+    }
+
+    /**
+     * Método que devuelve la franja de cerrojos de un DNI
+     * @param dni DNI del paciente
+     * @return franja entre 0 y FRANJAS-1
+     */
+    private static int franja(String dni) {
+        return dni.hashCode()&(FRANJAS-1);
+    }
+
+    /**
+     * Método que pone un lote en la cola del escritor sin esperar a que esté en disco
+     * @param lote cambios confirmados
+     * @return el número del lote en la cola, o 0 si no se ha apuntado
+     */
+    private static long encolar(Lote lote) {
+        if (!ACTIVO || lote.registros==0) {
+            return 0;
+        }
+        synchronized (cerrojo) {
+            // Si se está cerrando se espera a que termine y se vuelve a abrir
+            boolean interrumpido=false;
+            while (cerrando) {
+                try {
+                    cerrojo.wait();
+                } catch (InterruptedException ex) {
+                    interrumpido=true;
+                }
+            }
+            if (!asegurarAbierto()) {
+                return 0;
+            }
+            // Si el escritor va muy atrasado se le espera para no llenar la memoria
+            while (bytesPendientes>MAX_PENDIENTE && !fallido) {
+                try {
+                    cerrojo.wait();
+                } catch (InterruptedException ex) {
+                    interrumpido=true;
+                }
+            }
+            if (interrumpido) {
+                Thread.currentThread().interrupt();
+            }
+            if (fallido) {
+                return 0;
+            }
+            lote.ticket=++encolados;
+            bytesPendientes+=lote.tamaño;
+            cola.add(lote);
+            cerrojo.notifyAll();
+            return lote.ticket;
+        }
+    }
+
+    /**
+     * Método que en modo síncrono espera a que un lote esté en disco
+     * @param ticket número del lote en la cola, 0 para no esperar
+     */
+    private static void esperarDisco(long ticket) {
+        if (ticket==0 || DURABILIDAD!=Durabilidad.SINCRONA) {
+            return;
+        }
+        synchronized (cerrojo) {
+            boolean interrumpido=false;
+            while (durables<ticket && !fallido) {
+                try {
+                    cerrojo.wait();
+                } catch (InterruptedException ex) {
+                    interrumpido=true;
+                }
+            }
+            if (interrumpido) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Método que devuelve la secuencia del último registro escrito en el diario
+     * @return última secuencia, o 0 si el diario está vacío o no está activo
+     */
+    public static long getUltimaSecuencia() {
+        if (ACTIVO) {
+            synchronized (cerrojo) {
+                asegurarAbierto();
+            }
+        }
+        return ultimaSecuencia;
+    }
+
+    /**
+     * Método que lee todos los registros del diario a partir de una secuencia
+     * @param desde primera secuencia que se quiere recibir
+     * @param oyente recibe los registros en orden
+     * @return la secuencia siguiente a la última leída
+     * @throws IOException Si no se puede leer el diario
+     */
+    public static long reproducir(long desde, Oyente oyente) throws IOException {
+        try (Lector lector=new Lector(desde)) {
+            lector.leer(oyente);
+            return lector.getSiguiente();
+        }
+    }
+
+    /**
+     * Método que sigue el diario desde una secuencia en un hilo aparte: primero
+     * recibe lo que ya hay y después cada cambio nuevo en cuanto se escribe. Los
+     * cambios de este proceso se reciben enseguida; los de otro proceso, en la
+     * siguiente lectura periódica.
+     * @param desde primera secuencia que se quiere recibir
+     * @param oyente recibe los registros en orden desde el hilo del seguimiento
+     * @return el seguimiento, que se para al cerrarlo
+     */
+    public static Seguimiento seguir(long desde, Oyente oyente) {
+        return new Seguimiento(desde, oyente);
+    }
+
+    /**
+     * Método que borra los segmentos cuyos registros son todos anteriores a una
+     * secuencia, por ejemplo la de un volcado ya guardado. El segmento en el que
+     * se escribe no se borra nunca.
+     * @param hasta primera secuencia que se quiere conservar
+     * @return número de segmentos borrados
+     * @throws IOException Si no se puede borrar algún segmento
+     */
+    public static int purgar(long hasta) throws IOException {
+        TreeMap<Long, Path> segmentos=segmentos();
+        int borrados=0;
+        Long siguiente;
+        for (Map.Entry<Long, Path> e : segmentos.entrySet()) {
+            siguiente=segmentos.higherKey(e.getKey());
+            if (siguiente==null || siguiente>hasta) {
+                break;
+            }
+            Files.deleteIfExists(e.getValue());
+            borrados++;
+        }
+        return borrados;
+    }
+
+    /**
+     * Método que escribe los cambios pendientes, fuerza el disco y cierra el
+     * diario. Se llama al cerrar el pool de conexiones; si después se apunta
+     * otro cambio el diario se vuelve a abrir.
+     */
+    public static void cerrar() {
+        Thread hilo;
+        synchronized (cerrojo) {
+            if (!abierto) {
+                return;
+            }
+            cerrando=true;
+            hilo=escritor;
+            cerrojo.notifyAll();
+        }
+        boolean interrumpido=false;
+        while (hilo.isAlive()) {
+            try {
+                hilo.join();
+            } catch (InterruptedException ex) {
+                interrumpido=true;
+            }
+        }
+        synchronized (cerrojo) {
+            try {
+                if (canal!=null) {
+                    canal.close();
+                }
+                bloqueo.release();
+                canalBloqueo.close();
+            } catch (IOException ex) {
+                System.out.println("No se ha podido cerrar el diario de cambios.");
+            }
+            canal=null;
+            bloqueo=null;
+            canalBloqueo=null;
+            escritor=null;
+            abierto=false;
+            cerrando=false;
+            cerrojo.notifyAll();
+        }
+        if (interrumpido) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Método que crea un String con las estadísticas del diario
+     * @return String con las estadísticas
+     */
+    public static String estadisticas() {
+        synchronized (cerrojo) {
+            return String.format("DiarioCambios[activo=%b, durabilidad=%s, ultimaSecuencia=%d, registros=%d, "
+                    + "grupos=%d, forzados=%d, registrosPorForzado=%.2f]",
+                    ACTIVO, DURABILIDAD.name().toLowerCase(Locale.ROOT), ultimaSecuencia, registros, grupos,
+                    forzados, forzados==0 ? 0.0 : (double) registros/forzados);
+        }
+    }
+
+    /**
+     * Método que abre el diario y arranca el escritor si no lo están. Se llama
+     * con el cerrojo tomado.
+     * @return true si se pueden apuntar cambios
+     */
+    private static boolean asegurarAbierto() {
+        if (abierto) {
+            return !fallido;
+        }
+        if (fallido) {
+            return false;
+        }
+        try {
+            Files.createDirectories(DIR);
+            canalBloqueo=FileChannel.open(DIR.resolve("diario.lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                bloqueo=canalBloqueo.tryLock();
+            } catch (OverlappingFileLockException ex) {
+                // Lo tiene otra clase cargada en esta misma máquina virtual
+                bloqueo=null;
+            }
+            if (bloqueo==null) {
+                canalBloqueo.close();
+                canalBloqueo=null;
+                System.out.println("El diario de cambios lo escribe otro proceso; este no apunta sus cambios.");
+                fallido=true;
+                return false;
+            }
+            recuperar();
+        } catch (IOException ex) {
+            System.out.println("No se ha podido abrir el diario de cambios; no se apuntan los cambios.");
+            fallido=true;
+            return false;
+        }
+        abierto=true;
+        escritor=new Thread(DiarioCambios::escribir, "diario-cambios");
+        escritor.setDaemon(true);
+        escritor.start();
+        return true;
+    }
+
+    /**
+     * Método que busca el final del último segmento y recorta lo que haya
+     * después del último registro completo
+     * @throws IOException Si no se pueden leer los segmentos
+     */
+    private static void recuperar() throws IOException {
+        TreeMap<Long, Path> segmentos=segmentos();
+        while (!segmentos.isEmpty()) {
+            Map.Entry<Long, Path> ultimo=segmentos.pollLastEntry();
+            FileChannel c=FileChannel.open(ultimo.getValue(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!cabeceraValida(c, ultimo.getKey())) {
+                // Se cayó justo al crear el segmento, antes de escribir nada en él
+                c.close();
+                Files.delete(ultimo.getValue());
+                continue;
+            }
+            // Se lee el segmento sin decodificar los registros para saber dónde acaba
+            try (Lector lector=new Lector(Long.MAX_VALUE)) {
+                lector.leer(r -> {
+                });
+                ultimaSecuencia=lector.ultimaVista>=0 ? lector.ultimaVista : ultimo.getKey()-1;
+                if (lector.posicion<c.size()) {
+                    c.truncate(lector.posicion);
+                }
+                c.position(lector.posicion);
+                tamañoActual=lector.posicion;
+            }
+            canal=c;
+            return;
+        }
+        ultimaSecuencia=0;
+        canal=null;
+    }
+
+    /**
+     * Método del hilo escritor: recoge los lotes en cola, los escribe juntos y
+     * fuerza el disco según la durabilidad
+     */
+    private static void escribir() {
+        List<Lote> grupo=new ArrayList<>();
+        long ultimoForzado=System.nanoTime();
+        boolean sinForzar=false;
+        try {
+            while (true) {
+                boolean fin;
+                synchronized (cerrojo) {
+                    while (cola.isEmpty() && !cerrando) {
+                        if (sinForzar && DURABILIDAD==Durabilidad.DIFERIDA) {
+                            long espera=INTERVALO_NS-(System.nanoTime()-ultimoForzado);
+                            if (espera<=0) {
+                                break;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(cerrojo, espera);
+                        } else {
+                            cerrojo.wait();
+                        }
+                    }
+                    grupo.addAll(cola);
+                    cola.clear();
+                    fin=cerrando && grupo.isEmpty();
+                }
+                long bytes=0;
+                if (!grupo.isEmpty()) {
+                    bytes=escribirGrupo(grupo);
+                    sinForzar=true;
+                }
+                if (sinForzar && (fin || DURABILIDAD==Durabilidad.SINCRONA
+                        || (DURABILIDAD==Durabilidad.DIFERIDA && System.nanoTime()-ultimoForzado>=INTERVALO_NS))) {
+                    canal.force(false);
+                    ultimoForzado=System.nanoTime();
+                    sinForzar=false;
+                    synchronized (cerrojo) {
+                        forzados++;
+                    }
+                }
+                synchronized (cerrojo) {
+                    if (!grupo.isEmpty()) {
+                        escritos=grupo.get(grupo.size()-1).ticket;
+                        bytesPendientes-=bytes;
+                    }
+                    if (!sinForzar) {
+                        durables=escritos;
+                    }
+                    cerrojo.notifyAll();
+                }
+                grupo.clear();
+                if (fin) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            System.out.println("No se ha podido escribir el diario de cambios; se dejan de apuntar los cambios.");
+            synchronized (cerrojo) {
+                fallido=true;
+                cola.clear();
+                bytesPendientes=0;
+                cerrojo.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Método que numera los registros de un grupo de lotes, calcula sus CRC y
+     * los escribe con una sola escritura por lotes, cambiando antes de segmento
+     * si el grupo no cabe en el actual
+     * @param grupo lotes en el orden en que se han apuntado
+     * @return bytes escritos
+     * @throws IOException Si no se puede escribir
+     */
+    private static long escribirGrupo(List<Lote> grupo) throws IOException {
+        long total=0;
+        for (Lote l : grupo) {
+            total+=l.tamaño;
+        }
+        long seq=ultimaSecuencia;
+        if (canal==null || (tamañoActual>CABECERA && tamañoActual+total>TAMAÑO_SEGMENTO)) {
+            nuevoSegmento(seq+1);
+        }
+        ByteBuffer[] buffers=new ByteBuffer[grupo.size()];
+        CRC32 crc=new CRC32();
+        int n=0;
+        for (int i=0; i<grupo.size(); i++) {
+            Lote l=grupo.get(i);
+            ByteBuffer b=ByteBuffer.wrap(l.datos, 0, l.tamaño);
+            for (int pos=0; pos<l.tamaño; pos+=4+b.getInt(pos)) {
+                b.putLong(pos+8, ++seq);
+                crc.reset();
+                crc.update(l.datos, pos+8, b.getInt(pos)-4);
+                b.putInt(pos+4, (int) crc.getValue());
+                n++;
+            }
+            buffers[i]=b;
+        }
+        long hechos=0;
+        while (hechos<total) {
+            hechos+=canal.write(buffers);
+        }
+        tamañoActual+=total;
+        ultimaSecuencia=seq;
+        synchronized (cerrojo) {
+            registros+=n;
+            grupos++;
+        }
+        return total;
+    }
+
+    /**
+     * Método que fuerza y cierra el segmento actual y crea el siguiente
+     * @param primera secuencia del primer registro del segmento nuevo
+     * @throws IOException Si no se puede crear
+     */
+    private static void nuevoSegmento(long primera) throws IOException {
+        if (canal!=null) {
+            canal.force(false);
+            canal.close();
+        }
+        canal=FileChannel.open(DIR.resolve(nombre(primera)), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer cabecera=ByteBuffer.allocate(CABECERA);
+        cabecera.putInt(MAGICO).putInt(VERSION).putLong(primera).flip();
+        while (cabecera.hasRemaining()) {
+            canal.write(cabecera);
+        }
+        tamañoActual=CABECERA;
+    }
+
+    /**
+     * Método que comprueba la cabecera de un segmento
+     * @param c canal del segmento
+     * @param primera primera secuencia que indica su nombre
+     * @return true si la cabecera está completa y es la esperada
+     * @throws IOException Si no se puede leer
+     */
+    private static boolean cabeceraValida(FileChannel c, long primera) throws IOException {
+        ByteBuffer cabecera=ByteBuffer.allocate(CABECERA);
+        while (cabecera.hasRemaining() && c.read(cabecera, cabecera.position())>0) {
+            // Se sigue leyendo hasta completar la cabecera o llegar al final
+        }
+        return !cabecera.hasRemaining() && cabecera.getInt(0)==MAGICO && cabecera.getInt(4)==VERSION
+                && cabecera.getLong(8)==primera;
+    }
+
+    /**
+     * Método que devuelve el nombre del segmento que empieza en una secuencia
+     * @param primera primera secuencia del segmento
+     * @return nombre del archivo
+     */
+    private static String nombre(long primera) {
+        return String.format("diario-%020d.seg", primera);
+    }
+
+    /**
+     * Método que lista los segmentos del diario por su primera secuencia
+     * @return mapa ordenado de primera secuencia a archivo
+     * @throws IOException Si no se puede leer el directorio
+     */
+    private static TreeMap<Long, Path> segmentos() throws IOException {
+        TreeMap<Long, Path> segmentos=new TreeMap<>();
+        if (!Files.isDirectory(DIR)) {
+            return segmentos;
+        }
+        try (DirectoryStream<Path> ds=Files.newDirectoryStream(DIR, "diario-*.seg")) {
+            for (Path p : ds) {
+                String n=p.getFileName().toString();
+                try {
+                    segmentos.put(Long.parseLong(n.substring(7, n.length()-4)), p);
+                } catch (NumberFormatException ex) {
+                    // No es un segmento del diario
+                }
+            }
+        }
+        return segmentos;
+    }
+
+    /**
+     * Orden del diario bloqueado para unos DNI, que se obtiene con ordenar().
+     * Los cambios apuntados con él entran en la cola antes de soltar los
+     * cerrojos; al cerrarlo se sueltan y, en modo síncrono, se espera a que los
+     * cambios estén en disco, ya sin bloquear a nadie.
+     */
+    public static final class Orden implements AutoCloseable {
+
+        // Una franja por bit
+        private final long bloqueadas;
+        // Último lote apuntado con este orden
+        private long ticket;
+
+        /**
+         * Constructor con parametros de la clase
+         * @param bloqueadas franjas que se bloquean, una por bit
+         */
+        private Orden(long bloqueadas) {
+            this.bloqueadas=bloqueadas;
+        }
+
+        /**
+         * Método que bloquea las franjas de menor a mayor
+         * @return este orden
+         */
+        private Orden bloquear() {
+            for (int i=0; i<FRANJAS; i++) {
+                if ((bloqueadas&(1L<<i))!=0) {
+                    franjas[i].lock();
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Método que apunta el alta de un paciente
+         * @param p paciente insertado
+         */
+        public void alta(Paciente p) {
+            if (ACTIVO) {
+                anotar(new Lote().alta(p));
+            }
+        }
+
+        /**
+         * Método que apunta la baja de un paciente
+         * @param dni DNI del paciente borrado
+         */
+        public void baja(String dni) {
+            if (ACTIVO) {
+                anotar(new Lote().baja(dni));
+            }
+        }
+
+        /**
+         * Método que apunta un incremento de hospitalizaciones
+         * @param dni DNI del paciente
+         * @param incremento hospitalizaciones sumadas
+         */
+        public void hospitalizaciones(String dni, long incremento) {
+            if (ACTIVO) {
+                anotar(new Lote().hospitalizaciones(dni, incremento));
+            }
+        }
+
+        /**
+         * Método que apunta todos los cambios de un lote seguidos, sin otros en
+         * medio. El lote no se debe volver a usar después.
+         * @param lote cambios confirmados
+         */
+        public void anotar(Lote lote) {
+            if (ACTIVO) {
+                ticket=Math.max(ticket, encolar(lote));
+            }
+        }
+
+        /**
+         * Método que suelta los cerrojos y, en modo síncrono, espera a que los
+         * cambios apuntados estén en disco
+         */
+        @Override
+        public void close() {
+            for (int i=FRANJAS-1; i>=0; i--) {
+                if ((bloqueadas&(1L<<i))!=0) {
+                    franjas[i].unlock();
+                }
+            }
+            esperarDisco(ticket);
+        }
+    }
+
+    /**
+     * Cambios que se apuntan juntos en el diario, por ejemplo los de una
+     * transacción. Los registros se codifican al añadirlos; el escritor solo
+     * les pone la secuencia y el CRC.
+     */
+    public static final class Lote {
+
+        private byte[] datos=new byte[128];
+        private int tamaño=0;
+        private int registros=0;
+        private long ticket;
+
+        /**
+         * Método que añade el alta de un paciente
+         * @param p paciente insertado
+         * @return este lote
+         */
+        public Lote alta(Paciente p) {
+            if (ACTIVO) {
+                int inicio=empezar(Tipo.ALTA);
+                texto(p.getDni());
+                texto(p.getNombre());
+                texto(p.getApellidos());
+                entero(p.getFechaNacimiento()==null ? Long.MIN_VALUE : p.getFechaNacimiento().toEpochDay());
+                entero(p.getNhosp());
+                terminar(inicio);
+            }
+            return this;
+        }
+
+        /**
+         * Método que añade la baja de un paciente
+         * @param dni DNI del paciente borrado
+         * @return este lote
+         */
+        public Lote baja(String dni) {
+            if (ACTIVO) {
+                int inicio=empezar(Tipo.BAJA);
+                texto(dni);
+                terminar(inicio);
+            }
+            return this;
+        }
+
+        /**
+         * Método que añade un incremento de hospitalizaciones
+         * @param dni DNI del paciente
+         * @param incremento hospitalizaciones sumadas
+         * @return este lote
+         */
+        public Lote hospitalizaciones(String dni, long incremento) {
+            if (ACTIVO) {
+                int inicio=empezar(Tipo.HOSPITALIZACIONES);
+                texto(dni);
+                entero(incremento);
+                terminar(inicio);
+            }
+            return this;
+        }
+
+        /**
+         * Método para saber cuántos registros tiene el lote
+         * @return número de registros
+         */
+        public int getRegistros() {
+            return registros;
+        }
+
+        /**
+         * Método que reserva la cabecera de un registro
+         * @param tipo tipo del registro
+         * @return posición donde empieza el registro
+         */
+        private int empezar(Tipo tipo) {
+            int inicio=tamaño;
+            reservar(CABECERA_REGISTRO);
+            tamaño+=16;
+            entero(System.currentTimeMillis());
+            datos[tamaño++]=(byte) tipo.ordinal();
+            return inicio;
+        }
+
+        /**
+         * Método que pone la longitud al registro que empieza en una posición
+         * @param inicio posición donde empieza el registro
+         */
+        private void terminar(int inicio) {
+            int longitud=tamaño-inicio-4;
+            datos[inicio]=(byte) (longitud>>>24);
+            datos[inicio+1]=(byte) (longitud>>>16);
+            datos[inicio+2]=(byte) (longitud>>>8);
+            datos[inicio+3]=(byte) longitud;
+            registros++;
+        }
+
+        /**
+         * Método que añade un texto en UTF-8 precedido de su longitud
+         * @param s texto
+         */
+        private void texto(String s) {
+            byte[] b=s.getBytes(StandardCharsets.UTF_8);
+            reservar(2+b.length);
+            datos[tamaño++]=(byte) (b.length>>>8);
+            datos[tamaño++]=(byte) b.length;
+            System.arraycopy(b, 0, datos, tamaño, b.length);
+            tamaño+=b.length;
+        }
+
+        /**
+         * Método que añade un entero de 8 bytes
+         * @param v valor
+         */
+        private void entero(long v) {
+            reservar(8);
+            for (int desplazamiento=56; desplazamiento>=0; desplazamiento-=8) {
+                datos[tamaño++]=(byte) (v>>>desplazamiento);
+            }
+        }
+
+        /**
+         * Método que hace sitio para más bytes
+         * @param bytes bytes que se van a añadir
+         */
+        private void reservar(int bytes) {
+            if (tamaño+bytes>datos.length) {
+                datos=Arrays.copyOf(datos, Math.max(datos.length*2, tamaño+bytes));
+            }
+        }
+    }
+
+    /**
+     * Registro leído del diario
+     */
+    public static final class Registro {
+
+        private final long secuencia;
+        private final long instante;
+        private final Tipo tipo;
+        private final String dni;
+        private final Paciente paciente;
+        private final long incremento;
+
+        /**
+         * Constructor con parametros
+         * @param secuencia número de secuencia del registro
+         * @param instante milisegundos desde el 1/1/1970 en que se apuntó
+         * @param tipo tipo de cambio
+         * @param dni DNI del paciente
+         * @param paciente paciente insertado en las altas, o null
+         * @param incremento hospitalizaciones sumadas, o 0
+         */
+        private Registro(long secuencia, long instante, Tipo tipo, String dni, Paciente paciente, long incremento) {
+            this.secuencia=secuencia;
+            this.instante=instante;
+            this.tipo=tipo;
+            this.dni=dni;
+            this.paciente=paciente;
+            this.incremento=incremento;
+        }
+
+        /**
+         * Método que devuelve el número de secuencia del registro
+         * @return secuencia
+         */
+        public long getSecuencia() {
+            return secuencia;
+        }
+
+        /**
+         * Método que devuelve el instante en que se apuntó el cambio
+         * @return milisegundos desde el 1/1/1970
+         */
+        public long getInstante() {
+            return instante;
+        }
+
+        /**
+         * Método que devuelve el tipo de cambio
+         * @return tipo
+         */
+        public Tipo getTipo() {
+            return tipo;
+        }
+
+        /**
+         * Método que devuelve el DNI del paciente
+         * @return DNI
+         */
+        public String getDni() {
+            return dni;
+        }
+
+        /**
+         * Método que devuelve el paciente de un alta
+         * @return paciente insertado, o null si no es un alta
+         */
+        public Paciente getPaciente() {
+            return paciente;
+        }
+
+        /**
+         * Método que devuelve las hospitalizaciones sumadas
+         * @return incremento, o 0 si no es un incremento
+         */
+        public long getIncremento() {
+            return incremento;
+        }
+
+        @Override
+        public String toString() {
+            return "Registro{" + "secuencia=" + secuencia + ", instante=" + instante + ", tipo=" + tipo
+                    + ", dni=" + dni + ", paciente=" + paciente + ", incremento=" + incremento + '}';
+        }
+    }
+
+    /**
+     * Lector secuencial del diario a partir de una secuencia. Lee los
+     * segmentos con un buffer propio y recuerda dónde se ha quedado, así que
+     * cada llamada a leer devuelve solo lo escrito desde la anterior.
+     */
+    public static final class Lector implements AutoCloseable {
+
+        private ByteBuffer buffer=ByteBuffer.allocate(1<<16);
+        private long siguiente;
+        private long ultimaVista=-1;
+        private long primeraSegmento=-1;
+        private FileChannel canalLectura;
+        private long posicion;
+        private long inicioBuffer;
+
+        /**
+         * Constructor con parametros
+         * @param desde primera secuencia que se quiere recibir; si ya se ha
+         * purgado se empieza por el primer segmento que quede
+         */
+        public Lector(long desde) {
+            this.siguiente=Math.max(1, desde);
+            buffer.limit(0);
+        }
+
+        /**
+         * Método que devuelve la secuencia del siguiente registro que se leerá
+         * @return secuencia siguiente
+         */
+        public long getSiguiente() {
+            return siguiente;
+        }
+
+        /**
+         * Método que lee todos los registros escritos desde la última lectura
+         * @param oyente recibe los registros en orden
+         * @return número de registros leídos
+         * @throws IOException Si no se puede leer el diario
+         */
+        public int leer(Oyente oyente) throws IOException {
+            int n=0;
+            while (true) {
+                if (canalLectura==null && !abrir()) {
+                    return n;
+                }
+                if (!siguienteRegistro(oyente)) {
+                    // Si ya existe el segmento siguiente este está completo, pero lo leído
+                    // puede ser de antes de terminarlo: se vuelve a leer antes de cambiar
+                    Long sig=segmentos().higherKey(primeraSegmento);
+                    if (sig==null) {
+                        return n;
+                    }
+                    inicioBuffer=posicion;
+                    buffer.clear().limit(0);
+                    if (!siguienteRegistro(oyente)) {
+                        if (!cambiar(sig)) {
+                            return n;
+                        }
+                        continue;
+                    }
+                }
+                if (ultimaVista>=siguiente) {
+                    siguiente=ultimaVista+1;
+                    n++;
+                }
+            }
+        }
+
+        /**
+         * Método que cierra el segmento que se está leyendo
+         * @throws IOException Si no se puede cerrar
+         */
+        @Override
+        public void close() throws IOException {
+            if (canalLectura!=null) {
+                canalLectura.close();
+                canalLectura=null;
+            }
+        }
+
+        /**
+         * Método que abre el segmento que contiene la secuencia siguiente, o el
+         * primero que quede si ya se ha purgado
+         * @return true si hay un segmento que leer
+         * @throws IOException Si no se puede abrir
+         */
+        private boolean abrir() throws IOException {
+            TreeMap<Long, Path> segmentos=segmentos();
+            Long primera=segmentos.floorKey(siguiente);
+            if (primera==null) {
+                if (segmentos.isEmpty()) {
+                    return false;
+                }
+                primera=segmentos.firstKey();
+            }
+            return cambiar(primera);
+        }
+
+        /**
+         * Método que pasa a leer otro segmento si su cabecera es válida
+         * @param primera primera secuencia del segmento
+         * @return true si se ha cambiado
+         * @throws IOException Si no se puede abrir
+         */
+        private boolean cambiar(long primera) throws IOException {
+            FileChannel c;
+            try {
+                c=FileChannel.open(DIR.resolve(nombre(primera)), StandardOpenOption.READ);
+            } catch (NoSuchFileException ex) {
+                return false;
+            }
+            if (!cabeceraValida(c, primera)) {
+                c.close();
+                return false;
+            }
+            close();
+            canalLectura=c;
+            primeraSegmento=primera;
+            posicion=CABECERA;
+            inicioBuffer=CABECERA;
+            buffer.clear().limit(0);
+            return true;
+        }
+
+        /**
+         * Método que lee el registro siguiente del segmento. Los registros
+         * anteriores a la secuencia pedida se saltan sin decodificarlos.
+         * @param oyente recibe el registro si no se salta
+         * @return false si no hay un registro completo y válido
+         * @throws IOException Si no se puede leer
+         */
+        private boolean siguienteRegistro(Oyente oyente) throws IOException {
+            if (!asegurar(8)) {
+                return false;
+            }
+            int rel=(int) (posicion-inicioBuffer);
+            int longitud=buffer.getInt(rel);
+            if (longitud<CABECERA_REGISTRO-4 || longitud>MAX_REGISTRO) {
+                return false;
+            }
+            if (!asegurar(4+longitud)) {
+                return false;
+            }
+            rel=(int) (posicion-inicioBuffer);
+            CRC32 crc=new CRC32();
+            crc.update(buffer.array(), rel+8, longitud-4);
+            if ((int) crc.getValue()!=buffer.getInt(rel+4)) {
+                return false;
+            }
+            long seq=buffer.getLong(rel+8);
+            posicion+=4+longitud;
+            ultimaVista=seq;
+            if (seq>=siguiente) {
+                oyente.cambio(decodificar(rel, seq));
+            }
+            return true;
+        }
+
+        /**
+         * Método que decodifica el registro que empieza en una posición del buffer
+         * @param rel posición en el buffer
+         * @param seq secuencia del registro
+         * @return el registro
+         */
+        private Registro decodificar(int rel, long seq) {
+            ByteBuffer b=buffer.duplicate();
+            b.position(rel+16);
+            long instante=b.getLong();
+            Tipo tipo=TIPOS[b.get()];
+            String dni=texto(b);
+            Paciente p=null;
+            long incremento=0;
+            if (tipo==Tipo.ALTA) {
+                String nombre=texto(b);
+                String apellidos=texto(b);
+                long dias=b.getLong();
+                p=new Paciente(dni, nombre, apellidos, dias==Long.MIN_VALUE ? null : LocalDate.ofEpochDay(dias));
+                p.setNhosp((int) b.getLong());
+            } else if (tipo==Tipo.HOSPITALIZACIONES) {
+                incremento=b.getLong();
+            }
+            return new Registro(seq, instante, tipo, dni, p, incremento);
+        }
+
+        /**
+         * Método que lee un texto en UTF-8 precedido de su longitud
+         * @param b buffer colocado en el texto
+         * @return texto
+         */
+        private String texto(ByteBuffer b) {
+            int longitud=b.getShort()&0xFFFF;
+            String s=new String(b.array(), b.position(), longitud, StandardCharsets.UTF_8);
+            b.position(b.position()+longitud);
+            return s;
+        }
+
+        /**
+         * Método que se asegura de tener en el buffer los bytes siguientes a la posición
+         * @param bytes bytes necesarios
+         * @return false si el segmento no tiene tantos bytes
+         * @throws IOException Si no se puede leer
+         */
+        private boolean asegurar(int bytes) throws IOException {
+            if (posicion+bytes<=inicioBuffer+buffer.limit()) {
+                return true;
+            }
+            if (bytes>buffer.capacity()) {
+                buffer=ByteBuffer.allocate(bytes);
+            }
+            // Se vuelve a llenar el buffer desde la posición actual
+            buffer.clear();
+            inicioBuffer=posicion;
+            while (buffer.hasRemaining() && canalLectura.read(buffer, inicioBuffer+buffer.position())>0) {
+                // Se sigue leyendo hasta llenar el buffer o llegar al final
+            }
+            buffer.flip();
+            return buffer.limit()>=bytes;
+        }
+    }
+
+    /**
+     * Seguimiento del diario en un hilo aparte, creado con seguir
+     */
+    public static final class Seguimiento implements AutoCloseable {
+
+        private final Lector lector;
+        private final Thread hilo;
+        private volatile boolean parado=false;
+
+        /**
+         * Constructor con parametros, arranca el hilo del seguimiento
+         * @param desde primera secuencia que se quiere recibir
+         * @param oyente recibe los registros
+         */
+        private Seguimiento(long desde, Oyente oyente) {
+            lector=new Lector(desde);
+            hilo=new Thread(() -> seguir(oyente), "seguimiento-diario");
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+
+        /**
+         * Método que devuelve la secuencia del siguiente registro que se recibirá
+         * @return secuencia siguiente
+         */
+        public long getSiguiente() {
+            return lector.getSiguiente();
+        }
+
+        /**
+         * Método que para el seguimiento y espera a que termine su hilo
+         */
+        @Override
+        public void close() {
+            parado=true;
+            synchronized (cerrojo) {
+                cerrojo.notifyAll();
+            }
+            boolean interrumpido=false;
+            while (hilo.isAlive()) {
+                try {
+                    hilo.join();
+                } catch (InterruptedException ex) {
+                    interrumpido=true;
+                }
+            }
+            if (interrumpido) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Método del hilo del seguimiento: lee lo nuevo y espera a que el
+         * escritor de este proceso avise o a la siguiente lectura periódica
+         * @param oyente recibe los registros
+         */
+        private void seguir(Oyente oyente) {
+            try (Lector l=lector) {
+                while (!parado) {
+                    long visto;
+                    synchronized (cerrojo) {
+                        visto=escritos;
+                    }
+                    l.leer(oyente);
+                    synchronized (cerrojo) {
+                        if (!parado && escritos==visto) {
+                            cerrojo.wait(SONDEO_MS);
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                System.out.println("Se ha parado el seguimiento del diario de cambios: "+ex.getMessage());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
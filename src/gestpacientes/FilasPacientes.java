@@ -0,0 +1,111 @@
+package gestpacientes;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Locale;
+
+/**
+ * Clase que convierte las filas de la tabla PACIENTES en objetos Paciente y al
+ * revés, con los tipos de cada columna: la fecha de nacimiento se lee y se
+ * guarda como LocalDate y nhosp como int, sin pasar por texto.
+ *
+ * Las posiciones de las columnas se buscan por su nombre una vez por consulta,
+ * al crear el objeto con el ResultSet, y después cada fila se lee por posición.
+ * Así la misma clase sirve para todas las consultas de pacientes aunque no
+ * tengan las mismas columnas ni en el mismo orden.
+ * @author Adrián Romero Ramírez
+ */
+final class FilasPacientes {
+
+    // Posición de cada columna en el resultado, 0 si no está
+    private final int dni;
+    private final int nombre;
+    private final int apellidos;
+    private final int fechaNacimiento;
+    private final int nhosp;
+
+    /**
+     * Constructor que busca las columnas de los pacientes en una consulta
+     * @param rs resultado de la consulta, antes de leer ninguna fila
+     * @throws SQLException Si falta alguna columna o no se pueden leer sus nombres
+     */
+    FilasPacientes(ResultSet rs) throws SQLException {
+        int[] posiciones=new int[5];
+        ResultSetMetaData md=rs.getMetaData();
+        for (int i=1; i<=md.getColumnCount(); i++) {
+            switch (md.getColumnLabel(i).toLowerCase(Locale.ROOT)) {
+                case "dni":
+                    posiciones[0]=i;
+                    break;
+                case "nombre":
+                    posiciones[1]=i;
+                    break;
+                case "apellidos":
+                    posiciones[2]=i;
+                    break;
+                case "fecha_nacimiento":
+                    posiciones[3]=i;
+                    break;
+                case "nhosp":
+                    posiciones[4]=i;
+                    break;
+                default:
+                    break;
+            }
+        }
+        // nhosp es la única columna que pueden no tener las consultas
+        for (int i=0; i<4; i++) {
+            if (posiciones[i]==0) {
+                throw new SQLException("La consulta no tiene todas las columnas de un paciente.");
+            }
+        }
+        dni=posiciones[0];
+        nombre=posiciones[1];
+        apellidos=posiciones[2];
+        fechaNacimiento=posiciones[3];
+        nhosp=posiciones[4];
+    }
+
+    /**
+     * Método que crea el paciente de la fila actual
+     * @param rs resultado de la consulta, en la fila que se quiere leer
+     * @return el paciente, con nhosp a 0 si la consulta no lo tiene
+     * @throws SQLException Si falla la lectura
+     */
+    Paciente leer(ResultSet rs) throws SQLException {
+        Paciente p=new Paciente(rs.getString(dni), rs.getString(nombre), rs.getString(apellidos),
+                fecha(rs, fechaNacimiento));
+        if (nhosp!=0) {
+            p.setNhosp(rs.getInt(nhosp));
+        }
+        return p;
+    }
+
+    /**
+     * Método que lee una fecha de una columna DATE
+     * @param rs resultado de la consulta
+     * @param columna posición de la columna
+     * @return la fecha, o null si es NULL
+     * @throws SQLException Si falla la lectura
+     */
+    static LocalDate fecha(ResultSet rs, int columna) throws SQLException {
+        return rs.getObject(columna, LocalDate.class);
+    }
+
+    /**
+     * Método que pone los parámetros de PacientesDAO.SQL_INSERT con los datos de
+     * un paciente
+     * @param ps sentencia de inserción
+     * @param p paciente
+     * @throws SQLException Si falla algún parámetro
+     */
+    static void insertar(PreparedStatement ps, Paciente p) throws SQLException {
+        ps.setString(1, p.getDni());
+        ps.setString(2, p.getNombre());
+        ps.setString(3, p.getApellidos());
+        ps.setObject(4, p.getFechaNacimiento());
+    }
+}
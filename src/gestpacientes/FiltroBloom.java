@@ -0,0 +1,143 @@
+package gestpacientes;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Clase que representa un filtro de Bloom sobre cadenas. Responde si una cadena
+ * puede estar en el conjunto o si seguro que no está; nunca da falsos negativos.
+ * Se puede usar desde varios hilos a la vez.
+ *
+ * Contiene los siguientes atributos:
+ *
+ * - bits: array de bits del filtro agrupados en longs
+ * - numBits: número de bits del filtro
+ * - numHashes: número de posiciones que se marcan por cada elemento
+ * - elementos: número de elementos añadidos
+ * @author Adrián Romero Ramírez
+ */
+public class FiltroBloom {
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final AtomicLong elementos=new AtomicLong();
+
+    /**
+     * Constructor con parametros que calcula el tamaño óptimo del filtro
+     * @param capacidad Número de elementos que se espera guardar
+     * @param tasaFalsosPositivos Probabilidad de falso positivo deseada con esa capacidad (entre 0 y 1)
+     * @throws IllegalArgumentException Si los parámetros no son válidos
+     */
+    public FiltroBloom(long capacidad, double tasaFalsosPositivos) throws IllegalArgumentException {
+        if (capacidad<1 || tasaFalsosPositivos<=0 || tasaFalsosPositivos>=1) {
+            throw new IllegalArgumentException("Parámetros del filtro no válidos.");
+        }
+        // m = -n·ln(p) / ln(2)^2 y k = m/n·ln(2)
+        long m=(long) Math.ceil(-capacidad*Math.log(tasaFalsosPositivos)/(Math.log(2)*Math.log(2)));
+        m=Math.max(64, (m+63)/64*64);
+        this.numBits=m;
+        this.numHashes=Math.max(1, (int) Math.round((double) m/capacidad*Math.log(2)));
+        this.bits=new AtomicLongArray((int) (m/64));
+    }
+
+    /**
+     * Método que añade una cadena al filtro
+     * @param s cadena que se quiere añadir
+     */
+    public void añadir(CharSequence s) {
+        long h=hash(s);
+        int h1=(int) h;
+        int h2=(int) (h>>>32);
+        for (int i=0; i<numHashes; i++) {
+            long pos=indice(h1+i*h2);
+            int palabra=(int) (pos>>>6);
+            long mascara=1L<<pos;
+            long actual;
+            // Se marca el bit sin bloquear a otros hilos
+            while (((actual=bits.get(palabra))&mascara)==0 && !bits.compareAndSet(palabra, actual, actual|mascara)) {
+                // Se reintenta si otro hilo ha cambiado la misma palabra
+            }
+        }
+        elementos.incrementAndGet();
+    }
+
+    /**
+     * Método que comprueba si una cadena puede estar en el filtro
+     * @param s cadena que se quiere comprobar
+     * @return false si seguro que no está, true si puede estar
+     */
+    public boolean puedeContener(CharSequence s) {
+        long h=hash(s);
+        int h1=(int) h;
+        int h2=(int) (h>>>32);
+        for (int i=0; i<numHashes; i++) {
+            long pos=indice(h1+i*h2);
+            if ((bits.get((int) (pos>>>6))&(1L<<pos))==0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Método para obtener la probabilidad de falso positivo con los elementos actuales
+     * @return probabilidad estimada entre 0 y 1
+     */
+    public double getTasaEstimada() {
+        return Math.pow(1-Math.exp(-(double) numHashes*elementos.get()/numBits), numHashes);
+    }
+
+    /**
+     * Método para obtener la memoria que ocupan los bits del filtro
+     * @return tamaño en bytes
+     */
+    public long getBytes() {
+        return numBits/8;
+    }
+
+    /**
+     * Método para obtener el número de posiciones que se marcan por elemento
+     * @return número de funciones hash
+     */
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    /**
+     * Método para obtener el número de elementos añadidos
+     * @return elementos añadidos
+     */
+    public long getElementos() {
+        return elementos.get();
+    }
+
+    /**
+     * Método que convierte un hash en una posición del array de bits
+     * @param h hash combinado
+     * @return posición entre 0 y numBits-1
+     */
+    private long indice(int h) {
+        return (h&0xFFFFFFFFL)%numBits;
+    }
+
+    /**
+     * Método que calcula un hash de 64 bits de una cadena sin crear objetos
+     * @param s cadena de la que se calcula el hash
+     * @return hash de 64 bits
+     */
+    private static long hash(CharSequence s) {
+        long h=0xcbf29ce484222325L;
+        for (int i=0; i<s.length(); i++) {
+            h^=s.charAt(i);
+            h*=0x100000001b3L;
+        }
+        // Mezcla final para repartir bien los bits altos y bajos
+        h^=h>>>33;
+        h*=0xff51afd7ed558ccdL;
+        h^=h>>>33;
+        h*=0xc4ceb9fe1a85ec53L;
+        h^=h>>>33;
+        return h;
+    }
+}
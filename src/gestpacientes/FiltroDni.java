@@ -0,0 +1,202 @@
+package gestpacientes;
+
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clase con métodos para saber si un DNI puede estar en la base de datos sin
+ * recorrer la tabla. Guarda en memoria un filtro de Bloom con todos los DNI que
+ * se construye al arrancar y se mantiene con las inserciones y borrados.
+ *
+ * Cuando pierde precisión, por las inserciones o los borrados, se reconstruye
+ * en un hilo aparte mientras el filtro anterior sigue respondiendo. Solo hay
+ * una reconstrucción pendiente a la vez, así que quien inserta o borra nunca
+ * espera a que se recorra la tabla.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.filtroDni.activo: si se usa el filtro (por defecto true)
+ * - gestpacientes.filtroDni.capacidad: número mínimo de DNI previstos (por defecto 100000)
+ * - gestpacientes.filtroDni.fpp: probabilidad de falso positivo deseada (por defecto 0.01)
+ * @author Adrián Romero Ramírez
+ */
+public class FiltroDni {
+
+    private static final boolean ACTIVO=Boolean.parseBoolean(System.getProperty("gestpacientes.filtroDni.activo", "true"));
+    private static final long CAPACIDAD=Long.getLong("gestpacientes.filtroDni.capacidad", 100000);
+    private static final double FPP=Double.parseDouble(System.getProperty("gestpacientes.filtroDni.fpp", "0.01"));
+
+    // Filtro en uso, null mientras no se haya construido
+    private static volatile FiltroBloom filtro;
+    // Filtro que se está construyendo, también recibe las inserciones mientras tanto
+    private static volatile FiltroBloom enConstruccion;
+    // Pacientes borrados desde la última construcción, siguen marcados en el filtro
+    private static final AtomicLong borrados=new AtomicLong();
+    // Si hay una reconstrucción pedida que todavía no ha terminado
+    private static final AtomicBoolean reconstruyendo=new AtomicBoolean();
+    // Hilo que reconstruye el filtro cuando pierde precisión
+    private static final ExecutorService reconstructor=Executors.newSingleThreadExecutor(r -> {
+        Thread t=new Thread(r, "filtroDni");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Estadísticas de uso
+    private static final AtomicLong consultas=new AtomicLong();
+    private static final AtomicLong descartados=new AtomicLong();
+    private static final AtomicLong falsosPositivos=new AtomicLong();
+    private static final AtomicLong reconstrucciones=new AtomicLong();
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private FiltroDni() {
+    }
+
+    /**
+     * Método que construye el filtro con todos los DNI de la base de datos. Se
+     * dimensiona para el doble de los pacientes actuales para que aguante el
+     * crecimiento sin perder precisión.
+     * @return true o false dependiendo si se ha podido construir
+     */
+    public static synchronized boolean construir() {
+        if (!ACTIVO) {
+            return false;
+        }
+        boolean ok=false;
+        try {
+            // Se cuentan los pacientes de todas las particiones
+            long total=Particiones.sumar("SELECT COUNT(*) FROM PACIENTES");
+            FiltroBloom nuevo=new FiltroBloom(Math.max(CAPACIDAD, total*2), FPP);
+            // Desde aquí las inserciones se añaden también al filtro nuevo
+            enConstruccion=nuevo;
+            // Si hay un volcado válido los DNI se leen de él en vez de la tabla
+            if (!VolcadoPacientes.cargar((dni, nombre, apellidos, fecha, nhosp) -> nuevo.añadir(dni))) {
+                Particiones.recorrer("SELECT dni FROM PACIENTES", 1000, rs -> nuevo.añadir(rs.getString(1)));
+            }
+            filtro=nuevo;
+            borrados.set(0);
+            reconstrucciones.incrementAndGet();
+            ok=true;
+        } catch (SQLException ex) {
+            System.out.println("No se ha podido construir el filtro de DNI.");
+        } finally {
+            enConstruccion=null;
+        }
+        return ok;
+    }
+
+    /**
+     * Método que comprueba si un DNI puede estar en la base de datos
+     * @param dni DNI que se quiere comprobar
+     * @return false si seguro que no está, true si puede estar o no hay filtro
+     */
+    public static boolean puedeExistir(String dni) {
+        FiltroBloom f=filtro;
+        if (f==null) {
+            return true;
+        }
+        consultas.incrementAndGet();
+        if (!f.puedeContener(dni)) {
+            descartados.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Método que avisa de que el filtro dijo que un DNI podía estar y no estaba
+     */
+    public static void falsoPositivo() {
+        falsosPositivos.incrementAndGet();
+    }
+
+    /**
+     * Método que añade al filtro un DNI recién insertado. Si el filtro supera la
+     * precisión configurada se pide que se reconstruya con más capacidad.
+     * @param dni DNI insertado
+     */
+    public static void añadido(String dni) {
+        // Se lee primero el filtro en construcción: si ya ha terminado, el filtro
+        // en uso es el nuevo y el dni no se pierde
+        FiltroBloom c=enConstruccion;
+        FiltroBloom f=filtro;
+        if (c!=null) {
+            c.añadir(dni);
+        }
+        if (f!=null) {
+            f.añadir(dni);
+            if (f.getTasaEstimada()>FPP*2) {
+                reconstruir();
+            }
+        }
+    }
+
+    /**
+     * Método que avisa de que se ha borrado un DNI. El filtro de Bloom no puede
+     * quitarlo, así que cuando los borrados son la mitad de los elementos se
+     * pide que se reconstruya para recuperar precisión.
+     * @param dni DNI borrado
+     */
+    public static void borrado(String dni) {
+        FiltroBloom f=filtro;
+        if (f!=null && borrados.incrementAndGet()>Math.max(1000, f.getElementos()/2)) {
+            reconstruir();
+        }
+    }
+
+    /**
+     * Método que pide reconstruir el filtro en el hilo de reconstrucción si no
+     * hay ya una reconstrucción pendiente. Antes de recorrer la tabla se vuelve
+     * a comprobar si hace falta, por si otra reconstrucción lo ha arreglado.
+     */
+    private static void reconstruir() {
+        if (!reconstruyendo.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            reconstructor.execute(() -> {
+                try {
+                    if (saturado()) {
+                        construir();
+                    }
+                } finally {
+                    reconstruyendo.set(false);
+                }
+            });
+        } catch (RuntimeException ex) {
+            reconstruyendo.set(false);
+        }
+    }
+
+    /**
+     * Método que comprueba si el filtro ha perdido precisión
+     * @return true si supera el doble de la tasa de falsos positivos configurada
+     * o los borrados son más de la mitad de los elementos
+     */
+    private static boolean saturado() {
+        FiltroBloom f=filtro;
+        return f!=null && (f.getTasaEstimada()>FPP*2 || borrados.get()>Math.max(1000, f.getElementos()/2));
+    }
+
+    /**
+     * Método que crea un String con la configuración y las estadísticas del filtro
+     * @return String con las estadísticas
+     */
+    public static String estadisticas() {
+        FiltroBloom f=filtro;
+        if (f==null) {
+            return "FiltroDni[no construido]";
+        }
+        // La tasa observada se mide sobre los DNI que no estaban en la base de datos
+        long ausentes=falsosPositivos.get()+descartados.get();
+        return String.format("FiltroDni[elementos=%d, memoria=%d bytes, hashes=%d, fppObjetivo=%.4f, fppEstimada=%.4f, "
+                + "fppObservada=%.4f, consultas=%d, descartados=%d, falsosPositivos=%d, borrados=%d, reconstrucciones=%d]",
+                f.getElementos(), f.getBytes(), f.getNumHashes(), FPP, f.getTasaEstimada(),
+                ausentes==0 ? 0.0 : (double) falsosPositivos.get()/ausentes,
+                consultas.get(), descartados.get(), falsosPositivos.get(), borrados.get(), reconstrucciones.get());
+    }
+}
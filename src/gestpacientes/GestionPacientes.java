@@ -2,8 +2,10 @@ package gestpacientes;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.Locale;
 import util.ES;
 
 /**
@@ -12,19 +14,27 @@ import util.ES;
  * 
  * Contiene los siguientes atributos:
  * 
- * - menu: String con el diseño del menú
+ * - menu: diseño del menú, ya preparado para escribirlo de una vez
  * - con: conexión con la base de dato
  * - PacientesDAO: objeto de la clase PacientesDAO
  * @author Adrián Romero Ramírez
  */
 public class GestionPacientes {
     
-    // String con el diseño del menú usando un metodo de la clase Aplication
-    private final String menu=Aplicacion.loadResourceAsString(Aplicacion.APP_MENU);
+    // Salida de los listados y del menú, que escribe en la consola por bloques
+    private static final SalidaConsola salida=new SalidaConsola();
+    // Diseño del menú usando un metodo de la clase Aplication, que solo se lee y se prepara una vez
+    private final byte[] menu=salida.prerenderizar(Aplicacion.recurso(Aplicacion.APP_MENU));
     // Conexión con la base de datos, se inicializa mas tarde
     private Connection con=null;
     // Objeto de la clase PacientesDAO, se inicializa dentro del constructor
     private static PacientesDAO pacientesDAO;
+    // Número de pacientes que se leen de cada vez al listarlos todos
+    private static final int TAMAÑO_PAGINA=1000;
+    // Número de pacientes de cada página del listado
+    private static final int TAMAÑO_PANTALLA=20;
+    // Número de resultados que se muestran de cada vez al buscar
+    private static final int TAMAÑO_PAGINA_BUSQUEDA=20;
     
     /**
      * Constructor con parametro de la clase
@@ -62,7 +72,7 @@ public class GestionPacientes {
      */
     public void mostrarMenu()
     {
-        Arrays.asList(menu.split("(\n|\r\n)")).forEach(ES::msgln);        
+        salida.escribir(menu);
     }
 
     /**
@@ -78,7 +88,7 @@ public class GestionPacientes {
             mostrarMenu();
             // Con un switch hacemos que ejecute una parte del código u otra dependiendo
             // de la opción introducida
-            switch(opcion=ES.preguntaOpcion("Introduzca una de las opciones:", true, false, "1","2","3","4","5","6"))
+            switch(opcion=ES.preguntaOpcion("Introduzca una de las opciones:", true, false, "1","2","3","4","5","6","7","8"))
             {
                 case "1": //Añadir paciente
                     añadirPacientes();
@@ -95,6 +105,12 @@ public class GestionPacientes {
                 case "5": //Incrementar nhosp
                     sumarNhosp();
                     break;
+                case "7": //Abrir la consola web de la base de datos
+                    ConsolaWeb.iniciar(false);
+                    break;
+                case "8": //Buscar pacientes por nombre o apellidos
+                    buscarPacientes();
+                    break;
             }             
             
         }
@@ -114,30 +130,12 @@ public class GestionPacientes {
         // Mientras el dni no este en un formato correcto no sale del bucle
         while (!dniOk){
             dni = ES.leeCadena("Introduce el DNI:"); // Se lee el dni
-
-            // Variables para la validación del dni
-            String letrasValidas = "TRWAGMYFPDXBNJZSQVHLCKET";
-            String patternNif = "^[0-9]{8}[TRWAGMYFPDXBNJZSQVHLCKE]$";
-            String patternNie = "^[XYZ][0-9]{7}[TRWAGMYFPDXBNJZSQVHLCKET]$";
-
-            // Si coincide con un dni o nif valido ntra en el if
-            if(dni.matches(patternNif) || dni.matches(patternNie)){
-                // Si coincide en concreto con un nif, se cambia la primera letra
-                if(dni.matches(patternNie)){
-                    dni = dni.replaceFirst("X", "0");
-                    dni = dni.replaceFirst("Y", "1");
-                    dni = dni.replaceFirst("Z", "2");
-                }
-
-                // Se divide el dni por partes
-                int numero = Integer.parseInt(dni.substring(0, 8));
-                char letra = dni.charAt(8);
-                int resto = numero%23;
-
-                // Se comprueba y se introduce el resultado en la variable
-                dniOk = letra==letrasValidas.charAt(resto);
-            }
-            if(!dniOk){
+            // Se comprueba el formato y la letra de control
+            dniOk = esDniValido(dni);
+            if(dniOk){
+                // Los NIE se guardan con la primera letra cambiada por su cifra
+                dni = normalizarDni(dni);
+            }else{
                 // Si no es correcto se muestra un mensaje
                 System.out.println("--> ERROR: El dni introducido no es correcto.");
             }
@@ -173,15 +171,133 @@ public class GestionPacientes {
     }
     
     /**
-     * Método que imprime por pantalla los datos Dni, nombre y apellidos de todos los pacientes
+     * Método que comprueba si un DNI o NIE tiene un formato correcto y su letra
+     * de control coincide con la que le corresponde
+     * @param dni DNI o NIE que se quiere comprobar
+     * @return true o false dependiendo si es válido o no
+     */
+    public static boolean esDniValido(String dni){
+        // Se usa el validador sin expresiones regulares, que sigue las mismas reglas
+        return ValidadorDni.esValido(dni);
+    }
+    
+    /**
+     * Método que devuelve un DNI o NIE en la forma en que se guarda: los NIE
+     * con la X, Y o Z del principio cambiada por 0, 1 o 2. Sirve también para
+     * el principio de un DNI, y si no empieza por un NIE se devuelve igual.
+     * @param dni DNI o NIE escrito por el usuario
+     * @return el DNI tal y como está guardado
+     */
+    public static String normalizarDni(String dni){
+        if(dni!=null && dni.length()>1 && "XYZ".indexOf(dni.charAt(0))>=0
+                && dni.charAt(1)>='0' && dni.charAt(1)<='9'){
+            dni = "XYZ".indexOf(dni.charAt(0))+dni.substring(1);
+        }
+        return dni;
+    }
+    
+    /**
+     * Método que imprime por pantalla los datos Dni, nombre y apellidos de los
+     * pacientes por páginas ordenadas por dni. Después de cada página se puede
+     * pasar a la siguiente o a la anterior, saltar a un dni o mostrar de una vez
+     * todos los que quedan. Al terminar se muestran los pacientes por segundo
+     * que ha escrito la consola.
      */
     public static void listarPacientes(){
-        // Creo una lista y meto todos los pacientes con el metodo findAll de la clase PacientesDAO
-        List<Paciente> lista = pacientesDAO.findAll();
-        
-        // Por cada paciente imprimo por pantalla sus datos
-        for (Paciente p : lista){
-            System.out.println("["+p.getDni()+"] "+p.getNombre()+" "+p.getApellidos());
+        salida.reiniciar();
+        // Se piden los pacientes por páginas para no tener toda la tabla en memoria
+        List<Paciente> lista = pacientesDAO.paginaDesde("", TAMAÑO_PANTALLA);
+        // Primer dni de las páginas anteriores, para poder volver a ellas
+        Deque<String> anteriores = new ArrayDeque<>();
+        boolean seguir = !lista.isEmpty();
+        while (seguir){
+            lista.forEach(salida::paciente);
+            // Se escribe la página antes de preguntar
+            salida.volcar();
+            String opcion = ES.preguntaOpcion("(S)iguiente, (A)nterior, (D)NI, (T)odos o (F)in [S]:", true, true,
+                    "S", "A", "D", "T", "F");
+            List<Paciente> nueva = null;
+            switch(opcion==null ? "S" : opcion.toUpperCase(Locale.ROOT)){
+                case "S": // La siguiente página empieza después del último dni mostrado
+                    nueva = pacientesDAO.pagina(lista.get(lista.size()-1).getDni(), TAMAÑO_PANTALLA);
+                    if(nueva.isEmpty()){
+                        System.out.println("No hay más pacientes.");
+                        seguir = false;
+                    }
+                    break;
+                case "A":
+                    if(anteriores.isEmpty()){
+                        System.out.println("Ya está en la primera página.");
+                    }else{
+                        lista = pacientesDAO.paginaDesde(anteriores.pop(), TAMAÑO_PANTALLA);
+                    }
+                    break;
+                case "D":
+                    String dni = ES.leeCadena("Introduce el DNI, o su principio, por el que empezar (o nada para cancelar):", true);
+                    if(dni!=null){
+                        nueva = pacientesDAO.paginaDesde(normalizarDni(dni), TAMAÑO_PANTALLA);
+                        if(nueva.isEmpty()){
+                            System.out.println("No hay pacientes a partir de ese DNI.");
+                        }
+                    }
+                    break;
+                case "T":
+                    mostrarRestantes(lista.get(lista.size()-1).getDni());
+                    seguir = false;
+                    break;
+                default:
+                    seguir = false;
+                    break;
+            }
+            if(nueva!=null && !nueva.isEmpty()){
+                anteriores.push(lista.get(0).getDni());
+                lista = nueva;
+            }
+        }
+        System.out.println("Se han mostrado "+salida.getFilas()+" pacientes ("
+                +Math.round(salida.getFilasPorSegundo())+" pacientes/s).");
+    }
+    
+    /**
+     * Método que imprime por pantalla de una vez todos los pacientes que van
+     * después de un dni, leyéndolos por páginas
+     * @param despuesDe dni del último paciente mostrado
+     */
+    private static void mostrarRestantes(String despuesDe){
+        List<Paciente> lista = pacientesDAO.pagina(despuesDe, TAMAÑO_PAGINA);
+        while (!lista.isEmpty()){
+            // Las filas se acumulan y se escriben por bloques
+            lista.forEach(salida::paciente);
+            // La siguiente página empieza después del último dni mostrado
+            lista = pacientesDAO.pagina(lista.get(lista.size()-1).getDni(), TAMAÑO_PAGINA);
+        }
+        salida.volcar();
+    }
+
+    /**
+     * Método que pide al usuario parte del nombre o de los apellidos y muestra
+     * los pacientes que coinciden por páginas, mientras el usuario quiera ver más
+     */
+    public static void buscarPacientes(){
+        String texto = ES.leeCadena("Introduce parte del nombre o de los apellidos (o nada para cancelar):", true);
+        if(texto==null){
+            return;
+        }
+        if(BuscadorPacientes.actual()==null){
+            System.out.println("Preparando el índice de búsqueda...");
+        }
+        int desde = 0;
+        BuscadorPacientes.Resultado r = BuscadorPacientes.buscar(texto, desde, TAMAÑO_PAGINA_BUSQUEDA);
+        System.out.println("Se han encontrado "+r.getTotal()+" pacientes.");
+        while (!r.getPacientes().isEmpty()){
+            r.getPacientes().forEach(salida::paciente);
+            salida.volcar();
+            desde += TAMAÑO_PAGINA_BUSQUEDA;
+            // Si quedan resultados se pregunta si se quieren ver los siguientes
+            if(desde>=r.getTotal() || !"S".equals(ES.preguntarSiONo("¿Mostrar los siguientes? (S o N) "))){
+                break;
+            }
+            r = BuscadorPacientes.buscar(texto, desde, TAMAÑO_PAGINA_BUSQUEDA);
         }
     }
 
@@ -194,7 +310,7 @@ public class GestionPacientes {
         // Si la cadena no está vacia, se llama al codigo deleteById y muestra por pantalla
         // los registros eliminados
         if(dni!=null){ 
-            int numDel = pacientesDAO.deleteById(dni);
+            int numDel = pacientesDAO.deleteById(normalizarDni(dni));
             System.out.println("Se han eliminado "+numDel+" registros.");
         }
     }
@@ -209,7 +325,7 @@ public class GestionPacientes {
         // Si la cadena no está vacia, se llama al metodo detallesPaciente y muestra
         // los datos por pantalla
         if(dni!=null){ 
-            Paciente p = pacientesDAO.detallesPaciente(dni);
+            Paciente p = pacientesDAO.detallesPaciente(normalizarDni(dni));
             if(p!=null){
             System.out.println("["+p.getDni()+"] "+p.getNombre()+" "+p.getApellidos()+" "
                     + "\nFecha de nacimiento: "+p.getFechaNacimiento()+" "
@@ -227,7 +343,7 @@ public class GestionPacientes {
     public static void sumarNhosp(){
         // Pide al usuario el dni del paciente
         String dni = ES.leeCadena("Introduce el DNI del paciente a incrementar el número de hospitalizaciones (o nada para cancelar):", true);
-        if(pacientesDAO.incrementarNhosp(dni)){
+        if(pacientesDAO.incrementarNhosp(normalizarDni(dni))){
             System.out.println("Número de hospitalizaciones incrementadas en 1.");
         } else {
             System.out.println("Paciente no encontrado");
@@ -0,0 +1,156 @@
+package gestpacientes;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Clase que representa un histograma de latencias en nanosegundos. Agrupa los
+ * valores en intervalos de tamaño creciente (16 intervalos por cada potencia de
+ * 2), así que ocupa poca memoria, registrar un valor no crea objetos y los
+ * percentiles tienen un error máximo de un 6%. Se puede usar desde varios hilos.
+ *
+ * Contiene los siguientes atributos:
+ *
+ * - cubetas: número de valores registrados en cada intervalo
+ * - cuenta, suma, maximo: número, suma y máximo de los valores registrados
+ * @author Adrián Romero Ramírez
+ */
+public class HistogramaLatencias {
+
+    // Bits de subdivisión de cada potencia de 2
+    private static final int SUB_BITS=4;
+    private static final int SUB=1<<SUB_BITS;
+
+    private final AtomicLongArray cubetas=new AtomicLongArray((64-SUB_BITS+1)*SUB);
+    private final AtomicLong cuenta=new AtomicLong();
+    private final AtomicLong suma=new AtomicLong();
+    private final AtomicLong maximo=new AtomicLong();
+
+    /**
+     * Método que registra un valor
+     * @param nanos latencia en nanosegundos
+     */
+    public void registrar(long nanos) {
+        if (nanos<0) {
+            nanos=0;
+        }
+        cubetas.incrementAndGet(indice(nanos));
+        cuenta.incrementAndGet();
+        suma.addAndGet(nanos);
+        maximo.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Método que devuelve el valor por debajo del cual está el porcentaje indicado de valores
+     * @param percentil porcentaje entre 0 y 100
+     * @return latencia en nanosegundos, 0 si no hay valores
+     */
+    public long percentil(double percentil) {
+        long total=cuenta.get();
+        if (total==0) {
+            return 0;
+        }
+        long objetivo=(long) Math.ceil(total*percentil/100.0);
+        long acumulado=0;
+        for (int i=0; i<cubetas.length(); i++) {
+            acumulado+=cubetas.get(i);
+            if (acumulado>=Math.max(1, objetivo)) {
+                return Math.min(limiteSuperior(i), maximo.get());
+            }
+        }
+        return maximo.get();
+    }
+
+    /**
+     * Método para obtener el número de valores registrados
+     * @return número de valores
+     */
+    public long getCuenta() {
+        return cuenta.get();
+    }
+
+    /**
+     * Método para obtener la media de los valores registrados
+     * @return media en nanosegundos
+     */
+    public double getMedia() {
+        long c=cuenta.get();
+        return c==0 ? 0 : (double) suma.get()/c;
+    }
+
+    /**
+     * Método para obtener el mayor valor registrado
+     * @return máximo en nanosegundos
+     */
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    /**
+     * Método que suma a este histograma los valores de otro
+     * @param otro histograma que se quiere añadir
+     */
+    public void añadir(HistogramaLatencias otro) {
+        for (int i=0; i<cubetas.length(); i++) {
+            long v=otro.cubetas.get(i);
+            if (v!=0) {
+                cubetas.addAndGet(i, v);
+            }
+        }
+        cuenta.addAndGet(otro.cuenta.get());
+        suma.addAndGet(otro.suma.get());
+        maximo.accumulateAndGet(otro.maximo.get(), Math::max);
+    }
+
+    /**
+     * Método que borra todos los valores registrados
+     */
+    public void reiniciar() {
+        for (int i=0; i<cubetas.length(); i++) {
+            cubetas.set(i, 0);
+        }
+        cuenta.set(0);
+        suma.set(0);
+        maximo.set(0);
+    }
+
+    /**
+     * Metodo que crea un String con los percentiles principales en milisegundos
+     * @return String con la cuenta y los percentiles
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d media=%.3f p50=%.3f p95=%.3f p99=%.3f p99.9=%.3f max=%.3f ms",
+                getCuenta(), getMedia()/1e6, percentil(50)/1e6, percentil(95)/1e6,
+                percentil(99)/1e6, percentil(99.9)/1e6, getMaximo()/1e6);
+    }
+
+    /**
+     * Método que calcula el intervalo de un valor
+     * @param v valor
+     * @return posición de su intervalo
+     */
+    private static int indice(long v) {
+        if (v<SUB) {
+            return (int) v;
+        }
+        // Grupo: posición del bit más alto; dentro del grupo, los siguientes SUB_BITS bits
+        int grupo=63-Long.numberOfLeadingZeros(v)-SUB_BITS+1;
+        int sub=(int) (v>>>(grupo-1))&(SUB-1);
+        return grupo*SUB+sub;
+    }
+
+    /**
+     * Método que calcula el mayor valor que cae en un intervalo
+     * @param i posición del intervalo
+     * @return límite superior del intervalo
+     */
+    private static long limiteSuperior(int i) {
+        int grupo=i/SUB;
+        int sub=i%SUB;
+        if (grupo==0) {
+            return sub;
+        }
+        return ((long) (SUB+sub+1)<<(grupo-1))-1;
+    }
+}
@@ -0,0 +1,809 @@
+package gestpacientes;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Clase con el historial de hospitalizaciones. Cada hospitalización se apunta
+ * como una fila de la tabla HOSPITALIZACIONES de la partición del paciente, en
+ * la misma transacción que suma 1 a su nhosp, así que nhosp es siempre el
+ * número de filas del paciente. Las filas solo se añaden, con el id creciente,
+ * y se pueden añadir por lotes (ver HospitalizacionesDiferidas y ModoLotes).
+ * Al apuntar cada ingreso se marca si el paciente había ingresado en los 30
+ * días anteriores (reingreso).
+ *
+ * Los ingresos y reingresos por día y por mes se guardan ya sumados en
+ * HOSPITALIZACIONES_DIA y HOSPITALIZACIONES_MES. Al apuntar un ingreso no se
+ * tocan esas tablas, para no bloquear la fila del día en cada hospitalización;
+ * resumir() suma cada cierto tiempo las filas nuevas a los totales. Las
+ * consultas por periodo leen los totales y les suman las filas que aún no se
+ * han resumido, que son pocas, así que devuelven siempre los números exactos.
+ *
+ * Al borrar un paciente se borra su historial, pero sus ingresos siguen
+ * contando en los totales por periodo: los que aún no se habían resumido se
+ * suman en ese momento, así que las cifras pasadas no cambian. Por eso, en los
+ * periodos con ingresos de pacientes borrados, recontar() da menos que resumen(),
+ * y reconstruir(), que vuelve a calcular los totales a partir del historial,
+ * los pierde.
+ *
+ * Las hospitalizaciones contadas antes de existir el historial se apuntan al
+ * crear la estructura como filas sin instante, que cuentan en nhosp pero no en
+ * los totales por periodo.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.hospitalizaciones.resumenSeg: segundos entre resúmenes (por
+ *   defecto 60; con 0 solo se resume al llamar a resumir() y al cerrar). Con la
+ *   base de datos compartida (ver ServidorBD) basta con que resuma un proceso
+ * - gestpacientes.hospitalizaciones.filasResumen: filas que se suman en cada
+ *   transacción del resumen (por defecto 100000)
+ *
+ * Uso de la herramienta: java gestpacientes.Hospitalizaciones resumir|reconstruir
+ * @author Adrián Romero Ramírez
+ */
+public class Hospitalizaciones {
+
+    private static final long RESUMEN_SEG=Long.getLong("gestpacientes.hospitalizaciones.resumenSeg", 60);
+    private static final int FILAS_RESUMEN=Integer.getInteger("gestpacientes.hospitalizaciones.filasResumen", 100_000);
+    // Un ingreso es un reingreso si el paciente había ingresado en estos días anteriores
+    private static final long DIAS_REINGRESO=30;
+
+    // Ingresos y reingresos de una consulta de hospitalizaciones
+    private static final String CUENTA="COUNT(*), SUM(CASE WHEN reingreso THEN 1 ELSE 0 END)";
+    // Día y primer día del mes de un ingreso
+    private static final String DIA_MES="CAST(DATEADD('DAY', 1-DAY_OF_MONTH(instante), CAST(instante AS DATE)) AS DATE)";
+    private static final String DIA_INGRESO="CAST(instante AS DATE)";
+
+    // Las filas de un paciente se buscan por su clave en el índice y se comprueba su dni
+    private static final String DEL_PACIENTE="clave = ? AND dni = ?";
+
+    static final String SQL_REGISTRAR="INSERT INTO HOSPITALIZACIONES (clave, dni, instante, reingreso) VALUES (?, ?, ?, "
+            + "EXISTS(SELECT 1 FROM HOSPITALIZACIONES WHERE "+DEL_PACIENTE+" AND instante BETWEEN ? AND ?))";
+    private static final String SQL_COPIAR="INSERT INTO HOSPITALIZACIONES (clave, dni, instante, reingreso) VALUES (?, ?, ?, ?)";
+    private static final String SQL_HISTORIAL="SELECT instante, reingreso FROM HOSPITALIZACIONES WHERE "+DEL_PACIENTE
+            + " ORDER BY id";
+    private static final String SQL_BLOQUEAR="UPDATE HOSPITALIZACIONES SET resumen = resumen WHERE "+DEL_PACIENTE;
+    private static final String SQL_RESUMIDAS_DNI="SELECT "+DIA_INGRESO+", "+CUENTA+" FROM HOSPITALIZACIONES "
+            + "WHERE "+DEL_PACIENTE+" AND resumen IS NOT NULL GROUP BY "+DIA_INGRESO;
+    private static final String SQL_PENDIENTES_DNI="SELECT "+DIA_INGRESO+", "+CUENTA+" FROM HOSPITALIZACIONES "
+            + "WHERE "+DEL_PACIENTE+" AND resumen IS NULL AND instante IS NOT NULL GROUP BY "+DIA_INGRESO;
+    private static final String SQL_BORRAR="DELETE FROM HOSPITALIZACIONES WHERE "+DEL_PACIENTE;
+    private static final String SQL_SIGUIENTE_RESUMEN="SELECT NEXT VALUE FOR SEQ_RESUMENES_HOSPITALIZACIONES";
+    private static final String SQL_RESERVAR="UPDATE HOSPITALIZACIONES SET resumen = ? "
+            + "WHERE resumen IS NULL AND instante IS NOT NULL LIMIT ?";
+    private static final String SQL_RESERVADAS="SELECT "+DIA_INGRESO+", "+CUENTA+" FROM HOSPITALIZACIONES "
+            + "WHERE resumen = ? GROUP BY "+DIA_INGRESO;
+    private static final String SQL_SUMAR_DIA="UPDATE HOSPITALIZACIONES_DIA SET ingresos = ingresos + ?, "
+            + "reingresos = reingresos + ? WHERE dia = ?";
+    private static final String SQL_NUEVO_DIA="INSERT INTO HOSPITALIZACIONES_DIA (ingresos, reingresos, dia) VALUES (?, ?, ?)";
+    private static final String SQL_SUMAR_MES="UPDATE HOSPITALIZACIONES_MES SET ingresos = ingresos + ?, "
+            + "reingresos = reingresos + ? WHERE mes = ?";
+    private static final String SQL_NUEVO_MES="INSERT INTO HOSPITALIZACIONES_MES (ingresos, reingresos, mes) VALUES (?, ?, ?)";
+    private static final String SQL_HISTORIAL_BD="SELECT desde FROM HISTORIAL_BD";
+    private static final String SQL_INICIAR_HISTORIAL="INSERT INTO HISTORIAL_BD (id, desde) VALUES (1, ?)";
+    private static final String SQL_CONTADAS="SELECT dni, nhosp FROM PACIENTES WHERE nhosp > 0";
+    private static final String SQL_ANTERIORES="INSERT INTO HOSPITALIZACIONES (clave, dni, instante, reingreso) "
+            + "SELECT ?, ?, NULL, FALSE FROM SYSTEM_RANGE(1, ?)";
+    private static final String SQL_POR_PACIENTE="SELECT dni, COUNT(*) FROM HOSPITALIZACIONES GROUP BY dni";
+    private static final String SQL_NHOSP="SELECT dni, nhosp FROM PACIENTES";
+    private static final String SQL_CORREGIR="UPDATE PACIENTES SET nhosp = ? WHERE dni = ?";
+    private static final String[] SQL_REINICIAR={
+        "DELETE FROM HOSPITALIZACIONES_DIA",
+        "DELETE FROM HOSPITALIZACIONES_MES",
+        "UPDATE HOSPITALIZACIONES SET resumen = NULL WHERE resumen IS NOT NULL"
+    };
+
+    /**
+     * Periodos de los totales de hospitalizaciones, con sus consultas. Cada
+     * periodo se identifica por su primer día.
+     */
+    public enum Periodo {
+        DIA("SELECT dia, SUM(ingresos), SUM(reingresos) FROM ("
+                + "SELECT dia, ingresos, reingresos FROM HOSPITALIZACIONES_DIA WHERE dia BETWEEN ? AND ? "
+                + "UNION ALL SELECT "+DIA_INGRESO+", "+CUENTA+" FROM HOSPITALIZACIONES "
+                + "WHERE resumen IS NULL AND instante >= ? AND instante < ? GROUP BY "+DIA_INGRESO+") GROUP BY dia",
+            "SELECT "+DIA_INGRESO+", "+CUENTA+" FROM HOSPITALIZACIONES "
+                + "WHERE instante >= ? AND instante < ? GROUP BY "+DIA_INGRESO),
+        MES("SELECT mes, SUM(ingresos), SUM(reingresos) FROM ("
+                + "SELECT mes, ingresos, reingresos FROM HOSPITALIZACIONES_MES WHERE mes BETWEEN ? AND ? "
+                + "UNION ALL SELECT "+DIA_MES+", "+CUENTA+" FROM HOSPITALIZACIONES "
+                + "WHERE resumen IS NULL AND instante >= ? AND instante < ? GROUP BY "+DIA_MES+") GROUP BY mes",
+            "SELECT "+DIA_MES+", "+CUENTA+" FROM HOSPITALIZACIONES "
+                + "WHERE instante >= ? AND instante < ? GROUP BY "+DIA_MES);
+
+        // Consulta que suma los totales y las filas sin resumir
+        private final String sqlResumen;
+        // Consulta que cuenta todas las filas
+        private final String sqlRecuento;
+
+        Periodo(String sqlResumen, String sqlRecuento) {
+            this.sqlResumen=sqlResumen;
+            this.sqlRecuento=sqlRecuento;
+        }
+
+        /**
+         * Método que devuelve el primer día del periodo de una fecha
+         * @param fecha fecha
+         * @return el primer día de su periodo
+         */
+        public LocalDate inicio(LocalDate fecha) {
+            return this==DIA ? fecha : fecha.withDayOfMonth(1);
+        }
+
+        /**
+         * Método que devuelve el primer día del periodo siguiente al de una fecha
+         * @param fecha fecha
+         * @return el primer día del periodo siguiente
+         */
+        public LocalDate siguiente(LocalDate fecha) {
+            return this==DIA ? fecha.plusDays(1) : fecha.withDayOfMonth(1).plusMonths(1);
+        }
+    }
+
+    /**
+     * Clase que representa los ingresos de un periodo
+     */
+    public static class Resumen {
+        private final LocalDate inicio;
+        private final long ingresos;
+        private final long reingresos;
+
+        Resumen(LocalDate inicio, long ingresos, long reingresos) {
+            this.inicio=inicio;
+            this.ingresos=ingresos;
+            this.reingresos=reingresos;
+        }
+
+        /**
+         * Método para obtener el primer día del periodo
+         * @return el primer día del periodo
+         */
+        public LocalDate getInicio() {
+            return inicio;
+        }
+
+        /**
+         * Método para obtener el número de ingresos del periodo
+         * @return ingresos, con los reingresos
+         */
+        public long getIngresos() {
+            return ingresos;
+        }
+
+        /**
+         * Método para obtener el número de reingresos del periodo
+         * @return ingresos de pacientes que habían ingresado en los 30 días anteriores
+         */
+        public long getReingresos() {
+            return reingresos;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Resumen)) {
+                return false;
+            }
+            Resumen r=(Resumen) o;
+            return inicio.equals(r.inicio) && ingresos==r.ingresos && reingresos==r.reingresos;
+        }
+
+        @Override
+        public int hashCode() {
+            return inicio.hashCode()*31+Long.hashCode(ingresos*31+reingresos);
+        }
+
+        @Override
+        public String toString() {
+            return inicio+" ingresos="+ingresos+" reingresos="+reingresos;
+        }
+    }
+
+    // Hilo que resume las hospitalizaciones periódicamente, se crea con la primera
+    private static volatile ScheduledExecutorService resumidor;
+    // Si este proceso ha apuntado alguna hospitalización, para resumirlas al cerrar
+    private static volatile boolean apuntadas=false;
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private Hospitalizaciones() {
+    }
+
+    /**
+     * Método principal de la herramienta: "resumir" suma las hospitalizaciones
+     * pendientes a los totales y "reconstruir" vuelve a calcular nhosp y los
+     * totales a partir del historial (con la aplicación parada)
+     * @param args acción
+     */
+    public static void main(String[] args) {
+        if (args.length!=1 || !("resumir".equals(args[0]) || "reconstruir".equals(args[0]))) {
+            System.out.println("Uso: java gestpacientes.Hospitalizaciones resumir|reconstruir");
+            System.exit(2);
+        }
+        boolean ok=false;
+        try {
+            Class.forName(Aplicacion.driver);
+            try (Connection con=Aplicacion.getPool().obtener()) {
+                ok=Aplicacion.createTables(con) && Particiones.comprobar();
+            }
+            if (ok && "resumir".equals(args[0])) {
+                System.out.printf("Hospitalizaciones resumidas: %d\n", resumir());
+            } else if (ok) {
+                System.out.printf("Pacientes con nhosp corregido: %d\n", reconstruir());
+            }
+        } catch (ClassNotFoundException ex) {
+            System.out.printf("No se encuentra el driver de la base de datos (%s)\n", Aplicacion.driver);
+        } catch (SQLException ex) {
+            System.out.printf("No se ha podido terminar (%s).\n", ex.getMessage());
+            ok=false;
+        } finally {
+            Aplicacion.cerrarPool();
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    /**
+     * Método que apunta una hospitalización en la transacción en curso. Hay
+     * que llamarlo en la misma transacción que incrementa nhosp.
+     * @param con Conexión con la partición del paciente
+     * @param dni DNI del paciente
+     * @param instante momento del ingreso, en milisegundos desde 1970
+     * @throws SQLException Si falla la inserción
+     */
+    static void registrar(Connection con, String dni, long instante) throws SQLException {
+        try (PreparedStatement ps=con.prepareStatement(SQL_REGISTRAR)) {
+            parametros(ps, dni, instante);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Método que añade una hospitalización al lote de una sentencia preparada
+     * con SQL_REGISTRAR
+     * @param ps sentencia preparada con SQL_REGISTRAR
+     * @param dni DNI del paciente
+     * @param instante momento del ingreso, en milisegundos desde 1970
+     * @throws SQLException Si falla la sentencia
+     */
+    static void añadir(PreparedStatement ps, String dni, long instante) throws SQLException {
+        parametros(ps, dni, instante);
+        ps.addBatch();
+    }
+
+    /**
+     * Método que borra el historial de un paciente que se borra. Sus
+     * hospitalizaciones que aún no se habían resumido se suman antes a los
+     * totales, para que los totales por periodo no dependan de cuándo se borra.
+     * Hay que llamarlo en la misma transacción que borra el paciente.
+     * @param con Conexión con la partición del paciente, sin autocommit
+     * @param dni DNI del paciente
+     * @throws SQLException Si falla la base de datos
+     */
+    static void borrar(Connection con, String dni) throws SQLException {
+        // Se bloquean antes las filas para que un resumen en curso no las sume también
+        try (PreparedStatement ps=con.prepareStatement(SQL_BLOQUEAR)) {
+            paciente(ps, 1, dni);
+            if (ps.executeUpdate()==0) {
+                return;
+            }
+        }
+        Map<LocalDate, long[]> dias=new TreeMap<>();
+        acumular(con, SQL_PENDIENTES_DNI, 1, dias, clave(dni), dni);
+        try (PreparedStatement ps=con.prepareStatement(SQL_BORRAR)) {
+            paciente(ps, 1, dni);
+            ps.executeUpdate();
+        }
+        sumarTotales(con, dias);
+    }
+
+    /**
+     * Método que quita de una partición el historial de varios pacientes que se
+     * llevan a otra, donde se vuelve a resumir, y resta de los totales de esta
+     * sus hospitalizaciones ya resumidas, sumadas antes por día para tocar cada
+     * fila de los totales una sola vez
+     * @param con Conexión con la partición de los pacientes, sin autocommit
+     * @param dnis DNI de los pacientes
+     * @throws SQLException Si falla la base de datos
+     */
+    static void quitar(Connection con, List<String> dnis) throws SQLException {
+        Map<LocalDate, long[]> dias=new TreeMap<>();
+        for (String dni : dnis) {
+            // Se bloquean antes las filas para que un resumen en curso no las sume después de leerlas
+            try (PreparedStatement ps=con.prepareStatement(SQL_BLOQUEAR)) {
+                paciente(ps, 1, dni);
+                if (ps.executeUpdate()==0) {
+                    continue;
+                }
+            }
+            acumular(con, SQL_RESUMIDAS_DNI, -1, dias, clave(dni), dni);
+            try (PreparedStatement ps=con.prepareStatement(SQL_BORRAR)) {
+                paciente(ps, 1, dni);
+                ps.executeUpdate();
+            }
+        }
+        sumarTotales(con, dias);
+    }
+
+    /**
+     * Método que copia el historial de un paciente a otra partición, en el
+     * mismo orden y con las mismas marcas de reingreso. Si el paciente ya tenía
+     * historial en la de destino, de un reparto interrumpido, se sustituye.
+     * @param origen Conexión con la partición de origen
+     * @param destino Conexión con la partición de destino, sin autocommit
+     * @param dni DNI del paciente
+     * @throws SQLException Si falla la base de datos
+     */
+    static void copiar(Connection origen, Connection destino, String dni) throws SQLException {
+        quitar(destino, Collections.singletonList(dni));
+        try (PreparedStatement lectura=origen.prepareStatement(SQL_HISTORIAL);
+             PreparedStatement ps=destino.prepareStatement(SQL_COPIAR)) {
+            paciente(lectura, 1, dni);
+            try (ResultSet rs=lectura.executeQuery()) {
+                while (rs.next()) {
+                    paciente(ps, 1, dni);
+                    ps.setTimestamp(3, rs.getTimestamp(1));
+                    ps.setBoolean(4, rs.getBoolean(2));
+                    ps.addBatch();
+                }
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Método que empieza el historial en una base de datos que no lo tenía,
+     * apuntando como filas sin instante las hospitalizaciones ya contadas en
+     * nhosp. Se llama al crear la estructura.
+     * @param con Conexión con la base de datos, con autocommit
+     * @throws SQLException Si falla la base de datos
+     */
+    static void iniciarHistorial(Connection con) throws SQLException {
+        if (historialIniciado(con)) {
+            return;
+        }
+        con.setAutoCommit(false);
+        try {
+            // La fila de HISTORIAL_BD va primero: si otro proceso está haciendo lo mismo, aquí se espera o falla
+            try (PreparedStatement ps=con.prepareStatement(SQL_INICIAR_HISTORIAL)) {
+                ps.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                ps.executeUpdate();
+            }
+            try (PreparedStatement lectura=con.prepareStatement(SQL_CONTADAS);
+                 PreparedStatement ps=con.prepareStatement(SQL_ANTERIORES)) {
+                lectura.setFetchSize(1000);
+                int enLote=0;
+                try (ResultSet rs=lectura.executeQuery()) {
+                    while (rs.next()) {
+                        paciente(ps, 1, rs.getString(1));
+                        ps.setInt(3, rs.getInt(2));
+                        ps.addBatch();
+                        if (++enLote==1000) {
+                            ps.executeBatch();
+                            enLote=0;
+                        }
+                    }
+                }
+                ps.executeBatch();
+            }
+            con.commit();
+        } catch (SQLException ex) {
+            con.rollback();
+            // Si lo ha iniciado otro proceso a la vez no hay nada que hacer
+            if (!historialIniciado(con)) {
+                throw ex;
+            }
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Método que devuelve los ingresos y reingresos por periodo entre dos fechas
+     * en todas las particiones. Se leen los totales ya resumidos más las
+     * hospitalizaciones que aún no se han resumido.
+     * @param periodo periodo de los totales
+     * @param desde fecha incluida en el primer periodo
+     * @param hasta fecha incluida en el último periodo
+     * @return los periodos con algún ingreso, por orden
+     * @throws SQLException Si falla la consulta en alguna partición
+     */
+    public static List<Resumen> resumen(Periodo periodo, LocalDate desde, LocalDate hasta) throws SQLException {
+        LocalDate inicio=periodo.inicio(desde);
+        LocalDate fin=periodo.siguiente(hasta);
+        return consultar(periodo.sqlResumen, Date.valueOf(inicio), Date.valueOf(periodo.inicio(hasta)),
+                Timestamp.valueOf(inicio.atStartOfDay()), Timestamp.valueOf(fin.atStartOfDay()));
+    }
+
+    /**
+     * Método que cuenta los ingresos y reingresos por periodo entre dos fechas
+     * recorriendo todas las hospitalizaciones, sin los totales. Devuelve lo
+     * mismo que resumen() salvo en los periodos con ingresos de pacientes
+     * borrados; sirve para comprobarlo.
+     * @param periodo periodo de los totales
+     * @param desde fecha incluida en el primer periodo
+     * @param hasta fecha incluida en el último periodo
+     * @return los periodos con algún ingreso, por orden
+     * @throws SQLException Si falla la consulta en alguna partición
+     */
+    public static List<Resumen> recontar(Periodo periodo, LocalDate desde, LocalDate hasta) throws SQLException {
+        return consultar(periodo.sqlRecuento, Timestamp.valueOf(periodo.inicio(desde).atStartOfDay()),
+                Timestamp.valueOf(periodo.siguiente(hasta).atStartOfDay()));
+    }
+
+    /**
+     * Método que devuelve el historial de hospitalizaciones de un paciente
+     * @param dni DNI del paciente
+     * @return los momentos de sus ingresos por orden, con null en los anteriores al historial
+     * @throws SQLException Si falla la consulta
+     */
+    public static List<LocalDateTime> historial(String dni) throws SQLException {
+        List<LocalDateTime> lista=new ArrayList<>();
+        try (Connection con=Particiones.pool(dni).obtener();
+             PreparedStatement ps=con.prepareStatement(SQL_HISTORIAL)) {
+            paciente(ps, 1, dni);
+            try (ResultSet rs=ps.executeQuery()) {
+                while (rs.next()) {
+                    Timestamp t=rs.getTimestamp(1);
+                    lista.add(t==null ? null : t.toLocalDateTime());
+                }
+            }
+        }
+        return lista;
+    }
+
+    /**
+     * Método que suma a los totales por día y por mes las hospitalizaciones
+     * apuntadas desde el último resumen, en todas las particiones. Cada
+     * transacción marca un bloque de filas con un número de resumen nuevo y
+     * suma solo las marcadas, así que ninguna fila se suma dos veces ni se
+     * queda sin sumar.
+     * @return número de hospitalizaciones resumidas
+     * @throws SQLException Si falla la base de datos en alguna partición
+     */
+    public static synchronized long resumir() throws SQLException {
+        long total=0;
+        for (long n : Particiones.enTodas(Hospitalizaciones::resumir)) {
+            total+=n;
+        }
+        return total;
+    }
+
+    /**
+     * Método que vuelve a calcular a partir del historial el nhosp de todos los
+     * pacientes y los totales por periodo, y borra el historial de pacientes que
+     * ya no existen. Hay que lanzarlo con la aplicación parada.
+     * @return número de pacientes cuyo nhosp no coincidía con su historial
+     * @throws SQLException Si falla la base de datos
+     */
+    public static synchronized long reconstruir() throws SQLException {
+        long corregidos=0;
+        for (long n : Particiones.enTodas(Hospitalizaciones::reconstruir)) {
+            corregidos+=n;
+        }
+        CachePacientes.vaciar();
+        resumir();
+        return corregidos;
+    }
+
+    /**
+     * Método que reconstruye nhosp y vacía los totales de una partición. Las
+     * filas de cada paciente se cuentan de una vez para toda la tabla, porque el
+     * historial no tiene índice por dni.
+     * @param pool pool de la partición
+     * @return número de pacientes cuyo nhosp no coincidía con su historial
+     * @throws SQLException Si falla la base de datos
+     */
+    private static long reconstruir(PoolConexiones pool) throws SQLException {
+        long corregidos=0;
+        try (Connection con=pool.obtener()) {
+            con.setAutoCommit(false);
+            Map<String, Long> filas=new HashMap<>();
+            try (PreparedStatement ps=con.prepareStatement(SQL_POR_PACIENTE);
+                 ResultSet rs=ps.executeQuery()) {
+                while (rs.next()) {
+                    filas.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+            try (PreparedStatement lectura=con.prepareStatement(SQL_NHOSP);
+                 PreparedStatement ps=con.prepareStatement(SQL_CORREGIR)) {
+                lectura.setFetchSize(1000);
+                try (ResultSet rs=lectura.executeQuery()) {
+                    while (rs.next()) {
+                        Long n=filas.remove(rs.getString(1));
+                        long contadas=n==null ? 0 : n;
+                        if (contadas!=rs.getInt(2)) {
+                            ps.setLong(1, contadas);
+                            ps.setString(2, rs.getString(1));
+                            ps.addBatch();
+                            corregidos++;
+                        }
+                    }
+                }
+                ps.executeBatch();
+            }
+            // Lo que queda es de pacientes que ya no existen
+            try (PreparedStatement ps=con.prepareStatement(SQL_BORRAR)) {
+                for (String dni : filas.keySet()) {
+                    paciente(ps, 1, dni);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            for (String sql : SQL_REINICIAR) {
+                try (PreparedStatement ps=con.prepareStatement(sql)) {
+                    ps.executeUpdate();
+                }
+            }
+            con.commit();
+            con.setAutoCommit(true);
+        }
+        return corregidos;
+    }
+
+    /**
+     * Método que resume las hospitalizaciones pendientes y para el resumen
+     * periódico. Se llama al cerrar el pool de conexiones.
+     */
+    public static void cerrar() {
+        synchronized (Hospitalizaciones.class) {
+            if (resumidor!=null) {
+                resumidor.shutdown();
+                resumidor=null;
+            }
+        }
+        if (apuntadas) {
+            apuntadas=false;
+            resumirSilencioso();
+        }
+    }
+
+    /**
+     * Método que resume las hospitalizaciones pendientes de una partición
+     * @param pool pool de la partición
+     * @return número de hospitalizaciones resumidas
+     * @throws SQLException Si falla la base de datos
+     */
+    private static long resumir(PoolConexiones pool) throws SQLException {
+        long total=0;
+        try (Connection con=pool.obtener()) {
+            con.setAutoCommit(false);
+            int n;
+            do {
+                long numero;
+                try (PreparedStatement ps=con.prepareStatement(SQL_SIGUIENTE_RESUMEN);
+                     ResultSet rs=ps.executeQuery()) {
+                    rs.next();
+                    numero=rs.getLong(1);
+                }
+                try (PreparedStatement ps=con.prepareStatement(SQL_RESERVAR)) {
+                    ps.setLong(1, numero);
+                    ps.setInt(2, FILAS_RESUMEN);
+                    n=ps.executeUpdate();
+                }
+                if (n>0) {
+                    Map<LocalDate, long[]> dias=new TreeMap<>();
+                    acumular(con, SQL_RESERVADAS, 1, dias, numero);
+                    sumarTotales(con, dias);
+                }
+                con.commit();
+                total+=n;
+            } while (n==FILAS_RESUMEN);
+            con.setAutoCommit(true);
+        }
+        return total;
+    }
+
+    /**
+     * Método que acumula por día los ingresos de una consulta
+     * @param con Conexión con la partición
+     * @param sql consulta que devuelve día, ingresos y reingresos
+     * @param signo 1 para sumar y -1 para restar
+     * @param dias ingresos y reingresos por día, donde se acumulan
+     * @param parametros valores de los parámetros de la consulta
+     * @throws SQLException Si falla la consulta
+     */
+    private static void acumular(Connection con, String sql, int signo, Map<LocalDate, long[]> dias,
+            Object... parametros) throws SQLException {
+        try (PreparedStatement ps=con.prepareStatement(sql)) {
+            for (int i=0; i<parametros.length; i++) {
+                ps.setObject(i+1, parametros[i]);
+            }
+            try (ResultSet rs=ps.executeQuery()) {
+                while (rs.next()) {
+                    long[] dia=dias.computeIfAbsent(rs.getDate(1).toLocalDate(), k -> new long[2]);
+                    dia[0]+=signo*rs.getLong(2);
+                    dia[1]+=signo*rs.getLong(3);
+                }
+            }
+        }
+    }
+
+    /**
+     * Método que suma a los totales por día y por mes los ingresos acumulados por día
+     * @param con Conexión con la partición, sin autocommit
+     * @param dias ingresos y reingresos por día, en orden
+     * @throws SQLException Si falla la base de datos
+     */
+    private static void sumarTotales(Connection con, Map<LocalDate, long[]> dias) throws SQLException {
+        Map<LocalDate, long[]> meses=new TreeMap<>();
+        for (Map.Entry<LocalDate, long[]> e : dias.entrySet()) {
+            long[] d=e.getValue();
+            sumarTotal(con, SQL_SUMAR_DIA, SQL_NUEVO_DIA, Date.valueOf(e.getKey()), d[0], d[1]);
+            long[] mes=meses.computeIfAbsent(e.getKey().withDayOfMonth(1), k -> new long[2]);
+            mes[0]+=d[0];
+            mes[1]+=d[1];
+        }
+        for (Map.Entry<LocalDate, long[]> e : meses.entrySet()) {
+            sumarTotal(con, SQL_SUMAR_MES, SQL_NUEVO_MES, Date.valueOf(e.getKey()), e.getValue()[0], e.getValue()[1]);
+        }
+    }
+
+    /**
+     * Método que suma ingresos y reingresos a la fila de un periodo, creándola si no existe
+     * @param con Conexión con la partición
+     * @param sqlSumar sentencia que suma a la fila del periodo
+     * @param sqlNueva sentencia que crea la fila del periodo
+     * @param inicio primer día del periodo
+     * @param ingresos ingresos a sumar
+     * @param reingresos reingresos a sumar
+     * @throws SQLException Si falla la base de datos
+     */
+    private static void sumarTotal(Connection con, String sqlSumar, String sqlNueva, Date inicio,
+            long ingresos, long reingresos) throws SQLException {
+        try (PreparedStatement ps=con.prepareStatement(sqlSumar)) {
+            ps.setLong(1, ingresos);
+            ps.setLong(2, reingresos);
+            ps.setDate(3, inicio);
+            if (ps.executeUpdate()>0) {
+                return;
+            }
+        }
+        try (PreparedStatement ps=con.prepareStatement(sqlNueva)) {
+            ps.setLong(1, ingresos);
+            ps.setLong(2, reingresos);
+            ps.setDate(3, inicio);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Método que lanza una consulta de totales en todas las particiones y los
+     * suma por periodo
+     * @param sql consulta que devuelve primer día del periodo, ingresos y reingresos
+     * @param parametros valores de los parámetros de la consulta
+     * @return los periodos con algún ingreso, por orden
+     * @throws SQLException Si falla la consulta en alguna partición
+     */
+    private static List<Resumen> consultar(String sql, Object... parametros) throws SQLException {
+        Map<LocalDate, long[]> suma=new TreeMap<>();
+        for (Map<LocalDate, long[]> parte : Particiones.enTodas(pool -> {
+            Map<LocalDate, long[]> m=new TreeMap<>();
+            try (Connection con=pool.obtener();
+                 PreparedStatement ps=con.prepareStatement(sql)) {
+                for (int i=0; i<parametros.length; i++) {
+                    ps.setObject(i+1, parametros[i]);
+                }
+                try (ResultSet rs=ps.executeQuery()) {
+                    while (rs.next()) {
+                        m.put(rs.getDate(1).toLocalDate(), new long[]{rs.getLong(2), rs.getLong(3)});
+                    }
+                }
+            }
+            return m;
+        })) {
+            for (Map.Entry<LocalDate, long[]> e : parte.entrySet()) {
+                long[] s=suma.computeIfAbsent(e.getKey(), k -> new long[2]);
+                s[0]+=e.getValue()[0];
+                s[1]+=e.getValue()[1];
+            }
+        }
+        List<Resumen> lista=new ArrayList<>(suma.size());
+        for (Map.Entry<LocalDate, long[]> e : suma.entrySet()) {
+            // Los totales de pacientes borrados pueden quedar a cero
+            if (e.getValue()[0]!=0) {
+                lista.add(new Resumen(e.getKey(), e.getValue()[0], e.getValue()[1]));
+            }
+        }
+        return lista;
+    }
+
+    /**
+     * Método que pone los parámetros de SQL_REGISTRAR y crea el hilo de
+     * resumen periódico si todavía no existe
+     * @param ps sentencia preparada con SQL_REGISTRAR
+     * @param dni DNI del paciente
+     * @param instante momento del ingreso, en milisegundos desde 1970
+     * @throws SQLException Si falla la sentencia
+     */
+    private static void parametros(PreparedStatement ps, String dni, long instante) throws SQLException {
+        apuntadas=true;
+        iniciarResumidor();
+        Timestamp t=new Timestamp(instante);
+        paciente(ps, 1, dni);
+        ps.setTimestamp(3, t);
+        paciente(ps, 4, dni);
+        ps.setTimestamp(6, new Timestamp(instante-TimeUnit.DAYS.toMillis(DIAS_REINGRESO)));
+        ps.setTimestamp(7, t);
+    }
+
+    /**
+     * Método que pone la clave y el dni de un paciente en dos parámetros seguidos
+     * @param ps sentencia preparada
+     * @param posicion posición del parámetro de la clave; el dni va en la siguiente
+     * @param dni DNI del paciente
+     * @throws SQLException Si falla la sentencia
+     */
+    private static void paciente(PreparedStatement ps, int posicion, String dni) throws SQLException {
+        ps.setInt(posicion, clave(dni));
+        ps.setString(posicion+1, dni);
+    }
+
+    /**
+     * Método que calcula la clave de un dni en el historial. Dos dni pueden
+     * tener la misma clave, así que siempre se busca por clave y dni.
+     * @param dni DNI del paciente
+     * @return su clave
+     */
+    static int clave(String dni) {
+        return dni.hashCode();
+    }
+
+    /**
+     * Método para saber si una base de datos ya tiene el historial iniciado
+     * @param con Conexión con la base de datos
+     * @return true si ya tiene la fila de HISTORIAL_BD
+     * @throws SQLException Si falla la consulta
+     */
+    private static boolean historialIniciado(Connection con) throws SQLException {
+        try (PreparedStatement ps=con.prepareStatement(SQL_HISTORIAL_BD);
+             ResultSet rs=ps.executeQuery()) {
+            return rs.next();
+        }
+    }
+
+    /**
+     * Método que resume las hospitalizaciones mostrando un mensaje si falla
+     */
+    private static void resumirSilencioso() {
+        try {
+            resumir();
+        } catch (SQLException ex) {
+            System.out.println("No se han podido resumir las hospitalizaciones pendientes.");
+        }
+    }
+
+    /**
+     * Método que crea el hilo de resumen periódico si todavía no existe
+     */
+    private static void iniciarResumidor() {
+        if (resumidor!=null || RESUMEN_SEG<=0) {
+            return;
+        }
+        synchronized (Hospitalizaciones.class) {
+            if (resumidor==null) {
+                resumidor=Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t=new Thread(r, "resumen-hospitalizaciones");
+                    t.setDaemon(true);
+                    return t;
+                });
+                resumidor.scheduleWithFixedDelay(Hospitalizaciones::resumirSilencioso,
+                        RESUMEN_SEG, RESUMEN_SEG, TimeUnit.SECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package gestpacientes;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Clase con el modo de escritura diferida de los incrementos de hospitalizaciones.
+ * En lugar de hacer un UPDATE por cada incremento, se suman en memoria por DNI
+ * y se vuelcan todos juntos con un UPDATE por lotes "nhosp = nhosp + ?" cada
+ * cierto tiempo, cuando hay demasiados DNI pendientes o al cerrar la aplicación.
+ *
+ * Los contadores pendientes se guardan en un mapa concurrente de AtomicLong, así
+ * que incrementar no bloquea. Junto a cada contador se guarda el momento de cada
+ * incremento, que se apunta en el historial de hospitalizaciones en la misma
+ * transacción que el UPDATE (ver Hospitalizaciones). Las consultas de detalles
+ * suman lo pendiente al valor de la base de datos; el volcado y esas consultas
+ * se coordinan con un cerrojo de lectura/escritura para que nunca se cuente un
+ * incremento dos veces ni se pierda.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.nhosp.diferido: si se usa este modo (por defecto false)
+ * - gestpacientes.nhosp.intervaloMs: milisegundos entre volcados (por defecto 1000)
+ * - gestpacientes.nhosp.umbral: número de DNI pendientes que fuerza un volcado (por defecto 1000)
+ * @author Adrián Romero Ramírez
+ */
+public class HospitalizacionesDiferidas {
+
+    private static final boolean ACTIVO=Boolean.parseBoolean(System.getProperty("gestpacientes.nhosp.diferido", "false"));
+    private static final long INTERVALO_MS=Long.getLong("gestpacientes.nhosp.intervaloMs", 1000);
+    private static final int UMBRAL=Integer.getInteger("gestpacientes.nhosp.umbral", 1000);
+
+    private static final String SQL_SUMAR="UPDATE PACIENTES SET nhosp = nhosp + ? WHERE dni = ?";
+    // Valor que marca un contador que ya se ha quitado del mapa
+    private static final long RETIRADO=Long.MIN_VALUE;
+    // Partición de los DNI que no se han guardado, porque ha fallado su partición o porque ya no existen
+    private static final int FALLIDO=-1;
+    private static final int BORRADO=-2;
+
+    // Incrementos pendientes de volcar por DNI
+    private static final Map<String, Pendiente> pendientes=new ConcurrentHashMap<>();
+    // Las consultas toman el cerrojo de lectura y el volcado el de escritura
+    private static final ReentrantReadWriteLock cerrojo=new ReentrantReadWriteLock();
+    // Hilo que vuelca los incrementos periódicamente, se crea con el primer incremento
+    private static volatile ScheduledExecutorService volcador;
+    private static final AtomicBoolean volcadoSolicitado=new AtomicBoolean();
+    private static boolean ganchoInstalado=false;
+
+    // Estadísticas
+    private static final AtomicLong incrementos=new AtomicLong();
+    private static final AtomicLong volcados=new AtomicLong();
+    private static final AtomicLong filasActualizadas=new AtomicLong();
+
+    /**
+     * Clase con los incrementos pendientes de un DNI
+     */
+    private static class Pendiente {
+        // Número de incrementos, o RETIRADO
+        final AtomicLong contador=new AtomicLong();
+        // Momento de cada incremento en milisegundos; se añade después de sumar
+        // el contador, así que puede faltar el de un incremento que se está sumando
+        final Queue<Long> instantes=new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private HospitalizacionesDiferidas() {
+    }
+
+    /**
+     * Método para saber si el modo diferido está activo
+     * @return true o false dependiendo si está activo
+     */
+    public static boolean isActivo() {
+        return ACTIVO;
+    }
+
+    /**
+     * Método que suma un incremento pendiente al DNI indicado
+     * @param dni DNI del paciente
+     */
+    public static void incrementar(String dni) {
+        iniciarVolcador();
+        long ahora=System.currentTimeMillis();
+        while (true) {
+            Pendiente p=pendientes.computeIfAbsent(dni, k -> new Pendiente());
+            long actual=p.contador.get();
+            // Si el volcado ha retirado el contador se vuelve a buscar uno nuevo
+            if (actual!=RETIRADO && p.contador.compareAndSet(actual, actual+1)) {
+                p.instantes.add(ahora);
+                break;
+            }
+        }
+        incrementos.incrementAndGet();
+        ScheduledExecutorService v=volcador;
+        if (v!=null && pendientes.size()>=UMBRAL && volcadoSolicitado.compareAndSet(false, true)) {
+            v.execute(HospitalizacionesDiferidas::volcarSilencioso);
+        }
+    }
+
+    /**
+     * Método que lee un paciente sumándole los incrementos pendientes. La lectura
+     * no se mezcla con un volcado en curso.
+     * @param dni DNI del paciente
+     * @param lectura método que lee el paciente de la base de datos o de la caché
+     * @return el paciente con el nhosp actualizado, o null si no existe
+     */
+    public static Paciente leer(String dni, Function<String, Paciente> lectura) {
+        cerrojo.readLock().lock();
+        try {
+            Paciente p=lectura.apply(dni);
+            Pendiente pe=pendientes.get(dni);
+            long pendiente=pe==null ? 0 : pe.contador.get();
+            if (p!=null && pendiente>0) {
+                p.setNhosp(p.getNhosp()+(int) pendiente);
+            }
+            return p;
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Método que descarta los incrementos pendientes de un paciente borrado
+     * @param dni DNI del paciente borrado
+     */
+    public static void descartar(String dni) {
+        Pendiente p=pendientes.get(dni);
+        if (p!=null) {
+            retirar(dni, p, 0);
+        }
+    }
+
+    /**
+     * Método que vuelca a la base de datos todos los incrementos pendientes en
+     * una transacción por partición, junto con sus filas del historial de
+     * hospitalizaciones. Si falla, los incrementos de la partición que ha
+     * fallado vuelven a quedar pendientes. Los incrementos de pacientes que se
+     * han borrado antes del volcado, cuyo UPDATE no cambia ninguna fila, se
+     * descartan sin apuntarlos en el historial ni en el diario.
+     * @return número de pacientes actualizados
+     * @throws SQLException Si falla la actualización
+     */
+    public static int volcar() throws SQLException {
+        cerrojo.writeLock().lock();
+        try {
+            volcadoSolicitado.set(false);
+            if (pendientes.isEmpty()) {
+                return 0;
+            }
+            // Se recogen los incrementos dejando los contadores a cero
+            long ahora=System.currentTimeMillis();
+            List<String> dnis=new ArrayList<>();
+            List<long[]> instantes=new ArrayList<>();
+            for (Map.Entry<String, Pendiente> e : pendientes.entrySet()) {
+                long[] delta=retirar(e.getKey(), e.getValue(), ahora);
+                if (delta.length>0) {
+                    dnis.add(e.getKey());
+                    instantes.add(delta);
+                }
+            }
+
+            // Cada partición guarda los suyos en su propia transacción
+            int particiones=Particiones.getTotal();
+            int[] particion=new int[dnis.size()];
+            for (int i=0; i<dnis.size(); i++) {
+                particion[i]=Particiones.indice(dnis.get(i));
+            }
+            SQLException error=null;
+            for (int p=0; p<particiones; p++) {
+                try (Connection con=Particiones.pool(p).obtener()) {
+                    con.setAutoCommit(false);
+                    try (PreparedStatement ps=con.prepareStatement(SQL_SUMAR);
+                         PreparedStatement historial=con.prepareStatement(Hospitalizaciones.SQL_REGISTRAR)) {
+                        List<Integer> enLote=new ArrayList<>();
+                        for (int i=0; i<dnis.size(); i++) {
+                            if (particion[i]==p) {
+                                ps.setLong(1, instantes.get(i).length);
+                                ps.setString(2, dnis.get(i));
+                                ps.addBatch();
+                                enLote.add(i);
+                            }
+                        }
+                        if (!enLote.isEmpty()) {
+                            int[] filas=ps.executeBatch();
+                            // El historial y el diario solo se apuntan de los pacientes que aún existen
+                            List<String> actualizados=new ArrayList<>(filas.length);
+                            DiarioCambios.Lote diario=new DiarioCambios.Lote();
+                            for (int k=0; k<filas.length; k++) {
+                                int i=enLote.get(k);
+                                if (filas[k]>0 || filas[k]==Statement.SUCCESS_NO_INFO) {
+                                    for (long t : instantes.get(i)) {
+                                        Hospitalizaciones.añadir(historial, dnis.get(i), t);
+                                    }
+                                    actualizados.add(dnis.get(i));
+                                    diario.hospitalizaciones(dnis.get(i), instantes.get(i).length);
+                                } else {
+                                    // El paciente se ha borrado después de comprobar su DNI
+                                    particion[i]=BORRADO;
+                                }
+                            }
+                            historial.executeBatch();
+                            // El commit y el diario van juntos para no desordenarse con las bajas de los mismos DNI
+                            try (DiarioCambios.Orden orden=DiarioCambios.ordenar(actualizados)) {
+                                con.commit();
+                                orden.anotar(diario);
+                            }
+                        }
+                    }
+                } catch (SQLException ex) {
+                    // Se devuelven los incrementos de la partición para no perderlos
+                    for (int i=0; i<dnis.size(); i++) {
+                        if (particion[i]==p || particion[i]==BORRADO && Particiones.indice(dnis.get(i))==p) {
+                            sumar(dnis.get(i), instantes.get(i));
+                            particion[i]=FALLIDO;
+                        }
+                    }
+                    if (error==null) {
+                        error=ex;
+                    }
+                }
+            }
+
+            // Los pacientes de la caché ya no tienen el nhosp de la base de datos
+            int guardados=0;
+            for (int i=0; i<dnis.size(); i++) {
+                if (particion[i]>=0) {
+                    CachePacientes.invalidar(dnis.get(i));
+                    guardados++;
+                }
+            }
+            filasActualizadas.addAndGet(guardados);
+            if (error!=null) {
+                throw error;
+            }
+            volcados.incrementAndGet();
+            return guardados;
+        } finally {
+            cerrojo.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Método que vuelca los incrementos pendientes y para el volcado periódico.
+     * Se llama al cerrar el pool de conexiones.
+     */
+    public static void cerrar() {
+        synchronized (HospitalizacionesDiferidas.class) {
+            if (volcador!=null) {
+                volcador.shutdown();
+                volcador=null;
+            }
+        }
+        volcarSilencioso();
+    }
+
+    /**
+     * Método para obtener el número de DNI con incrementos pendientes
+     * @return DNI pendientes
+     */
+    public static int getPendientes() {
+        return pendientes.size();
+    }
+
+    /**
+     * Método que crea un String con las estadísticas del modo diferido
+     * @return String con las estadísticas
+     */
+    public static String estadisticas() {
+        long v=volcados.get();
+        return String.format("HospitalizacionesDiferidas[activo=%b, pendientes=%d, incrementos=%d, volcados=%d, "
+                + "filasActualizadas=%d, incrementosPorFila=%.2f]",
+                ACTIVO, pendientes.size(), incrementos.get(), v, filasActualizadas.get(),
+                filasActualizadas.get()==0 ? 0.0 : (double) (incrementos.get()-pendientesTotales())/filasActualizadas.get());
+    }
+
+    /**
+     * Método que retira un contador del mapa y recoge el momento de sus incrementos
+     * @param dni DNI del contador
+     * @param p incrementos a retirar
+     * @param ahora momento que se pone a los incrementos que aún no tienen el suyo
+     * @return el momento de cada incremento que tenía el contador
+     */
+    private static long[] retirar(String dni, Pendiente p, long ahora) {
+        long delta=p.contador.getAndSet(RETIRADO);
+        pendientes.remove(dni, p);
+        long[] instantes=new long[delta==RETIRADO ? 0 : (int) delta];
+        for (int i=0; i<instantes.length; i++) {
+            Long t=p.instantes.poll();
+            instantes[i]=t==null ? ahora : t;
+        }
+        return instantes;
+    }
+
+    /**
+     * Método que vuelve a dejar pendientes varios incrementos de un DNI
+     * @param dni DNI del paciente
+     * @param instantes momento de cada incremento
+     */
+    private static void sumar(String dni, long[] instantes) {
+        while (true) {
+            Pendiente p=pendientes.computeIfAbsent(dni, k -> new Pendiente());
+            long actual=p.contador.get();
+            if (actual!=RETIRADO && p.contador.compareAndSet(actual, actual+instantes.length)) {
+                for (long t : instantes) {
+                    p.instantes.add(t);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Método que suma todos los incrementos pendientes
+     * @return incrementos pendientes de volcar
+     */
+    private static long pendientesTotales() {
+        long total=0;
+        for (Pendiente p : pendientes.values()) {
+            long v=p.contador.get();
+            if (v!=RETIRADO) {
+                total+=v;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Método que vuelca los incrementos mostrando un mensaje si falla
+     */
+    private static void volcarSilencioso() {
+        try {
+            volcar();
+        } catch (SQLException ex) {
+            System.out.println("No se han podido guardar los incrementos de hospitalizaciones pendientes.");
+        }
+    }
+
+    /**
+     * Método que crea el hilo de volcado periódico si todavía no existe
+     */
+    private static void iniciarVolcador() {
+        if (volcador!=null) {
+            return;
+        }
+        synchronized (HospitalizacionesDiferidas.class) {
+            if (volcador==null) {
+                volcador=Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t=new Thread(r, "volcado-hospitalizaciones");
+                    t.setDaemon(true);
+                    return t;
+                });
+                volcador.scheduleWithFixedDelay(HospitalizacionesDiferidas::volcarSilencioso,
+                        INTERVALO_MS, INTERVALO_MS, TimeUnit.MILLISECONDS);
+                // Si la aplicación termina sin cerrar el pool también se vuelca lo pendiente
+                if (!ganchoInstalado) {
+                    Runtime.getRuntime().addShutdownHook(new Thread(HospitalizacionesDiferidas::volcarSilencioso,
+                            "volcado-hospitalizaciones-final"));
+                    ganchoInstalado=true;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,642 @@
+package gestpacientes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Clase que importa pacientes de forma masiva desde un archivo CSV o JSON-lines.
+ * El archivo se lee por bloques; cada bloque se valida en paralelo con las
+ * mismas reglas que la alta por teclado y se guarda en una transacción con
+ * addBatch/executeBatch mientras se lee y valida el bloque siguiente.
+ *
+ * Las filas rechazadas se escriben en el archivo "origen.errores" y el número de
+ * líneas ya procesadas en "origen.progreso", de forma que si la importación se
+ * interrumpe, al repetirla continúa donde se quedó.
+ *
+ * Formatos admitidos (uno por línea):
+ *
+ * - CSV: dni,nombre,apellidos,fecha_nacimiento (la cabecera es opcional)
+ * - JSON-lines: {"dni":"...","nombre":"...","apellidos":"...","fecha_nacimiento":"..."}
+ * @author Adrián Romero Ramírez
+ */
+public class ImportadorPacientes {
+
+    // Archivos de origen, errores y progreso
+    private final Path origen;
+    private final Path errores;
+    private final Path progreso;
+    // Filas por transacción
+    private final int tamañoLote;
+    // Hilos para la validación
+    private final ForkJoinPool validadores;
+    // true si el archivo es JSON-lines y false si es CSV
+    private final boolean json;
+
+    /**
+     * Constructor con parametros de la clase
+     * @param origen Archivo que se quiere importar
+     * @param tamañoLote Número de filas que se guardan en cada transacción
+     * @param hilos Número de hilos para validar las filas
+     * @throws IllegalArgumentException Si el tamaño de lote o los hilos no son positivos
+     */
+    public ImportadorPacientes(Path origen, int tamañoLote, int hilos) throws IllegalArgumentException {
+        if (tamañoLote<1 || hilos<1) {
+            throw new IllegalArgumentException("El tamaño de lote y el número de hilos deben ser positivos.");
+        }
+        this.origen=origen;
+        this.errores=Paths.get(origen+".errores");
+        this.progreso=Paths.get(origen+".progreso");
+        this.tamañoLote=tamañoLote;
+        this.validadores=new ForkJoinPool(hilos);
+        String nombre=origen.getFileName().toString().toLowerCase();
+        this.json=nombre.endsWith(".jsonl") || nombre.endsWith(".json") || nombre.endsWith(".ndjson");
+    }
+
+    /**
+     * Método que importa el archivo entero, continuando desde el último progreso
+     * guardado si lo hay
+     * @return el resultado de la importación
+     * @throws IOException Si hay problemas leyendo o escribiendo los archivos
+     * @throws SQLException Si hay problemas con la base de datos
+     */
+    public Resultado importar() throws IOException, SQLException {
+        long yaProcesadas=leerProgreso();
+        Resultado res=new Resultado(yaProcesadas);
+        if (yaProcesadas>0) {
+            System.out.printf("Continuando la importación desde la línea %d.\n", yaProcesadas+1);
+        }
+
+        try (BufferedReader br=Files.newBufferedReader(origen, StandardCharsets.UTF_8);
+             BufferedWriter bwErr=Files.newBufferedWriter(errores, StandardCharsets.UTF_8,
+                     StandardOpenOption.CREATE, yaProcesadas>0 ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+             Particiones.Transaccion tx=new Particiones.Transaccion()) {
+
+            // Se saltan las líneas que ya se importaron en una ejecución anterior
+            for (long i=0; i<yaProcesadas && br.readLine()!=null; i++) {
+                // Solo se avanza en el archivo
+            }
+            Lector lector=new Lector(br, yaProcesadas);
+            // El primer bloque se lee y valida antes de empezar a escribir
+            CompletableFuture<Bloque> siguiente=CompletableFuture.supplyAsync(lector::siguienteBloque, validadores);
+            Bloque bloque;
+            while ((bloque=esperar(siguiente)).lineas>0) {
+                // Mientras se guarda este bloque se prepara el siguiente
+                siguiente=CompletableFuture.supplyAsync(lector::siguienteBloque, validadores);
+                guardar(tx, bloque, bwErr, res);
+                guardarProgreso(bloque.ultimaLinea);
+                res.mostrar();
+            }
+        } finally {
+            validadores.shutdown();
+        }
+
+        // Si todo ha ido bien ya no hace falta el progreso
+        Files.deleteIfExists(progreso);
+        if (res.rechazadas==0) {
+            Files.deleteIfExists(errores);
+        }
+        return res;
+    }
+
+    /**
+     * Método que guarda las filas válidas de un bloque en una transacción por
+     * partición. Si el lote de una partición falla, se deshace y se repite fila a
+     * fila para rechazar solo las malas.
+     * @param tx Transacciones con las particiones
+     * @param bloque Bloque de filas validadas
+     * @param bwErr Archivo de errores
+     * @param res Resultado donde se acumulan los contadores
+     * @throws IOException Si no se puede escribir en el archivo de errores
+     * @throws SQLException Si falla la conexión con la base de datos
+     */
+    private void guardar(Particiones.Transaccion tx, Bloque bloque, BufferedWriter bwErr, Resultado res) throws IOException, SQLException {
+        List<Fila> validas=new ArrayList<>();
+        for (Fila f : bloque.filas) {
+            if (f.error==null) {
+                validas.add(f);
+            } else {
+                rechazar(bwErr, f, f.error, res);
+            }
+        }
+
+        List<List<Fila>> porParticion=new ArrayList<>();
+        for (int i=0; i<tx.getTotal(); i++) {
+            porParticion.add(new ArrayList<>());
+        }
+        for (Fila f : validas) {
+            porParticion.get(tx.indice(f.dni)).add(f);
+        }
+        for (int i=0; i<tx.getTotal(); i++) {
+            if (!porParticion.get(i).isEmpty()) {
+                guardarParticion(tx.de(i), porParticion.get(i), bwErr, res);
+            }
+        }
+
+        // Los DNI guardados se añaden al filtro para que las altas siguientes los vean
+        boolean instantanea=InstantaneaPacientes.actual()!=null;
+        boolean buscador=BuscadorPacientes.isActivo();
+        for (Fila f : validas) {
+            if (f.error==null) {
+                FiltroDni.añadido(f.dni);
+                if (instantanea || buscador) {
+                    if (instantanea) {
+                        InstantaneaPacientes.insertado(f.paciente);
+                    }
+                    if (buscador) {
+                        BuscadorPacientes.insertado(f.paciente);
+                    }
+                }
+            }
+        }
+        res.procesadas=bloque.ultimaLinea;
+        // Los errores se guardan en disco antes de apuntar el progreso
+        bwErr.flush();
+    }
+
+    /**
+     * Método que guarda en una transacción las filas de una partición. Si el
+     * lote falla, se deshace y se repite fila a fila para rechazar solo las malas.
+     * @param con Conexión con la partición, sin autocommit
+     * @param filas Filas válidas de la partición; a las rechazadas se les pone el error
+     * @param bwErr Archivo de errores
+     * @param res Resultado donde se acumulan los contadores
+     * @throws IOException Si no se puede escribir en el archivo de errores
+     * @throws SQLException Si falla la conexión con la base de datos
+     */
+    private static void guardarParticion(Connection con, List<Fila> filas, BufferedWriter bwErr, Resultado res)
+            throws IOException, SQLException {
+        try (PreparedStatement ps=con.prepareStatement(PacientesDAO.SQL_INSERT)) {
+            try {
+                for (Fila f : filas) {
+                    FilasPacientes.insertar(ps, f.paciente);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                confirmar(con, filas);
+                res.importadas+=filas.size();
+            } catch (BatchUpdateException ex) {
+                // Se repite fila a fila para saber cuáles fallan
+                con.rollback();
+                ps.clearBatch();
+                for (Fila f : filas) {
+                    try {
+                        FilasPacientes.insertar(ps, f.paciente);
+                        ps.executeUpdate();
+                        res.importadas++;
+                    } catch (SQLException exFila) {
+                        f.error="Error en la base de datos: "+exFila.getMessage().split("\n")[0];
+                        rechazar(bwErr, f, f.error, res);
+                    }
+                }
+                confirmar(con, filas);
+            }
+        }
+    }
+
+    /**
+     * Método que confirma las altas de una partición y las apunta en el diario
+     * de cambios. El commit y la entrada en el diario van juntos para que no se
+     * desordenen con otros cambios de los mismos DNI.
+     * @param con Conexión con la partición, sin autocommit
+     * @param filas Filas de la partición; las que tienen error no se han guardado
+     * @throws SQLException Si no se puede confirmar
+     */
+    private static void confirmar(Connection con, List<Fila> filas) throws SQLException {
+        if (!DiarioCambios.isActivo()) {
+            con.commit();
+            return;
+        }
+        List<String> dnis=new ArrayList<>(filas.size());
+        DiarioCambios.Lote lote=new DiarioCambios.Lote();
+        for (Fila f : filas) {
+            if (f.error==null) {
+                dnis.add(f.dni);
+                lote.alta(f.paciente);
+            }
+        }
+        try (DiarioCambios.Orden orden=DiarioCambios.ordenar(dnis)) {
+            con.commit();
+            orden.anotar(lote);
+        }
+    }
+
+    /**
+     * Método que escribe una fila rechazada en el archivo de errores
+     * @param bwErr Archivo de errores
+     * @param f Fila rechazada
+     * @param motivo Motivo del rechazo
+     * @param res Resultado donde se cuentan los rechazos
+     * @throws IOException Si no se puede escribir
+     */
+    private static void rechazar(BufferedWriter bwErr, Fila f, String motivo, Resultado res) throws IOException {
+        bwErr.write(f.numLinea+"\t"+motivo+"\t"+f.linea);
+        bwErr.newLine();
+        res.rechazadas++;
+    }
+
+    /**
+     * Método que lee cuántas líneas se procesaron en una ejecución anterior
+     * @return número de líneas procesadas, 0 si no hay progreso guardado
+     * @throws IOException Si no se puede leer el archivo de progreso
+     */
+    private long leerProgreso() throws IOException {
+        if (!Files.exists(progreso)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(progreso), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("El archivo de progreso "+progreso+" está dañado.", ex);
+        }
+    }
+
+    /**
+     * Método que guarda el número de líneas procesadas, sustituyendo el archivo
+     * de una vez para que nunca quede a medias
+     * @param lineas Número de líneas procesadas
+     * @throws IOException Si no se puede escribir el archivo de progreso
+     */
+    private void guardarProgreso(long lineas) throws IOException {
+        Path tmp=Paths.get(progreso+".tmp");
+        Files.write(tmp, Long.toString(lineas).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, progreso, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Método que espera a que termine la lectura de un bloque
+     * @param futuro Lectura en curso
+     * @return el bloque leído y validado
+     * @throws IOException Si ha fallado la lectura del archivo
+     */
+    private static Bloque esperar(CompletableFuture<Bloque> futuro) throws IOException {
+        try {
+            return futuro.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Importación interrumpida.", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) ex.getCause()).getCause();
+            }
+            throw new IOException("Error leyendo el archivo.", ex.getCause());
+        }
+    }
+
+    /**
+     * Método que valida los datos de una fila con las mismas reglas que la alta
+     * por teclado, además de los tamaños de las columnas de la tabla. Si es
+     * válida, deja el DNI en la forma en que se guarda y crea el paciente, con
+     * la fecha ya convertida para guardarla en su columna DATE.
+     * @param f Fila que se quiere validar
+     * @return el motivo del rechazo, o null si es válida
+     */
+    static String validar(Fila f) {
+        if (f.dni==null || f.nombre==null || f.apellidos==null || f.fechaNacimiento==null) {
+            return "Faltan campos";
+        }
+        if (!GestionPacientes.esDniValido(f.dni)) {
+            return "DNI no válido";
+        }
+        if (f.nombre.isEmpty() || f.nombre.length()>50) {
+            return "Nombre vacío o de más de 50 caracteres";
+        }
+        if (f.apellidos.isEmpty() || f.apellidos.length()>100) {
+            return "Apellidos vacíos o de más de 100 caracteres";
+        }
+        if (!Aplicacion.verifyDate(f.fechaNacimiento)) {
+            return "Fecha no válida";
+        }
+        // Los NIE se guardan como en la alta por teclado
+        f.dni=GestionPacientes.normalizarDni(f.dni);
+        f.paciente=new Paciente(f.dni, f.nombre, f.apellidos, f.fechaNacimiento);
+        return null;
+    }
+
+    /**
+     * Método que separa los campos de una línea CSV, admitiendo campos entre
+     * comillas dobles con comas o comillas duplicadas dentro
+     * @param linea Línea del archivo
+     * @return lista de campos
+     */
+    static List<String> camposCsv(String linea) {
+        List<String> campos=new ArrayList<>(4);
+        StringBuilder sb=new StringBuilder();
+        boolean comillas=false;
+        for (int i=0; i<linea.length(); i++) {
+            char c=linea.charAt(i);
+            if (comillas) {
+                if (c=='"' && i+1<linea.length() && linea.charAt(i+1)=='"') {
+                    sb.append('"');
+                    i++;
+                } else if (c=='"') {
+                    comillas=false;
+                } else {
+                    sb.append(c);
+                }
+            } else if (c=='"') {
+                comillas=true;
+            } else if (c==',') {
+                campos.add(sb.toString().trim());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        campos.add(sb.toString().trim());
+        return campos;
+    }
+
+    /**
+     * Método que lee el valor de texto de una clave en una línea JSON plana
+     * @param linea Objeto JSON en una línea
+     * @param clave Clave que se busca
+     * @return el valor de la clave, o null si no está o no es un texto JSON válido
+     */
+    static String campoJson(String linea, String clave) {
+        int i=linea.indexOf("\""+clave+"\"");
+        if (i<0) {
+            return null;
+        }
+        i=linea.indexOf(':', i+clave.length()+2);
+        if (i<0) {
+            return null;
+        }
+        // Se salta el espacio hasta el inicio del valor
+        i++;
+        while (i<linea.length() && Character.isWhitespace(linea.charAt(i))) {
+            i++;
+        }
+        if (i>=linea.length() || linea.charAt(i)!='"') {
+            return null;
+        }
+        StringBuilder sb=new StringBuilder();
+        for (i++; i<linea.length(); i++) {
+            char c=linea.charAt(i);
+            if (c=='"') {
+                return sb.toString();
+            }
+            if (c=='\\' && i+1<linea.length()) {
+                char e=linea.charAt(++i);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        // Un escape mal formado deja el campo sin valor, como si faltara
+                        if (i+4>=linea.length()) {
+                            return null;
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(linea.substring(i+1, i+5), 16));
+                        } catch (NumberFormatException ex) {
+                            return null;
+                        }
+                        i+=4;
+                        break;
+                    default: sb.append(e);
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Método principal para lanzar la importación desde la línea de comandos
+     * @param args archivo [filas por transacción] [hilos de validación]
+     */
+    public static void main(String[] args) {
+        if (args.length<1) {
+            System.err.println("Uso: ImportadorPacientes archivo.csv|archivo.jsonl [filasPorTransaccion] [hilos]");
+            return;
+        }
+        int lote=args.length>1 ? Integer.parseInt(args[1]) : 5000;
+        int hilos=args.length>2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        try (Connection con=Aplicacion.getPool().obtener()) {
+            if (!Aplicacion.createTables(con)) {
+                return;
+            }
+        } catch (SQLException ex) {
+            System.err.println("No se pudo conectar a la base de datos.");
+            return;
+        }
+        if (!Particiones.comprobar() || !ServidorBD.seguirCambios()) {
+            Aplicacion.cerrarPool();
+            return;
+        }
+        FiltroDni.construir();
+        try {
+            Resultado res=new ImportadorPacientes(Paths.get(args[0]), lote, hilos).importar();
+            System.out.println("Importación terminada. "+res);
+        } catch (IOException | SQLException ex) {
+            System.err.println("La importación se ha detenido: "+ex.getMessage());
+            System.err.println("Vuelve a lanzarla para continuar desde el último bloque guardado.");
+        } finally {
+            Aplicacion.cerrarPool();
+        }
+    }
+
+    /**
+     * Clase que lee el archivo por bloques y valida cada bloque en paralelo.
+     * Solo hay un bloque leyéndose a la vez, así que no necesita sincronización.
+     */
+    private class Lector {
+        private final BufferedReader br;
+        private long numLinea;
+        private boolean primera=true;
+
+        Lector(BufferedReader br, long numLinea) {
+            this.br=br;
+            this.numLinea=numLinea;
+        }
+
+        /**
+         * Método que lee y valida el siguiente bloque de líneas
+         * @return el bloque, con 0 líneas si se ha llegado al final
+         */
+        Bloque siguienteBloque() {
+            List<Fila> filas=new ArrayList<>(tamañoLote);
+            int lineas=0;
+            try {
+                String linea;
+                while (filas.size()<tamañoLote && (linea=br.readLine())!=null) {
+                    numLinea++;
+                    lineas++;
+                    boolean cabecera=primera && !json && linea.toLowerCase().startsWith("dni");
+                    primera=false;
+                    if (!cabecera && !linea.trim().isEmpty()) {
+                        filas.add(new Fila(numLinea, linea));
+                    }
+                }
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+
+            // La separación de campos y la validación se hacen en paralelo
+            filas.parallelStream().forEach(f -> {
+                f.separar(json);
+                f.error=validar(f);
+            });
+            // Los DNI repetidos dentro del archivo o ya guardados se rechazan
+            Set<String> vistos=new HashSet<>();
+            List<Fila> candidatas=filas.stream().filter(f -> f.error==null).collect(Collectors.toList());
+            for (Fila f : candidatas) {
+                if (!vistos.add(f.dni)) {
+                    f.error="DNI repetido en el archivo";
+                }
+            }
+            candidatas.parallelStream().filter(f -> f.error==null).forEach(f -> {
+                if (PacientesDAO.comprobarDni(f.dni)) {
+                    f.error="Ya existe un paciente con el mismo DNI";
+                }
+            });
+            return new Bloque(filas, lineas, numLinea);
+        }
+    }
+
+    /**
+     * Clase que representa un bloque de filas leídas y validadas
+     */
+    private static class Bloque {
+        private final List<Fila> filas;
+        private final int lineas;
+        private final long ultimaLinea;
+
+        Bloque(List<Fila> filas, int lineas, long ultimaLinea) {
+            this.filas=filas;
+            this.lineas=lineas;
+            this.ultimaLinea=ultimaLinea;
+        }
+    }
+
+    /**
+     * Clase que representa una línea del archivo con sus campos
+     */
+    static class Fila {
+        final long numLinea;
+        final String linea;
+        String dni;
+        String nombre;
+        String apellidos;
+        String fechaNacimiento;
+        // Paciente de la fila, creado al validarla
+        Paciente paciente;
+        String error;
+
+        Fila(long numLinea, String linea) {
+            this.numLinea=numLinea;
+            this.linea=linea;
+        }
+
+        /**
+         * Método que separa la línea en campos según el formato
+         * @param json true si la línea es JSON y false si es CSV
+         */
+        void separar(boolean json) {
+            if (json) {
+                dni=campoJson(linea, "dni");
+                nombre=campoJson(linea, "nombre");
+                apellidos=campoJson(linea, "apellidos");
+                fechaNacimiento=campoJson(linea, "fecha_nacimiento");
+            } else {
+                List<String> campos=camposCsv(linea);
+                if (campos.size()==4) {
+                    dni=campos.get(0);
+                    nombre=campos.get(1);
+                    apellidos=campos.get(2);
+                    fechaNacimiento=campos.get(3);
+                }
+            }
+        }
+    }
+
+    /**
+     * Clase que representa el resultado de una importación
+     */
+    public static class Resultado {
+        private final long inicio=System.nanoTime();
+        private final long procesadasAntes;
+        private long procesadas;
+        private long importadas;
+        private long rechazadas;
+
+        Resultado(long procesadasAntes) {
+            this.procesadasAntes=procesadasAntes;
+            this.procesadas=procesadasAntes;
+        }
+
+        /**
+         * Método para obtener el número de líneas procesadas del archivo
+         * @return líneas procesadas, incluidas las de ejecuciones anteriores
+         */
+        public long getProcesadas() {
+            return procesadas;
+        }
+
+        /**
+         * Método para obtener el número de pacientes guardados en esta ejecución
+         * @return pacientes importados
+         */
+        public long getImportadas() {
+            return importadas;
+        }
+
+        /**
+         * Método para obtener el número de filas rechazadas en esta ejecución
+         * @return filas rechazadas
+         */
+        public long getRechazadas() {
+            return rechazadas;
+        }
+
+        /**
+         * Método para obtener la velocidad de la importación
+         * @return líneas procesadas por segundo en esta ejecución
+         */
+        public double getFilasPorSegundo() {
+            double seg=(System.nanoTime()-inicio)/1e9;
+            return seg==0 ? 0 : (procesadas-procesadasAntes)/seg;
+        }
+
+        /**
+         * Método que muestra el progreso por pantalla
+         */
+        void mostrar() {
+            System.out.printf("Procesadas %d líneas (%d importadas, %d rechazadas) a %.0f filas/s\n",
+                    procesadas, importadas, rechazadas, getFilasPorSegundo());
+        }
+
+        /**
+         * Metodo que crea un String con el resultado
+         * @return String con los contadores y la velocidad
+         */
+        @Override
+        public String toString() {
+            return String.format("Líneas procesadas: %d, importadas: %d, rechazadas: %d, %.0f filas/s",
+                    procesadas, importadas, rechazadas, getFilasPorSegundo());
+        }
+    }
+}
@@ -0,0 +1,776 @@
+package gestpacientes;
+
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Clase que representa una instantánea de la tabla PACIENTES en memoria para
+ * hacer informes sin recorrer la tabla ni crear un objeto Paciente por fila.
+ * Los datos se guardan por columnas en arrays de tipos primitivos:
+ *
+ * - dniNumero: número del DNI; en los NIE se le suma 100000000 con la letra
+ *   inicial cambiada por 0, 1 o 2, y los DNI que no tienen ninguno de los dos
+ *   formatos guardan en negativo su código en un diccionario
+ * - dniLetra: letra de control del DNI
+ * - nombre, apellido1, apellido2: códigos de los textos en un diccionario, así
+ *   cada nombre o apellido repetido se guarda una sola vez
+ * - fechaNacimiento: fecha en días desde el 1/1/1970
+ * - nhosp: número de hospitalizaciones
+ *
+ * Los recuentos recorren las columnas en paralelo con fork/join en bucles
+ * simples sobre arrays, que el compilador JIT puede vectorizar. Las inserciones,
+ * borrados e incrementos de PacientesDAO se aplican también a la instantánea,
+ * así que no hace falta volver a construirla; los cambios hechos mientras se
+ * está construyendo pueden no verse hasta la siguiente construcción.
+ * @author Adrián Romero Ramírez
+ */
+public class InstantaneaPacientes {
+
+    // Número de filas por debajo del cual un recuento no se divide más
+    private static final int UMBRAL_PARALELO=Integer.getInteger("gestpacientes.instantanea.umbral", 1<<15);
+    // Edad máxima que se distingue, las mayores se cuentan con ella
+    private static final int EDAD_MAXIMA=150;
+    // Desplazamiento del número de los NIE para no confundirlos con los DNI
+    private static final int BASE_NIE=100_000_000;
+    private static final String SQL_TODOS="SELECT dni, nombre, apellidos, fecha_nacimiento, nhosp FROM PACIENTES";
+
+    // Instantánea en uso, null mientras no se haya construido
+    private static volatile InstantaneaPacientes actual;
+
+    // Columnas, con datos en las posiciones de 0 a filas-1
+    private int filas;
+    private int[] dniNumero;
+    private byte[] dniLetra;
+    private int[] nombre;
+    private int[] apellido1;
+    private int[] apellido2;
+    private int[] fechaNacimiento;
+    private int[] nhosp;
+
+    // Diccionarios de los textos y de los DNI sin formato reconocido
+    private final Diccionario nombres=new Diccionario();
+    private final Diccionario apellidos=new Diccionario();
+    private final Diccionario dniIrregulares=new Diccionario();
+    // Posición de cada DNI en las columnas
+    private final IndiceDni indice;
+    // Los recuentos toman el cerrojo de lectura y las modificaciones el de escritura
+    private final ReentrantReadWriteLock cerrojo=new ReentrantReadWriteLock();
+
+    /**
+     * Constructor con parametros de la clase
+     * @param capacidad número de filas previsto
+     */
+    InstantaneaPacientes(int capacidad) {
+        int c=Math.max(16, capacidad);
+        dniNumero=new int[c];
+        dniLetra=new byte[c];
+        nombre=new int[c];
+        apellido1=new int[c];
+        apellido2=new int[c];
+        fechaNacimiento=new int[c];
+        nhosp=new int[c];
+        indice=new IndiceDni(c);
+    }
+
+    /**
+     * Método que construye una instantánea con todos los pacientes de la base de
+     * datos y la deja como instantánea en uso
+     * @return la instantánea, o null si no se ha podido construir
+     */
+    public static synchronized InstantaneaPacientes construir() {
+        if (HospitalizacionesDiferidas.isActivo()) {
+            // Se guardan antes los incrementos pendientes para leer los valores actuales
+            try {
+                HospitalizacionesDiferidas.volcar();
+            } catch (SQLException ex) {
+                System.out.println("No se han podido guardar los incrementos de hospitalizaciones pendientes.");
+            }
+        }
+        try {
+            // Se cuentan los pacientes de todas las particiones
+            int total=(int) Particiones.sumar("SELECT COUNT(*) FROM PACIENTES");
+            InstantaneaPacientes nueva=new InstantaneaPacientes(total);
+            // Si hay un volcado válido los pacientes se leen de él en vez de la tabla
+            if (!VolcadoPacientes.cargar(nueva::poner)) {
+                Particiones.recorrer(SQL_TODOS, 1000, rs -> nueva.poner(rs.getString(1), rs.getString(2), rs.getString(3),
+                        (int) FilasPacientes.fecha(rs, 4).toEpochDay(), rs.getInt(5)));
+            }
+            actual=nueva;
+            return nueva;
+        } catch (SQLException ex) {
+            System.out.println("No se ha podido construir la instantánea de pacientes.");
+            return null;
+        }
+    }
+
+    /**
+     * Método que devuelve la instantánea en uso
+     * @return la instantánea, o null si no se ha construido
+     */
+    public static InstantaneaPacientes actual() {
+        return actual;
+    }
+
+    /**
+     * Método que deja de usar la instantánea para liberar su memoria
+     */
+    public static void descartar() {
+        actual=null;
+    }
+
+    /**
+     * Método que añade a la instantánea en uso un paciente recién insertado
+     * @param p paciente insertado
+     */
+    public static void insertado(Paciente p) {
+        InstantaneaPacientes i=actual;
+        if (i!=null) {
+            i.cerrojo.writeLock().lock();
+            try {
+                i.poner(p.getDni(), p.getNombre(), p.getApellidos(),
+                        (int) p.getFechaNacimiento().toEpochDay(), p.getNhosp());
+            } finally {
+                i.cerrojo.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Método que quita de la instantánea en uso un paciente borrado
+     * @param dni DNI del paciente borrado
+     */
+    public static void borrado(String dni) {
+        InstantaneaPacientes i=actual;
+        if (i!=null) {
+            i.cerrojo.writeLock().lock();
+            try {
+                i.quitar(dni);
+            } finally {
+                i.cerrojo.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Método que suma una hospitalización en la instantánea en uso
+     * @param dni DNI del paciente
+     */
+    public static void incrementado(String dni) {
+        InstantaneaPacientes i=actual;
+        if (i!=null) {
+            i.cerrojo.writeLock().lock();
+            try {
+                int fila=i.buscar(dni);
+                if (fila>=0) {
+                    i.nhosp[fila]++;
+                }
+            } finally {
+                i.cerrojo.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Método para obtener el número de pacientes de la instantánea
+     * @return número de pacientes
+     */
+    public int getFilas() {
+        cerrojo.readLock().lock();
+        try {
+            return filas;
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Método que cuenta los pacientes por grupos de edad a fecha de hoy
+     * @param anchoAños años de cada grupo; el grupo i es el de edades entre i*anchoAños e (i+1)*anchoAños-1
+     * @return número de pacientes de cada grupo
+     */
+    public long[] distribucionEdades(int anchoAños) {
+        if (anchoAños<1) {
+            throw new IllegalArgumentException("El ancho de los grupos de edad debe ser positivo.");
+        }
+        // Edad de un paciente nacido hace d días, para no hacer cálculos de fechas por fila
+        LocalDate hoy=LocalDate.now();
+        int diaHoy=(int) hoy.toEpochDay();
+        byte[] edadPorDias=new byte[diaHoy-(int) hoy.minusYears(EDAD_MAXIMA).toEpochDay()];
+        for (int edad=0; edad<EDAD_MAXIMA; edad++) {
+            int desde=diaHoy-(int) hoy.minusYears(edad).toEpochDay();
+            int hasta=diaHoy-(int) hoy.minusYears(edad+1).toEpochDay();
+            Arrays.fill(edadPorDias, desde, hasta, (byte) edad);
+        }
+        cerrojo.readLock().lock();
+        try {
+            int[] fechas=fechaNacimiento;
+            return contar(EDAD_MAXIMA/anchoAños+1, (desde, hasta, cuenta) -> {
+                for (int i=desde; i<hasta; i++) {
+                    int d=diaHoy-fechas[i];
+                    // Las fechas futuras cuentan como edad 0 y las muy antiguas como la máxima;
+                    // las edades se guardan sin signo porque pasan de 127
+                    int edad=d<0 ? 0 : d>=edadPorDias.length ? EDAD_MAXIMA : edadPorDias[d]&0xFF;
+                    cuenta[edad/anchoAños]++;
+                }
+            });
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Método que cuenta los pacientes por número de hospitalizaciones
+     * @param maximo número de hospitalizaciones del último grupo, que incluye también los que tienen más
+     * @return número de pacientes con 0, 1, ..., maximo o más hospitalizaciones
+     */
+    public long[] histogramaHospitalizaciones(int maximo) {
+        if (maximo<0) {
+            throw new IllegalArgumentException("El máximo no puede ser negativo.");
+        }
+        cerrojo.readLock().lock();
+        try {
+            int[] n=nhosp;
+            return contar(maximo+1, (desde, hasta, cuenta) -> {
+                for (int i=desde; i<hasta; i++) {
+                    cuenta[Math.max(0, Math.min(n[i], maximo))]++;
+                }
+            });
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Método que devuelve los pacientes con más hospitalizaciones
+     * @param n número de pacientes que se quieren
+     * @return los n pacientes con más hospitalizaciones, de más a menos
+     */
+    public List<Paciente> topHospitalizaciones(int n) {
+        cerrojo.readLock().lock();
+        try {
+            if (n<1 || filas==0) {
+                return new ArrayList<>();
+            }
+            MejoresN mejores=ForkJoinPool.commonPool().invoke(new TareaMejores(0, filas, n));
+            int[] orden=mejores.ordenados();
+            List<Paciente> lista=new ArrayList<>(orden.length);
+            for (int fila : orden) {
+                lista.add(paciente(fila));
+            }
+            return lista;
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Método que calcula los bytes aproximados que ocupan las columnas, el
+     * índice y los diccionarios
+     * @return bytes ocupados
+     */
+    public long memoriaBytes() {
+        cerrojo.readLock().lock();
+        try {
+            long columnas=(long) dniNumero.length*(4+1+4+4+4+4+4);
+            return columnas+indice.memoriaBytes()+nombres.memoriaBytes()
+                    +apellidos.memoriaBytes()+dniIrregulares.memoriaBytes();
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Metodo que crea un String con el tamaño de la instantánea
+     * @return String con las filas, los textos distintos y la memoria
+     */
+    @Override
+    public String toString() {
+        cerrojo.readLock().lock();
+        try {
+            return String.format("Instantanea[filas=%d, nombres=%d, apellidos=%d, memoria=%.1f MB]",
+                    filas, nombres.tamaño(), apellidos.tamaño(), memoriaBytes()/1048576.0);
+        } finally {
+            cerrojo.readLock().unlock();
+        }
+    }
+
+    /**
+     * Interfaz de un recuento sobre un rango de filas
+     */
+    private interface Recuento {
+        /**
+         * Método que cuenta las filas del rango en el array de cuentas
+         * @param desde primera fila
+         * @param hasta fila siguiente a la última
+         * @param cuenta cuentas de cada grupo
+         */
+        void contar(int desde, int hasta, long[] cuenta);
+    }
+
+    /**
+     * Método que hace un recuento en paralelo dividiendo las filas en trozos.
+     * Hay que llamarlo con el cerrojo de lectura tomado.
+     * @param grupos número de grupos del recuento
+     * @param recuento recuento a hacer en cada trozo
+     * @return cuentas de cada grupo sumando todos los trozos
+     */
+    private long[] contar(int grupos, Recuento recuento) {
+        return ForkJoinPool.commonPool().invoke(new TareaRecuento(0, filas, grupos, recuento));
+    }
+
+    /**
+     * Clase que cuenta un rango de filas partiéndolo en dos mientras sea grande
+     */
+    private static class TareaRecuento extends RecursiveTask<long[]> {
+        private static final long serialVersionUID=1L;
+        private final int desde;
+        private final int hasta;
+        private final int grupos;
+        private final Recuento recuento;
+
+        TareaRecuento(int desde, int hasta, int grupos, Recuento recuento) {
+            this.desde=desde;
+            this.hasta=hasta;
+            this.grupos=grupos;
+            this.recuento=recuento;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (hasta-desde<=UMBRAL_PARALELO) {
+                long[] cuenta=new long[grupos];
+                recuento.contar(desde, hasta, cuenta);
+                return cuenta;
+            }
+            int medio=(desde+hasta)>>>1;
+            TareaRecuento izquierda=new TareaRecuento(desde, medio, grupos, recuento);
+            izquierda.fork();
+            long[] cuenta=new TareaRecuento(medio, hasta, grupos, recuento).compute();
+            long[] otra=izquierda.join();
+            for (int i=0; i<grupos; i++) {
+                cuenta[i]+=otra[i];
+            }
+            return cuenta;
+        }
+    }
+
+    /**
+     * Clase que busca los n pacientes con más hospitalizaciones de un rango de filas
+     */
+    private class TareaMejores extends RecursiveTask<MejoresN> {
+        private static final long serialVersionUID=1L;
+        private final int desde;
+        private final int hasta;
+        private final int n;
+
+        TareaMejores(int desde, int hasta, int n) {
+            this.desde=desde;
+            this.hasta=hasta;
+            this.n=n;
+        }
+
+        @Override
+        protected MejoresN compute() {
+            if (hasta-desde<=UMBRAL_PARALELO) {
+                MejoresN m=new MejoresN(n);
+                int[] h=nhosp;
+                for (int i=desde; i<hasta; i++) {
+                    m.ofrecer(h[i], i);
+                }
+                return m;
+            }
+            int medio=(desde+hasta)>>>1;
+            TareaMejores izquierda=new TareaMejores(desde, medio, n);
+            izquierda.fork();
+            MejoresN m=new TareaMejores(medio, hasta, n).compute();
+            m.juntar(izquierda.join());
+            return m;
+        }
+    }
+
+    /**
+     * Clase que guarda las n filas con más hospitalizaciones en un montículo de
+     * mínimos. Cada fila se guarda en un long con las hospitalizaciones en la
+     * parte alta y la fila en la baja, así se ordenan sin crear objetos.
+     */
+    private static class MejoresN {
+        private final long[] monticulo;
+        private int tamaño=0;
+
+        MejoresN(int n) {
+            monticulo=new long[n];
+        }
+
+        /**
+         * Método que propone una fila para el montículo
+         * @param hosp hospitalizaciones de la fila
+         * @param fila posición de la fila
+         */
+        void ofrecer(int hosp, int fila) {
+            long v=((long) hosp<<32)|(fila&0xFFFFFFFFL);
+            if (tamaño<monticulo.length) {
+                monticulo[tamaño]=v;
+                subir(tamaño++);
+            } else if (v>monticulo[0]) {
+                monticulo[0]=v;
+                bajar(0);
+            }
+        }
+
+        /**
+         * Método que añade las filas de otro montículo
+         * @param otro montículo con otras filas
+         */
+        void juntar(MejoresN otro) {
+            for (int i=0; i<otro.tamaño; i++) {
+                long v=otro.monticulo[i];
+                ofrecer((int) (v>>>32), (int) v);
+            }
+        }
+
+        /**
+         * Método que devuelve las filas de más a menos hospitalizaciones
+         * @return filas ordenadas
+         */
+        int[] ordenados() {
+            long[] v=Arrays.copyOf(monticulo, tamaño);
+            Arrays.sort(v);
+            int[] res=new int[tamaño];
+            for (int i=0; i<tamaño; i++) {
+                res[i]=(int) v[tamaño-1-i];
+            }
+            return res;
+        }
+
+        private void subir(int i) {
+            while (i>0) {
+                int padre=(i-1)/2;
+                if (monticulo[padre]<=monticulo[i]) {
+                    return;
+                }
+                intercambiar(i, padre);
+                i=padre;
+            }
+        }
+
+        private void bajar(int i) {
+            while (true) {
+                int menor=i;
+                int izq=2*i+1;
+                int der=izq+1;
+                if (izq<tamaño && monticulo[izq]<monticulo[menor]) {
+                    menor=izq;
+                }
+                if (der<tamaño && monticulo[der]<monticulo[menor]) {
+                    menor=der;
+                }
+                if (menor==i) {
+                    return;
+                }
+                intercambiar(i, menor);
+                i=menor;
+            }
+        }
+
+        private void intercambiar(int a, int b) {
+            long t=monticulo[a];
+            monticulo[a]=monticulo[b];
+            monticulo[b]=t;
+        }
+    }
+
+    /**
+     * Método que crea el objeto Paciente de una fila
+     * @param fila posición de la fila
+     * @return el paciente
+     */
+    private Paciente paciente(int fila) {
+        String ap=apellidos.texto(apellido1[fila]);
+        if (apellido2[fila]>=0) {
+            ap=ap+" "+apellidos.texto(apellido2[fila]);
+        }
+        Paciente p=new Paciente(dni(fila), nombres.texto(nombre[fila]), ap,
+                LocalDate.ofEpochDay(fechaNacimiento[fila]));
+        p.setNhosp(nhosp[fila]);
+        return p;
+    }
+
+    /**
+     * Método que vuelve a formar el texto del DNI de una fila
+     * @param fila posición de la fila
+     * @return el DNI
+     */
+    private String dni(int fila) {
+        int numero=dniNumero[fila];
+        if (numero<0) {
+            return dniIrregulares.texto(-numero-1);
+        }
+        char[] c=new char[9];
+        int n=numero>=BASE_NIE ? numero-BASE_NIE : numero;
+        for (int k=7; k>=0; k--) {
+            c[k]=(char) ('0'+n%10);
+            n/=10;
+        }
+        if (numero>=BASE_NIE) {
+            c[0]="XYZ".charAt(c[0]-'0');
+        }
+        c[8]=(char) dniLetra[fila];
+        return new String(c);
+    }
+
+    /**
+     * Método que calcula el número con el que se guarda un DNI
+     * @param dni DNI o NIE
+     * @param crear true para dar código a un DNI sin formato reconocido que todavía no lo tiene
+     * @return número del DNI, o Integer.MIN_VALUE si no tiene formato reconocido ni código
+     */
+    private int numero(String dni, boolean crear) {
+        if (dni.length()==9) {
+            char c0=dni.charAt(0);
+            int n=c0>='0' && c0<='9' ? c0-'0' : c0=='X' ? 0 : c0=='Y' ? 1 : c0=='Z' ? 2 : -1;
+            char letra=dni.charAt(8);
+            boolean ok=n>=0 && letra>='A' && letra<='Z';
+            for (int i=1; i<8 && ok; i++) {
+                char c=dni.charAt(i);
+                ok=c>='0' && c<='9';
+                n=n*10+(c-'0');
+            }
+            if (ok) {
+                return c0>='0' && c0<='9' ? n : n+BASE_NIE;
+            }
+        }
+        int codigo=crear ? dniIrregulares.codigo(dni) : dniIrregulares.buscar(dni);
+        return codigo<0 ? Integer.MIN_VALUE : -codigo-1;
+    }
+
+    /**
+     * Método que busca la fila de un DNI
+     * @param dni DNI del paciente
+     * @return posición de la fila, o -1 si no está
+     */
+    private int buscar(String dni) {
+        int n=numero(dni, false);
+        return n==Integer.MIN_VALUE ? -1 : indice.buscar(n);
+    }
+
+    /**
+     * Método que añade un paciente a las columnas, o lo cambia si ya estaba
+     * @param dni DNI del paciente
+     * @param nom nombre
+     * @param ap apellidos
+     * @param fecha fecha de nacimiento en días desde el 1/1/1970
+     * @param hosp número de hospitalizaciones
+     */
+    private void poner(String dni, String nom, String ap, int fecha, int hosp) {
+        int n=numero(dni, true);
+        int fila=indice.buscar(n);
+        if (fila<0) {
+            if (filas==dniNumero.length) {
+                crecer();
+            }
+            fila=filas++;
+            indice.poner(n, fila);
+        }
+        dniNumero[fila]=n;
+        dniLetra[fila]=(byte) dni.charAt(dni.length()-1);
+        nombre[fila]=nombres.codigo(nom);
+        // Los apellidos se separan por el primer espacio para repetir menos textos
+        int espacio=ap.indexOf(' ');
+        apellido1[fila]=apellidos.codigo(espacio<0 ? ap : ap.substring(0, espacio));
+        apellido2[fila]=espacio<0 ? -1 : apellidos.codigo(ap.substring(espacio+1));
+        fechaNacimiento[fila]=fecha;
+        nhosp[fila]=hosp;
+    }
+
+    /**
+     * Método que quita un paciente de las columnas moviendo la última fila a su hueco
+     * @param dni DNI del paciente
+     */
+    private void quitar(String dni) {
+        int fila=buscar(dni);
+        if (fila<0) {
+            return;
+        }
+        indice.quitar(dniNumero[fila]);
+        int ultima=--filas;
+        if (fila!=ultima) {
+            dniNumero[fila]=dniNumero[ultima];
+            dniLetra[fila]=dniLetra[ultima];
+            nombre[fila]=nombre[ultima];
+            apellido1[fila]=apellido1[ultima];
+            apellido2[fila]=apellido2[ultima];
+            fechaNacimiento[fila]=fechaNacimiento[ultima];
+            nhosp[fila]=nhosp[ultima];
+            indice.poner(dniNumero[fila], fila);
+        }
+    }
+
+    /**
+     * Método que aumenta la capacidad de las columnas a la mitad más
+     */
+    private void crecer() {
+        int c=dniNumero.length+(dniNumero.length>>1);
+        dniNumero=Arrays.copyOf(dniNumero, c);
+        dniLetra=Arrays.copyOf(dniLetra, c);
+        nombre=Arrays.copyOf(nombre, c);
+        apellido1=Arrays.copyOf(apellido1, c);
+        apellido2=Arrays.copyOf(apellido2, c);
+        fechaNacimiento=Arrays.copyOf(fechaNacimiento, c);
+        nhosp=Arrays.copyOf(nhosp, c);
+    }
+
+    /**
+     * Clase que asigna un código a cada texto distinto
+     */
+    private static class Diccionario {
+        private final Map<String, Integer> codigos=new HashMap<>();
+        private final List<String> textos=new ArrayList<>();
+        private long caracteres=0;
+
+        /**
+         * Método que devuelve el código de un texto, asignándole uno si no lo tiene
+         * @param texto texto a codificar
+         * @return código del texto
+         */
+        int codigo(String texto) {
+            Integer c=codigos.get(texto);
+            if (c==null) {
+                c=textos.size();
+                codigos.put(texto, c);
+                textos.add(texto);
+                caracteres+=texto.length();
+            }
+            return c;
+        }
+
+        /**
+         * Método que busca el código de un texto sin asignarle uno
+         * @param texto texto a buscar
+         * @return código del texto, o -1 si no lo tiene
+         */
+        int buscar(String texto) {
+            Integer c=codigos.get(texto);
+            return c==null ? -1 : c;
+        }
+
+        String texto(int codigo) {
+            return textos.get(codigo);
+        }
+
+        int tamaño() {
+            return textos.size();
+        }
+
+        /**
+         * Método que calcula los bytes aproximados del diccionario: cada texto,
+         * su entrada en el mapa y su posición en la lista
+         * @return bytes ocupados
+         */
+        long memoriaBytes() {
+            return textos.size()*(40L+48+16+4)+caracteres;
+        }
+    }
+
+    /**
+     * Clase que guarda la fila de cada número de DNI en una tabla hash de
+     * direccionamiento abierto con arrays de enteros, sin objetos por entrada
+     */
+    private static class IndiceDni {
+        private static final int VACIO=Integer.MIN_VALUE;
+        private int[] claves;
+        private int[] posiciones;
+        private int tamaño=0;
+
+        IndiceDni(int capacidad) {
+            int c=Integer.highestOneBit(Math.max(16, capacidad*4/3+1)-1)<<1;
+            claves=new int[c];
+            posiciones=new int[c];
+            Arrays.fill(claves, VACIO);
+        }
+
+        int buscar(int clave) {
+            int mascara=claves.length-1;
+            for (int i=hash(clave)&mascara; claves[i]!=VACIO; i=(i+1)&mascara) {
+                if (claves[i]==clave) {
+                    return posiciones[i];
+                }
+            }
+            return -1;
+        }
+
+        void poner(int clave, int posicion) {
+            if ((tamaño+1)*4>claves.length*3) {
+                agrandar();
+            }
+            int mascara=claves.length-1;
+            int i=hash(clave)&mascara;
+            while (claves[i]!=VACIO && claves[i]!=clave) {
+                i=(i+1)&mascara;
+            }
+            if (claves[i]==VACIO) {
+                tamaño++;
+            }
+            claves[i]=clave;
+            posiciones[i]=posicion;
+        }
+
+        void quitar(int clave) {
+            int mascara=claves.length-1;
+            int i=hash(clave)&mascara;
+            while (claves[i]!=clave) {
+                if (claves[i]==VACIO) {
+                    return;
+                }
+                i=(i+1)&mascara;
+            }
+            // Se mueven hacia atrás las entradas siguientes que dejarían de encontrarse
+            int j=i;
+            while (true) {
+                j=(j+1)&mascara;
+                if (claves[j]==VACIO) {
+                    break;
+                }
+                int k=hash(claves[j])&mascara;
+                boolean enSuSitio=i<=j ? (i<k && k<=j) : (i<k || k<=j);
+                if (!enSuSitio) {
+                    claves[i]=claves[j];
+                    posiciones[i]=posiciones[j];
+                    i=j;
+                }
+            }
+            claves[i]=VACIO;
+            tamaño--;
+        }
+
+        long memoriaBytes() {
+            return claves.length*8L;
+        }
+
+        private void agrandar() {
+            int[] viejasClaves=claves;
+            int[] viejasPosiciones=posiciones;
+            claves=new int[viejasClaves.length*2];
+            posiciones=new int[viejasClaves.length*2];
+            Arrays.fill(claves, VACIO);
+            tamaño=0;
+            for (int i=0; i<viejasClaves.length; i++) {
+                if (viejasClaves[i]!=VACIO) {
+                    poner(viejasClaves[i], viejasPosiciones[i]);
+                }
+            }
+        }
+
+        private static int hash(int clave) {
+            int h=clave*0x9E3779B9;
+            return h^(h>>>16);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package gestpacientes;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Clase con las métricas de la capa de datos: para cada operación de
+ * PacientesDAO cuenta las llamadas y los errores y guarda un histograma de
+ * latencias, y de las conexiones cuenta las pedidas y las abiertas por los
+ * pools de todas las particiones. Registrar una llamada no crea objetos ni bloquea.
+ *
+ * Las métricas se publican por JMX con el nombre gestpacientes:type=Metricas y,
+ * si se indica un intervalo, se escriben periódicamente como texto con una
+ * línea por operación, fácil de leer o de procesar.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.metricas.activas: si se registran las métricas (por defecto true)
+ * - gestpacientes.metricas.volcadoSeg: segundos entre volcados de texto, 0 para no volcar (por defecto 0)
+ * - gestpacientes.metricas.archivo: archivo al que se añaden los volcados (por defecto la salida estándar)
+ * @author Adrián Romero Ramírez
+ */
+public class Metricas {
+
+    private static final boolean ACTIVAS=Boolean.parseBoolean(System.getProperty("gestpacientes.metricas.activas", "true"));
+    private static final long VOLCADO_SEG=Long.getLong("gestpacientes.metricas.volcadoSeg", 0);
+    private static final String ARCHIVO=System.getProperty("gestpacientes.metricas.archivo");
+    private static final String NOMBRE_JMX="gestpacientes:type=Metricas";
+    private static final DateTimeFormatter FORMATO_FECHA=DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS");
+
+    /**
+     * Operaciones de las que se guardan métricas
+     */
+    public enum Operacion {
+        INSERT("insert"),
+        COMPROBAR_DNI("comprobarDni"),
+        FIND_ALL("findAll"),
+        STREAM("stream"),
+        PAGINA("pagina"),
+        DELETE_BY_ID("deleteById"),
+        DETALLES_PACIENTE("detallesPaciente"),
+        INCREMENTAR_NHOSP("incrementarNhosp"),
+        BUSCAR("buscar"),
+        ENTRE_FECHAS("entreFechas"),
+        CONTAR_FECHAS("contarEntreFechas"),
+        DISTRIBUCION_EDADES("distribucionEdades"),
+        CONECTAR("conectar");
+
+        private final String nombre;
+        private final AtomicLong llamadas=new AtomicLong();
+        private final AtomicLong errores=new AtomicLong();
+        private final HistogramaLatencias latencias=new HistogramaLatencias();
+
+        Operacion(String nombre) {
+            this.nombre=nombre;
+        }
+
+        /**
+         * Método para obtener el nombre de la operación en los informes
+         * @return nombre del método
+         */
+        public String getNombre() {
+            return nombre;
+        }
+    }
+
+    // Hilo que escribe el volcado periódico, null si no se vuelca
+    private static ScheduledExecutorService volcador;
+    private static boolean publicadas=false;
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private Metricas() {
+    }
+
+    /**
+     * Método que marca el inicio de una llamada
+     * @return momento de inicio que se pasa después a fin()
+     */
+    public static long inicio() {
+        return ACTIVAS ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Método que registra el final de una llamada con su latencia
+     * @param op operación llamada
+     * @param inicio valor devuelto por inicio() al empezar la llamada
+     */
+    public static void fin(Operacion op, long inicio) {
+        if (ACTIVAS) {
+            op.latencias.registrar(System.nanoTime()-inicio);
+            op.llamadas.incrementAndGet();
+        }
+    }
+
+    /**
+     * Método que cuenta un error de una operación
+     * @param op operación que ha fallado
+     */
+    public static void error(Operacion op) {
+        if (ACTIVAS) {
+            op.errores.incrementAndGet();
+        }
+    }
+
+    /**
+     * Método que publica las métricas por JMX y empieza el volcado periódico si
+     * se ha configurado. Se llama al arrancar la aplicación.
+     */
+    public static synchronized void publicar() {
+        if (!ACTIVAS || publicadas) {
+            return;
+        }
+        publicadas=true;
+        try {
+            MBeanServer servidor=ManagementFactory.getPlatformMBeanServer();
+            ObjectName nombre=new ObjectName(NOMBRE_JMX);
+            if (!servidor.isRegistered(nombre)) {
+                servidor.registerMBean(new Publicacion(), nombre);
+            }
+        } catch (JMException ex) {
+            System.out.println("No se han podido publicar las métricas por JMX.");
+        }
+        if (VOLCADO_SEG>0) {
+            volcador=Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t=new Thread(r, "volcado-metricas");
+                t.setDaemon(true);
+                return t;
+            });
+            volcador.scheduleAtFixedRate(Metricas::volcar, VOLCADO_SEG, VOLCADO_SEG, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Método que para el volcado periódico escribiendo un último volcado. Se
+     * llama al terminar la aplicación.
+     */
+    public static synchronized void detener() {
+        if (volcador!=null) {
+            volcador.shutdown();
+            volcador=null;
+            volcar();
+        }
+    }
+
+    /**
+     * Método que pone a cero las estadísticas de todas las operaciones
+     */
+    public static void reiniciar() {
+        for (Operacion op : Operacion.values()) {
+            op.llamadas.set(0);
+            op.errores.set(0);
+            op.latencias.reiniciar();
+        }
+    }
+
+    /**
+     * Método que toma las estadísticas actuales de todas las operaciones
+     * @return una estadística por operación
+     */
+    public static List<Estadistica> operaciones() {
+        List<Estadistica> lista=new ArrayList<>();
+        for (Operacion op : Operacion.values()) {
+            lista.add(new Estadistica(op));
+        }
+        return lista;
+    }
+
+    /**
+     * Método que crea el texto del volcado, con una línea por operación y otra
+     * con las conexiones, todas con la fecha delante
+     * @return texto con las métricas
+     */
+    public static String texto() {
+        String fecha=LocalDateTime.now().format(FORMATO_FECHA);
+        StringBuilder sb=new StringBuilder();
+        for (Estadistica e : operaciones()) {
+            sb.append(String.format(Locale.ROOT, "%s metricas %-16s llamadas=%d errores=%d media=%.3f p50=%.3f p95=%.3f p99=%.3f max=%.3f ms\n",
+                    fecha, e.getOperacion(), e.getLlamadas(), e.getErrores(), e.getMediaMs(),
+                    e.getP50Ms(), e.getP95Ms(), e.getP99Ms(), e.getMaxMs()));
+        }
+        sb.append(String.format("%s metricas %-16s pedidas=%d creadas=%d abiertas=%d activas=%d\n",
+                fecha, "conexiones", Operacion.CONECTAR.llamadas.get(), sumar(PoolConexiones::getCreadas),
+                sumar(PoolConexiones::getAbiertas), sumar(PoolConexiones::getActivas)));
+        return sb.toString();
+    }
+
+    /**
+     * Método que suma una estadística de los pools de todas las particiones
+     * @param estadistica estadística de un pool
+     * @return la suma, 0 si todavía no hay pools
+     */
+    private static long sumar(ToLongFunction<PoolConexiones> estadistica) {
+        long total=0;
+        for (PoolConexiones pool : Particiones.creados()) {
+            total+=estadistica.applyAsLong(pool);
+        }
+        return total;
+    }
+
+    /**
+     * Método que escribe el volcado en el archivo configurado o en la salida estándar
+     */
+    private static void volcar() {
+        String texto=texto();
+        if (ARCHIVO==null) {
+            System.out.print(texto);
+            return;
+        }
+        try {
+            Files.write(Paths.get(ARCHIVO), texto.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            System.out.println("No se han podido escribir las métricas en "+ARCHIVO);
+        }
+    }
+
+    /**
+     * Clase que representa las estadísticas de una operación en un momento dado
+     */
+    public static class Estadistica {
+        private final String operacion;
+        private final long llamadas;
+        private final long errores;
+        private final double mediaMs;
+        private final double p50Ms;
+        private final double p95Ms;
+        private final double p99Ms;
+        private final double maxMs;
+
+        Estadistica(Operacion op) {
+            HistogramaLatencias h=op.latencias;
+            this.operacion=op.nombre;
+            this.llamadas=op.llamadas.get();
+            this.errores=op.errores.get();
+            this.mediaMs=h.getMedia()/1e6;
+            this.p50Ms=h.percentil(50)/1e6;
+            this.p95Ms=h.percentil(95)/1e6;
+            this.p99Ms=h.percentil(99)/1e6;
+            this.maxMs=h.getMaximo()/1e6;
+        }
+
+        /**
+         * Método para obtener el nombre de la operación
+         * @return nombre de la operación
+         */
+        public String getOperacion() {
+            return operacion;
+        }
+
+        /**
+         * Método para obtener el número de llamadas
+         * @return llamadas terminadas
+         */
+        public long getLlamadas() {
+            return llamadas;
+        }
+
+        /**
+         * Método para obtener el número de errores
+         * @return llamadas con error
+         */
+        public long getErrores() {
+            return errores;
+        }
+
+        /**
+         * Método para obtener la latencia media
+         * @return latencia media en milisegundos
+         */
+        public double getMediaMs() {
+            return mediaMs;
+        }
+
+        /**
+         * Método para obtener el percentil 50 de la latencia
+         * @return percentil 50 de la latencia en milisegundos
+         */
+        public double getP50Ms() {
+            return p50Ms;
+        }
+
+        /**
+         * Método para obtener el percentil 95 de la latencia
+         * @return percentil 95 de la latencia en milisegundos
+         */
+        public double getP95Ms() {
+            return p95Ms;
+        }
+
+        /**
+         * Método para obtener el percentil 99 de la latencia
+         * @return percentil 99 de la latencia en milisegundos
+         */
+        public double getP99Ms() {
+            return p99Ms;
+        }
+
+        /**
+         * Método para obtener la latencia máxima
+         * @return latencia máxima en milisegundos
+         */
+        public double getMaxMs() {
+            return maxMs;
+        }
+    }
+
+    /**
+     * Clase que se registra en JMX y lee las métricas de la clase Metricas
+     */
+    private static class Publicacion implements MetricasMXBean {
+
+        @Override
+        public List<Estadistica> getOperaciones() {
+            return operaciones();
+        }
+
+        @Override
+        public long getConexionesPedidas() {
+            return Operacion.CONECTAR.llamadas.get();
+        }
+
+        @Override
+        public long getConexionesCreadas() {
+            return sumar(PoolConexiones::getCreadas);
+        }
+
+        @Override
+        public int getConexionesAbiertas() {
+            return (int) sumar(PoolConexiones::getAbiertas);
+        }
+
+        @Override
+        public int getConexionesActivas() {
+            return (int) sumar(PoolConexiones::getActivas);
+        }
+
+        @Override
+        public String getTexto() {
+            return texto();
+        }
+
+        @Override
+        public void reiniciar() {
+            Metricas.reiniciar();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package gestpacientes;
+
+import java.util.List;
+
+/**
+ * Interfaz con las métricas de la capa de datos que se publican por JMX con el
+ * nombre gestpacientes:type=Metricas, para consultarlas con jconsole.
+ * @author Adrián Romero Ramírez
+ */
+public interface MetricasMXBean {
+
+    /**
+     * Método para obtener las estadísticas de cada operación de PacientesDAO
+     * @return una estadística por operación
+     */
+    List<Metricas.Estadistica> getOperaciones();
+
+    /**
+     * Método para obtener el número de conexiones pedidas a los pools
+     * @return conexiones pedidas
+     */
+    long getConexionesPedidas();
+
+    /**
+     * Método para obtener el número de conexiones físicas abiertas desde el inicio
+     * @return conexiones físicas creadas por los pools de todas las particiones
+     */
+    long getConexionesCreadas();
+
+    /**
+     * Método para obtener el número de conexiones físicas abiertas ahora
+     * @return conexiones físicas abiertas
+     */
+    int getConexionesAbiertas();
+
+    /**
+     * Método para obtener el número de conexiones prestadas ahora
+     * @return conexiones en uso
+     */
+    int getConexionesActivas();
+
+    /**
+     * Método para obtener las métricas en el mismo formato que el volcado periódico
+     * @return texto con las métricas
+     */
+    String getTexto();
+
+    /**
+     * Método que pone a cero las estadísticas de las operaciones
+     */
+    void reiniciar();
+}
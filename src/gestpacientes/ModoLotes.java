@@ -0,0 +1,491 @@
+package gestpacientes;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Clase que ejecuta órdenes sobre los pacientes sin interacción, leyéndolas de
+ * un archivo o de la entrada estándar, una por línea. Las órdenes se agrupan en
+ * transacciones del tamaño indicado y se ejecutan seguidas, sin preguntas ni
+ * confirmaciones. Al terminar se muestran las estadísticas por la salida de errores.
+ *
+ * Órdenes admitidas (los campos van separados por comas, como en CSV):
+ *
+ * - add,dni,nombre,apellidos,fecha_nacimiento
+ * - list
+ * - delete,dni
+ * - details,dni
+ * - increment,dni
+ *
+ * Las líneas vacías y las que empiezan por # se ignoran. Los datos se validan
+ * con las mismas reglas que la alta por teclado.
+ *
+ * Cada orden escribe en la salida una línea con sus campos separados por
+ * tabuladores: número de línea, orden, resultado y datos. El resultado es uno
+ * de OK, NO_ENCONTRADO, DUPLICADO, INVALIDO o ERROR. La orden list escribe una
+ * línea por paciente.
+ *
+ * Las líneas de una transacción se guardan y se escriben después de confirmarla,
+ * así que un OK siempre está guardado. Si no se puede confirmar, cada orden de la
+ * transacción escribe una línea ERROR en su lugar y se dejan de leer órdenes. Con
+ * varias particiones las que ya se habían confirmado no se deshacen, así que
+ * algunas de esas órdenes pueden estar guardadas.
+ * @author Adrián Romero Ramírez
+ */
+public class ModoLotes {
+
+    // Resultados de las órdenes
+    private static final String OK="OK";
+    private static final String NO_ENCONTRADO="NO_ENCONTRADO";
+    private static final String DUPLICADO="DUPLICADO";
+    private static final String INVALIDO="INVALIDO";
+    private static final String ERROR="ERROR";
+    // Número de pacientes que se leen de cada vez en la orden list
+    private static final int TAMAÑO_PAGINA=1000;
+
+    // Órdenes por transacción
+    private final int tamañoTransaccion;
+    // Salida con los resultados, con búfer para no escribir línea a línea
+    private final PrintWriter salida;
+
+    // Líneas de resultado de la transacción en curso, que se escriben al confirmarla
+    private final StringBuilder pendientes=new StringBuilder();
+    // Número de línea y nombre de las órdenes de la transacción en curso, para
+    // escribir su error si no se puede confirmar
+    private final List<Long> lineasTransaccion=new ArrayList<>();
+    private final List<String> nombresTransaccion=new ArrayList<>();
+    // Órdenes correctas de la transacción en curso, que solo cuentan al confirmarla
+    private long correctasTransaccion=0;
+
+    // Cambios de la transacción en curso, para actualizar la caché, el filtro y
+    // la instantánea de pacientes al terminarla
+    private final List<Paciente> añadidos=new ArrayList<>();
+    private final List<String> modificados=new ArrayList<>();
+    private final List<String> borrados=new ArrayList<>();
+    // Cambios de la transacción en curso en su orden, para el diario de cambios
+    private DiarioCambios.Lote diario=new DiarioCambios.Lote();
+
+    // Estadísticas
+    private long ordenes=0;
+    private long correctas=0;
+    private long fallidas=0;
+    private long transacciones=0;
+
+    /**
+     * Constructor con parametros de la clase
+     * @param tamañoTransaccion Número de órdenes que se ejecutan en cada transacción
+     * @param salida Salida donde se escriben los resultados
+     * @throws IllegalArgumentException Si el tamaño de transacción no es positivo
+     */
+    public ModoLotes(int tamañoTransaccion, PrintWriter salida) throws IllegalArgumentException {
+        if (tamañoTransaccion<1) {
+            throw new IllegalArgumentException("El número de órdenes por transacción debe ser positivo.");
+        }
+        this.tamañoTransaccion=tamañoTransaccion;
+        this.salida=salida;
+    }
+
+    /**
+     * Método que ejecuta todas las órdenes de la entrada y muestra las estadísticas
+     * @param entrada Entrada de la que se leen las órdenes
+     * @return true si todas las órdenes han terminado bien y false si alguna ha fallado
+     * @throws IOException Si hay problemas leyendo la entrada
+     * @throws SQLException Si no se pueden devolver las conexiones al pool
+     */
+    public boolean ejecutar(Reader entrada) throws IOException, SQLException {
+        long inicio=System.nanoTime();
+        BufferedReader br=new BufferedReader(entrada, 1<<16);
+        boolean confirmadas=true;
+        try (Particiones.Transaccion tx=new Particiones.Transaccion()) {
+            String linea;
+            long numLinea=0;
+            int enTransaccion=0;
+            while (confirmadas && (linea=br.readLine())!=null) {
+                numLinea++;
+                String orden=linea.trim();
+                if (orden.isEmpty() || orden.startsWith("#")) {
+                    continue;
+                }
+                ejecutarOrden(tx, numLinea, orden);
+                // Al llegar al tamaño indicado se confirma la transacción
+                if (++enTransaccion==tamañoTransaccion) {
+                    confirmadas=confirmar(tx);
+                    enTransaccion=0;
+                }
+            }
+            if (confirmadas && enTransaccion>0) {
+                confirmadas=confirmar(tx);
+            }
+        } finally {
+            // Si se detiene por un error de lectura, las líneas pendientes no se
+            // escriben porque su transacción no se ha confirmado
+            salida.flush();
+        }
+
+        // Las estadísticas van a la salida de errores para no mezclarse con los resultados
+        double seg=(System.nanoTime()-inicio)/1e9;
+        System.err.printf("Órdenes: %d, correctas: %d, fallidas: %d, transacciones: %d, %.3f s, %.0f órdenes/s\n",
+                ordenes, correctas, fallidas, transacciones, seg, seg==0 ? 0 : ordenes/seg);
+        return confirmadas && fallidas==0;
+    }
+
+    /**
+     * Método que ejecuta una orden dentro de la transacción en curso
+     * @param tx Transacción en curso en las particiones
+     * @param numLinea Número de línea de la orden
+     * @param orden Línea con la orden
+     */
+    private void ejecutarOrden(Particiones.Transaccion tx, long numLinea, String orden) {
+        ordenes++;
+        int coma=orden.indexOf(',');
+        String nombre=(coma<0 ? orden : orden.substring(0, coma)).trim().toLowerCase();
+        lineasTransaccion.add(numLinea);
+        nombresTransaccion.add(nombre);
+        String resto=coma<0 ? "" : orden.substring(coma+1);
+        String resultado;
+        try {
+            switch (nombre) {
+                case "add":
+                    resultado=añadir(tx, numLinea, resto);
+                    break;
+                case "list":
+                    resultado=listar(tx, numLinea);
+                    break;
+                case "delete":
+                    resultado=borrar(tx, numLinea, GestionPacientes.normalizarDni(resto.trim()));
+                    break;
+                case "details":
+                    resultado=detalles(tx, numLinea, GestionPacientes.normalizarDni(resto.trim()));
+                    break;
+                case "increment":
+                    resultado=incrementar(tx, numLinea, GestionPacientes.normalizarDni(resto.trim()));
+                    break;
+                default:
+                    resultado=escribir(numLinea, nombre, INVALIDO, "Orden desconocida");
+            }
+        } catch (SQLException ex) {
+            // Una orden que falla no deshace las demás de la transacción
+            resultado=escribir(numLinea, nombre, ERROR, ex.getMessage());
+        }
+        if (OK.equals(resultado)) {
+            correctasTransaccion++;
+        } else {
+            fallidas++;
+        }
+    }
+
+    /**
+     * Método que inserta un paciente después de validar sus datos
+     * @param tx Transacción en curso en las particiones
+     * @param numLinea Número de línea de la orden
+     * @param campos Campos del paciente en formato CSV
+     * @return el resultado de la orden
+     * @throws SQLException Si falla la sentencia
+     */
+    private String añadir(Particiones.Transaccion tx, long numLinea, String campos) throws SQLException {
+        // Se usan las mismas reglas que en la importación y la alta por teclado
+        ImportadorPacientes.Fila f=new ImportadorPacientes.Fila(numLinea, campos);
+        f.separar(false);
+        String error=ImportadorPacientes.validar(f);
+        if (error!=null) {
+            return escribir(numLinea, "add", INVALIDO, error);
+        }
+        if (existe(tx.para(f.dni), f.dni)) {
+            return escribir(numLinea, "add", DUPLICADO, f.dni);
+        }
+        try (PreparedStatement ps=tx.para(f.dni).prepareStatement(PacientesDAO.SQL_INSERT)) {
+            FilasPacientes.insertar(ps, f.paciente);
+            ps.executeUpdate();
+        }
+        // Se añade ya al filtro para que las siguientes órdenes lo encuentren
+        FiltroDni.añadido(f.dni);
+        Paciente p=f.paciente;
+        añadidos.add(p);
+        diario.alta(p);
+        return escribir(numLinea, "add", OK, f.dni);
+    }
+
+    /**
+     * Método que escribe todos los pacientes, leyéndolos por páginas. Con varias
+     * particiones se lee una página de cada una y se escriben en orden los
+     * primeros, que seguro que son los siguientes de todas.
+     * @param tx Transacción en curso en las particiones
+     * @param numLinea Número de línea de la orden
+     * @return el resultado de la orden
+     * @throws SQLException Si falla la consulta
+     */
+    private String listar(Particiones.Transaccion tx, long numLinea) throws SQLException {
+        String ultimo="";
+        boolean quedan=true;
+        while (quedan) {
+            List<String[]> filas=new ArrayList<>();
+            quedan=false;
+            for (int i=0; i<tx.getTotal(); i++) {
+                try (PreparedStatement ps=tx.de(i).prepareStatement(PacientesDAO.SQL_PAGINA)) {
+                    ps.setString(1, ultimo);
+                    ps.setInt(2, TAMAÑO_PAGINA);
+                    int leidos=0;
+                    try (ResultSet rs=ps.executeQuery()) {
+                        while (rs.next()) {
+                            filas.add(new String[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)});
+                            leidos++;
+                        }
+                    }
+                    quedan|=leidos==TAMAÑO_PAGINA;
+                }
+            }
+            if (tx.getTotal()>1) {
+                filas.sort((a, b) -> a[0].compareTo(b[0]));
+            }
+            for (int k=0; k<filas.size() && k<TAMAÑO_PAGINA; k++) {
+                String[] f=filas.get(k);
+                ultimo=f[0];
+                escribir(numLinea, "list", OK, f);
+            }
+            quedan|=filas.size()>TAMAÑO_PAGINA;
+        }
+        return OK;
+    }
+
+    /**
+     * Método que borra un paciente y su historial de hospitalizaciones
+     * @param tx Transacción en curso en las particiones
+     * @param numLinea Número de línea de la orden
+     * @param dni DNI del paciente
+     * @return el resultado de la orden
+     * @throws SQLException Si falla la sentencia
+     */
+    private String borrar(Particiones.Transaccion tx, long numLinea, String dni) throws SQLException {
+        if (!GestionPacientes.esDniValido(dni)) {
+            return escribir(numLinea, "delete", INVALIDO, "DNI no válido");
+        }
+        Connection con=tx.para(dni);
+        try (PreparedStatement ps=con.prepareStatement(PacientesDAO.SQL_DELETE)) {
+            ps.setString(1, dni);
+            if (ps.executeUpdate()==0) {
+                return escribir(numLinea, "delete", NO_ENCONTRADO, dni);
+            }
+        }
+        Hospitalizaciones.borrar(con, dni);
+        borrados.add(dni);
+        diario.baja(dni);
+        return escribir(numLinea, "delete", OK, dni);
+    }
+
+    /**
+     * Método que escribe los detalles de un paciente. Se leen en la transacción
+     * en curso para ver los cambios de las órdenes anteriores.
+     * @param tx Transacción en curso en las particiones
+     * @param numLinea Número de línea de la orden
+     * @param dni DNI del paciente
+     * @return el resultado de la orden
+     * @throws SQLException Si falla la consulta
+     */
+    private String detalles(Particiones.Transaccion tx, long numLinea, String dni) throws SQLException {
+        if (!GestionPacientes.esDniValido(dni)) {
+            return escribir(numLinea, "details", INVALIDO, "DNI no válido");
+        }
+        try (PreparedStatement ps=tx.para(dni).prepareStatement(PacientesDAO.SQL_DETALLES)) {
+            ps.setString(1, dni);
+            try (ResultSet rs=ps.executeQuery()) {
+                if (!rs.next()) {
+                    return escribir(numLinea, "details", NO_ENCONTRADO, dni);
+                }
+                return escribir(numLinea, "details", OK, rs.getString(1), rs.getString(2), rs.getString(3),
+                        rs.getString(4), String.valueOf(rs.getInt(5)));
+            }
+        }
+    }
+
+    /**
+     * Método que incrementa en 1 el número de hospitalizaciones de un paciente
+     * y apunta el ingreso en su historial
+     * @param tx Transacción en curso en las particiones
+     * @param numLinea Número de línea de la orden
+     * @param dni DNI del paciente
+     * @return el resultado de la orden
+     * @throws SQLException Si falla la sentencia
+     */
+    private String incrementar(Particiones.Transaccion tx, long numLinea, String dni) throws SQLException {
+        if (!GestionPacientes.esDniValido(dni)) {
+            return escribir(numLinea, "increment", INVALIDO, "DNI no válido");
+        }
+        Connection con=tx.para(dni);
+        try (PreparedStatement ps=con.prepareStatement(PacientesDAO.SQL_INCREMENTAR)) {
+            ps.setString(1, dni);
+            if (ps.executeUpdate()==0) {
+                return escribir(numLinea, "increment", NO_ENCONTRADO, dni);
+            }
+        }
+        Hospitalizaciones.registrar(con, dni, System.currentTimeMillis());
+        modificados.add(dni);
+        diario.hospitalizaciones(dni, 1);
+        return escribir(numLinea, "increment", OK, dni);
+    }
+
+    /**
+     * Método que comprueba si existe un dni dentro de la transacción en curso
+     * @param con Conexión con la transacción en curso en la partición del dni
+     * @param dni DNI que se quiere comprobar
+     * @return true o false dependiendo si existe
+     * @throws SQLException Si falla la consulta
+     */
+    private static boolean existe(Connection con, String dni) throws SQLException {
+        // Si el filtro dice que no está, seguro que no existe
+        if (!FiltroDni.puedeExistir(dni)) {
+            return false;
+        }
+        try (PreparedStatement ps=con.prepareStatement(PacientesDAO.SQL_EXISTE)) {
+            ps.setString(1, dni);
+            try (ResultSet rs=ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Método que confirma la transacción en curso y actualiza la caché, el
+     * filtro de DNI, la instantánea de pacientes y el índice de búsqueda con
+     * sus cambios. Las líneas de resultado de la transacción se escriben al
+     * terminar, o una línea ERROR por orden si no se ha podido confirmar.
+     * @param tx Transacción en curso en las particiones
+     * @return true si se ha confirmado y false si no
+     */
+    private boolean confirmar(Particiones.Transaccion tx) {
+        // El commit y la entrada en el diario van juntos para no desordenarse con otros cambios de los mismos DNI
+        List<String> dnis=new ArrayList<>(modificados.size()+borrados.size()+añadidos.size());
+        dnis.addAll(modificados);
+        dnis.addAll(borrados);
+        for (Paciente p : añadidos) {
+            dnis.add(p.getDni());
+        }
+        boolean confirmada=false;
+        try (DiarioCambios.Orden orden=DiarioCambios.ordenar(dnis)) {
+            tx.confirmar();
+            confirmada=true;
+            transacciones++;
+            correctas+=correctasTransaccion;
+            // Los pacientes de la caché ya no tienen los datos de la base de datos
+            for (Paciente p : añadidos) {
+                InstantaneaPacientes.insertado(p);
+                BuscadorPacientes.insertado(p);
+            }
+            for (String dni : modificados) {
+                CachePacientes.invalidar(dni);
+                InstantaneaPacientes.incrementado(dni);
+            }
+            for (String dni : borrados) {
+                CachePacientes.invalidar(dni);
+                FiltroDni.borrado(dni);
+                HospitalizacionesDiferidas.descartar(dni);
+                InstantaneaPacientes.borrado(dni);
+                BuscadorPacientes.borrado(dni);
+            }
+            orden.anotar(diario);
+        } catch (SQLException ex) {
+            // Ninguna orden de la transacción cuenta como hecha
+            pendientes.setLength(0);
+            for (int i=0; i<lineasTransaccion.size(); i++) {
+                escribir(lineasTransaccion.get(i), nombresTransaccion.get(i), ERROR,
+                        "No se pudo confirmar la transacción: "+ex.getMessage());
+            }
+            fallidas+=correctasTransaccion;
+        } finally {
+            salida.append(pendientes);
+            pendientes.setLength(0);
+            lineasTransaccion.clear();
+            nombresTransaccion.clear();
+            correctasTransaccion=0;
+            añadidos.clear();
+            modificados.clear();
+            borrados.clear();
+            diario=new DiarioCambios.Lote();
+        }
+        return confirmada;
+    }
+
+    /**
+     * Método que guarda una línea de resultado con sus campos separados por
+     * tabuladores, para escribirla al confirmar la transacción
+     * @param numLinea Número de línea de la orden
+     * @param orden Nombre de la orden
+     * @param resultado Resultado de la orden
+     * @param datos Datos que acompañan al resultado
+     * @return el resultado, para devolverlo directamente
+     */
+    private String escribir(long numLinea, String orden, String resultado, String... datos) {
+        pendientes.append(numLinea);
+        pendientes.append('\t');
+        pendientes.append(orden);
+        pendientes.append('\t');
+        pendientes.append(resultado);
+        for (String d : datos) {
+            pendientes.append('\t');
+            // Los tabuladores y saltos de línea de los datos se cambian por espacios
+            pendientes.append(d==null ? "" : d.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+        }
+        pendientes.append('\n');
+        return resultado;
+    }
+
+    /**
+     * Método que ejecuta el modo por lotes desde la línea de comandos de la aplicación
+     * @param args archivo de órdenes o - para la entrada estándar, y número de órdenes por transacción
+     * @return true si todas las órdenes han terminado bien
+     */
+    public static boolean ejecutar(String[] args) {
+        String archivo=args.length>0 ? args[0] : "-";
+        int tamaño=1000;
+        if (args.length>1) {
+            try {
+                tamaño=Integer.parseInt(args[1].trim());
+            } catch (NumberFormatException ex) {
+                tamaño=0;
+            }
+            if (tamaño<1) {
+                System.err.println("Uso: --lotes [archivo|-] [órdenesPorTransacción]");
+                System.err.println("El número de órdenes por transacción debe ser un entero positivo.");
+                return false;
+            }
+        }
+        try (Connection con=Aplicacion.getPool().obtener()) {
+            if (!Aplicacion.createTables(con)) {
+                return false;
+            }
+        } catch (SQLException ex) {
+            System.err.println("No se pudo conectar a la base de datos.");
+            return false;
+        }
+        if (!Particiones.comprobar() || !ServidorBD.seguirCambios()) {
+            return false;
+        }
+        FiltroDni.construir();
+        PrintWriter salida=new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1<<16), false);
+        try (Reader entrada="-".equals(archivo)
+                ? new InputStreamReader(System.in, StandardCharsets.UTF_8)
+                : Files.newBufferedReader(Paths.get(archivo), StandardCharsets.UTF_8)) {
+            return new ModoLotes(tamaño, salida).ejecutar(entrada);
+        } catch (IOException | SQLException ex) {
+            System.err.println("Se ha detenido la ejecución de las órdenes: "+ex.getMessage());
+            return false;
+        } finally {
+            VolcadoPacientes.detener();
+            Aplicacion.cerrarPool();
+        }
+    }
+}
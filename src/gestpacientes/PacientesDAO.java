@@ -1,12 +1,22 @@
 package gestpacientes;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -17,10 +27,43 @@ import java.util.logging.Logger;
  * Contiene los siguientes atributos:
  * 
  * - con: Conexión con la base de datos
+ * 
+ * Todas las operaciones usan sentencias preparadas con parámetros, que el pool
+ * de conexiones guarda para no tener que analizarlas en cada llamada, y
+ * registran su latencia y sus errores en Metricas.
  * @author Adrián Romero Ramírez
  */
 public class PacientesDAO {
 
+    // Sentencias SQL de las operaciones
+    static final String SQL_INSERT="INSERT INTO PACIENTES "
+            + "(dni, nombre, apellidos, fecha_nacimiento) values (?, ?, ?, ?)";
+    static final String SQL_EXISTE="SELECT 1 FROM PACIENTES WHERE dni = ?";
+    private static final String SQL_FIND_ALL="SELECT dni, nombre, apellidos, fecha_nacimiento FROM PACIENTES";
+    private static final String SQL_STREAM_DNI=SQL_FIND_ALL+" ORDER BY dni";
+    static final String SQL_PAGINA="SELECT dni, nombre, apellidos, fecha_nacimiento FROM PACIENTES "
+            + "WHERE dni > ? ORDER BY dni LIMIT ?";
+    private static final String SQL_PAGINA_DESDE="SELECT dni, nombre, apellidos, fecha_nacimiento FROM PACIENTES "
+            + "WHERE dni >= ? ORDER BY dni LIMIT ?";
+    static final String SQL_DELETE="DELETE FROM PACIENTES WHERE dni = ?";
+    static final String SQL_DETALLES="SELECT dni, nombre, apellidos, fecha_nacimiento, nhosp FROM PACIENTES WHERE dni = ?";
+    static final String SQL_INCREMENTAR="UPDATE PACIENTES SET nhosp = nhosp+1 WHERE dni = ?";
+    // Las consultas por fecha de nacimiento usan el índice IDX_PACIENTES_FECHA
+    // (fecha_nacimiento, dni), que ya da las filas en el orden pedido
+    private static final String SQL_ENTRE_FECHAS="SELECT dni, nombre, apellidos, fecha_nacimiento FROM PACIENTES "
+            + "WHERE fecha_nacimiento BETWEEN ? AND ? AND (fecha_nacimiento > ? OR dni > ?) "
+            + "ORDER BY fecha_nacimiento, dni LIMIT ?";
+    private static final String SQL_STREAM_FECHAS="SELECT dni, nombre, apellidos, fecha_nacimiento FROM PACIENTES "
+            + "WHERE fecha_nacimiento BETWEEN ? AND ? ORDER BY fecha_nacimiento, dni";
+    private static final String SQL_CONTAR_FECHAS="SELECT COUNT(*) FROM PACIENTES WHERE fecha_nacimiento BETWEEN ? AND ?";
+    private static final String SQL_FECHAS="SELECT fecha_nacimiento FROM PACIENTES";
+    // Edad a partir de la cual todos los pacientes van al último grupo de edad
+    private static final int EDAD_MAXIMA=150;
+    // Órdenes de las consultas, para mezclar los resultados de las particiones
+    private static final Comparator<Paciente> POR_DNI=Comparator.comparing(Paciente::getDni);
+    private static final Comparator<Paciente> POR_FECHA=Comparator.comparing(Paciente::getFechaNacimiento)
+            .thenComparing(Paciente::getDni);
+
     // Conexión con la base de datos
     private Connection con;
     
@@ -38,171 +81,877 @@ public class PacientesDAO {
      * @return true o false dependiendo si se ha insertado correctamente
      */
     public static boolean insert(Paciente p){
-        boolean introducido = false;
         try {
-            // Se comprueba el dni para ver si ya existe
-            if(!comprobarDni(p.getDni())){
-                Connection con = null;
-                con = Aplicacion.conectar(con);
-                // se crea una conexión
-                // Se obtienen todoas los atributos del paciente
-                String dni = p.getDni();
-                String nombre = p.getNombre();
-                String apellidos = p.getApellidos();
-                String fechaNacimiento = Aplicacion.localDateToString(p.getFechaNacimiento());
-                // Preparamos la consulta y la ejecutamos
-                Statement s = con.createStatement();
-                s.executeUpdate("INSERT INTO PACIENTES "
-                        + "(dni, nombre, apellidos, fecha_nacimiento) values "
-                        + "('"+dni+"', '"+nombre+"', '"+apellidos+"', '"+fechaNacimiento+"')");
-                introducido = true; // Actualizamos introducido a true
-            }else{
-                // Si existe un paciento con el mismo dni sale este error
-                System.out.println("ERROR --> No se pudo ejecutar la inserción del paciente. Ya existe un paciente con el mismo DNI.");
+            if(insertar(p)){
+                return true;
             }
+            // Si existe un paciento con el mismo dni sale este error
+            System.out.println("ERROR --> No se pudo ejecutar la inserción del paciente. Ya existe un paciente con el mismo DNI.");
         } catch (SQLException ex) {
             // Si existe algun problema con la conexión o la sentencia sale este error
             System.out.println("A surgido un error respecto a la base de datos.");
         }
-        return introducido;
+        return false;
+    }
+    
+    /**
+     * Método igual que insert, pero que lanza la excepción si falla la base de
+     * datos en lugar de devolver false como si ya existiera el paciente
+     * @param p paciente que se quiere insertar
+     * @return true si se ha insertado, false si ya existe un paciente con el mismo dni
+     * @throws SQLException Si falla la comprobación o la inserción
+     */
+    static boolean insertar(Paciente p) throws SQLException{
+        long inicio = Metricas.inicio();
+        try {
+            // Se comprueba el dni para ver si ya existe
+            if(existe(p.getDni())){
+                return false;
+            }
+            // se toma una conexión del pool de su partición, que se devuelve al cerrarla
+            try (Connection con = Particiones.pool(p.getDni()).obtener();
+                 PreparedStatement ps = con.prepareStatement(SQL_INSERT)) {
+                String dni = p.getDni();
+                // Preparamos la consulta con los datos del paciente, la fecha como DATE, y la ejecutamos
+                FilasPacientes.insertar(ps, p);
+                if(DiarioCambios.isActivo()){
+                    // Con el diario el commit se hace aparte para apuntar el alta en el mismo orden
+                    con.setAutoCommit(false);
+                    ps.executeUpdate();
+                    confirmar(con, dni, new DiarioCambios.Lote().alta(p));
+                    con.setAutoCommit(true);
+                }else{
+                    ps.executeUpdate();
+                }
+                // Se añade el dni al filtro para que las próximas comprobaciones lo encuentren
+                FiltroDni.añadido(dni);
+                InstantaneaPacientes.insertado(p);
+                BuscadorPacientes.insertado(p);
+            }
+            return true;
+        } catch (SQLException ex) {
+            Metricas.error(Metricas.Operacion.INSERT);
+            throw ex;
+        } finally {
+            Metricas.fin(Metricas.Operacion.INSERT, inicio);
+        }
     }
     
     /**
-     * Método que comprueba si el dni ya existe en la base de datos
+     * Método que comprueba si el dni ya existe en la base de datos. Primero se
+     * pregunta al filtro de DNI en memoria y solo si puede existir se busca por
+     * la clave primaria.
      * @param dni dni que se quiere comprobar
      * @return true o false dependiendo si existe o no el dni
      */
     public static boolean comprobarDni(String dni){
-        boolean existe = false;
         try {
-            // Inicio una conexión con la base de datos y hago una consulta
-            Connection con = null;
-            con = Aplicacion.conectar(con);
-            Statement s = con.createStatement();
-            ResultSet rs = s.executeQuery("SELECT dni FROM PACIENTES");
-            
-            // Compruebo el resultado de la consulta con el dni pasado por parametro
-            while (rs.next()){
-                if(rs.getString(1).equals(dni)){
-                    // Si encuentra coincidencias, existe pasa a true
-                    existe = true; 
-                }
-            }
+            return existe(dni);
         } catch (SQLException ex) {
             System.out.println("Error en la consulta.");
+            return false;
         }
-        return existe;
     }
     
-    
-    
+    /**
+     * Método igual que comprobarDni, pero que lanza la excepción si falla la
+     * base de datos en lugar de responder que no existe
+     * @param dni dni que se quiere comprobar
+     * @return true o false dependiendo si existe o no el dni
+     * @throws SQLException Si falla la consulta
+     */
+    static boolean existe(String dni) throws SQLException{
+        long inicio = Metricas.inicio();
+        // Si el filtro dice que no está, seguro que no existe
+        if(!FiltroDni.puedeExistir(dni)){
+            Metricas.fin(Metricas.Operacion.COMPROBAR_DNI, inicio);
+            return false;
+        }
+        boolean existe;
+        // Inicio una conexión con la partición del dni y lo busco por la clave primaria
+        try (Connection con = Particiones.pool(dni).obtener();
+             PreparedStatement ps = con.prepareStatement(SQL_EXISTE)) {
+            ps.setString(1, dni);
+            try (ResultSet rs = ps.executeQuery()) {
+                existe = rs.next();
+            }
+            if(!existe){
+                FiltroDni.falsoPositivo();
+            }
+        } catch (SQLException ex) {
+            Metricas.error(Metricas.Operacion.COMPROBAR_DNI);
+            throw ex;
+        } finally {
+            Metricas.fin(Metricas.Operacion.COMPROBAR_DNI, inicio);
+        }
+        return existe;
+    }
     
     /**
      * Método que busca a todos los pacientes y los mete dentro de una List
      * @return la lista con todos los objetos pacientes
      */
     public static List<Paciente> findAll(){
-        List<Paciente> lista = new LinkedList(); // Creo la lista
-        try{
-            // Establezco la conexión y ejecuto la consulta
-            Connection con = null;
-            con = Aplicacion.conectar(con);
-            Statement s = con.createStatement();
-            ResultSet rs = s.executeQuery("SELECT dni, nombre, apellidos, fecha_nacimiento FROM PACIENTES");
-            
-            // Creo un bucle que reitere por cada resultado de la busqueda
-            while (rs.next()){
-                // Guardo los datos que me interesan en variables
-                String dniRs = rs.getString(1);
-                String nombreRs = rs.getString(2);
-                String apellidosRs = rs.getString(3);
-                String fechaNacimientoRs = rs.getString(4);
-                // Añado en la lista pacientes creados con los datos de la consulta
-                lista.add(new Paciente(dniRs, nombreRs, apellidosRs, fechaNacimientoRs));
+        try {
+            return listar();
+        } catch (SQLException ex) {
+            // Si existe algun problema con la conexión o la sentencia sale este error
+            System.out.println("A surgido un error respecto a la base de datos.");
+            return new LinkedList<>();
+        }
+    }
+    
+    /**
+     * Método igual que findAll, pero que lanza la excepción si falla la base de
+     * datos en lugar de devolver la lista vacía como si no hubiera pacientes
+     * @return la lista con todos los objetos pacientes
+     * @throws SQLException Si falla la consulta en alguna partición
+     */
+    static List<Paciente> listar() throws SQLException{
+        long inicio = Metricas.inicio();
+        List<Paciente> lista = new LinkedList<>(); // Creo la lista
+        try {
+            // Se leen a la vez todas las particiones y se juntan sus pacientes
+            for (List<Paciente> parte : Particiones.enTodas(pool -> leer(pool, SQL_FIND_ALL))) {
+                lista.addAll(parte);
             }
+        } catch (SQLException ex) {
+            Metricas.error(Metricas.Operacion.FIND_ALL);
+            throw ex;
+        } finally {
+            Metricas.fin(Metricas.Operacion.FIND_ALL, inicio);
+        }
+        return lista;
+    }
+    
+    /**
+     * Método que recorre todos los pacientes sin cargarlos a la vez en memoria.
+     * Los pacientes se leen de la base de datos a medida que se consume el
+     * stream, así que hay que cerrarlo para devolver la conexión al pool, por
+     * ejemplo con un try-with-resources.
+     * @param fetchSize número de filas que se piden a la base de datos de cada vez
+     * @return un stream con todos los pacientes
+     */
+    public static Stream<Paciente> stream(int fetchSize){
+        // Con varias particiones se leen ordenados por dni para mezclarlos en orden
+        return abrirStream(Metricas.Operacion.STREAM, fetchSize, POR_DNI,
+                Particiones.getTotal()==1 ? SQL_FIND_ALL : SQL_STREAM_DNI);
+    }
+    
+    /**
+     * Método igual que stream, pero que lanza la excepción si no se pueden
+     * abrir los cursores en lugar de devolver un stream vacío, para distinguir
+     * una base de datos sin pacientes de una que ha fallado
+     * @param fetchSize número de filas que se piden a la base de datos de cada vez
+     * @return un stream con todos los pacientes, que hay que cerrar
+     * @throws SQLException Si no se puede abrir la consulta en alguna partición
+     */
+    static Stream<Paciente> abrirListado(int fetchSize) throws SQLException{
+        long inicio = Metricas.inicio();
+        try {
+            return abrirCursores(Metricas.Operacion.STREAM, fetchSize, POR_DNI,
+                    Particiones.getTotal()==1 ? SQL_FIND_ALL : SQL_STREAM_DNI);
+        } catch (SQLException ex) {
+            Metricas.error(Metricas.Operacion.STREAM);
+            throw ex;
+        } finally {
+            Metricas.fin(Metricas.Operacion.STREAM, inicio);
+        }
+    }
+    
+    /**
+     * Método que abre un cursor con una consulta de pacientes en cada partición
+     * y los recorre como un stream, que hay que cerrar para devolver las
+     * conexiones al pool. Los cursores se abren a la vez y los pacientes se
+     * mezclan por orden según van leyéndose.
+     * @param operacion operación con la que se registra en Metricas
+     * @param fetchSize número de filas que se piden a la base de datos de cada vez
+     * @param orden orden en el que devuelve los pacientes la consulta
+     * @param sql consulta que devuelve dni, nombre, apellidos y fecha_nacimiento
+     * @param parametros valores de los parámetros de la consulta
+     * @return un stream con los pacientes de la consulta
+     */
+    private static Stream<Paciente> abrirStream(Metricas.Operacion operacion, int fetchSize, Comparator<Paciente> orden,
+            String sql, Object... parametros){
+        // Solo se mide la apertura de los cursores, la lectura depende de quien consume el stream
+        long inicio = Metricas.inicio();
+        try {
+            return abrirCursores(operacion, fetchSize, orden, sql, parametros);
         } catch (SQLException ex) {
             // Si existe algun problema con la conexión o la sentencia sale este error
             System.out.println("A surgido un error respecto a la base de datos.");
+            Metricas.error(operacion);
+            return Stream.empty();
+        } finally {
+            Metricas.fin(operacion, inicio);
         }
+    }
+    
+    /**
+     * Método que abre los cursores de abrirStream y los mezcla en un stream
+     * @param operacion operación con la que se registran los errores de lectura en Metricas
+     * @param fetchSize número de filas que se piden a la base de datos de cada vez
+     * @param orden orden en el que devuelve los pacientes la consulta
+     * @param sql consulta que devuelve dni, nombre, apellidos y fecha_nacimiento
+     * @param parametros valores de los parámetros de la consulta
+     * @return un stream con los pacientes de la consulta
+     * @throws SQLException Si no se puede abrir la consulta en alguna partición
+     */
+    private static Stream<Paciente> abrirCursores(Metricas.Operacion operacion, int fetchSize, Comparator<Paciente> orden,
+            String sql, Object... parametros) throws SQLException{
+        List<Cursor> abiertos = Collections.synchronizedList(new ArrayList<>());
+        try {
+            Particiones.enTodas(pool -> {
+                // Se guarda antes de avanzar para poder cerrarlo si falla otra partición
+                Cursor c = new Cursor(pool, sql, fetchSize, parametros);
+                abiertos.add(c);
+                c.avanzar();
+                return c;
+            });
+        } catch (SQLException ex) {
+            abiertos.forEach(Cursor::close);
+            throw ex;
+        }
+        
+        // Siempre se devuelve el paciente menor de los cursores y se avanza ese cursor
+        PriorityQueue<Cursor> cola = new PriorityQueue<>(Math.max(1, abiertos.size()),
+                (a, b) -> orden.compare(a.actual, b.actual));
+        for (Cursor c : abiertos) {
+            if (c.actual != null) {
+                cola.add(c);
+            }
+        }
+        Spliterator<Paciente> sp = new Spliterators.AbstractSpliterator<Paciente>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super Paciente> accion) {
+                Cursor c = cola.poll();
+                if (c == null) {
+                    return false;
+                }
+                accion.accept(c.actual);
+                try {
+                    if (c.avanzar()) {
+                        cola.add(c);
+                    }
+                    return true;
+                } catch (SQLException ex) {
+                    System.out.println("A surgido un error respecto a la base de datos.");
+                    Metricas.error(operacion);
+                    cola.clear();
+                    return false;
+                }
+            }
+        };
+        return StreamSupport.stream(sp, false).onClose(() -> abiertos.forEach(Cursor::close));
+    }
+    
+    /**
+     * Clase que representa un cursor abierto sobre una partición, con el
+     * paciente de la fila actual
+     */
+    private static class Cursor implements AutoCloseable {
+        private final Connection con;
+        private PreparedStatement ps;
+        private ResultSet rs;
+        private FilasPacientes filas;
+        // Paciente de la fila actual, null antes de empezar y al terminar
+        Paciente actual;
+        
+        Cursor(PoolConexiones pool, String sql, int fetchSize, Object... parametros) throws SQLException {
+            con = pool.obtener();
+            try {
+                ps = con.prepareStatement(sql);
+                for (int i = 0; i < parametros.length; i++) {
+                    ps.setObject(i+1, parametros[i]);
+                }
+                ps.setFetchSize(fetchSize);
+                rs = ps.executeQuery();
+                filas = new FilasPacientes(rs);
+            } catch (SQLException ex) {
+                close();
+                throw ex;
+            }
+        }
+        
+        /**
+         * Método que avanza a la siguiente fila
+         * @return true si hay fila y false si se ha terminado
+         * @throws SQLException Si falla la lectura
+         */
+        boolean avanzar() throws SQLException {
+            actual = rs.next() ? filas.leer(rs) : null;
+            return actual != null;
+        }
+        
+        @Override
+        public void close() {
+            cerrar(rs, ps, con);
+        }
+    }
+    
+    /**
+     * Método que lee todos los pacientes de una consulta en una partición
+     * @param pool pool de la partición
+     * @param sql consulta que devuelve dni, nombre, apellidos y fecha_nacimiento
+     * @param parametros valores de los parámetros de la consulta
+     * @return la lista con los pacientes
+     * @throws SQLException Si falla la consulta
+     */
+    private static List<Paciente> leer(PoolConexiones pool, String sql, Object... parametros) throws SQLException {
+        List<Paciente> lista = new ArrayList<>();
+        try (Connection con = pool.obtener();
+             PreparedStatement ps = con.prepareStatement(sql)) {
+            for (int i = 0; i < parametros.length; i++) {
+                ps.setObject(i+1, parametros[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                FilasPacientes filas = new FilasPacientes(rs);
+                while (rs.next()){
+                    lista.add(filas.leer(rs));
+                }
+            }
+        }
+        return lista;
+    }
+    
+    /**
+     * Método que lee una página de una consulta ordenada en todas las particiones
+     * a la vez y se queda con los primeros pacientes. Cada partición devuelve
+     * como mucho una página, así que entre todas están los de la página.
+     * @param orden orden de la consulta
+     * @param tamaño número máximo de pacientes de la página
+     * @param sql consulta ordenada con LIMIT
+     * @param parametros valores de los parámetros de la consulta
+     * @return la lista con los pacientes de la página
+     * @throws SQLException Si falla la consulta en alguna partición
+     */
+    private static List<Paciente> leerPagina(Comparator<Paciente> orden, int tamaño, String sql, Object... parametros) throws SQLException {
+        List<List<Paciente>> partes = Particiones.enTodas(pool -> leer(pool, sql, parametros));
+        if (partes.size() == 1) {
+            return partes.get(0);
+        }
+        List<Paciente> lista = new ArrayList<>();
+        partes.forEach(lista::addAll);
+        lista.sort(orden);
+        return lista.size() <= tamaño ? lista : new ArrayList<>(lista.subList(0, tamaño));
+    }
+    
+    /**
+     * Método que devuelve una página de pacientes ordenados por dni. Para pedir
+     * la siguiente página se pasa el dni del último paciente de la anterior, así
+     * la base de datos salta directamente a él por la clave primaria en vez de
+     * contar las filas anteriores.
+     * @param despuesDe dni del último paciente de la página anterior, o null para la primera página
+     * @param tamaño número máximo de pacientes de la página
+     * @return la lista con los pacientes de la página, vacía si no hay más
+     */
+    public static List<Paciente> pagina(String despuesDe, int tamaño){
+        try {
+            return buscarPagina(despuesDe, tamaño);
+        } catch (SQLException ex) {
+            // Si existe algun problema con la conexión o la sentencia sale este error
+            System.out.println("A surgido un error respecto a la base de datos.");
+            return new ArrayList<>(0);
+        }
+    }
+    
+    /**
+     * Método igual que pagina, pero que lanza la excepción si falla la base de
+     * datos en lugar de devolver la página vacía como si no hubiera más
+     * @param despuesDe dni del último paciente de la página anterior, o null para la primera página
+     * @param tamaño número máximo de pacientes de la página
+     * @return la lista con los pacientes de la página, vacía si no hay más
+     * @throws SQLException Si falla la consulta en alguna partición
+     */
+    static List<Paciente> buscarPagina(String despuesDe, int tamaño) throws SQLException{
+        long inicio = Metricas.inicio();
+        try {
+            // Ningún dni es menor que la cadena vacía, así que sirve para la primera página
+            return leerPagina(POR_DNI, tamaño, SQL_PAGINA, despuesDe==null ? "" : despuesDe, tamaño);
+        } catch (SQLException ex) {
+            Metricas.error(Metricas.Operacion.PAGINA);
+            throw ex;
+        } finally {
+            Metricas.fin(Metricas.Operacion.PAGINA, inicio);
+        }
+    }
+    
+    /**
+     * Método que devuelve una página de pacientes ordenados por dni que empieza
+     * en un dni, o en el primero que va después si no existe (ver pagina)
+     * @param desde dni del primer paciente de la página, o el principio de uno
+     * @param tamaño número máximo de pacientes de la página
+     * @return la lista con los pacientes de la página, vacía si no hay más
+     */
+    public static List<Paciente> paginaDesde(String desde, int tamaño){
+        long inicio = Metricas.inicio();
+        List<Paciente> lista = new ArrayList<>(0);
+        try {
+            lista = leerPagina(POR_DNI, tamaño, SQL_PAGINA_DESDE, desde, tamaño);
+        } catch (SQLException ex) {
+            // Si existe algun problema con la conexión o la sentencia sale este error
+            System.out.println("A surgido un error respecto a la base de datos.");
+            Metricas.error(Metricas.Operacion.PAGINA);
+        }
+        Metricas.fin(Metricas.Operacion.PAGINA, inicio);
         return lista;
     }
     
+    /**
+     * Método que devuelve una página de pacientes nacidos entre dos fechas,
+     * ordenados por fecha de nacimiento y dni. Para pedir la siguiente página se
+     * pasa el último paciente de la anterior, así la base de datos empieza a leer
+     * el índice por su fecha en vez de contar las filas anteriores.
+     * @param desde primera fecha de nacimiento, incluida
+     * @param hasta última fecha de nacimiento, incluida
+     * @param despuesDe último paciente de la página anterior, o null para la primera página
+     * @param tamaño número máximo de pacientes de la página
+     * @return la lista con los pacientes de la página, vacía si no hay más
+     */
+    public static List<Paciente> entreFechas(LocalDate desde, LocalDate hasta, Paciente despuesDe, int tamaño){
+        long inicio = Metricas.inicio();
+        List<Paciente> lista = new ArrayList<>(0);
+        // En la primera página la condición de después del último paciente se cumple siempre
+        LocalDate ultimaFecha = despuesDe==null ? desde.minusDays(1) : despuesDe.getFechaNacimiento();
+        String ultimoDni = despuesDe==null ? "" : despuesDe.getDni();
+        try {
+            // Las fechas se pasan como LocalDate, que llega como DATE; con texto H2
+            // compararía como texto y no usaría el índice
+            lista = leerPagina(POR_FECHA, tamaño, SQL_ENTRE_FECHAS,
+                    ultimaFecha.isAfter(desde) ? ultimaFecha : desde, hasta, ultimaFecha, ultimoDni, tamaño);
+        } catch (SQLException ex) {
+            // Si existe algun problema con la conexión o la sentencia sale este error
+            System.out.println("A surgido un error respecto a la base de datos.");
+            Metricas.error(Metricas.Operacion.ENTRE_FECHAS);
+        }
+        Metricas.fin(Metricas.Operacion.ENTRE_FECHAS, inicio);
+        return lista;
+    }
+    
+    /**
+     * Método que recorre los pacientes nacidos entre dos fechas, ordenados por
+     * fecha de nacimiento y dni, sin cargarlos a la vez en memoria. Hay que
+     * cerrar el stream para devolver la conexión al pool.
+     * @param desde primera fecha de nacimiento, incluida
+     * @param hasta última fecha de nacimiento, incluida
+     * @param fetchSize número de filas que se piden a la base de datos de cada vez
+     * @return un stream con los pacientes
+     */
+    public static Stream<Paciente> streamEntreFechas(LocalDate desde, LocalDate hasta, int fetchSize){
+        return abrirStream(Metricas.Operacion.ENTRE_FECHAS, fetchSize, POR_FECHA, SQL_STREAM_FECHAS,
+                desde, hasta);
+    }
+    
+    /**
+     * Método que devuelve una página de pacientes con una edad entre dos valores
+     * a fecha de hoy, ordenados del más mayor al más joven (ver entreFechas)
+     * @param edadMinima edad mínima, incluida
+     * @param edadMaxima edad máxima, incluida
+     * @param despuesDe último paciente de la página anterior, o null para la primera página
+     * @param tamaño número máximo de pacientes de la página
+     * @return la lista con los pacientes de la página, vacía si no hay más
+     */
+    public static List<Paciente> porEdad(int edadMinima, int edadMaxima, Paciente despuesDe, int tamaño){
+        LocalDate hoy = LocalDate.now();
+        return entreFechas(nacidoDesde(hoy, edadMaxima), nacidoHasta(hoy, edadMinima), despuesDe, tamaño);
+    }
+    
+    /**
+     * Método que recorre los pacientes con una edad entre dos valores a fecha de
+     * hoy sin cargarlos a la vez en memoria (ver streamEntreFechas)
+     * @param edadMinima edad mínima, incluida
+     * @param edadMaxima edad máxima, incluida
+     * @param fetchSize número de filas que se piden a la base de datos de cada vez
+     * @return un stream con los pacientes
+     */
+    public static Stream<Paciente> streamPorEdad(int edadMinima, int edadMaxima, int fetchSize){
+        LocalDate hoy = LocalDate.now();
+        return streamEntreFechas(nacidoDesde(hoy, edadMaxima), nacidoHasta(hoy, edadMinima), fetchSize);
+    }
+    
+    /**
+     * Método que cuenta los pacientes nacidos entre dos fechas recorriendo solo
+     * esa parte del índice
+     * @param desde primera fecha de nacimiento, incluida
+     * @param hasta última fecha de nacimiento, incluida
+     * @return número de pacientes, o -1 si hay un error
+     */
+    public static long contarEntreFechas(LocalDate desde, LocalDate hasta){
+        long inicio = Metricas.inicio();
+        long n = -1;
+        try {
+            // Se cuenta a la vez en todas las particiones y se suman
+            long suma = 0;
+            for (long parte : Particiones.enTodas(pool -> {
+                try (Connection con = pool.obtener();
+                     PreparedStatement ps = con.prepareStatement(SQL_CONTAR_FECHAS)) {
+                    ps.setObject(1, desde);
+                    ps.setObject(2, hasta);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        return rs.getLong(1);
+                    }
+                }
+            })) {
+                suma += parte;
+            }
+            n = suma;
+        } catch (SQLException ex) {
+            // Si existe algun problema con la conexión o la sentencia sale este error
+            System.out.println("A surgido un error respecto a la base de datos.");
+            Metricas.error(Metricas.Operacion.CONTAR_FECHAS);
+        }
+        Metricas.fin(Metricas.Operacion.CONTAR_FECHAS, inicio);
+        return n;
+    }
+    
+    /**
+     * Método que cuenta los pacientes con una edad entre dos valores a fecha de
+     * hoy (ver contarEntreFechas)
+     * @param edadMinima edad mínima, incluida
+     * @param edadMaxima edad máxima, incluida
+     * @return número de pacientes, o -1 si hay un error
+     */
+    public static long contarPorEdad(int edadMinima, int edadMaxima){
+        LocalDate hoy = LocalDate.now();
+        return contarEntreFechas(nacidoDesde(hoy, edadMaxima), nacidoHasta(hoy, edadMinima));
+    }
+    
+    /**
+     * Método que cuenta los pacientes por grupos de edad a fecha de hoy. Como
+     * hay que contar todas las filas, se lee solo la fecha de nacimiento de toda
+     * la tabla en vez de hacer un recuento por el índice para cada grupo, que
+     * en H2 lee cada fila por separado. Los grupos son los mismos que en
+     * InstantaneaPacientes.distribucionEdades.
+     * @param anchoAños años de cada grupo; el grupo i es el de edades entre i*anchoAños e (i+1)*anchoAños-1
+     * @return número de pacientes de cada grupo, el último con todas las edades mayores; vacío si hay un error
+     */
+    public static long[] distribucionEdades(int anchoAños){
+        if (anchoAños<1) {
+            throw new IllegalArgumentException("El ancho de los grupos de edad debe ser positivo.");
+        }
+        long inicio = Metricas.inicio();
+        LocalDate hoy = LocalDate.now();
+        long[] cuenta = new long[EDAD_MAXIMA/anchoAños+1];
+        // Primer día de nacimiento de cada grupo menos el último, cambiado de
+        // signo para que quede en orden creciente y se pueda buscar en él
+        long[] limites = new long[cuenta.length-1];
+        for (int i = 0; i < limites.length; i++) {
+            limites[i] = -nacidoDesde(hoy, (i+1)*anchoAños-1).toEpochDay();
+        }
+        try {
+            // Cada partición cuenta sus pacientes a la vez y después se suman
+            for (long[] parte : Particiones.enTodas(pool -> {
+                long[] c = new long[limites.length+1];
+                try (Connection con = pool.obtener();
+                     PreparedStatement ps = con.prepareStatement(SQL_FECHAS)) {
+                    ps.setFetchSize(1000);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()){
+                            // El grupo es el primero cuyo primer día no es posterior a la fecha;
+                            // las fechas futuras caen en el primero y las más antiguas en el último
+                            int k = Arrays.binarySearch(limites, -FilasPacientes.fecha(rs, 1).toEpochDay());
+                            c[k>=0 ? k : -k-1]++;
+                        }
+                    }
+                }
+                return c;
+            })) {
+                for (int i = 0; i < cuenta.length; i++) {
+                    cuenta[i] += parte[i];
+                }
+            }
+        } catch (SQLException ex) {
+            // Si existe algun problema con la conexión o la sentencia sale este error
+            System.out.println("A surgido un error respecto a la base de datos.");
+            Metricas.error(Metricas.Operacion.DISTRIBUCION_EDADES);
+            cuenta = new long[0];
+        }
+        Metricas.fin(Metricas.Operacion.DISTRIBUCION_EDADES, inicio);
+        return cuenta;
+    }
+    
+    /**
+     * Método que calcula la primera fecha de nacimiento de quien tiene una edad
+     * @param hoy fecha de hoy
+     * @param edad edad en años
+     * @return el día siguiente a cumplir edad+1 años contando hacia atrás desde hoy
+     */
+    private static LocalDate nacidoDesde(LocalDate hoy, int edad){
+        return hoy.minusYears(edad+1L).plusDays(1);
+    }
+    
+    /**
+     * Método que calcula la última fecha de nacimiento de quien tiene una edad
+     * @param hoy fecha de hoy
+     * @param edad edad en años
+     * @return la fecha de hace edad años
+     */
+    private static LocalDate nacidoHasta(LocalDate hoy, int edad){
+        return hoy.minusYears(edad);
+    }
+    
+    /**
+     * Método que cierra un cursor, su sentencia y su conexión sin propagar errores
+     * @param rs cursor a cerrar, puede ser null
+     * @param ps sentencia a cerrar, puede ser null
+     * @param con conexión a cerrar, puede ser null
+     */
+    private static void cerrar(ResultSet rs, PreparedStatement ps, Connection con){
+        try {
+            if (rs!=null) rs.close();
+        } catch (SQLException ex) {
+            // Se sigue cerrando el resto
+        }
+        try {
+            if (ps!=null) ps.close();
+        } catch (SQLException ex) {
+            // Se sigue cerrando el resto
+        }
+        try {
+            if (con!=null) con.close();
+        } catch (SQLException ex) {
+            // La conexión ya no se va a usar
+        }
+    }
+    
     /**
      * Método que borra un paciente de la base de datos si coincide su dni con el dni pasado por parametro
      * @param dni del paciente que se quiere borrar
      * @return la cantidad de registros alterados
      */
     public static int deleteById(String dni){
-        int numReg = 0;
-        try{
-            // Establezco la conexión y ejecuto la sentencia
-            Connection con = null;
-            con = Aplicacion.conectar(con);
-            Statement s = con.createStatement();
-            numReg = s.executeUpdate("DELETE FROM PACIENTES WHERE dni = '"+dni+"'");
-            
+        try {
+            return borrar(dni);
         } catch (SQLException ex) {
             // Si existe algun problema con la conexión o la sentencia sale este error
             System.out.println("A surgido un error respecto a la base de datos.");
+            return 0;
+        }
+    }
+    
+    /**
+     * Método igual que deleteById, pero que lanza la excepción si falla la base
+     * de datos en lugar de devolver 0 como si no existiera el paciente
+     * @param dni del paciente que se quiere borrar
+     * @return la cantidad de registros alterados
+     * @throws SQLException Si falla el borrado
+     */
+    static int borrar(String dni) throws SQLException{
+        long inicio = Metricas.inicio();
+        int numReg;
+        try (Connection con = Particiones.pool(dni).obtener();
+             PreparedStatement ps = con.prepareStatement(SQL_DELETE)) {
+            // El paciente y su historial de hospitalizaciones se borran en la misma transacción
+            con.setAutoCommit(false);
+            ps.setString(1, dni);
+            numReg = ps.executeUpdate();
+            if(numReg!=0){
+                Hospitalizaciones.borrar(con, dni);
+            }
+            confirmar(con, dni, numReg!=0 && DiarioCambios.isActivo() ? new DiarioCambios.Lote().baja(dni) : null);
+            con.setAutoCommit(true);
+            if(numReg!=0){
+                FiltroDni.borrado(dni);
+                CachePacientes.invalidar(dni);
+                HospitalizacionesDiferidas.descartar(dni);
+                InstantaneaPacientes.borrado(dni);
+                BuscadorPacientes.borrado(dni);
+            }
+            
+        } catch (SQLException ex) {
+            Metricas.error(Metricas.Operacion.DELETE_BY_ID);
+            throw ex;
+        } finally {
+            Metricas.fin(Metricas.Operacion.DELETE_BY_ID, inicio);
         }
         return numReg;
     }
     
     /**
-     * Método que muestra todos los datos de un paciente mediante su dni
+     * Método que muestra todos los datos de un paciente mediante su dni. Los
+     * pacientes consultados se guardan en la caché de pacientes, así que las
+     * siguientes consultas del mismo dni no van a la base de datos.
      * @param dni dni del paciente que queremos conocer los detalles
      * @return el paciente 
      */
     public static Paciente detallesPaciente(String dni){
-        Paciente p = null;
-        try{
-            // Establezco la conexión y ejecuto la consulta
-            Connection con = null;
-            con = Aplicacion.conectar(con);
-            Statement s = con.createStatement();
-            ResultSet rs = s.executeQuery("SELECT dni, nombre, apellidos, fecha_nacimiento, nhosp FROM PACIENTES WHERE dni = '"+dni+"'");
-            
-            while (rs.next()){
-                // Guardo los datos que me interesan en variables
-                String dniRs = rs.getString(1);
-                String nombreRs = rs.getString(2);
-                String apellidosRs = rs.getString(3);
-                String fechaNacimientoRs = rs.getString(4);
-                int nhospRs = rs.getInt(5);
-                // Creo un paciente con los datos de la consulta
-                p = new Paciente(dniRs, nombreRs, apellidosRs, fechaNacimientoRs);
-                // Modifico el atributo nhosp ya que el constructor por defecto lo deja en 0
-                p.setNhosp(nhospRs);
-            }
+        try {
+            return buscar(dni);
         } catch (SQLException ex) {
             // Si existe algun problema con la conexión o la sentencia sale este error
             System.out.println("A surgido un error respecto a la base de datos.");
+            return null;
+        }
+    }
+    
+    /**
+     * Método igual que detallesPaciente, pero que lanza la excepción si falla la
+     * base de datos en lugar de devolver null como si no existiera el paciente
+     * @param dni dni del paciente que queremos conocer los detalles
+     * @return el paciente, o null si no existe
+     * @throws SQLException Si falla la consulta
+     */
+    static Paciente buscar(String dni) throws SQLException{
+        long inicio = Metricas.inicio();
+        try {
+            if(HospitalizacionesDiferidas.isActivo()){
+                // Se suman los incrementos de hospitalizaciones que aún no se han guardado
+                return HospitalizacionesDiferidas.leer(dni, d -> CachePacientes.obtener(d, PacientesDAO::cargarDetalles));
+            }
+            return CachePacientes.obtener(dni, PacientesDAO::cargarDetalles);
+        } catch (ErrorLectura ex) {
+            Metricas.error(Metricas.Operacion.DETALLES_PACIENTE);
+            throw ex.getCause();
+        } finally {
+            Metricas.fin(Metricas.Operacion.DETALLES_PACIENTE, inicio);
+        }
+    }
+    
+    /**
+     * Método que lee los detalles de un paciente para la caché, que solo admite
+     * lecturas sin excepciones comprobadas
+     * @param dni dni del paciente
+     * @return el paciente, o null si no existe
+     * @throws ErrorLectura Si falla la consulta, con la SQLException como causa
+     */
+    private static Paciente cargarDetalles(String dni){
+        try {
+            return leerDetalles(dni);
+        } catch (SQLException ex) {
+            throw new ErrorLectura(ex);
+        }
+    }
+    
+    /**
+     * Excepción con la que cargarDetalles atraviesa la caché cuando falla la lectura
+     */
+    private static class ErrorLectura extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        ErrorLectura(SQLException causa) {
+            super(causa);
+        }
+        
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+    
+    /**
+     * Método que lee de la base de datos todos los datos de un paciente
+     * @param dni dni del paciente que queremos conocer los detalles
+     * @return el paciente, o null si no existe
+     * @throws SQLException Si falla la consulta
+     */
+    private static Paciente leerDetalles(String dni) throws SQLException{
+        Paciente p = null;
+        try (Connection con = Particiones.pool(dni).obtener();
+             PreparedStatement ps = con.prepareStatement(SQL_DETALLES)) {
+            // Establezco la conexión y ejecuto la consulta
+            ps.setString(1, dni);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()){
+                    // Creo un paciente con los datos de la consulta, incluido nhosp
+                    p = new FilasPacientes(rs).leer(rs);
+                }
+            }
         }
         return p;
     }
     
     /**
      * Método que incrementa en 1 el número de hospitalizaciones del paciente que
-     * se pasa el dni como parametro
+     * se pasa el dni como parametro y apunta el ingreso en su historial (ver
+     * Hospitalizaciones)
      * @param dni del paciente que se quiere incrementar el nhosp
      * @return true o false si se ha podido incrementar el nhosp o no
      */
     public static boolean incrementarNhosp(String dni){
+        try {
+            return incrementar(dni);
+        } catch (SQLException ex) {
+            // Si existe algun problema con la conexión o la sentencia sale este error
+            System.out.println("A surgido un error respecto a la base de datos.");
+            return false;
+        }
+    }
+    
+    /**
+     * Método igual que incrementarNhosp, pero que lanza la excepción si falla la
+     * base de datos en lugar de devolver false como si no existiera el paciente
+     * @param dni del paciente que se quiere incrementar el nhosp
+     * @return true o false si se ha podido incrementar el nhosp o no
+     * @throws SQLException Si falla la actualización
+     */
+    static boolean incrementar(String dni) throws SQLException{
+        long inicio = Metricas.inicio();
+        if(HospitalizacionesDiferidas.isActivo()){
+            // En modo diferido solo se comprueba que existe y el incremento se guarda más tarde
+            boolean existe;
+            try {
+                existe = existe(dni);
+            } catch (SQLException ex) {
+                Metricas.error(Metricas.Operacion.INCREMENTAR_NHOSP);
+                Metricas.fin(Metricas.Operacion.INCREMENTAR_NHOSP, inicio);
+                throw ex;
+            }
+            if(existe){
+                HospitalizacionesDiferidas.incrementar(dni);
+                InstantaneaPacientes.incrementado(dni);
+            }
+            Metricas.fin(Metricas.Operacion.INCREMENTAR_NHOSP, inicio);
+            return existe;
+        }
         boolean incrementado = false;
-        try{
-            // Establezco la conexión y ejecuto la sentencia
-            Connection con = null;
-            con = Aplicacion.conectar(con);
-            Statement s = con.createStatement();
-            int numReg = s.executeUpdate("UPDATE PACIENTES SET nhosp = nhosp+1 WHERE dni = '"+dni+"'");
+        try (Connection con = Particiones.pool(dni).obtener();
+             PreparedStatement ps = con.prepareStatement(SQL_INCREMENTAR)) {
+            // El contador y la fila del historial se guardan en la misma transacción
+            con.setAutoCommit(false);
+            ps.setString(1, dni);
+            int numReg = ps.executeUpdate();
+            if(numReg!=0){
+                Hospitalizaciones.registrar(con, dni, System.currentTimeMillis());
+            }
+            confirmar(con, dni, numReg!=0 && DiarioCambios.isActivo() ? new DiarioCambios.Lote().hospitalizaciones(dni, 1) : null);
+            con.setAutoCommit(true);
             // Solo si se ha modificado algún registro "incrementado" cambia a true
             if(numReg!=0){
                 incrementado = true;
+                // El paciente guardado en la caché ya no tiene el nhosp correcto
+                CachePacientes.invalidar(dni);
+                InstantaneaPacientes.incrementado(dni);
             }
         } catch (SQLException ex) {
-            // Si existe algun problema con la conexión o la sentencia sale este error
-            System.out.println("A surgido un error respecto a la base de datos.");
+            Metricas.error(Metricas.Operacion.INCREMENTAR_NHOSP);
+            throw ex;
+        } finally {
+            Metricas.fin(Metricas.Operacion.INCREMENTAR_NHOSP, inicio);
         }
         return incrementado;
     }
+    
+    /**
+     * Método que confirma la transacción de un cambio y lo apunta en el diario de
+     * cambios con el orden de su dni tomado, para que dos cambios del mismo dni
+     * queden en el diario en el orden en que se han confirmado. Las sentencias ya
+     * se han ejecutado, así que mientras se tiene el orden no se espera a ningún
+     * bloqueo de fila.
+     * @param con conexión sin autocommit con el cambio sin confirmar
+     * @param dni dni del paciente cambiado
+     * @param lote cambios que se apuntan, o null si no hay que apuntar nada
+     * @throws SQLException Si falla el commit
+     */
+    private static void confirmar(Connection con, String dni, DiarioCambios.Lote lote) throws SQLException{
+        if(lote == null){
+            con.commit();
+            return;
+        }
+        try (DiarioCambios.Orden orden = DiarioCambios.ordenar(dni)) {
+            con.commit();
+            orden.anotar(lote);
+        }
+    }
 }
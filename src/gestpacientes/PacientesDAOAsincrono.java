@@ -0,0 +1,307 @@
+package gestpacientes;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Clase que ofrece las operaciones de PacientesDAO de forma asíncrona. Cada
+ * llamada devuelve en el momento un CompletableFuture y la consulta se ejecuta
+ * en un grupo de hilos propio, así que quien llama no se queda bloqueado y
+ * puede lanzar muchas consultas a la vez.
+ *
+ * Las consultas usan las variantes de PacientesDAO que lanzan la excepción, así
+ * que un fallo de la base de datos no se confunde con un paciente que no existe:
+ * el futuro falla con una CompletionException cuya causa es la SQLException, y
+ * se puede tratar con exceptionally o handle.
+ *
+ * Contiene los siguientes atributos:
+ *
+ * - ejecutor: hilos que ejecutan las consultas (hilos virtuales si se piden y la JVM los tiene)
+ * - enVuelo: permisos que limitan las consultas pendientes; si se acaban, la
+ *   llamada no espera y su futuro falla en el momento con RejectedExecutionException
+ * - timeoutMs: tiempo máximo de cada consulta; al superarlo el futuro falla con
+ *   TimeoutException
+ *
+ * Cancelar el futuro devuelto, o que se agote su tiempo, libera en el momento a
+ * quien espera y evita que la consulta empiece si todavía estaba en cola. Una
+ * consulta que ya ha empezado no se interrumpe, porque interrumpir un hilo que
+ * está escribiendo en el archivo de H2 puede cerrar el archivo; su resultado
+ * simplemente se descarta, y sigue ocupando su permiso hasta que termina, así
+ * que enVuelo limita de verdad el trabajo en la base de datos. Por lo mismo, un
+ * tiempo agotado no deshace nada: un alta, baja o incremento cuyo futuro ha
+ * fallado con TimeoutException se puede guardar igualmente, y hay que
+ * comprobarlo consultando el paciente antes de repetirlo.
+ * @author Adrián Romero Ramírez
+ */
+public class PacientesDAOAsincrono {
+
+    private final ExecutorService ejecutor;
+    private final ScheduledExecutorService temporizador;
+    private final Semaphore enVuelo;
+    private final int maxEnVuelo;
+    private final long timeoutMs;
+
+    /**
+     * Constructor con parametros de la clase
+     * @param hilos número de hilos que ejecutan las consultas (se ignora con hilos virtuales)
+     * @param maxEnVuelo número máximo de consultas pendientes a la vez
+     * @param timeoutMs milisegundos máximos de cada consulta, 0 para no limitarlo
+     * @param virtuales true para usar hilos virtuales si la JVM los tiene
+     */
+    public PacientesDAOAsincrono(int hilos, int maxEnVuelo, long timeoutMs, boolean virtuales) {
+        this.ejecutor=crearEjecutor(hilos, virtuales);
+        this.temporizador=Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t=new Thread(r, "dao-asincrono-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        this.enVuelo=new Semaphore(maxEnVuelo);
+        this.maxEnVuelo=maxEnVuelo;
+        this.timeoutMs=timeoutMs;
+    }
+
+    /**
+     * Método que crea una fachada asíncrona leyendo la configuración de las
+     * propiedades del sistema gestpacientes.async.hilos, .maxEnVuelo, .timeoutMs
+     * y .virtuales
+     * @return la fachada creada
+     */
+    public static PacientesDAOAsincrono desdePropiedades() {
+        return new PacientesDAOAsincrono(
+                Integer.getInteger("gestpacientes.async.hilos", 8),
+                Integer.getInteger("gestpacientes.async.maxEnVuelo", 1000),
+                Long.getLong("gestpacientes.async.timeoutMs", 10000),
+                Boolean.getBoolean("gestpacientes.async.virtuales"));
+    }
+
+    /**
+     * Método que inserta un paciente de forma asíncrona
+     * @param p paciente que se quiere insertar
+     * @return futuro con true si se ha insertado y false si ya existe el dni
+     */
+    public CompletableFuture<Boolean> insert(Paciente p) {
+        return enviar(() -> PacientesDAO.insertar(p));
+    }
+
+    /**
+     * Método que comprueba de forma asíncrona si existe un dni
+     * @param dni dni que se quiere comprobar
+     * @return futuro con true o false dependiendo si existe
+     */
+    public CompletableFuture<Boolean> comprobarDni(String dni) {
+        return enviar(() -> PacientesDAO.existe(dni));
+    }
+
+    /**
+     * Método que lee todos los pacientes de forma asíncrona
+     * @return futuro con la lista de pacientes
+     */
+    public CompletableFuture<List<Paciente>> findAll() {
+        return enviar(PacientesDAO::listar);
+    }
+
+    /**
+     * Método que lee una página de pacientes de forma asíncrona
+     * @param despuesDe dni del último paciente de la página anterior, o null para la primera
+     * @param tamaño número máximo de pacientes de la página
+     * @return futuro con los pacientes de la página
+     */
+    public CompletableFuture<List<Paciente>> pagina(String despuesDe, int tamaño) {
+        return enviar(() -> PacientesDAO.buscarPagina(despuesDe, tamaño));
+    }
+
+    /**
+     * Método que borra un paciente de forma asíncrona
+     * @param dni dni del paciente que se quiere borrar
+     * @return futuro con el número de registros borrados
+     */
+    public CompletableFuture<Integer> deleteById(String dni) {
+        return enviar(() -> PacientesDAO.borrar(dni));
+    }
+
+    /**
+     * Método que lee los detalles de un paciente de forma asíncrona
+     * @param dni dni del paciente
+     * @return futuro con el paciente, o con null si no existe
+     */
+    public CompletableFuture<Paciente> detallesPaciente(String dni) {
+        return enviar(() -> PacientesDAO.buscar(dni));
+    }
+
+    /**
+     * Método que incrementa el número de hospitalizaciones de forma asíncrona
+     * @param dni dni del paciente
+     * @return futuro con true si se ha incrementado y false si no existe el paciente
+     */
+    public CompletableFuture<Boolean> incrementarNhosp(String dni) {
+        return enviar(() -> PacientesDAO.incrementar(dni));
+    }
+
+    /**
+     * Método que lee los detalles de varios pacientes a la vez, por ejemplo los
+     * de una planta entera. Las consultas se lanzan todas juntas y se solapan.
+     * Si falla alguna, el futuro falla con su error en vez de devolver el mapa
+     * sin ese paciente, que se confundiría con uno que no existe.
+     * @param dnis dni de los pacientes
+     * @return futuro con un mapa de dni a paciente, en el mismo orden; los que no existen no aparecen
+     */
+    public CompletableFuture<Map<String, Paciente>> detallesPacientes(Collection<String> dnis) {
+        Map<String, CompletableFuture<Paciente>> futuros=new LinkedHashMap<>();
+        for (String dni : dnis) {
+            futuros.put(dni, detallesPaciente(dni));
+        }
+        return CompletableFuture.allOf(futuros.values().toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            Map<String, Paciente> res=new LinkedHashMap<>();
+            futuros.forEach((dni, f) -> {
+                Paciente p=f.join();
+                if (p!=null) {
+                    res.put(dni, p);
+                }
+            });
+            return res;
+        });
+    }
+
+    /**
+     * Método para obtener el número de consultas pendientes
+     * @return consultas enviadas que todavía no han terminado
+     */
+    public int getEnVuelo() {
+        return maxEnVuelo-enVuelo.availablePermits();
+    }
+
+    /**
+     * Método que deja de aceptar consultas y espera a que terminen las pendientes
+     * @param esperaMaxMs milisegundos máximos de espera
+     * @return true si han terminado todas y false si se ha agotado la espera
+     * @throws InterruptedException Si se interrumpe la espera
+     */
+    public boolean cerrar(long esperaMaxMs) throws InterruptedException {
+        ejecutor.shutdown();
+        temporizador.shutdown();
+        return ejecutor.awaitTermination(esperaMaxMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Método que envía una consulta al ejecutor con el límite de pendientes, el
+     * tiempo máximo y la cancelación
+     * @param <T> tipo del resultado
+     * @param consulta consulta a ejecutar
+     * @return futuro con el resultado, o que falla con la SQLException dentro de
+     * una CompletionException
+     */
+    private <T> CompletableFuture<T> enviar(Consulta<T> consulta) {
+        CompletableFuture<T> resultado=new CompletableFuture<>();
+        // Si hay demasiadas consultas pendientes se rechaza sin esperar
+        if (!enVuelo.tryAcquire()) {
+            resultado.completeExceptionally(new RejectedExecutionException("Demasiadas consultas pendientes."));
+            return resultado;
+        }
+
+        // La consulta la empieza el hilo del ejecutor o la descarta una cancelación
+        // que llega antes, nunca las dos cosas; quien lo consigue libera el permiso
+        AtomicBoolean decidida=new AtomicBoolean();
+        Future<?> tarea;
+        try {
+            tarea=ejecutor.submit(() -> {
+                if (!decidida.compareAndSet(false, true)) {
+                    return;
+                }
+                T valor=null;
+                RuntimeException error=null;
+                try {
+                    valor=consulta.ejecutar();
+                } catch (SQLException ex) {
+                    error=new CompletionException(ex);
+                } catch (RuntimeException ex) {
+                    error=ex;
+                } finally {
+                    // El permiso se libera cuando termina el trabajo en la base de datos,
+                    // aunque el futuro ya se haya cancelado o haya agotado su tiempo, y
+                    // antes de completarlo para que quien espera pueda enviar otra consulta
+                    enVuelo.release();
+                }
+                if (error!=null) {
+                    resultado.completeExceptionally(error);
+                } else {
+                    resultado.complete(valor);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            enVuelo.release();
+            resultado.completeExceptionally(ex);
+            return resultado;
+        }
+
+        // Si se cancela o se agota el tiempo antes de empezar, se quita la consulta
+        // de la cola y se libera su permiso
+        Future<?> aviso=timeoutMs>0 ? temporizador.schedule(() ->
+                resultado.completeExceptionally(new TimeoutException("La consulta ha superado "+timeoutMs+" ms.")),
+                timeoutMs, TimeUnit.MILLISECONDS) : null;
+        resultado.whenComplete((r, ex) -> {
+            if (aviso!=null) {
+                aviso.cancel(false);
+            }
+            if ((ex instanceof CancellationException || ex instanceof TimeoutException)
+                    && decidida.compareAndSet(false, true)) {
+                tarea.cancel(false);
+                enVuelo.release();
+            }
+        });
+        return resultado;
+    }
+
+    /**
+     * Interfaz de una consulta de PacientesDAO que puede fallar
+     * @param <T> tipo del resultado
+     */
+    private interface Consulta<T> {
+        /**
+         * Método que ejecuta la consulta
+         * @return el resultado
+         * @throws SQLException Si falla la base de datos
+         */
+        T ejecutar() throws SQLException;
+    }
+
+    /**
+     * Método que crea el ejecutor de las consultas. Los hilos virtuales se buscan
+     * por reflexión porque el proyecto se compila para Java 8.
+     * @param hilos número de hilos de plataforma
+     * @param virtuales true para intentar usar hilos virtuales
+     * @return el ejecutor
+     */
+    private static ExecutorService crearEjecutor(int hilos, boolean virtuales) {
+        if (virtuales) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                System.out.println("Esta JVM no tiene hilos virtuales, se usan hilos normales.");
+            }
+        }
+        AtomicInteger contador=new AtomicInteger();
+        return new ThreadPoolExecutor(hilos, hilos, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t=new Thread(r, "dao-asincrono-"+contador.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -0,0 +1,646 @@
+package gestpacientes;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Clase que reparte los pacientes entre varias bases de datos H2 (particiones)
+ * según un hash de su DNI. Cada partición es una base de datos completa con la
+ * estructura de structure.sql; la partición 0 es la base de datos de la
+ * aplicación (Aplicacion.getPool()) y la partición i es el archivo
+ * pacientes.h2db.p{i}, que se abre en el mismo modo que la 0 (ver ServidorBD).
+ * Las demás tablas, que no son de pacientes, se quedan en la partición 0.
+ *
+ * El número de particiones se guarda en la tabla PARTICION_BD de cada base de
+ * datos y solo lo cambia reparticionar(), con la aplicación parada. Sin filas
+ * en PARTICION_BD hay una sola partición, que es la base de datos de siempre.
+ *
+ * Las operaciones sobre un paciente van a su partición con pool(dni). Las que
+ * recorren todos los pacientes se lanzan a la vez en todas las particiones con
+ * enTodas() y juntan después los resultados.
+ *
+ * Uso de la herramienta: java gestpacientes.Particiones número [filasPorTransacción]
+ * @author Adrián Romero Ramírez
+ */
+public class Particiones {
+
+    private static final String SQL_LEER="SELECT indice, total FROM PARTICION_BD";
+    private static final String SQL_BORRAR="DELETE FROM PARTICION_BD";
+    private static final String SQL_APUNTAR="INSERT INTO PARTICION_BD (indice, total) VALUES (?, ?)";
+    private static final String SQL_TODOS="SELECT dni, nombre, apellidos, fecha_nacimiento, nhosp FROM PACIENTES";
+    private static final String SQL_MOVER="MERGE INTO PACIENTES (dni, nombre, apellidos, fecha_nacimiento, nhosp) "
+            + "KEY (dni) VALUES (?, ?, ?, ?, ?)";
+
+    // Número de particiones, 0 mientras no se ha leído de la base de datos
+    private static volatile int total;
+    // Pools de las particiones distintas de la 0, por su número
+    private static final Map<Integer, PoolConexiones> pools=new HashMap<>();
+    // Si los pools los ha puesto setPools() y no se pueden crear más
+    private static boolean poolsFijos;
+    // Hilos para lanzar las consultas en todas las particiones a la vez
+    private static final ExecutorService hilos=Executors.newCachedThreadPool(r -> {
+        Thread t=new Thread(r, "particiones");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Interfaz de una tarea que se ejecuta en una partición
+     * @param <T> tipo del resultado
+     */
+    @FunctionalInterface
+    public interface Tarea<T> {
+        /**
+         * Método que ejecuta la tarea
+         * @param pool pool de conexiones de la partición
+         * @return el resultado de la tarea en esa partición
+         * @throws SQLException Si falla la base de datos
+         */
+        T ejecutar(PoolConexiones pool) throws SQLException;
+    }
+
+    /**
+     * Interfaz que recibe cada fila de un recorrido por todas las particiones
+     */
+    @FunctionalInterface
+    public interface Recorrido {
+        /**
+         * Método que recibe una fila
+         * @param rs cursor situado en la fila
+         * @throws SQLException Si falla la lectura
+         */
+        void fila(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private Particiones() {
+    }
+
+    /**
+     * Método que devuelve el número de particiones, leyéndolo de la base de
+     * datos de la aplicación la primera vez
+     * @return número de particiones, 1 si no se ha repartido nunca
+     */
+    public static int getTotal() {
+        int n=total;
+        if (n==0) {
+            // El pool se pide fuera del cerrojo; Aplicacion llama a cerrar() con el suyo
+            PoolConexiones principal=Aplicacion.getPool();
+            synchronized (Particiones.class) {
+                if (total==0) {
+                    try (Connection con=principal.obtener()) {
+                        int[] leido=leer(con);
+                        total=leido==null ? 1 : leido[1];
+                    } catch (SQLException ex) {
+                        // Todavía no existe la estructura, se vuelve a leer la próxima vez
+                        return 1;
+                    }
+                }
+                n=total;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Método que calcula la partición de un DNI
+     * @param dni DNI del paciente
+     * @return número de la partición
+     */
+    public static int indice(String dni) {
+        return indice(dni, getTotal());
+    }
+
+    /**
+     * Método que calcula la partición de un DNI con un número de particiones.
+     * El reparto no puede cambiar nunca, porque los pacientes ya guardados
+     * dejarían de encontrarse.
+     * @param dni DNI del paciente
+     * @param particiones número de particiones
+     * @return número de la partición
+     */
+    static int indice(String dni, int particiones) {
+        if (particiones==1) {
+            return 0;
+        }
+        // Se mezclan los bits del hash para que los DNI seguidos se repartan bien
+        int h=dni.hashCode();
+        h^=h>>>16;
+        h*=0x85EBCA6B;
+        h^=h>>>13;
+        h*=0xC2B2AE35;
+        h^=h>>>16;
+        return Math.floorMod(h, particiones);
+    }
+
+    /**
+     * Método que devuelve el pool de la partición de un DNI
+     * @param dni DNI del paciente
+     * @return el pool de conexiones
+     * @throws SQLException Si no se puede abrir la partición
+     */
+    public static PoolConexiones pool(String dni) throws SQLException {
+        return pool(indice(dni));
+    }
+
+    /**
+     * Método que devuelve el pool de una partición, abriéndola la primera vez
+     * @param i número de la partición
+     * @return el pool de conexiones
+     * @throws SQLException Si no se puede abrir la partición o no es la esperada
+     */
+    public static PoolConexiones pool(int i) throws SQLException {
+        if (i==0) {
+            return Aplicacion.getPool();
+        }
+        synchronized (Particiones.class) {
+            PoolConexiones p=pools.get(i);
+            if (p==null) {
+                if (poolsFijos) {
+                    throw new SQLException("No hay pool para la partición "+i+".");
+                }
+                p=PoolConexiones.desdePropiedades(url(i)+Aplicacion.cuParams);
+                pools.put(i, p);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * Método que cambia los pools de las particiones, por ejemplo para trabajar
+     * con bases de datos en memoria. El primero pasa a ser el pool de la
+     * aplicación. El número de particiones se lee de nuevo de la base de datos.
+     * @param nuevos pools de las particiones, por su número
+     */
+    public static void setPools(PoolConexiones... nuevos) {
+        Aplicacion.setPool(nuevos[0]);
+        synchronized (Particiones.class) {
+            for (int i=1; i<nuevos.length; i++) {
+                pools.put(i, nuevos[i]);
+            }
+            poolsFijos=true;
+        }
+    }
+
+    /**
+     * Método que devuelve los pools ya creados de todas las particiones, sin
+     * abrir ninguno, para consultar sus estadísticas
+     * @return lista de pools, vacía si todavía no se ha creado ninguno
+     */
+    static List<PoolConexiones> creados() {
+        List<PoolConexiones> res=new ArrayList<>();
+        PoolConexiones principal=Aplicacion.poolCreado();
+        if (principal!=null) {
+            res.add(principal);
+        }
+        synchronized (Particiones.class) {
+            res.addAll(pools.values());
+        }
+        return res;
+    }
+
+    /**
+     * Método que cierra los pools de las particiones distintas de la 0 y olvida
+     * el número de particiones. Se llama al cambiar o cerrar el pool de la aplicación.
+     */
+    static synchronized void cerrar() {
+        for (PoolConexiones p : pools.values()) {
+            p.cerrar();
+        }
+        pools.clear();
+        poolsFijos=false;
+        total=0;
+    }
+
+    /**
+     * Método que abre todas las particiones, crea en ellas la estructura y
+     * comprueba que cada una es la partición que corresponde. Se llama al
+     * arrancar, después de crear la estructura de la base de datos de la aplicación.
+     * @return true o false dependiendo si todas las particiones están bien
+     */
+    public static boolean comprobar() {
+        int n=getTotal();
+        for (int i=1; i<n; i++) {
+            try (Connection con=pool(i).obtener()) {
+                if (!Aplicacion.createTables(con)) {
+                    return false;
+                }
+                int[] leido=leer(con);
+                if (leido==null || leido[0]!=i || leido[1]!=n) {
+                    System.out.printf("La base de datos %s no es la partición %d de %d.\n", url(i), i, n);
+                    return false;
+                }
+            } catch (SQLException ex) {
+                System.out.printf("No se ha podido abrir la partición %d (%s).\n", i, ex.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Método que ejecuta una tarea en todas las particiones a la vez
+     * @param <T> tipo del resultado
+     * @param tarea tarea que se ejecuta en cada partición
+     * @return los resultados, por número de partición
+     * @throws SQLException Si falla la tarea en alguna partición
+     */
+    public static <T> List<T> enTodas(Tarea<T> tarea) throws SQLException {
+        int n=getTotal();
+        if (n==1) {
+            return Collections.singletonList(tarea.ejecutar(Aplicacion.getPool()));
+        }
+        List<CompletableFuture<T>> futuros=new ArrayList<>(n);
+        for (int i=0; i<n; i++) {
+            PoolConexiones p=pool(i);
+            futuros.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return tarea.ejecutar(p);
+                } catch (SQLException ex) {
+                    throw new CompletionException(ex);
+                }
+            }, hilos));
+        }
+        List<T> resultados=new ArrayList<>(n);
+        SQLException error=null;
+        // Se espera a todas aunque falle alguna, para no dejar consultas en marcha
+        for (CompletableFuture<T> f : futuros) {
+            try {
+                resultados.add(f.join());
+            } catch (CompletionException ex) {
+                if (error==null) {
+                    error=ex.getCause() instanceof SQLException
+                            ? (SQLException) ex.getCause() : new SQLException(ex.getCause());
+                }
+            }
+        }
+        if (error!=null) {
+            throw error;
+        }
+        return resultados;
+    }
+
+    /**
+     * Método que suma el resultado de una consulta de un solo número en todas las particiones
+     * @param sql consulta que devuelve un número
+     * @return la suma
+     * @throws SQLException Si falla la consulta en alguna partición
+     */
+    public static long sumar(String sql) throws SQLException {
+        long suma=0;
+        for (long n : enTodas(p -> {
+            try (Connection con=p.obtener();
+                 PreparedStatement ps=con.prepareStatement(sql);
+                 ResultSet rs=ps.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        })) {
+            suma+=n;
+        }
+        return suma;
+    }
+
+    /**
+     * Método que recorre una consulta en todas las particiones, una detrás de otra
+     * @param sql consulta
+     * @param fetchSize número de filas que se piden a la base de datos de cada vez
+     * @param r recibe cada fila
+     * @throws SQLException Si falla la consulta en alguna partición
+     */
+    public static void recorrer(String sql, int fetchSize, Recorrido r) throws SQLException {
+        int n=getTotal();
+        for (int i=0; i<n; i++) {
+            try (Connection con=pool(i).obtener();
+                 PreparedStatement ps=con.prepareStatement(sql)) {
+                ps.setFetchSize(fetchSize);
+                try (ResultSet rs=ps.executeQuery()) {
+                    while (rs.next()) {
+                        r.fila(rs);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Método que reparte los pacientes en otro número de particiones. Hay que
+     * lanzarlo con la aplicación parada. Cada paciente se copia a su nueva
+     * partición antes de borrarlo de la anterior y el número de particiones se
+     * cambia al final, así que si se interrumpe se puede volver a lanzar con el
+     * mismo número y termina el reparto.
+     * @param nuevoTotal número de particiones
+     * @param filasPorTransaccion pacientes que se mueven en cada transacción
+     * @return número de pacientes movidos
+     * @throws SQLException Si falla la base de datos; el reparto se puede repetir
+     */
+    public static long reparticionar(int nuevoTotal, int filasPorTransaccion) throws SQLException {
+        if (nuevoTotal<1) {
+            throw new IllegalArgumentException("El número de particiones debe ser positivo.");
+        }
+        int actual=getTotal();
+        // Se crea la estructura en las particiones nuevas
+        for (int i=actual; i<nuevoTotal; i++) {
+            try (Connection con=pool(i).obtener()) {
+                if (!Aplicacion.createTables(con)) {
+                    throw new SQLException("No se ha podido crear la partición "+i+".");
+                }
+            }
+        }
+        // Los pacientes se mueven sin apuntar sus cambios, que es lo que más cuesta
+        for (int i=0; i<Math.max(actual, nuevoTotal); i++) {
+            try (Connection con=pool(i).obtener()) {
+                RegistroCambios.configurar(con, false);
+            }
+        }
+        long movidos=0;
+        for (int origen=0; origen<actual; origen++) {
+            movidos+=mover(origen, nuevoTotal, filasPorTransaccion);
+        }
+        // El número de particiones se cambia cuando ya están todos los pacientes en su sitio
+        for (int i=nuevoTotal-1; i>=0; i--) {
+            try (Connection con=pool(i).obtener()) {
+                apuntar(con, i, nuevoTotal);
+                RegistroCambios.configurar(con, RegistroCambios.necesario(nuevoTotal));
+            }
+        }
+        synchronized (Particiones.class) {
+            total=nuevoTotal;
+        }
+        return movidos;
+    }
+
+    /**
+     * Método que mueve a su nueva partición los pacientes de una partición que
+     * ya no le corresponden
+     * @param origen partición de la que se mueven
+     * @param nuevoTotal número de particiones
+     * @param filasPorTransaccion pacientes que se mueven en cada transacción
+     * @return número de pacientes movidos
+     * @throws SQLException Si falla la base de datos
+     */
+    private static long mover(int origen, int nuevoTotal, int filasPorTransaccion) throws SQLException {
+        long movidos=0;
+        try (Connection lectura=pool(origen).obtener();
+             Connection borrado=pool(origen).obtener();
+             PreparedStatement ps=lectura.prepareStatement(SQL_TODOS)) {
+            borrado.setAutoCommit(false);
+            ps.setFetchSize(1000);
+            Map<Integer, List<Object[]>> lotes=new HashMap<>();
+            int enLote=0;
+            try (ResultSet rs=ps.executeQuery()) {
+                while (rs.next()) {
+                    int destino=indice(rs.getString(1), nuevoTotal);
+                    if (destino!=origen) {
+                        lotes.computeIfAbsent(destino, k -> new ArrayList<>()).add(new Object[]{
+                            rs.getString(1), rs.getString(2), rs.getString(3), rs.getDate(4), rs.getInt(5)});
+                        if (++enLote==filasPorTransaccion) {
+                            movidos+=moverLote(borrado, lotes);
+                            enLote=0;
+                        }
+                    }
+                }
+            }
+            movidos+=moverLote(borrado, lotes);
+            borrado.setAutoCommit(true);
+        }
+        return movidos;
+    }
+
+    /**
+     * Método que copia un lote de pacientes y su historial de hospitalizaciones
+     * a sus particiones y después los borra de la partición de origen
+     * @param borrado Conexión con la partición de origen, sin autocommit
+     * @param lotes pacientes por partición de destino; se vacía
+     * @return número de pacientes movidos
+     * @throws SQLException Si falla la base de datos
+     */
+    private static int moverLote(Connection borrado, Map<Integer, List<Object[]>> lotes) throws SQLException {
+        int n=0;
+        for (Map.Entry<Integer, List<Object[]>> e : lotes.entrySet()) {
+            try (Connection con=pool(e.getKey()).obtener()) {
+                con.setAutoCommit(false);
+                try (PreparedStatement ps=con.prepareStatement(SQL_MOVER)) {
+                    for (Object[] fila : e.getValue()) {
+                        for (int k=0; k<fila.length; k++) {
+                            ps.setObject(k+1, fila[k]);
+                        }
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                }
+                // El historial de hospitalizaciones va con el paciente
+                for (Object[] fila : e.getValue()) {
+                    Hospitalizaciones.copiar(borrado, con, (String) fila[0]);
+                }
+                con.commit();
+                con.setAutoCommit(true);
+            }
+            List<String> dnis=new ArrayList<>(e.getValue().size());
+            try (PreparedStatement ps=borrado.prepareStatement(PacientesDAO.SQL_DELETE)) {
+                for (Object[] fila : e.getValue()) {
+                    dnis.add((String) fila[0]);
+                    ps.setObject(1, fila[0]);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+            Hospitalizaciones.quitar(borrado, dnis);
+            borrado.commit();
+            n+=e.getValue().size();
+        }
+        lotes.clear();
+        return n;
+    }
+
+    /**
+     * Método que lee la posición de una base de datos entre las particiones
+     * @param con Conexión con la base de datos
+     * @return número de la partición y número de particiones, o null si no se ha repartido nunca
+     * @throws SQLException Si no se puede leer
+     */
+    static int[] leer(Connection con) throws SQLException {
+        try (PreparedStatement ps=con.prepareStatement(SQL_LEER);
+             ResultSet rs=ps.executeQuery()) {
+            return rs.next() ? new int[]{rs.getInt(1), rs.getInt(2)} : null;
+        }
+    }
+
+    /**
+     * Método que guarda la posición de una base de datos entre las particiones
+     * @param con Conexión con la base de datos
+     * @param indice número de la partición
+     * @param particiones número de particiones
+     * @throws SQLException Si no se puede guardar
+     */
+    private static void apuntar(Connection con, int indice, int particiones) throws SQLException {
+        con.setAutoCommit(false);
+        try (Statement st=con.createStatement();
+             PreparedStatement ps=con.prepareStatement(SQL_APUNTAR)) {
+            st.executeUpdate(SQL_BORRAR);
+            ps.setInt(1, indice);
+            ps.setInt(2, particiones);
+            ps.executeUpdate();
+            con.commit();
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Método que devuelve la URL JDBC de una partición, según el modo de ServidorBD
+     * @param i número de la partición
+     * @return la URL, sin los parámetros comunes
+     */
+    static String url(int i) {
+        return ServidorBD.url(archivo(i));
+    }
+
+    /**
+     * Método que devuelve el nombre del archivo de una partición, sin extensión
+     * @param i número de la partición
+     * @return el nombre del archivo
+     */
+    private static String archivo(int i) {
+        return i==0 ? Aplicacion.dbname : Aplicacion.dbname+".p"+i;
+    }
+
+    /**
+     * Clase que agrupa una transacción en cada partición, abriéndolas a medida
+     * que se usan. Las transacciones se confirman una detrás de otra, así que si
+     * falla una a medias las de las particiones anteriores ya están confirmadas.
+     */
+    public static class Transaccion implements AutoCloseable {
+        private final Connection[] conexiones=new Connection[Particiones.getTotal()];
+
+        /**
+         * Método que devuelve la conexión de la partición de un DNI
+         * @param dni DNI del paciente
+         * @return la conexión, sin autocommit
+         * @throws SQLException Si no se puede abrir
+         */
+        public Connection para(String dni) throws SQLException {
+            return de(indice(dni));
+        }
+
+        /**
+         * Método que calcula la partición de un DNI en esta transacción
+         * @param dni DNI del paciente
+         * @return número de la partición
+         */
+        public int indice(String dni) {
+            return Particiones.indice(dni, conexiones.length);
+        }
+
+        /**
+         * Método que devuelve la conexión de una partición
+         * @param i número de la partición
+         * @return la conexión, sin autocommit
+         * @throws SQLException Si no se puede abrir
+         */
+        public Connection de(int i) throws SQLException {
+            if (conexiones[i]==null) {
+                Connection con=pool(i).obtener();
+                con.setAutoCommit(false);
+                conexiones[i]=con;
+            }
+            return conexiones[i];
+        }
+
+        /**
+         * Método para obtener el número de particiones
+         * @return número de particiones
+         */
+        public int getTotal() {
+            return conexiones.length;
+        }
+
+        /**
+         * Método que confirma las transacciones de todas las particiones usadas
+         * @throws SQLException Si no se puede confirmar alguna
+         */
+        public void confirmar() throws SQLException {
+            for (Connection con : conexiones) {
+                if (con!=null) {
+                    con.commit();
+                }
+            }
+        }
+
+        /**
+         * Método que devuelve las conexiones al pool; lo que no se haya
+         * confirmado se deshace
+         * @throws SQLException Si no se puede devolver alguna
+         */
+        @Override
+        public void close() throws SQLException {
+            for (int i=0; i<conexiones.length; i++) {
+                if (conexiones[i]!=null) {
+                    conexiones[i].close();
+                    conexiones[i]=null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Método principal de la herramienta que reparte los pacientes en otro
+     * número de particiones. Si se pasa de más a menos particiones se borran
+     * los archivos de las que sobran.
+     * @param args número de particiones y pacientes movidos por transacción
+     */
+    public static void main(String[] args) {
+        if (args.length<1) {
+            System.err.println("Uso: Particiones número [filasPorTransaccion]");
+            return;
+        }
+        int nuevoTotal=Integer.parseInt(args[0]);
+        int lote=args.length>1 ? Integer.parseInt(args[1]) : 5000;
+        try {
+            Class.forName(Aplicacion.driver);
+            try (Connection con=Aplicacion.getPool().obtener()) {
+                if (!Aplicacion.createTables(con)) {
+                    return;
+                }
+            }
+            int actual=getTotal();
+            long t0=System.nanoTime();
+            long movidos=reparticionar(nuevoTotal, lote);
+            System.out.printf("Pacientes repartidos de %d a %d particiones: %d movidos en %.1f s.\n",
+                    actual, nuevoTotal, movidos, (System.nanoTime()-t0)/1e9);
+            Aplicacion.cerrarPool();
+            // Las particiones que sobran ya están vacías
+            for (int i=nuevoTotal; i<actual; i++) {
+                for (String extension : new String[]{".mv.db", ".trace.db"}) {
+                    Path ruta=Paths.get(archivo(i)+extension);
+                    Files.deleteIfExists(ruta);
+                }
+            }
+        } catch (ClassNotFoundException ex) {
+            System.err.println("No se ha podido cargar el driver de la base de datos.");
+        } catch (SQLException | IOException ex) {
+            System.err.println("El reparto se ha detenido: "+ex.getMessage());
+            System.err.println("Vuelve a lanzarlo con el mismo número de particiones para terminarlo.");
+        } finally {
+            Aplicacion.cerrarPool();
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package gestpacientes;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Clase que representa un pool acotado de conexiones con la base de datos.
+ * Las conexiones que entrega son envoltorios de una conexión física; al llamar
+ * a close() la conexión vuelve al pool en lugar de cerrarse. Las sentencias
+ * preparadas con prepareStatement(String) se guardan por conexión física en
+ * una CacheSentencias.
+ *
+ * Contiene los siguientes atributos:
+ *
+ * - url, usuario, password: datos de acceso a la base de datos
+ * - minimo: número de conexiones físicas que se mantienen siempre abiertas
+ * - maximo: número máximo de conexiones prestadas a la vez
+ * - esperaMaxima: milisegundos que se espera por una conexión antes de fallar
+ * - inactividadMaxima: milisegundos que puede estar una conexión libre antes de cerrarse
+ * - validacionSeg: segundos de espera al validar una conexión antes de prestarla,
+ *   si lleva sin usarse más de gestpacientes.pool.validarTrasMs (por defecto 1000)
+ * @author Adrián Romero Ramírez
+ */
+public class PoolConexiones {
+
+    // Número máximo de sentencias preparadas que se guardan por conexión física
+    private static final int MAX_SENTENCIAS=Integer.getInteger("gestpacientes.sentencias.max", 32);
+    // Las conexiones devueltas hace menos de este tiempo se prestan sin validarlas, porque
+    // con un servidor TCP cada validación es una ida y vuelta por la red (ver ServidorBD)
+    private static final long VALIDAR_TRAS=TimeUnit.MILLISECONDS.toNanos(Long.getLong("gestpacientes.pool.validarTrasMs", 1000));
+
+    // Datos de acceso a la base de datos
+    private final String url;
+    private final String usuario;
+    private final String password;
+    // Límites y tiempos del pool
+    private final int minimo;
+    private final int maximo;
+    private final long esperaMaxima;
+    private final long inactividadMaxima;
+    private final int validacionSeg;
+
+    // Conexiones físicas libres, la última devuelta es la primera en prestarse
+    private final LinkedBlockingDeque<ConexionFisica> libres=new LinkedBlockingDeque<>();
+    // Permisos para prestar conexiones, uno por cada conexión posible
+    private final Semaphore permisos;
+    // Hilo que cierra las conexiones libres que llevan demasiado tiempo sin usarse
+    private final ScheduledExecutorService desalojador;
+    private volatile boolean cerrado=false;
+
+    // Estadísticas del pool
+    private final AtomicInteger activas=new AtomicInteger();
+    private final AtomicInteger abiertas=new AtomicInteger();
+    private final AtomicLong creadas=new AtomicLong();
+    private final AtomicLong prestamos=new AtomicLong();
+    private final AtomicLong esperaTotalNanos=new AtomicLong();
+    private final AtomicLong esperaMaximaNanos=new AtomicLong();
+    private final AtomicLong timeouts=new AtomicLong();
+    private final AtomicLong desalojadas=new AtomicLong();
+    private final AtomicLong invalidas=new AtomicLong();
+
+    /**
+     * Constructor con parametros del pool. Abre en el momento el número mínimo
+     * de conexiones.
+     * @param url URL JDBC de la base de datos
+     * @param usuario Usuario de la base de datos
+     * @param password Password de la base de datos
+     * @param minimo Número mínimo de conexiones abiertas
+     * @param maximo Número máximo de conexiones prestadas a la vez
+     * @param esperaMaxima Milisegundos de espera máxima por una conexión
+     * @param inactividadMaxima Milisegundos que puede estar libre una conexión antes de cerrarse
+     * @param validacionSeg Segundos de espera al validar una conexión
+     * @throws IllegalArgumentException Si los límites no son coherentes
+     */
+    public PoolConexiones(String url, String usuario, String password, int minimo, int maximo,
+            long esperaMaxima, long inactividadMaxima, int validacionSeg) throws IllegalArgumentException {
+        if (minimo<0 || maximo<1 || minimo>maximo) {
+            throw new IllegalArgumentException("Límites del pool no válidos: mínimo "+minimo+", máximo "+maximo+".");
+        }
+        this.url=url;
+        this.usuario=usuario;
+        this.password=password;
+        this.minimo=minimo;
+        this.maximo=maximo;
+        this.esperaMaxima=esperaMaxima;
+        this.inactividadMaxima=inactividadMaxima;
+        this.validacionSeg=validacionSeg;
+        this.permisos=new Semaphore(maximo, true);
+
+        // Se abren las conexiones mínimas para no pagar su coste en la primera consulta
+        for (int i=0; i<minimo; i++) {
+            try {
+                libres.push(abrir());
+            } catch (SQLException ex) {
+                System.err.printf("No se pudo abrir la conexión inicial del pool (%s)\n", ex.getMessage());
+            }
+        }
+
+        // El desalojador es un hilo demonio para no impedir que termine la aplicación
+        desalojador=Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t=new Thread(r, "pool-conexiones-desalojo");
+            t.setDaemon(true);
+            return t;
+        });
+        long periodo=Math.max(1000, inactividadMaxima/2);
+        desalojador.scheduleWithFixedDelay(this::desalojarInactivas, periodo, periodo, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Método que crea un pool leyendo los límites de las propiedades del sistema
+     * gestpacientes.pool.min, .max, .esperaMs, .inactividadMs y .validacionSeg
+     * @param url URL JDBC de la base de datos
+     * @return el pool creado
+     */
+    public static PoolConexiones desdePropiedades(String url) {
+        return new PoolConexiones(url, "", "",
+                Integer.getInteger("gestpacientes.pool.min", 1),
+                Integer.getInteger("gestpacientes.pool.max", 10),
+                Long.getLong("gestpacientes.pool.esperaMs", 5000),
+                Long.getLong("gestpacientes.pool.inactividadMs", 60000),
+                Integer.getInteger("gestpacientes.pool.validacionSeg", 2));
+    }
+
+    /**
+     * Método que presta una conexión del pool. Hay que cerrarla para devolverla.
+     * Cada petición cuenta en las métricas de conexiones, con la espera incluida.
+     * @return la conexión prestada
+     * @throws SQLException Si el pool está cerrado, se agota la espera o no se puede abrir la conexión
+     */
+    public Connection obtener() throws SQLException {
+        long inicio=Metricas.inicio();
+        try {
+            return prestar();
+        } catch (SQLException | RuntimeException ex) {
+            Metricas.error(Metricas.Operacion.CONECTAR);
+            throw ex;
+        } finally {
+            Metricas.fin(Metricas.Operacion.CONECTAR, inicio);
+        }
+    }
+
+    /**
+     * Método que espera un permiso libre y presta una conexión
+     * @return la conexión prestada
+     * @throws SQLException Si el pool está cerrado, se agota la espera o no se puede abrir la conexión
+     */
+    private Connection prestar() throws SQLException {
+        if (cerrado) {
+            throw new SQLException("El pool de conexiones está cerrado.");
+        }
+
+        // Se espera a que haya un permiso libre como mucho el tiempo configurado
+        long inicio=System.nanoTime();
+        boolean concedido;
+        try {
+            concedido=permisos.tryAcquire(esperaMaxima, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrumpido esperando una conexión del pool.", ex);
+        }
+        long espera=System.nanoTime()-inicio;
+        esperaTotalNanos.addAndGet(espera);
+        esperaMaximaNanos.accumulateAndGet(espera, Math::max);
+        if (!concedido) {
+            timeouts.incrementAndGet();
+            throw new SQLException("Tiempo de espera agotado obteniendo una conexión del pool ("+esperaMaxima+" ms).");
+        }
+
+        try {
+            ConexionFisica fisica=siguienteValida();
+            activas.incrementAndGet();
+            prestamos.incrementAndGet();
+            return (Connection) Proxy.newProxyInstance(PoolConexiones.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, new ConexionPrestada(fisica));
+        } catch (SQLException | RuntimeException ex) {
+            // Si no se consigue conexión se devuelve el permiso
+            permisos.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Método que saca de la lista de libres la primera conexión válida o abre una
+     * nueva. Solo se validan las que llevan un tiempo sin usarse.
+     * @return la conexión física a prestar
+     * @throws SQLException Si no se puede abrir una conexión nueva
+     */
+    private ConexionFisica siguienteValida() throws SQLException {
+        ConexionFisica fisica;
+        while ((fisica=libres.pollFirst())!=null) {
+            if (System.nanoTime()-fisica.ultimoUso<VALIDAR_TRAS) {
+                return fisica;
+            }
+            boolean valida;
+            try {
+                valida=fisica.con.isValid(validacionSeg);
+            } catch (SQLException ex) {
+                valida=false;
+            }
+            if (valida) {
+                return fisica;
+            }
+            // Las conexiones rotas se descartan y se prueba con la siguiente
+            invalidas.incrementAndGet();
+            cerrarFisica(fisica);
+        }
+        return abrir();
+    }
+
+    /**
+     * Método que abre una conexión física nueva con la base de datos
+     * @return la conexión abierta
+     * @throws SQLException Si no se puede conectar
+     */
+    private ConexionFisica abrir() throws SQLException {
+        ConexionFisica fisica=new ConexionFisica(DriverManager.getConnection(url, usuario, password));
+        creadas.incrementAndGet();
+        abiertas.incrementAndGet();
+        return fisica;
+    }
+
+    /**
+     * Método que devuelve una conexión física al pool dejándola en su estado inicial
+     * @param fisica conexión que se devuelve
+     */
+    private void devolver(ConexionFisica fisica) {
+        activas.decrementAndGet();
+        try {
+            if (fisica.con.isClosed() || cerrado) {
+                cerrarFisica(fisica);
+            } else {
+                // Se deshace lo que haya quedado a medias de una transacción
+                if (!fisica.con.getAutoCommit()) {
+                    fisica.con.rollback();
+                    fisica.con.setAutoCommit(true);
+                }
+                fisica.ultimoUso=System.nanoTime();
+                libres.push(fisica);
+            }
+        } catch (SQLException ex) {
+            cerrarFisica(fisica);
+        } finally {
+            permisos.release();
+        }
+    }
+
+    /**
+     * Método que cierra las conexiones libres que superan el tiempo de inactividad
+     * manteniendo siempre el número mínimo de conexiones abiertas
+     */
+    private void desalojarInactivas() {
+        long limite=System.nanoTime()-TimeUnit.MILLISECONDS.toNanos(inactividadMaxima);
+        // Se recorre desde las más antiguas, que están al final de la cola
+        Iterator<ConexionFisica> it=libres.descendingIterator();
+        while (it.hasNext() && abiertas.get()>minimo) {
+            ConexionFisica fisica=it.next();
+            if (fisica.ultimoUso<limite && libres.removeLastOccurrence(fisica)) {
+                desalojadas.incrementAndGet();
+                cerrarFisica(fisica);
+            }
+        }
+    }
+
+    /**
+     * Método que cierra una conexión física sin propagar errores
+     * @param fisica conexión a cerrar
+     */
+    private void cerrarFisica(ConexionFisica fisica) {
+        abiertas.decrementAndGet();
+        fisica.sentencias.cerrar();
+        try {
+            fisica.con.close();
+        } catch (SQLException ex) {
+            // La conexión ya no se va a usar, así que el error no importa
+        }
+    }
+
+    /**
+     * Método que cierra el pool y todas las conexiones libres. Las conexiones
+     * prestadas se cierran al devolverse.
+     */
+    public void cerrar() {
+        cerrado=true;
+        desalojador.shutdownNow();
+        List<ConexionFisica> restantes=new ArrayList<>();
+        libres.drainTo(restantes);
+        restantes.forEach(this::cerrarFisica);
+    }
+
+    /**
+     * Método para obtener el número de conexiones prestadas
+     * @return conexiones prestadas en este momento
+     */
+    public int getActivas() {
+        return activas.get();
+    }
+
+    /**
+     * Método para obtener el número de conexiones libres
+     * @return conexiones abiertas que no están prestadas
+     */
+    public int getInactivas() {
+        return libres.size();
+    }
+
+    /**
+     * Método para obtener el número de conexiones físicas abiertas
+     * @return conexiones físicas abiertas
+     */
+    public int getAbiertas() {
+        return abiertas.get();
+    }
+
+    /**
+     * Método para obtener el número de conexiones físicas creadas desde el inicio
+     * @return conexiones creadas
+     */
+    public long getCreadas() {
+        return creadas.get();
+    }
+
+    /**
+     * Método para obtener el número de préstamos realizados
+     * @return préstamos realizados
+     */
+    public long getPrestamos() {
+        return prestamos.get();
+    }
+
+    /**
+     * Método para obtener el tiempo medio de espera por una conexión
+     * @return milisegundos medios de espera
+     */
+    public double getEsperaMediaMs() {
+        long total=prestamos.get()+timeouts.get();
+        return total==0 ? 0 : esperaTotalNanos.get()/1e6/total;
+    }
+
+    /**
+     * Método para obtener el mayor tiempo de espera por una conexión
+     * @return milisegundos de la mayor espera
+     */
+    public double getEsperaMaximaMs() {
+        return esperaMaximaNanos.get()/1e6;
+    }
+
+    /**
+     * Método para obtener el número de veces que se agotó la espera
+     * @return esperas agotadas
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Método para obtener el número de conexiones cerradas por inactividad
+     * @return conexiones desalojadas
+     */
+    public long getDesalojadas() {
+        return desalojadas.get();
+    }
+
+    /**
+     * Método para obtener el número de conexiones descartadas por no ser válidas
+     * @return conexiones inválidas
+     */
+    public long getInvalidas() {
+        return invalidas.get();
+    }
+
+    /**
+     * Metodo que crea un String con las estadísticas del pool
+     * @return String con las estadísticas
+     */
+    @Override
+    public String toString() {
+        return String.format("Pool[min=%d, max=%d, activas=%d, inactivas=%d, abiertas=%d, creadas=%d, "
+                + "prestamos=%d, esperaMedia=%.3f ms, esperaMax=%.3f ms, timeouts=%d, desalojadas=%d, invalidas=%d]",
+                minimo, maximo, getActivas(), getInactivas(), getAbiertas(), getCreadas(),
+                getPrestamos(), getEsperaMediaMs(), getEsperaMaximaMs(), getTimeouts(), getDesalojadas(), getInvalidas());
+    }
+
+    /**
+     * Clase que representa una conexión física abierta junto con el momento de su último uso
+     */
+    private static class ConexionFisica {
+        private final Connection con;
+        private final CacheSentencias sentencias;
+        private volatile long ultimoUso=System.nanoTime();
+
+        ConexionFisica(Connection con) {
+            this.con=con;
+            this.sentencias=new CacheSentencias(con, MAX_SENTENCIAS);
+        }
+    }
+
+    /**
+     * Clase que atiende las llamadas a una conexión prestada. Reenvía todo a la
+     * conexión física salvo close(), que la devuelve al pool.
+     */
+    private class ConexionPrestada implements InvocationHandler {
+        private ConexionFisica fisica;
+
+        ConexionPrestada(ConexionFisica fisica) {
+            this.fisica=fisica;
+        }
+
+        @Override
+        public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    // Solo se devuelve la primera vez que se cierra
+                    if (fisica!=null) {
+                        ConexionFisica f=fisica;
+                        fisica=null;
+                        devolver(f);
+                    }
+                    return null;
+                case "isClosed":
+                    return fisica==null || fisica.con.isClosed();
+                case "equals":
+                    return proxy==args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "ConexionPrestada["+fisica+"]";
+                default:
+                    if (fisica==null) {
+                        throw new SQLException("La conexión ya se ha devuelto al pool.");
+                    }
+                    // Las sentencias preparadas sin opciones se toman de la caché
+                    if ("prepareStatement".equals(method.getName()) && args.length==1) {
+                        return fisica.sentencias.preparar((String) args[0]);
+                    }
+                    try {
+                        return method.invoke(fisica.con, args);
+                    } catch (InvocationTargetException ex) {
+                        throw ex.getCause();
+                    }
+            }
+        }
+    }
+}
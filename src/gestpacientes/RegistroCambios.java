@@ -0,0 +1,142 @@
+package gestpacientes;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.h2.api.Trigger;
+
+/**
+ * Disparador de la tabla PACIENTES que apunta en CAMBIOS_PACIENTES el DNI de
+ * cada paciente insertado, modificado o borrado con un número de la secuencia
+ * SEQ_CAMBIOS_PACIENTES. Así se pueden saber los pacientes que han cambiado
+ * después de un volcado (ver VolcadoPacientes) sea cual sea el camino por el
+ * que se ha cambiado la tabla. Cada DNI tiene una sola fila, con su último cambio.
+ *
+ * Lo ejecuta H2 dentro de la misma transacción que el cambio, y casi duplica
+ * lo que cuesta cambiar una fila, así que solo se crea cuando alguien lee los
+ * cambios (ver configurar()): el volcado de pacientes con una sola partición o
+ * los demás procesos cuando la base de datos es compartida (ver ServidorBD).
+ * @author Adrián Romero Ramírez
+ */
+public class RegistroCambios implements Trigger {
+
+    private static final String SQL_APUNTAR="MERGE INTO CAMBIOS_PACIENTES (dni, seq) KEY (dni) "
+            + "VALUES (?, NEXT VALUE FOR SEQ_CAMBIOS_PACIENTES)";
+    private static final String SQL_EXISTE="SELECT COUNT(*) FROM INFORMATION_SCHEMA.TRIGGERS "
+            + "WHERE TRIGGER_NAME = 'TRG_CAMBIOS_PACIENTES'";
+    private static final String SQL_CREAR="CREATE TRIGGER IF NOT EXISTS TRG_CAMBIOS_PACIENTES "
+            + "AFTER INSERT, UPDATE, DELETE ON PACIENTES FOR EACH ROW CALL \"gestpacientes.RegistroCambios\"";
+    private static final String SQL_QUITAR="DROP TRIGGER IF EXISTS TRG_CAMBIOS_PACIENTES";
+    private static final String SQL_RENOVAR="UPDATE IDENTIDAD_BD SET id = RANDOM_UUID()";
+
+    // Posición de la columna dni en las filas que recibe el disparador
+    private int columnaDni;
+
+    /**
+     * Método que dice si hace falta apuntar los cambios: siempre con la base de
+     * datos compartida, porque los demás procesos los leen, y si no solo cuando
+     * se usa el volcado, que con varias particiones no se usa
+     * @param particiones número de particiones
+     * @return true o false dependiendo si hace falta el disparador
+     */
+    static boolean necesario(int particiones) {
+        return ServidorBD.getModo()!=ServidorBD.Modo.EMBEBIDO || (VolcadoPacientes.isActivo() && particiones==1);
+    }
+
+    /**
+     * Método que crea o borra el disparador en una base de datos según haga
+     * falta con las particiones que tiene apuntadas. Se llama al crear la estructura.
+     * @param con Conexión con la base de datos
+     * @throws SQLException Si no se puede crear o borrar
+     */
+    static void configurar(Connection con) throws SQLException {
+        int[] particion=Particiones.leer(con);
+        configurar(con, necesario(particion==null ? 1 : particion[1]));
+    }
+
+    /**
+     * Método que crea o borra el disparador en una base de datos. Los cambios
+     * hechos mientras no estaba no se han apuntado, así que al crearlo se cambia
+     * el identificador de la base de datos y los volcados anteriores dejan de valer.
+     * @param con Conexión con la base de datos
+     * @param activo si tiene que estar el disparador
+     * @throws SQLException Si no se puede crear o borrar
+     */
+    static void configurar(Connection con, boolean activo) throws SQLException {
+        try (Statement st=con.createStatement()) {
+            boolean existe;
+            try (ResultSet rs=st.executeQuery(SQL_EXISTE)) {
+                existe=rs.next() && rs.getInt(1)>0;
+            }
+            if (existe==activo) {
+                return;
+            }
+            if (activo) {
+                // Si se interrumpe entre las dos, al volver a arrancar se repiten
+                st.executeUpdate(SQL_RENOVAR);
+                st.execute(SQL_CREAR);
+            } else {
+                st.execute(SQL_QUITAR);
+            }
+        }
+    }
+
+    /**
+     * Método que busca la posición de la columna dni de la tabla
+     * @param con Conexión con la base de datos
+     * @param esquema esquema de la tabla
+     * @param disparador nombre del disparador
+     * @param tabla nombre de la tabla
+     * @param antes si se ejecuta antes del cambio
+     * @param tipo tipos de cambio para los que se ejecuta
+     * @throws SQLException Si no se puede leer la estructura de la tabla
+     */
+    @Override
+    public void init(Connection con, String esquema, String disparador, String tabla, boolean antes, int tipo)
+            throws SQLException {
+        try (ResultSet rs=con.getMetaData().getColumns(null, esquema, tabla, "DNI")) {
+            if (!rs.next()) {
+                throw new SQLException("La tabla "+tabla+" no tiene la columna dni.");
+            }
+            columnaDni=rs.getInt("ORDINAL_POSITION")-1;
+        }
+    }
+
+    /**
+     * Método que apunta el cambio de una fila
+     * @param con Conexión con la transacción del cambio
+     * @param anterior fila antes del cambio, null en las inserciones
+     * @param nueva fila después del cambio, null en los borrados
+     * @throws SQLException Si no se puede apuntar, y entonces el cambio tampoco se hace
+     */
+    @Override
+    public void fire(Connection con, Object[] anterior, Object[] nueva) throws SQLException {
+        try (PreparedStatement ps=con.prepareStatement(SQL_APUNTAR)) {
+            if (anterior!=null) {
+                ps.setObject(1, anterior[columnaDni]);
+                ps.executeUpdate();
+            }
+            // Si se cambia el dni se apuntan el anterior y el nuevo
+            if (nueva!=null && (anterior==null || !nueva[columnaDni].equals(anterior[columnaDni]))) {
+                ps.setObject(1, nueva[columnaDni]);
+                ps.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Método al que llama H2 al cerrar la base de datos, no hay nada que cerrar
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Método al que llama H2 al borrar el disparador, no hay nada que borrar
+     */
+    @Override
+    public void remove() {
+    }
+}
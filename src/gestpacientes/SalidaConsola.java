@@ -0,0 +1,181 @@
+package gestpacientes;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Clase que escribe en la consola los listados de pacientes por bloques. Las
+ * filas se van formateando en un mismo StringBuilder, que se codifica en un
+ * mismo ByteBuffer y se escribe de una vez cuando llega al tamaño de bloque o
+ * al llamar a volcar(). Así un listado de cientos de miles de pacientes se
+ * escribe con unas pocas llamadas al sistema en vez de una por paciente, como
+ * pasaba con System.out.println.
+ *
+ * Se escribe en el mismo PrintStream que usa el resto de la aplicación, por
+ * defecto System.out, para que el texto no se desordene con las preguntas de
+ * ES. Antes de preguntar algo al usuario hay que llamar a volcar().
+ *
+ * Cuenta las filas que escribe y el tiempo que tarda en formatearlas y
+ * escribirlas, sin contar el de leerlas de la base de datos, para saber cuántas
+ * filas por segundo es capaz de mostrar.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.consola.bloque: caracteres que se acumulan antes de escribir
+ *   (por defecto 65536)
+ * @author Adrián Romero Ramírez
+ */
+public class SalidaConsola {
+
+    private static final int BLOQUE=Math.max(1024, Integer.getInteger("gestpacientes.consola.bloque", 65536));
+    private static final String SALTO=System.getProperty("line.separator");
+
+    // Donde se escriben los bloques
+    private final PrintStream salida;
+    // Texto pendiente de escribir, se reutiliza en cada bloque
+    private final StringBuilder texto=new StringBuilder(BLOQUE+256);
+    private final CharsetEncoder codificador;
+    // Bytes del bloque codificado, se reutiliza en cada bloque
+    private final ByteBuffer bytes;
+
+    private long filas;
+    private long nanos;
+
+    /**
+     * Constructor que escribe en System.out con la codificación por defecto
+     */
+    public SalidaConsola() {
+        this(System.out, Charset.defaultCharset());
+    }
+
+    /**
+     * Constructor con parametros de la clase
+     * @param salida PrintStream donde se escribe
+     * @param codificacion codificación del texto, la misma que la del PrintStream
+     */
+    public SalidaConsola(PrintStream salida, Charset codificacion) {
+        this.salida=salida;
+        this.codificador=codificacion.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes=ByteBuffer.allocate((int) Math.ceil(BLOQUE*codificador.maxBytesPerChar()));
+    }
+
+    /**
+     * Método que añade la fila de un paciente, con su dni, nombre y apellidos
+     * @param p paciente
+     */
+    public void paciente(Paciente p) {
+        long inicio=System.nanoTime();
+        texto.append('[').append(p.getDni()).append("] ").append(p.getNombre()).append(' ')
+                .append(p.getApellidos()).append(SALTO);
+        filas++;
+        if (texto.length()>=BLOQUE) {
+            escribirTexto();
+        }
+        nanos+=System.nanoTime()-inicio;
+    }
+
+    /**
+     * Método que añade una línea de texto, que no cuenta como fila
+     * @param linea texto de la línea, sin el salto de línea
+     */
+    public void linea(String linea) {
+        texto.append(linea).append(SALTO);
+        if (texto.length()>=BLOQUE) {
+            escribirTexto();
+        }
+    }
+
+    /**
+     * Método que escribe un texto ya codificado con prerenderizar(), después de
+     * lo que quede pendiente
+     * @param prerenderizado bytes del texto
+     */
+    public void escribir(byte[] prerenderizado) {
+        escribirTexto();
+        salida.write(prerenderizado, 0, prerenderizado.length);
+        salida.flush();
+    }
+
+    /**
+     * Método que escribe lo que quede pendiente
+     */
+    public void volcar() {
+        long inicio=System.nanoTime();
+        escribirTexto();
+        salida.flush();
+        nanos+=System.nanoTime()-inicio;
+    }
+
+    /**
+     * Método que pone a cero las filas y el tiempo contados
+     */
+    public void reiniciar() {
+        filas=0;
+        nanos=0;
+    }
+
+    /**
+     * Método para obtener el número de filas escritas
+     * @return filas escritas desde el último reinicio
+     */
+    public long getFilas() {
+        return filas;
+    }
+
+    /**
+     * Método para obtener las filas por segundo que se han escrito
+     * @return filas por segundo, 0 si no se ha escrito ninguna
+     */
+    public double getFilasPorSegundo() {
+        return nanos==0 ? 0 : filas*1e9/nanos;
+    }
+
+    /**
+     * Método que codifica el texto pendiente y lo escribe de una vez
+     */
+    private void escribirTexto() {
+        if (texto.length()==0) {
+            return;
+        }
+        CharBuffer cb=CharBuffer.wrap(texto);
+        codificador.reset();
+        // Si la última fila ha pasado del bloque y no cabe todo, lo que sobra va en otra escritura
+        while (codificador.encode(cb, bytes, true).isOverflow()) {
+            escribirBytes();
+        }
+        while (codificador.flush(bytes).isOverflow()) {
+            escribirBytes();
+        }
+        escribirBytes();
+        texto.setLength(0);
+    }
+
+    /**
+     * Método que escribe los bytes codificados y deja el ByteBuffer vacío
+     */
+    private void escribirBytes() {
+        salida.write(bytes.array(), 0, bytes.position());
+        bytes.clear();
+    }
+
+    /**
+     * Método que prepara un texto fijo, como el menú, para escribirlo de una vez
+     * cada vez que se muestra. Cada línea termina con el salto de línea del
+     * sistema, como con ES.msgln.
+     * @param texto texto con saltos de línea \n o \r\n
+     * @return los bytes del texto con la codificación de esta salida
+     */
+    public byte[] prerenderizar(String texto) {
+        StringBuilder sb=new StringBuilder(texto.length()+64);
+        for (String linea : texto.split("\r?\n")) {
+            sb.append(linea).append(SALTO);
+        }
+        return sb.toString().getBytes(codificador.charset());
+    }
+}
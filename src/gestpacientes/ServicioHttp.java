@@ -0,0 +1,612 @@
+package gestpacientes;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Clase con el servicio HTTP de pacientes, para que otros sistemas usen las
+ * operaciones de PacientesDAO a la vez sin pasar por el menú. Usa el servidor
+ * HTTP que viene con el JDK, así que no necesita ningún otro servicio. Los
+ * pacientes se envían y se reciben como objetos JSON con las mismas claves que
+ * en la importación (dni, nombre, apellidos y fecha_nacimiento, y además nhosp
+ * en las respuestas):
+ *
+ * - POST /pacientes: alta del paciente del cuerpo. 201 con el paciente, 400 si
+ *   no es válido y 409 si el DNI ya existe
+ * - GET /pacientes/{dni}: 200 con el paciente o 404
+ * - DELETE /pacientes/{dni}: 204 o 404
+ * - POST /pacientes/{dni}/hospitalizaciones: suma una hospitalización, 204 o 404
+ * - GET /pacientes: todos los pacientes, sin nhosp como en el listado del menú,
+ *   en un array JSON que se envía por partes (chunked) según se lee de la base
+ *   de datos, sin tenerlo entero en memoria
+ * - GET /metricas: peticiones, latencias y respuestas de error de cada ruta
+ *
+ * Si falla la base de datos se responde 500, también en el listado si no se
+ * puede empezar a leer.
+ *
+ * Las peticiones las atiende un número fijo de hilos con una cola limitada;
+ * con la cola llena se responde enseguida 503 en lugar de esperar. Las
+ * conexiones se mantienen abiertas entre peticiones (HTTP/1.1 keep-alive)
+ * mientras el cliente quiera.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.http.host: dirección en la que se escucha (por defecto solo la
+ *   interfaz local). El servicio no tiene autenticación y da acceso a los datos
+ *   médicos y a las bajas, así que solo se debe abrir a otras máquinas, por
+ *   ejemplo con 0.0.0.0, detrás de un proxy o en una red de confianza
+ * - gestpacientes.http.puerto: puerto, 0 para uno libre cualquiera (por defecto 8080)
+ * - gestpacientes.http.hilos: hilos que atienden peticiones (por defecto 10, como el máximo del pool)
+ * - gestpacientes.http.cola: peticiones que pueden esperar un hilo (por defecto 100)
+ * @author Adrián Romero Ramírez
+ */
+public class ServicioHttp {
+
+    /**
+     * Rutas del servicio de las que se guardan métricas
+     */
+    public enum Ruta {
+        ALTA("alta"),
+        DETALLES("detalles"),
+        BAJA("baja"),
+        HOSPITALIZACION("hospitalizacion"),
+        LISTADO("listado"),
+        METRICAS("metricas"),
+        OTRA("otra");
+
+        private final String nombre;
+        private final HistogramaLatencias latencias=new HistogramaLatencias();
+        private final AtomicLong errores=new AtomicLong();
+
+        Ruta(String nombre) {
+            this.nombre=nombre;
+        }
+
+        /**
+         * Método que devuelve el nombre de la ruta en las métricas
+         * @return nombre de la ruta
+         */
+        public String getNombre() {
+            return nombre;
+        }
+
+        /**
+         * Método que devuelve el histograma de latencias de la ruta
+         * @return histograma de latencias en nanosegundos
+         */
+        public HistogramaLatencias getLatencias() {
+            return latencias;
+        }
+    }
+
+    private static final int PUERTO=Integer.getInteger("gestpacientes.http.puerto", 8080);
+    // Sin la propiedad solo se escucha en la propia máquina
+    private static final String HOST=System.getProperty("gestpacientes.http.host");
+    private static final int HILOS=Integer.getInteger("gestpacientes.http.hilos", 10);
+    private static final int COLA=Integer.getInteger("gestpacientes.http.cola", 100);
+    // Tamaño máximo del cuerpo de un alta
+    private static final int MAX_CUERPO=4096;
+    // Filas que se piden a la base de datos de cada vez en el listado
+    private static final int FILAS_LISTADO=1000;
+    private static final String PREFIJO="/pacientes/";
+    private static final String SUFIJO_HOSPITALIZACIONES="/hospitalizaciones";
+    private static final String JSON="application/json; charset=utf-8";
+
+    // Servidor y sus hilos, null mientras no se haya iniciado
+    private static HttpServer servidor;
+    private static ThreadPoolExecutor hilos;
+    // Se marca el hilo que acepta conexiones cuando atiende una petición que no cabe en la cola
+    private static final ThreadLocal<Boolean> sinSitio=new ThreadLocal<>();
+    private static final AtomicLong rechazadas=new AtomicLong();
+
+    static {
+        // El servidor del JDK envía la cabecera y el cuerpo en escrituras separadas; sin TCP_NODELAY
+        // el segundo espera al ACK retrasado del cliente y cada petición tarda unos 40 ms
+        if (System.getProperty("sun.net.httpserver.nodelay")==null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private ServicioHttp() {
+    }
+
+    /**
+     * Método que inicia el servicio si todavía no está iniciado
+     * @return true o false dependiendo si el servicio está iniciado
+     */
+    public static synchronized boolean iniciar() {
+        if (servidor!=null) {
+            return true;
+        }
+        try {
+            InetAddress host=HOST==null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(HOST);
+            HttpServer sr=HttpServer.create(new InetSocketAddress(host, PUERTO), 0);
+            ThreadPoolExecutor ex=new ThreadPoolExecutor(HILOS, HILOS, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(COLA), new Hilos(), (r, e) -> {
+                        // La petición se atiende en el hilo que acepta conexiones, solo para responder 503
+                        sinSitio.set(Boolean.TRUE);
+                        try {
+                            r.run();
+                        } finally {
+                            sinSitio.remove();
+                        }
+                    });
+            sr.createContext("/pacientes", ServicioHttp::atender);
+            sr.createContext("/metricas", ServicioHttp::atender);
+            sr.setExecutor(ex);
+            sr.start();
+            servidor=sr;
+            hilos=ex;
+        } catch (IOException ex) {
+            System.err.printf("No se pudo iniciar el servicio HTTP en %s:%d (%s)\n", HOST==null ? "localhost" : HOST, PUERTO,
+                    ex.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Método que devuelve el puerto en el que escucha el servicio
+     * @return puerto, o -1 si no está iniciado
+     */
+    public static synchronized int getPuerto() {
+        return servidor==null ? -1 : servidor.getAddress().getPort();
+    }
+
+    /**
+     * Método que para el servicio esperando como mucho un segundo a que
+     * terminen las peticiones en curso
+     */
+    public static synchronized void detener() {
+        if (servidor!=null) {
+            servidor.stop(1);
+            hilos.shutdown();
+            try {
+                hilos.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            servidor=null;
+            hilos=null;
+        }
+    }
+
+    /**
+     * Método que crea un String con las métricas del servicio en JSON
+     * @return String con las métricas
+     */
+    public static String metricas() {
+        StringBuilder sb=new StringBuilder(512);
+        sb.append("{\"rechazadas\":").append(rechazadas.get()).append(",\"rutas\":{");
+        boolean primera=true;
+        for (Ruta r : Ruta.values()) {
+            HistogramaLatencias h=r.latencias;
+            if (!primera) {
+                sb.append(',');
+            }
+            primera=false;
+            sb.append('"').append(r.nombre).append("\":{\"peticiones\":").append(h.getCuenta())
+                    .append(",\"errores\":").append(r.errores.get())
+                    .append(",\"media_us\":").append(Math.round(h.getMedia()/1000))
+                    .append(",\"p50_us\":").append(h.percentil(50)/1000)
+                    .append(",\"p99_us\":").append(h.percentil(99)/1000)
+                    .append(",\"max_us\":").append(h.getMaximo()/1000).append('}');
+        }
+        return sb.append("}}").toString();
+    }
+
+    /**
+     * Método que ejecuta el servicio desde la línea de comandos de la aplicación
+     * hasta que se pulsa Intro, o hasta que se termine el proceso si no hay
+     * entrada estándar
+     * @return true si el servicio se ha podido iniciar
+     */
+    public static boolean ejecutar() {
+        try (Connection con=Aplicacion.getPool().obtener()) {
+            if (!Aplicacion.createTables(con)) {
+                return false;
+            }
+        } catch (SQLException ex) {
+            System.err.println("No se pudo conectar a la base de datos.");
+            return false;
+        }
+        try {
+            if (!Particiones.comprobar() || !ServidorBD.seguirCambios()) {
+                return false;
+            }
+            FiltroDni.construir();
+            if (!iniciar()) {
+                return false;
+            }
+            System.out.println("Servicio HTTP escuchando en http://"+(HOST==null ? "localhost" : HOST)+":"+getPuerto()+"/pacientes");
+            System.out.println("Pulsa Intro para pararlo.");
+            boolean consola;
+            try {
+                consola=System.in.read()>=0;
+            } catch (IOException ex) {
+                consola=false;
+            }
+            // Sin entrada estándar (por ejemplo como servicio) se sigue hasta que se termine el proceso
+            if (!consola) {
+                try {
+                    Thread.currentThread().join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            detener();
+            return true;
+        } finally {
+            VolcadoPacientes.detener();
+            Aplicacion.cerrarPool();
+        }
+    }
+
+    /**
+     * Método que atiende una petición: la pasa a su ruta y apunta su latencia
+     * @param he petición y respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static void atender(HttpExchange he) throws IOException {
+        long inicio=System.nanoTime();
+        Ruta ruta=Ruta.OTRA;
+        int estado=500;
+        try {
+            if (sinSitio.get()!=null) {
+                rechazadas.incrementAndGet();
+                he.getResponseHeaders().set("Retry-After", "1");
+                estado=responder(he, 503, "Servicio ocupado");
+                return;
+            }
+            String metodo=he.getRequestMethod();
+            String camino=he.getRequestURI().getPath();
+            if (camino.equals("/metricas")) {
+                ruta=Ruta.METRICAS;
+                estado=soloMetodo(he, metodo, "GET") ? enviar(he, 200, metricas()) : 405;
+            } else if (camino.equals("/pacientes") || camino.equals("/pacientes/")) {
+                if (metodo.equals("GET")) {
+                    ruta=Ruta.LISTADO;
+                    estado=listar(he);
+                } else {
+                    ruta=Ruta.ALTA;
+                    estado=soloMetodo(he, metodo, "POST") ? alta(he) : 405;
+                }
+            } else if (camino.startsWith(PREFIJO) && camino.endsWith(SUFIJO_HOSPITALIZACIONES)) {
+                ruta=Ruta.HOSPITALIZACION;
+                String dni=GestionPacientes.normalizarDni(camino.substring(PREFIJO.length(), camino.length()-SUFIJO_HOSPITALIZACIONES.length()));
+                estado=soloMetodo(he, metodo, "POST") ? hospitalizacion(he, dni) : 405;
+            } else if (camino.startsWith(PREFIJO) && camino.indexOf('/', PREFIJO.length())<0) {
+                String dni=GestionPacientes.normalizarDni(camino.substring(PREFIJO.length()));
+                if (metodo.equals("DELETE")) {
+                    ruta=Ruta.BAJA;
+                    estado=baja(he, dni);
+                } else {
+                    ruta=Ruta.DETALLES;
+                    estado=soloMetodo(he, metodo, "GET, DELETE") ? detalles(he, dni) : 405;
+                }
+            } else {
+                estado=responder(he, 404, "Ruta no encontrada");
+            }
+        } catch (RuntimeException ex) {
+            System.out.println("Error atendiendo una petición HTTP: "+ex);
+            estado=responder(he, 500, "Error interno");
+        } finally {
+            he.close();
+            ruta.latencias.registrar(System.nanoTime()-inicio);
+            if (estado>=500) {
+                ruta.errores.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Método que comprueba el método de la petición y responde 405 si no es el de la ruta
+     * @param he petición y respuesta
+     * @param metodo método de la petición
+     * @param permitidos métodos de la ruta separados por comas
+     * @return true si el método es uno de los permitidos
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static boolean soloMetodo(HttpExchange he, String metodo, String permitidos) throws IOException {
+        for (String m : permitidos.split(", ")) {
+            if (m.equals(metodo)) {
+                return true;
+            }
+        }
+        he.getResponseHeaders().set("Allow", permitidos);
+        responder(he, 405, "Método no permitido");
+        return false;
+    }
+
+    /**
+     * Método que da de alta el paciente del cuerpo de la petición con las
+     * mismas reglas que la importación
+     * @param he petición y respuesta
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int alta(HttpExchange he) throws IOException {
+        String cuerpo=leerCuerpo(he.getRequestBody());
+        if (cuerpo==null) {
+            return responder(he, 413, "Cuerpo demasiado grande");
+        }
+        ImportadorPacientes.Fila f=new ImportadorPacientes.Fila(0, cuerpo);
+        f.separar(true);
+        String error=ImportadorPacientes.validar(f);
+        if (error!=null) {
+            return responder(he, 400, error);
+        }
+        Paciente p=f.paciente;
+        if (PacientesDAO.comprobarDni(f.dni)) {
+            return responder(he, 409, "Ya existe un paciente con ese DNI");
+        }
+        if (!PacientesDAO.insert(p)) {
+            // Otra petición lo ha dado de alta entre la comprobación y la inserción, o ha fallado la base de datos
+            return PacientesDAO.comprobarDni(f.dni)
+                    ? responder(he, 409, "Ya existe un paciente con ese DNI")
+                    : responder(he, 500, "No se ha podido dar de alta");
+        }
+        he.getResponseHeaders().set("Location", PREFIJO+f.dni);
+        return enviar(he, 201, json(new StringBuilder(128), p, true).toString());
+    }
+
+    /**
+     * Método que responde con los detalles de un paciente
+     * @param he petición y respuesta
+     * @param dni DNI del paciente
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int detalles(HttpExchange he, String dni) throws IOException {
+        if (!GestionPacientes.esDniValido(dni)) {
+            return responder(he, 400, "DNI no válido");
+        }
+        Paciente p;
+        try {
+            p=PacientesDAO.buscar(dni);
+        } catch (SQLException ex) {
+            return errorBaseDatos(he);
+        }
+        if (p==null) {
+            return responder(he, 404, "No existe el paciente");
+        }
+        return enviar(he, 200, json(new StringBuilder(128), p, true).toString());
+    }
+
+    /**
+     * Método que borra un paciente
+     * @param he petición y respuesta
+     * @param dni DNI del paciente
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int baja(HttpExchange he, String dni) throws IOException {
+        if (!GestionPacientes.esDniValido(dni)) {
+            return responder(he, 400, "DNI no válido");
+        }
+        try {
+            if (PacientesDAO.borrar(dni)==0) {
+                return responder(he, 404, "No existe el paciente");
+            }
+        } catch (SQLException ex) {
+            return errorBaseDatos(he);
+        }
+        return sinContenido(he);
+    }
+
+    /**
+     * Método que suma una hospitalización a un paciente
+     * @param he petición y respuesta
+     * @param dni DNI del paciente
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int hospitalizacion(HttpExchange he, String dni) throws IOException {
+        if (!GestionPacientes.esDniValido(dni)) {
+            return responder(he, 400, "DNI no válido");
+        }
+        try {
+            if (!PacientesDAO.incrementar(dni)) {
+                return responder(he, 404, "No existe el paciente");
+            }
+        } catch (SQLException ex) {
+            return errorBaseDatos(he);
+        }
+        return sinContenido(he);
+    }
+
+    /**
+     * Método que envía todos los pacientes en un array JSON por partes según se
+     * leen, así que la memoria no depende del número de pacientes
+     * @param he petición y respuesta
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int listar(HttpExchange he) throws IOException {
+        // Los cursores se abren antes de empezar la respuesta para poder responder 500 si fallan
+        Stream<Paciente> abierto;
+        try {
+            abierto=PacientesDAO.abrirListado(FILAS_LISTADO);
+        } catch (SQLException ex) {
+            return errorBaseDatos(he);
+        }
+        he.getResponseHeaders().set("Content-Type", JSON);
+        // Con longitud 0 el servidor usa Transfer-Encoding: chunked
+        he.sendResponseHeaders(200, 0);
+        StringBuilder sb=new StringBuilder(128);
+        // Si falla a mitad la respuesta ya ha empezado: se corta y el cliente ve el array sin terminar
+        try (Stream<Paciente> pacientes=abierto;
+             Writer w=new BufferedWriter(new OutputStreamWriter(he.getResponseBody(), StandardCharsets.UTF_8), 1<<16)) {
+            w.write('[');
+            Iterator<Paciente> it=pacientes.iterator();
+            boolean primero=true;
+            while (it.hasNext()) {
+                sb.setLength(0);
+                if (!primero) {
+                    sb.append(",\n");
+                }
+                primero=false;
+                w.append(json(sb, it.next(), false));
+            }
+            w.write("]\n");
+        } catch (RuntimeException ex) {
+            System.out.println("Error enviando el listado de pacientes: "+ex);
+            return 500;
+        }
+        return 200;
+    }
+
+    /**
+     * Método que responde 500 cuando falla la base de datos, para que no se
+     * confunda con un paciente que no existe o un listado vacío
+     * @param he petición y respuesta
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int errorBaseDatos(HttpExchange he) throws IOException {
+        System.out.println("A surgido un error respecto a la base de datos.");
+        return responder(he, 500, "Error de la base de datos");
+    }
+
+    /**
+     * Método que responde sin cuerpo
+     * @param he petición y respuesta
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int sinContenido(HttpExchange he) throws IOException {
+        he.sendResponseHeaders(204, -1);
+        return 204;
+    }
+
+    /**
+     * Método que responde con un error en JSON
+     * @param he petición y respuesta
+     * @param estado estado HTTP
+     * @param mensaje mensaje del error
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int responder(HttpExchange he, int estado, String mensaje) throws IOException {
+        StringBuilder sb=new StringBuilder(64).append("{\"error\":");
+        texto(sb, mensaje);
+        return enviar(he, estado, sb.append('}').toString());
+    }
+
+    /**
+     * Método que envía una respuesta JSON con su longitud, para poder mantener la conexión
+     * @param he petición y respuesta
+     * @param estado estado HTTP
+     * @param cuerpo cuerpo de la respuesta
+     * @return estado de la respuesta
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static int enviar(HttpExchange he, int estado, String cuerpo) throws IOException {
+        byte[] b=cuerpo.getBytes(StandardCharsets.UTF_8);
+        he.getResponseHeaders().set("Content-Type", JSON);
+        he.sendResponseHeaders(estado, b.length);
+        try (OutputStream os=he.getResponseBody()) {
+            os.write(b);
+        }
+        return estado;
+    }
+
+    /**
+     * Método que lee el cuerpo de la petición en UTF-8
+     * @param is cuerpo de la petición
+     * @return el cuerpo, o null si es más grande que el máximo
+     * @throws IOException Si falla la conexión con el cliente
+     */
+    private static String leerCuerpo(InputStream is) throws IOException {
+        ByteArrayOutputStream bos=new ByteArrayOutputStream(256);
+        byte[] b=new byte[1024];
+        int n;
+        while ((n=is.read(b))>0) {
+            if (bos.size()+n>MAX_CUERPO) {
+                return null;
+            }
+            bos.write(b, 0, n);
+        }
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Método que añade un paciente como objeto JSON
+     * @param sb donde se añade
+     * @param p paciente
+     * @param nhosp si se añade el número de hospitalizaciones
+     * @return el mismo StringBuilder
+     */
+    private static StringBuilder json(StringBuilder sb, Paciente p, boolean nhosp) {
+        sb.append("{\"dni\":");
+        texto(sb, p.getDni());
+        sb.append(",\"nombre\":");
+        texto(sb, p.getNombre());
+        sb.append(",\"apellidos\":");
+        texto(sb, p.getApellidos());
+        sb.append(",\"fecha_nacimiento\":\"").append(p.getFechaNacimiento()).append('"');
+        if (nhosp) {
+            sb.append(",\"nhosp\":").append(p.getNhosp());
+        }
+        return sb.append('}');
+    }
+
+    /**
+     * Método que añade un texto entre comillas escapando los caracteres que no
+     * pueden ir tal cual en JSON
+     * @param sb donde se añade
+     * @param s texto
+     */
+    private static void texto(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i=0; i<s.length(); i++) {
+            char c=s.charAt(i);
+            if (c=='"' || c=='\\') {
+                sb.append('\\').append(c);
+            } else if (c<0x20) {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Fábrica de los hilos que atienden peticiones, con nombre para reconocerlos
+     */
+    private static class Hilos implements ThreadFactory {
+        private final AtomicInteger numero=new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t=new Thread(r, "http-"+numero.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
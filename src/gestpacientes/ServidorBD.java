@@ -0,0 +1,350 @@
+package gestpacientes;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.h2.tools.Server;
+
+/**
+ * Clase que decide cómo se abre la base de datos de la aplicación. En modo
+ * embebido (el de siempre) el archivo lo abre este proceso y ningún otro puede
+ * usarlo mientras tanto. Para que varias instancias de la aplicación, el modo
+ * por lotes o el importador trabajen a la vez con la misma base de datos hay
+ * otros dos modos:
+ *
+ * - automatico: el primer proceso abre el archivo y atiende a los demás por TCP;
+ *   si se cierra, otro de los procesos toma el relevo (AUTO_SERVER de H2).
+ * - tcp: todos los procesos se conectan a un servidor TCP de H2. Si no hay
+ *   ninguno escuchando en la máquina local se inicia dentro de este proceso,
+ *   y se para al cerrar la aplicación. Para un servidor que no dependa de
+ *   ninguna aplicación: java gestpacientes.ServidorBD
+ *
+ * En los modos con varios procesos la base de datos se abre con más tiempo de
+ * espera de los bloqueos, porque las transacciones de los demás procesos pueden
+ * tardar más. Con MULTI_THREADED las consultas de los distintos clientes se
+ * ejecutan a la vez en lugar de una detrás de otra, pero en H2 1.4.197 cada
+ * consulta es bastante más lenta (unas tres veces en BenchServidor), así que
+ * solo compensa con muchos núcleos y se activa aparte.
+ * Además cada proceso lee periódicamente los pacientes que han cambiado los
+ * demás (la tabla CAMBIOS_PACIENTES) y los pone al día en sus cachés: la caché
+ * de detalles, el filtro de DNI, la instantánea y el índice de búsqueda.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.bd.modo: embebido, automatico o tcp (por defecto embebido)
+ * - gestpacientes.bd.host: máquina del servidor TCP (por defecto localhost)
+ * - gestpacientes.bd.puerto: puerto del servidor TCP (por defecto 9092)
+ * - gestpacientes.bd.bloqueoMs: espera máxima por un bloqueo en los modos con
+ *   varios procesos (por defecto 10000)
+ * - gestpacientes.bd.multihilo: si se abre con MULTI_THREADED (por defecto false)
+ * - gestpacientes.bd.sincronizacionMs: milisegundos entre lecturas de los
+ *   cambios de los demás procesos (por defecto 1000)
+ * @author Adrián Romero Ramírez
+ */
+public class ServidorBD {
+
+    /**
+     * Formas de abrir la base de datos
+     */
+    public enum Modo { EMBEBIDO, AUTOMATICO, TCP }
+
+    private static final Modo MODO=Modo.valueOf(
+            System.getProperty("gestpacientes.bd.modo", "embebido").trim().toUpperCase(Locale.ROOT));
+    private static final String HOST=System.getProperty("gestpacientes.bd.host", "localhost");
+    private static final int PUERTO=Integer.getInteger("gestpacientes.bd.puerto", 9092);
+    private static final long BLOQUEO_MS=Long.getLong("gestpacientes.bd.bloqueoMs", 10000);
+    private static final boolean MULTIHILO=Boolean.parseBoolean(System.getProperty("gestpacientes.bd.multihilo", "false"));
+    private static final long SINCRONIZACION_MS=Long.getLong("gestpacientes.bd.sincronizacionMs", 1000);
+    // Tiempo máximo para comprobar si ya hay un servidor escuchando
+    private static final int ESPERA_CONEXION_MS=500;
+
+    // Servidor TCP iniciado por este proceso, null si no se ha iniciado
+    private static Server servidor;
+    // Hilo que lee los cambios de los demás procesos, null si no se siguen
+    private static ScheduledExecutorService sincronizador;
+    // Marca de agua de los cambios ya leídos de cada partición
+    private static long[] marcas;
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private ServidorBD() {
+    }
+
+    /**
+     * Método para saber el modo en el que se abre la base de datos
+     * @return el modo
+     */
+    public static Modo getModo() {
+        return MODO;
+    }
+
+    /**
+     * Método que devuelve la URL JDBC de un archivo de base de datos del
+     * directorio de la aplicación según el modo, sin los parámetros comunes
+     * @param archivo nombre del archivo, sin extensión
+     * @return la URL
+     */
+    public static String url(String archivo) {
+        switch (MODO) {
+            case AUTOMATICO:
+                return "jdbc:h2:./"+archivo+";AUTO_SERVER=TRUE"+ajustes();
+            case TCP:
+                // La ruta es relativa al directorio base del servidor
+                return "jdbc:h2:tcp://"+HOST+":"+PUERTO+"/./"+archivo+ajustes();
+            default:
+                return "jdbc:h2:./"+archivo;
+        }
+    }
+
+    /**
+     * Método que devuelve los parámetros de la base de datos para varios procesos.
+     * Solo los aplica el primero que la abre, los demás los ignoran.
+     * @return los parámetros
+     */
+    private static String ajustes() {
+        return ";LOCK_TIMEOUT="+BLOQUEO_MS+(MULTIHILO ? ";MULTI_THREADED=TRUE" : "");
+    }
+
+    /**
+     * Método que, en modo tcp, inicia el servidor en este proceso si no hay
+     * ninguno escuchando en la máquina local. Se llama antes de abrir la primera
+     * conexión; si dos procesos lo intentan a la vez, el que no consigue el
+     * puerto usa el del otro.
+     * @return true o false dependiendo si se puede conectar con el servidor
+     */
+    public static synchronized boolean iniciar() {
+        if (MODO!=Modo.TCP || servidor!=null || escuchando()) {
+            return true;
+        }
+        if (!esLocal()) {
+            System.out.printf("No hay ningún servidor de base de datos en %s:%d.\n", HOST, PUERTO);
+            return false;
+        }
+        try {
+            servidor=crear().start();
+            System.out.printf("Servidor de base de datos iniciado en el puerto %d; "
+                    + "se parará al cerrar esta aplicación.\n", servidor.getPort());
+            return true;
+        } catch (SQLException ex) {
+            // Otro proceso lo ha iniciado mientras tanto
+            if (escuchando()) {
+                return true;
+            }
+            System.out.printf("No se pudo iniciar el servidor de base de datos (%s)\n", ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Método que para el servidor TCP si lo había iniciado este proceso. Los
+     * demás clientes pierden la conexión.
+     */
+    public static void detener() {
+        dejarDeSeguirCambios();
+        synchronized (ServidorBD.class) {
+            if (servidor!=null) {
+                servidor.stop();
+                servidor=null;
+            }
+        }
+    }
+
+    /**
+     * Método que empieza a seguir los cambios de pacientes de los demás procesos,
+     * si la base de datos es compartida. Hay que llamarlo antes de construir las
+     * cachés, para que no se pierda ningún cambio hecho mientras se construyen.
+     * @return true o false dependiendo si se han podido leer las marcas de agua iniciales
+     */
+    public static synchronized boolean seguirCambios() {
+        if (MODO==Modo.EMBEBIDO || sincronizador!=null) {
+            return true;
+        }
+        long[] m=new long[Particiones.getTotal()];
+        try {
+            for (int i=0; i<m.length; i++) {
+                try (Connection con=Particiones.pool(i).obtener()) {
+                    // Si alguna transacción no termina a tiempo se empieza por la marca actual
+                    long marca=VolcadoPacientes.marcaSegura(con);
+                    m[i]=marca>=0 ? marca : VolcadoPacientes.marcaActual(con);
+                }
+            }
+        } catch (SQLException ex) {
+            System.out.println("No se pueden seguir los cambios de los demás procesos ("+ex.getMessage()+").");
+            return false;
+        }
+        marcas=m;
+        sincronizador=Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t=new Thread(r, "sincronizacion-cambios");
+            t.setDaemon(true);
+            return t;
+        });
+        sincronizador.scheduleWithFixedDelay(ServidorBD::sincronizarSilencioso,
+                SINCRONIZACION_MS, SINCRONIZACION_MS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Método que deja de seguir los cambios de los demás procesos. Se llama
+     * antes de cerrar el pool de conexiones.
+     */
+    public static void dejarDeSeguirCambios() {
+        ScheduledExecutorService s;
+        // Se espera fuera del cerrojo, que también lo toma sincronizar()
+        synchronized (ServidorBD.class) {
+            s=sincronizador;
+            sincronizador=null;
+            marcas=null;
+        }
+        if (s!=null) {
+            s.shutdownNow();
+            try {
+                s.awaitTermination(ESPERA_CONEXION_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Método que pone al día las cachés con los pacientes que han cambiado desde
+     * la última lectura. También llegan los cambios de este proceso, que ya
+     * estaban aplicados; aplicarlos otra vez no cambia nada.
+     * @return número de pacientes puestos al día
+     * @throws SQLException Si falla la lectura de los cambios
+     */
+    static int sincronizar() throws SQLException {
+        long[] m;
+        synchronized (ServidorBD.class) {
+            m=marcas;
+        }
+        if (m==null) {
+            return 0;
+        }
+        int n=0;
+        for (int i=0; i<m.length; i++) {
+            try (Connection con=Particiones.pool(i).obtener()) {
+                long marca=VolcadoPacientes.marcaSegura(con);
+                // Con transacciones largas abiertas se intenta otra vez en la siguiente lectura
+                if (marca<0 || marca==m[i]) {
+                    continue;
+                }
+                // Pueden llegar cambios posteriores a la marca; se vuelven a aplicar en la siguiente
+                for (Map.Entry<String, Paciente> e : VolcadoPacientes.cambiados(con, m[i]).entrySet()) {
+                    aplicar(e.getKey(), e.getValue());
+                    n++;
+                }
+                m[i]=marca;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Método que lanza sincronizar() desde el hilo periódico sin propagar errores
+     */
+    private static void sincronizarSilencioso() {
+        try {
+            sincronizar();
+        } catch (SQLException ex) {
+            System.out.println("No se han podido leer los cambios de los demás procesos ("+ex.getMessage()+").");
+        }
+    }
+
+    /**
+     * Método que pone al día un paciente en las cachés del proceso
+     * @param dni DNI del paciente
+     * @param p datos actuales del paciente, null si se ha borrado
+     */
+    private static void aplicar(String dni, Paciente p) {
+        CachePacientes.invalidar(dni);
+        if (p==null) {
+            // El filtro de DNI no puede quitarlo; solo pierde algo de precisión
+            InstantaneaPacientes.borrado(dni);
+            BuscadorPacientes.borrado(dni);
+        } else {
+            if (!FiltroDni.puedeExistir(dni)) {
+                FiltroDni.añadido(dni);
+            }
+            InstantaneaPacientes.insertado(p);
+            BuscadorPacientes.insertado(p);
+        }
+    }
+
+    /**
+     * Método que crea el servidor TCP sobre el directorio de la aplicación
+     * @return el servidor, sin iniciar
+     * @throws SQLException Si no se puede crear
+     */
+    private static Server crear() throws SQLException {
+        return Server.createTcpServer("-tcpPort", String.valueOf(PUERTO),
+                "-baseDir", System.getProperty("user.dir"));
+    }
+
+    /**
+     * Método que comprueba si hay algo escuchando en el puerto del servidor
+     * @return true o false dependiendo si se puede conectar
+     */
+    private static boolean escuchando() {
+        try (Socket s=new Socket()) {
+            s.connect(new InetSocketAddress(HOST, PUERTO), ESPERA_CONEXION_MS);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Método que comprueba si el servidor está en esta máquina
+     * @return true o false dependiendo si el host es local
+     */
+    private static boolean esLocal() {
+        try {
+            InetAddress dir=InetAddress.getByName(HOST);
+            return dir.isLoopbackAddress() || dir.isAnyLocalAddress() || dir.equals(InetAddress.getLocalHost());
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Método principal que inicia un servidor TCP de la base de datos que sigue
+     * en marcha hasta que se pulsa Intro o se termina el proceso
+     * @param args no se usan; el puerto se indica con gestpacientes.bd.puerto
+     */
+    public static void main(String[] args) {
+        Server sr;
+        try {
+            sr=crear().start();
+        } catch (SQLException ex) {
+            System.err.printf("No se pudo iniciar el servidor de base de datos (%s)\n", ex.getMessage());
+            return;
+        }
+        System.out.println("Servidor de base de datos escuchando en "+sr.getURL());
+        System.out.println("Arranca la aplicación con -Dgestpacientes.bd.modo=tcp para usarlo.");
+        System.out.println("Pulsa Intro para pararlo.");
+        boolean consola;
+        try {
+            consola=System.in.read()>=0;
+        } catch (IOException ex) {
+            consola=false;
+        }
+        // Sin entrada estándar (por ejemplo como servicio) se sigue hasta que se termine el proceso
+        if (!consola) {
+            try {
+                Thread.currentThread().join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sr.stop();
+    }
+}
@@ -0,0 +1,122 @@
+package gestpacientes;
+
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Clase con métodos para validar DNI y NIE sin expresiones regulares ni objetos
+ * intermedios. Sigue las mismas reglas que la alta de pacientes:
+ *
+ * - DNI: 8 cifras y la letra de control
+ * - NIE: X, Y o Z, 7 cifras y la letra de control, calculada cambiando la
+ *   primera letra por 0, 1 o 2
+ *
+ * La letra de control es la de la tabla TRWAGMYFPDXBNJZSQVHLCKE en la posición
+ * del número módulo 23. Las letras tienen que estar en mayúsculas.
+ * @author Adrián Romero Ramírez
+ */
+public class ValidadorDni {
+
+    // Letras de control en la posición de su resto
+    private static final char[] LETRAS="TRWAGMYFPDXBNJZSQVHLCKE".toCharArray();
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private ValidadorDni() {
+    }
+
+    /**
+     * Método que comprueba si un DNI o NIE es válido
+     * @param dni DNI o NIE que se quiere comprobar
+     * @return true o false dependiendo si es válido o no
+     */
+    public static boolean esValido(CharSequence dni) {
+        if (dni==null || dni.length()!=9) {
+            return false;
+        }
+        // El primer carácter puede ser la letra de un NIE
+        int numero=valorPrimero(dni.charAt(0));
+        if (numero<0) {
+            return false;
+        }
+        for (int i=1; i<8; i++) {
+            char c=dni.charAt(i);
+            if (c<'0' || c>'9') {
+                return false;
+            }
+            numero=numero*10+(c-'0');
+        }
+        return dni.charAt(8)==LETRAS[numero%23];
+    }
+
+    /**
+     * Método que comprueba si un DNI o NIE guardado en un array de caracteres es válido
+     * @param c array con el DNI
+     * @param desde posición del primer carácter del DNI
+     * @param longitud número de caracteres del DNI
+     * @return true o false dependiendo si es válido o no
+     */
+    public static boolean esValido(char[] c, int desde, int longitud) {
+        if (c==null || longitud!=9 || desde<0 || desde+9>c.length) {
+            return false;
+        }
+        int numero=valorPrimero(c[desde]);
+        if (numero<0) {
+            return false;
+        }
+        for (int i=desde+1; i<desde+8; i++) {
+            if (c[i]<'0' || c[i]>'9') {
+                return false;
+            }
+            numero=numero*10+(c[i]-'0');
+        }
+        return c[desde+8]==LETRAS[numero%23];
+    }
+
+    /**
+     * Método que calcula la letra de control de un número de DNI
+     * @param numero número del DNI, o del NIE con la primera letra cambiada por su cifra
+     * @return la letra de control
+     */
+    public static char letraControl(int numero) {
+        return LETRAS[numero%23];
+    }
+
+    /**
+     * Método que valida un array de DNI repartiendo el trabajo entre los núcleos
+     * @param dnis DNI que se quieren comprobar
+     * @return array con el resultado de cada DNI en la misma posición
+     */
+    public static boolean[] validar(CharSequence[] dnis) {
+        boolean[] res=new boolean[dnis.length];
+        IntStream.range(0, dnis.length).parallel().forEach(i -> res[i]=esValido(dnis[i]));
+        return res;
+    }
+
+    /**
+     * Método que cuenta los DNI válidos de un stream repartiendo el trabajo entre los núcleos
+     * @param dnis stream de DNI que se quieren comprobar
+     * @return número de DNI válidos
+     */
+    public static long contarValidos(Stream<? extends CharSequence> dnis) {
+        return dnis.parallel().filter(ValidadorDni::esValido).count();
+    }
+
+    /**
+     * Método que devuelve el valor numérico del primer carácter de un DNI o NIE
+     * @param c primer carácter
+     * @return su cifra, la de la letra del NIE, o -1 si no es válido
+     */
+    private static int valorPrimero(char c) {
+        if (c>='0' && c<='9') {
+            return c-'0';
+        }
+        switch (c) {
+            case 'X': return 0;
+            case 'Y': return 1;
+            case 'Z': return 2;
+            default: return -1;
+        }
+    }
+}
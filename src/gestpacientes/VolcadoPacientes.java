@@ -0,0 +1,695 @@
+package gestpacientes;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Clase que guarda todos los pacientes en un archivo binario para que, al
+ * arrancar, el filtro de DNI, la instantánea y el índice de búsqueda se
+ * construyan leyendo el archivo en vez de recorrer la tabla por JDBC.
+ *
+ * Formato del archivo (versión 1, números en big-endian):
+ *
+ * - cabecera de 64 bytes: "GPVL", versión, marca de agua, fecha de creación,
+ *   identificador de la base de datos (IDENTIDAD_BD), número de filas y de
+ *   textos, posición del diccionario, CRC32 de los datos y CRC32 de la cabecera
+ * - filas: longitud y bytes UTF-8 del dni, códigos del nombre y los apellidos
+ *   en el diccionario, fecha de nacimiento en días desde el 1/1/1970 y número
+ *   de hospitalizaciones
+ * - diccionario: longitud y bytes UTF-8 de cada nombre y apellidos distinto
+ *
+ * La marca de agua es el último número de SEQ_CAMBIOS_PACIENTES incluido en el
+ * volcado. El archivo se lee proyectado en memoria, sin copiarlo a arrays, y se
+ * le aplican los pacientes que han cambiado después de la marca de agua (ver
+ * RegistroCambios), leídos de la tabla. Se deja de proyectar en cuanto se ha
+ * leído, porque en Windows un archivo proyectado no se puede sustituir. Si la suma de comprobación no coincide,
+ * el archivo es de otra base de datos o su marca de agua es posterior a la de la
+ * base de datos, no se usa y los pacientes se leen de la tabla.
+ *
+ * Se escribe al terminar la aplicación y, si se configura, periódicamente. Si ya
+ * hay un volcado válido el nuevo se hace a partir de él y de los cambios, sin
+ * recorrer la tabla, y si no ha cambiado nada no se escribe.
+ *
+ * Con los pacientes repartidos en varias particiones no se usa el volcado,
+ * porque cada partición tiene sus propios cambios.
+ *
+ * La configuración se lee de las propiedades del sistema:
+ *
+ * - gestpacientes.volcado.activo: si se usa el volcado (por defecto true)
+ * - gestpacientes.volcado.archivo: archivo del volcado (por defecto pacientes.volcado)
+ * - gestpacientes.volcado.periodoSeg: segundos entre volcados, 0 para volcar solo al terminar (por defecto 0)
+ * - gestpacientes.volcado.esperaMs: tiempo máximo de espera a las transacciones abiertas al volcar (por defecto 5000)
+ * @author Adrián Romero Ramírez
+ */
+public class VolcadoPacientes {
+
+    private static final boolean ACTIVO=Boolean.parseBoolean(System.getProperty("gestpacientes.volcado.activo", "true"));
+    private static final String ARCHIVO=System.getProperty("gestpacientes.volcado.archivo", "pacientes.volcado");
+    private static final long PERIODO_SEG=Long.getLong("gestpacientes.volcado.periodoSeg", 0);
+    private static final long ESPERA_MS=Long.getLong("gestpacientes.volcado.esperaMs", 5000);
+
+    // Formato del archivo
+    private static final int MAGIA=0x4750564C;
+    private static final short VERSION=1;
+    private static final int CABECERA=64;
+    private static final int POS_CRC_CABECERA=60;
+
+    private static final String SQL_IDENTIDAD="SELECT id FROM IDENTIDAD_BD";
+    private static final String SQL_MARCA="SELECT CURRENT_VALUE FROM INFORMATION_SCHEMA.SEQUENCES "
+            + "WHERE SEQUENCE_NAME = 'SEQ_CAMBIOS_PACIENTES'";
+    private static final String SQL_ABIERTAS="SELECT ID FROM INFORMATION_SCHEMA.SESSIONS "
+            + "WHERE CONTAINS_UNCOMMITTED AND ID <> SESSION_ID()";
+    private static final String SQL_CAMBIADOS="SELECT c.dni, p.nombre, p.apellidos, p.fecha_nacimiento, p.nhosp "
+            + "FROM CAMBIOS_PACIENTES c LEFT JOIN PACIENTES p ON p.dni = c.dni WHERE c.seq > ?";
+    private static final String SQL_TODOS="SELECT dni, nombre, apellidos, fecha_nacimiento, nhosp FROM PACIENTES";
+
+    // Hilo que escribe el volcado periódico, null si no se vuelca periódicamente
+    private static ScheduledExecutorService volcador;
+
+    /**
+     * Interfaz que recibe los pacientes de un volcado
+     */
+    @FunctionalInterface
+    public interface Lector {
+        /**
+         * Método que recibe un paciente
+         * @param dni DNI del paciente
+         * @param nombre nombre del paciente
+         * @param apellidos apellidos del paciente
+         * @param fechaNacimiento fecha de nacimiento en días desde el 1/1/1970
+         * @param nhosp número de hospitalizaciones
+         */
+        void fila(String dni, String nombre, String apellidos, int fechaNacimiento, int nhosp);
+    }
+
+    /**
+     * Interfaz que recibe las filas de un archivo con los textos sin decodificar
+     */
+    @FunctionalInterface
+    private interface Visitante {
+        void fila(String dni, int nombre, int apellidos, int fechaNacimiento, int nhosp) throws IOException;
+    }
+
+    /**
+     * Constructor privado, la clase solo tiene métodos estáticos
+     */
+    private VolcadoPacientes() {
+    }
+
+    /**
+     * Método para saber si se usa el volcado
+     * @return true o false dependiendo si está activo
+     */
+    public static boolean isActivo() {
+        return ACTIVO;
+    }
+
+    /**
+     * Método que lee todos los pacientes del volcado con los cambios posteriores
+     * a él. Si devuelve false no se ha pasado ningún paciente al lector y hay
+     * que leerlos de la tabla.
+     * @param lector recibe cada paciente
+     * @return true o false dependiendo si se ha podido usar el volcado
+     */
+    public static boolean cargar(Lector lector) {
+        Path ruta=Paths.get(ARCHIVO);
+        if (!ACTIVO || Particiones.getTotal()>1 || !Files.isRegularFile(ruta)) {
+            return false;
+        }
+        try (Connection con=Aplicacion.getPool().obtener();
+             Archivo a=Archivo.abrir(ruta)) {
+            if (!a.id.equals(identidad(con))) {
+                throw new IOException("es de otra base de datos");
+            }
+            if (a.marca>marcaActual(con)) {
+                throw new IOException("es posterior a la base de datos");
+            }
+            Map<String, Paciente> cambiados=cambiados(con, a.marca);
+            String[] textos=a.textos();
+            a.recorrer((dni, nombre, apellidos, fecha, nhosp) -> {
+                if (!cambiados.containsKey(dni)) {
+                    lector.fila(dni, textos[nombre], textos[apellidos], fecha, nhosp);
+                }
+            });
+            for (Paciente p : cambiados.values()) {
+                if (p!=null) {
+                    lector.fila(p.getDni(), p.getNombre(), p.getApellidos(),
+                            (int) p.getFechaNacimiento().toEpochDay(), p.getNhosp());
+                }
+            }
+            return true;
+        } catch (IOException | SQLException ex) {
+            System.out.println("No se usa el volcado de pacientes ("+ex.getMessage()+"), se leen de la base de datos.");
+            return false;
+        }
+    }
+
+    /**
+     * Método que escribe el volcado con los pacientes actuales. Se escribe en un
+     * archivo temporal que después sustituye al anterior, así un volcado a medias
+     * nunca queda como válido.
+     * @return true o false dependiendo si el volcado está al día
+     */
+    public static synchronized boolean escribir() {
+        if (!ACTIVO || Particiones.getTotal()>1) {
+            return false;
+        }
+        if (HospitalizacionesDiferidas.isActivo()) {
+            // Los incrementos pendientes se guardan antes para que entren en el volcado
+            try {
+                HospitalizacionesDiferidas.volcar();
+            } catch (SQLException ex) {
+                System.out.println("No se han podido guardar los incrementos de hospitalizaciones pendientes.");
+            }
+        }
+        Path ruta=Paths.get(ARCHIVO).toAbsolutePath();
+        Path temporal=null;
+        try (Connection con=Aplicacion.getPool().obtener()) {
+            UUID id=identidad(con);
+            long marca=marcaSegura(con);
+            if (marca<0) {
+                throw new IOException("hay transacciones abiertas desde hace más de "+ESPERA_MS+" ms");
+            }
+            Archivo base=null;
+            if (Files.isRegularFile(ruta)) {
+                try {
+                    base=Archivo.abrir(ruta);
+                    if (!base.id.equals(id) || base.marca>marca) {
+                        base.close();
+                        base=null;
+                    }
+                } catch (IOException ex) {
+                    // Se escribe de nuevo a partir de la tabla
+                }
+            }
+            try {
+                if (base!=null && base.marca==marca) {
+                    // No ha cambiado nada desde el último volcado
+                    return true;
+                }
+                // Cada escritura usa su propio temporal, porque con la base de datos en un
+                // servidor (ver ServidorBD) varios procesos pueden escribir el volcado a la vez
+                temporal=Files.createTempFile(ruta.getParent(), ruta.getFileName()+".", ".tmp");
+                try (Escritor e=new Escritor(temporal)) {
+                    if (base==null) {
+                        try (PreparedStatement ps=con.prepareStatement(SQL_TODOS)) {
+                            ps.setFetchSize(1000);
+                            try (ResultSet rs=ps.executeQuery()) {
+                                while (rs.next()) {
+                                    e.fila(rs.getString(1), rs.getString(2), rs.getString(3),
+                                            (int) FilasPacientes.fecha(rs, 4).toEpochDay(), rs.getInt(5));
+                                }
+                            }
+                        }
+                    } else {
+                        Map<String, Paciente> cambiados=cambiados(con, base.marca);
+                        // Los códigos del diccionario anterior se traducen una sola vez al nuevo
+                        String[] textos=base.textos();
+                        int[] codigos=new int[textos.length];
+                        Arrays.fill(codigos, -1);
+                        base.recorrer((dni, nombre, apellidos, fecha, nhosp) -> {
+                            if (!cambiados.containsKey(dni)) {
+                                if (codigos[nombre]<0) {
+                                    codigos[nombre]=e.codigo(textos[nombre]);
+                                }
+                                if (codigos[apellidos]<0) {
+                                    codigos[apellidos]=e.codigo(textos[apellidos]);
+                                }
+                                e.fila(dni, codigos[nombre], codigos[apellidos], fecha, nhosp);
+                            }
+                        });
+                        for (Paciente p : cambiados.values()) {
+                            if (p!=null) {
+                                e.fila(p.getDni(), p.getNombre(), p.getApellidos(),
+                                        (int) p.getFechaNacimiento().toEpochDay(), p.getNhosp());
+                            }
+                        }
+                    }
+                    e.terminar(marca, id);
+                }
+            } finally {
+                // El anterior se deja de proyectar antes de sustituirlo
+                if (base!=null) {
+                    base.close();
+                }
+            }
+            try {
+                Files.move(temporal, ruta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException ex) {
+                Files.move(temporal, ruta, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException | SQLException ex) {
+            System.out.println("No se ha podido escribir el volcado de pacientes ("+ex.getMessage()+").");
+            try {
+                if (temporal!=null) {
+                    Files.deleteIfExists(temporal);
+                }
+            } catch (IOException ex2) {
+                // Se sobrescribe en el siguiente volcado
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Método que empieza el volcado periódico si se ha configurado
+     */
+    public static synchronized void iniciar() {
+        if (ACTIVO && PERIODO_SEG>0 && volcador==null) {
+            volcador=Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t=new Thread(r, "volcado-pacientes");
+                t.setDaemon(true);
+                return t;
+            });
+            volcador.scheduleWithFixedDelay(VolcadoPacientes::escribir, PERIODO_SEG, PERIODO_SEG, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Método que para el volcado periódico y escribe un último volcado. Se llama
+     * al terminar la aplicación, antes de cerrar el pool.
+     */
+    public static void detener() {
+        synchronized (VolcadoPacientes.class) {
+            if (volcador!=null) {
+                volcador.shutdown();
+                volcador=null;
+            }
+        }
+        escribir();
+    }
+
+    /**
+     * Método que lee el identificador de la base de datos
+     * @param con Conexión con la base de datos
+     * @return el identificador
+     * @throws SQLException Si no se puede leer
+     */
+    private static UUID identidad(Connection con) throws SQLException {
+        try (PreparedStatement ps=con.prepareStatement(SQL_IDENTIDAD);
+             ResultSet rs=ps.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("La base de datos no tiene identificador.");
+            }
+            return UUID.fromString(rs.getString(1));
+        }
+    }
+
+    /**
+     * Método que lee el último número dado por la secuencia de los cambios
+     * @param con Conexión con la base de datos
+     * @return el último número, 0 si no ha habido cambios
+     * @throws SQLException Si no se puede leer
+     */
+    static long marcaActual(Connection con) throws SQLException {
+        try (PreparedStatement ps=con.prepareStatement(SQL_MARCA);
+             ResultSet rs=ps.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("No existe la secuencia de cambios de pacientes.");
+            }
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Método que obtiene una marca de agua que se puede usar para un volcado o
+     * para seguir los cambios de otros procesos (ver ServidorBD). Los
+     * números de la secuencia se dan antes de confirmar, así que se espera a que
+     * terminen las transacciones abiertas; después todos los cambios con número
+     * hasta la marca están confirmados o deshechos.
+     * @param con Conexión con la base de datos
+     * @return la marca de agua, o -1 si las transacciones no terminan a tiempo
+     * @throws SQLException Si falla alguna consulta
+     */
+    static long marcaSegura(Connection con) throws SQLException {
+        long marca=marcaActual(con);
+        Set<Integer> abiertas=sesionesAbiertas(con);
+        long limite=System.currentTimeMillis()+ESPERA_MS;
+        while (!abiertas.isEmpty()) {
+            if (System.currentTimeMillis()>limite) {
+                return -1;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+            abiertas.retainAll(sesionesAbiertas(con));
+        }
+        return marca;
+    }
+
+    /**
+     * Método que obtiene las otras sesiones con cambios sin confirmar
+     * @param con Conexión con la base de datos
+     * @return los identificadores de las sesiones
+     * @throws SQLException Si falla la consulta
+     */
+    private static Set<Integer> sesionesAbiertas(Connection con) throws SQLException {
+        Set<Integer> abiertas=new HashSet<>();
+        try (PreparedStatement ps=con.prepareStatement(SQL_ABIERTAS);
+             ResultSet rs=ps.executeQuery()) {
+            while (rs.next()) {
+                abiertas.add(rs.getInt(1));
+            }
+        }
+        return abiertas;
+    }
+
+    /**
+     * Método que lee los pacientes que han cambiado después de una marca de agua
+     * @param con Conexión con la base de datos
+     * @param marca marca de agua del volcado
+     * @return sus datos actuales por dni, con null en los que se han borrado
+     * @throws SQLException Si falla la consulta
+     */
+    static Map<String, Paciente> cambiados(Connection con, long marca) throws SQLException {
+        Map<String, Paciente> cambiados=new HashMap<>();
+        try (PreparedStatement ps=con.prepareStatement(SQL_CAMBIADOS)) {
+            ps.setLong(1, marca);
+            try (ResultSet rs=ps.executeQuery()) {
+                FilasPacientes filas=new FilasPacientes(rs);
+                while (rs.next()) {
+                    Paciente p=null;
+                    if (rs.getString(2)!=null) {
+                        p=filas.leer(rs);
+                    }
+                    cambiados.put(rs.getString(1), p);
+                }
+            }
+        }
+        return cambiados;
+    }
+
+    /**
+     * Clase que representa un archivo de volcado ya comprobado y proyectado en
+     * memoria. Al cerrarlo se deja de proyectar y ya no se puede leer.
+     */
+    private static class Archivo implements AutoCloseable {
+        private final MappedByteBuffer datos;
+        final long marca;
+        final UUID id;
+        private final int filas;
+        private final int numTextos;
+        private final int diccionario;
+
+        private Archivo(MappedByteBuffer datos) throws IOException {
+            this.datos=datos;
+            if (datos.getInt(0)!=MAGIA) {
+                throw new IOException("no es un volcado de pacientes");
+            }
+            if (datos.getShort(4)!=VERSION) {
+                throw new IOException("versión "+datos.getShort(4)+" no soportada");
+            }
+            if (crc(datos, 0, POS_CRC_CABECERA)!=datos.getInt(POS_CRC_CABECERA)) {
+                throw new IOException("la cabecera está dañada");
+            }
+            marca=datos.getLong(8);
+            id=new UUID(datos.getLong(24), datos.getLong(32));
+            filas=datos.getInt(40);
+            numTextos=datos.getInt(44);
+            long pos=datos.getLong(48);
+            if (filas<0 || numTextos<0 || pos<CABECERA || pos>datos.capacity()) {
+                throw new IOException("la cabecera no es coherente");
+            }
+            diccionario=(int) pos;
+            if (crc(datos, CABECERA, datos.capacity())!=datos.getInt(56)) {
+                throw new IOException("la suma de comprobación no coincide");
+            }
+        }
+
+        /**
+         * Método que proyecta en memoria un archivo y comprueba su cabecera y su suma de comprobación
+         * @param ruta archivo
+         * @return el archivo
+         * @throws IOException Si no se puede leer o no es válido
+         */
+        static Archivo abrir(Path ruta) throws IOException {
+            try (FileChannel canal=FileChannel.open(ruta, StandardOpenOption.READ)) {
+                long tamaño=canal.size();
+                if (tamaño<CABECERA) {
+                    throw new IOException("el archivo está incompleto");
+                }
+                if (tamaño>Integer.MAX_VALUE) {
+                    throw new IOException("el archivo es demasiado grande");
+                }
+                // La proyección sigue siendo válida después de cerrar el canal
+                MappedByteBuffer datos=canal.map(FileChannel.MapMode.READ_ONLY, 0, tamaño);
+                try {
+                    return new Archivo(datos);
+                } catch (IOException ex) {
+                    liberar(datos);
+                    throw ex;
+                }
+            }
+        }
+
+        /**
+         * Método que deja de proyectar el archivo en memoria
+         */
+        @Override
+        public void close() {
+            liberar(datos);
+        }
+
+        /**
+         * Método que decodifica el diccionario de textos
+         * @return los textos por su código
+         * @throws IOException Si el diccionario no es coherente
+         */
+        String[] textos() throws IOException {
+            ByteBuffer b=datos.duplicate();
+            b.position(diccionario);
+            String[] textos=new String[numTextos];
+            byte[] bytes=new byte[256];
+            try {
+                for (int i=0; i<numTextos; i++) {
+                    int n=b.getChar();
+                    if (n>bytes.length) {
+                        bytes=new byte[n];
+                    }
+                    b.get(bytes, 0, n);
+                    textos[i]=new String(bytes, 0, n, StandardCharsets.UTF_8);
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException("el diccionario no es coherente");
+            }
+            return textos;
+        }
+
+        /**
+         * Método que recorre las filas del archivo
+         * @param v recibe cada fila
+         * @throws IOException Si las filas no son coherentes
+         */
+        void recorrer(Visitante v) throws IOException {
+            ByteBuffer b=datos.duplicate();
+            b.position(CABECERA);
+            b.limit(diccionario);
+            byte[] dni=new byte[255];
+            try {
+                for (int i=0; i<filas; i++) {
+                    int n=b.get()&0xFF;
+                    b.get(dni, 0, n);
+                    int nombre=b.getInt();
+                    int apellidos=b.getInt();
+                    if (nombre<0 || nombre>=numTextos || apellidos<0 || apellidos>=numTextos) {
+                        throw new IOException("las filas no son coherentes");
+                    }
+                    v.fila(new String(dni, 0, n, StandardCharsets.UTF_8), nombre, apellidos, b.getInt(), b.getInt());
+                }
+            } catch (RuntimeException ex) {
+                throw new IOException("las filas no son coherentes");
+            }
+        }
+    }
+
+    /**
+     * Clase que escribe un archivo de volcado: primero las filas, mientras se
+     * forma el diccionario, después el diccionario y por último la cabecera
+     */
+    private static class Escritor implements AutoCloseable {
+        private final FileChannel canal;
+        private final ByteBuffer buffer=ByteBuffer.allocateDirect(1<<16);
+        private final CRC32 crc=new CRC32();
+        private final Map<String, Integer> codigos=new HashMap<>();
+        private final List<String> textos=new ArrayList<>();
+        private int filas;
+        private long posicion=CABECERA;
+
+        Escritor(Path ruta) throws IOException {
+            canal=FileChannel.open(ruta, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+            canal.position(CABECERA);
+        }
+
+        /**
+         * Método que añade una fila
+         * @param dni DNI del paciente
+         * @param nombre nombre del paciente
+         * @param apellidos apellidos del paciente
+         * @param fecha fecha de nacimiento en días desde el 1/1/1970
+         * @param nhosp número de hospitalizaciones
+         * @throws IOException Si falla la escritura
+         */
+        void fila(String dni, String nombre, String apellidos, int fecha, int nhosp) throws IOException {
+            fila(dni, codigo(nombre), codigo(apellidos), fecha, nhosp);
+        }
+
+        /**
+         * Método que añade una fila con los textos ya en el diccionario
+         * @param dni DNI del paciente
+         * @param nombre código del nombre
+         * @param apellidos código de los apellidos
+         * @param fecha fecha de nacimiento en días desde el 1/1/1970
+         * @param nhosp número de hospitalizaciones
+         * @throws IOException Si falla la escritura
+         */
+        void fila(String dni, int nombre, int apellidos, int fecha, int nhosp) throws IOException {
+            byte[] d=dni.getBytes(StandardCharsets.UTF_8);
+            if (d.length>255) {
+                throw new IOException("el dni "+dni+" es demasiado largo");
+            }
+            reservar(1+d.length+16);
+            buffer.put((byte) d.length).put(d).putInt(nombre).putInt(apellidos).putInt(fecha).putInt(nhosp);
+            filas++;
+        }
+
+        /**
+         * Método que escribe el diccionario y la cabecera y guarda el archivo en disco
+         * @param marca marca de agua del volcado
+         * @param id identificador de la base de datos
+         * @throws IOException Si falla la escritura
+         */
+        void terminar(long marca, UUID id) throws IOException {
+            vaciar();
+            long diccionario=posicion;
+            for (String t : textos) {
+                byte[] b=t.getBytes(StandardCharsets.UTF_8);
+                if (b.length>Character.MAX_VALUE) {
+                    throw new IOException("hay un texto demasiado largo");
+                }
+                reservar(2+b.length);
+                buffer.putChar((char) b.length).put(b);
+            }
+            vaciar();
+            ByteBuffer cabecera=ByteBuffer.allocate(CABECERA);
+            cabecera.putInt(MAGIA).putShort(VERSION).putShort((short) 0)
+                    .putLong(marca).putLong(System.currentTimeMillis())
+                    .putLong(id.getMostSignificantBits()).putLong(id.getLeastSignificantBits())
+                    .putInt(filas).putInt(textos.size()).putLong(diccionario)
+                    .putInt((int) crc.getValue());
+            cabecera.putInt(crc(cabecera, 0, POS_CRC_CABECERA));
+            cabecera.flip();
+            while (cabecera.hasRemaining()) {
+                canal.write(cabecera, cabecera.position());
+            }
+            canal.force(true);
+        }
+
+        /**
+         * Método que obtiene el código de un texto, añadiéndolo al diccionario si no está
+         * @param texto texto
+         * @return su código
+         */
+        int codigo(String texto) {
+            Integer c=codigos.get(texto);
+            if (c==null) {
+                c=textos.size();
+                codigos.put(texto, c);
+                textos.add(texto);
+            }
+            return c;
+        }
+
+        private void reservar(int bytes) throws IOException {
+            if (buffer.remaining()<bytes) {
+                vaciar();
+            }
+        }
+
+        private void vaciar() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                posicion+=canal.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            canal.close();
+        }
+    }
+
+    /**
+     * Método que deja de proyectar en memoria un buffer sin esperar al recolector
+     * de basura. Si la máquina virtual no lo permite se deja al recolector.
+     * @param b buffer proyectado, que ya no se puede volver a leer
+     */
+    private static void liberar(MappedByteBuffer b) {
+        try {
+            // Desde Java 9
+            Class<?> clase=Class.forName("sun.misc.Unsafe");
+            Field campo=clase.getDeclaredField("theUnsafe");
+            campo.setAccessible(true);
+            clase.getMethod("invokeCleaner", ByteBuffer.class).invoke(campo.get(null), b);
+        } catch (NoSuchMethodException ex) {
+            // En Java 8 se usa el limpiador del propio buffer
+            try {
+                Method limpiador=b.getClass().getMethod("cleaner");
+                limpiador.setAccessible(true);
+                Object l=limpiador.invoke(b);
+                l.getClass().getMethod("clean").invoke(l);
+            } catch (ReflectiveOperationException | RuntimeException ex2) {
+                // Se libera cuando lo recoja el recolector de basura
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // Se libera cuando lo recoja el recolector de basura
+        }
+    }
+
+    /**
+     * Método que calcula el CRC32 de una parte de un buffer sin moverlo
+     * @param b buffer
+     * @param desde primera posición
+     * @param hasta posición siguiente a la última
+     * @return el CRC32
+     */
+    private static int crc(ByteBuffer b, int desde, int hasta) {
+        ByteBuffer parte=b.duplicate();
+        parte.limit(hasta).position(desde);
+        CRC32 crc=new CRC32();
+        crc.update(parte);
+        return (int) crc.getValue();
+    }
+}
@@ -5,3 +5,70 @@ CREATE TABLE IF NOT EXISTS PACIENTES (
     fecha_nacimiento DATE NOT NULL, /* formato yyyy-MM-dd */
     nhosp INT DEFAULT 0
 );
+
+/* Índice para las consultas por fecha de nacimiento y edad, con el dni para
+   paginarlas en orden */
+CREATE INDEX IF NOT EXISTS IDX_PACIENTES_FECHA ON PACIENTES (fecha_nacimiento, dni);
+
+/* Identificador de la base de datos, para comprobar que un volcado de
+   pacientes se ha hecho desde ella */
+CREATE TABLE IF NOT EXISTS IDENTIDAD_BD (
+    id VARCHAR(36) NOT NULL
+);
+INSERT INTO IDENTIDAD_BD SELECT RANDOM_UUID() FROM DUAL WHERE NOT EXISTS (SELECT 1 FROM IDENTIDAD_BD);
+
+/* Último cambio de cada paciente, apuntado por el disparador, para aplicar a
+   un volcado de pacientes los cambios hechos después. El disparador
+   TRG_CAMBIOS_PACIENTES solo se crea cuando hace falta (ver RegistroCambios) */
+CREATE SEQUENCE IF NOT EXISTS SEQ_CAMBIOS_PACIENTES;
+CREATE TABLE IF NOT EXISTS CAMBIOS_PACIENTES (
+    dni VARCHAR(10) NOT NULL PRIMARY KEY,
+    seq BIGINT NOT NULL
+);
+CREATE INDEX IF NOT EXISTS IDX_CAMBIOS_PACIENTES_SEQ ON CAMBIOS_PACIENTES (seq);
+
+/* Posición de esta base de datos entre las particiones de PACIENTES (ver Particiones) */
+CREATE TABLE IF NOT EXISTS PARTICION_BD (
+    indice INT NOT NULL,
+    total INT NOT NULL
+);
+
+/* Historial de hospitalizaciones: una fila por ingreso, en el orden en que se
+   apuntan (ver Hospitalizaciones). El nhosp de PACIENTES es el número de filas
+   del paciente. Se busca por clave, el hashCode() del dni, porque comparar
+   números en el índice es mucho más rápido que comparar textos con la
+   intercalación de la base de datos; el dni se compara después. Las filas
+   con instante NULL son las hospitalizaciones que ya estaban contadas antes
+   de existir el historial. reingreso indica si el paciente había ingresado en
+   los 30 días anteriores, y resumen el número del resumen que ya ha sumado la
+   fila en los totales por día y por mes (NULL mientras no se ha sumado) */
+CREATE TABLE IF NOT EXISTS HOSPITALIZACIONES (
+    id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    clave INT NOT NULL,
+    dni VARCHAR(10) NOT NULL,
+    instante TIMESTAMP,
+    reingreso BOOLEAN NOT NULL,
+    resumen BIGINT
+);
+CREATE INDEX IF NOT EXISTS IDX_HOSPITALIZACIONES_CLAVE ON HOSPITALIZACIONES (clave, instante);
+CREATE INDEX IF NOT EXISTS IDX_HOSPITALIZACIONES_RESUMEN ON HOSPITALIZACIONES (resumen, instante);
+CREATE SEQUENCE IF NOT EXISTS SEQ_RESUMENES_HOSPITALIZACIONES;
+
+/* Totales de hospitalizaciones ya resumidas por día y por mes (el primer día del mes) */
+CREATE TABLE IF NOT EXISTS HOSPITALIZACIONES_DIA (
+    dia DATE NOT NULL PRIMARY KEY,
+    ingresos BIGINT NOT NULL,
+    reingresos BIGINT NOT NULL
+);
+CREATE TABLE IF NOT EXISTS HOSPITALIZACIONES_MES (
+    mes DATE NOT NULL PRIMARY KEY,
+    ingresos BIGINT NOT NULL,
+    reingresos BIGINT NOT NULL
+);
+
+/* Momento en que empezó el historial de hospitalizaciones en esta base de datos;
+   tiene una sola fila con id 1, que solo puede apuntar un proceso */
+CREATE TABLE IF NOT EXISTS HISTORIAL_BD (
+    id INT NOT NULL PRIMARY KEY,
+    desde TIMESTAMP NOT NULL
+);